@@ -0,0 +1,213 @@
+package it.zwets.sms.client;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.PrivateKey;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.zwets.sms.crypto.CryptoExecutors;
+import it.zwets.sms.crypto.KeyCache;
+import it.zwets.sms.crypto.OdkCrypto;
+import it.zwets.sms.crypto.OdkManifest;
+
+/**
+ * Decrypts a tree of encrypted ODK/Kobo submissions into a parallel tree.
+ *
+ * Each submission is a directory with the cleartext {@link OdkManifest},
+ * the encrypted submission.xml.enc, and the encrypted media files.  Every
+ * submission is decrypted to the same relative path under the output
+ * directory by {@link OdkCrypto.Decryptor#decryptSubmission(OdkManifest, Path, Path)}.
+ *
+ * Submissions are processed on virtual threads, as reading and writing their
+ * files mostly waits for I/O, with a bound on the number in flight.  The
+ * unwrapping of the symmetric key, the one private key operation for each
+ * submission, runs on the CPU pool, with at most two per processor handed
+ * to it at a time so that its queue is never overrun.  The virtual thread
+ * waits for it, which cannot deadlock the pool.  A failed submission is
+ * logged and counted, and does not stop the others.
+ */
+public final class KoboBulkDecrypter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(KoboBulkDecrypter.class);
+
+    /** Default maximum number of submissions in flight */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 256;
+
+    private final PrivateKey privateKey;
+    private final int maxInFlight;
+    private final KeyCache<String,byte[]> keyCache;
+
+    // Bounds the key unwraps handed to the CPU pool at a time
+    private final Semaphore unwraps = new Semaphore(2 * Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Statistics of a bulk decryption.
+     * @param submissions the number of submissions decrypted
+     * @param failed the number of submissions that failed
+     * @param files the number of files decrypted
+     * @param bytes the number of ciphertext bytes decrypted
+     * @param nanos the elapsed time
+     */
+    public record Summary(long submissions, long failed, long files, long bytes, long nanos) {
+
+        /**
+         * Return the throughput in submissions.
+         * @return the decrypted submissions per second
+         */
+        public double submissionsPerSecond() {
+            return submissions * 1e9 / Math.max(1, nanos);
+        }
+
+        /**
+         * Return the throughput in bytes.
+         * @return the decrypted megabytes per second
+         */
+        public double megabytesPerSecond() {
+            return bytes * 1e9 / 1e6 / Math.max(1, nanos);
+        }
+
+        @Override
+        public String toString() {
+            return "Decrypted %d submissions (%d files, %.1f MB) in %.2f s: %.0f submissions/s, %.1f MB/s; %d failed".formatted(
+                    submissions, files, bytes / 1e6, nanos / 1e9, submissionsPerSecond(), megabytesPerSecond(), failed);
+        }
+    }
+
+    /**
+     * Create a decrypter for submissions encrypted for privateKey.
+     * @param privateKey the private key of the form
+     */
+    public KoboBulkDecrypter(PrivateKey privateKey) {
+        this(privateKey, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Create a decrypter that has at most maxInFlight submissions open at a time.
+     * @param privateKey the private key of the form
+     * @param maxInFlight the maximum number of submissions in flight
+     */
+    public KoboBulkDecrypter(PrivateKey privateKey, int maxInFlight) {
+        this(privateKey, maxInFlight, null);
+    }
+
+    /**
+     * Create a decrypter that looks up the unwrapped keys in keyCache, so
+     * that submissions whose parts are split over several directories, or
+     * that are decrypted again, need only one private key operation.
+     * @param privateKey the private key of the form
+     * @param maxInFlight the maximum number of submissions in flight
+     * @param keyCache the cache from {@link OdkCrypto#newKeyCache(int, java.time.Duration)}, or null
+     */
+    public KoboBulkDecrypter(PrivateKey privateKey, int maxInFlight, KeyCache<String,byte[]> keyCache) {
+        this.privateKey = privateKey;
+        this.maxInFlight = maxInFlight;
+        this.keyCache = keyCache;
+    }
+
+    /**
+     * Decrypt every encrypted submission under inDir to the same place under outDir.
+     *
+     * Directories whose submission.xml is not the manifest of an encrypted
+     * submission are skipped, so that outDir may be inside inDir.
+     *
+     * @param inDir the root of the tree of submission directories
+     * @param outDir the root of the output tree, created if needed
+     * @return the statistics of the run
+     * @throws RuntimeException if inDir cannot be walked, or a submission cannot be scheduled
+     */
+    public Summary decryptAll(Path inDir, Path outDir) {
+        LOG.debug("decrypting submissions in {} to {}", inDir, outDir);
+        long start = System.nanoTime();
+        LongAdder submissions = new LongAdder();
+        LongAdder failed = new LongAdder();
+        LongAdder files = new LongAdder();
+        LongAdder bytes = new LongAdder();
+
+        // Walking blocks on the slots, so the walk is throttled to the pace
+        // of the decryption rather than racing ahead of it; the phaser
+        // tracks the tasks in flight, so memory does not grow with the
+        // number of submissions
+        Executor executor = CryptoExecutors.io();
+        Semaphore slots = new Semaphore(maxInFlight);
+        Phaser inFlight = new Phaser(1);
+        try (Stream<Path> paths = Files.walk(inDir)) {
+            paths.filter(path -> OdkManifest.FILE_NAME.equals(path.getFileName().toString()) && Files.isRegularFile(path))
+                .forEach(manifest -> {
+                    slots.acquireUninterruptibly();
+                    inFlight.register();
+                    try {
+                        executor.execute(() -> {
+                            Path dir = manifest.getParent();
+                            try {
+                                if (decryptSubmission(dir, outDir.resolve(inDir.relativize(dir)), files, bytes)) {
+                                    submissions.increment();
+                                }
+                            }
+                            catch (RuntimeException | IOException e) {
+                                failed.increment();
+                                LOG.error("Failed to decrypt submission {}: {}", dir, e.getMessage());
+                            }
+                            finally {
+                                slots.release();
+                                inFlight.arriveAndDeregister();
+                            }
+                        });
+                    }
+                    catch (RuntimeException e) {
+                        // The task never ran, so its slot and party are ours to give back
+                        slots.release();
+                        inFlight.arriveAndDeregister();
+                        throw e;
+                    }
+                });
+        }
+        catch (IOException | UncheckedIOException e) {
+            throw new RuntimeException("Failed to walk %s: %s".formatted(inDir, e.getMessage()), e);
+        }
+        finally {
+            inFlight.arriveAndAwaitAdvance();
+        }
+
+        return new Summary(submissions.sum(), failed.sum(), files.sum(), bytes.sum(), System.nanoTime() - start);
+    }
+
+    // Decrypts the submission in dir to target, returns false if it is not encrypted
+    private boolean decryptSubmission(Path dir, Path target, LongAdder files, LongAdder bytes) throws IOException {
+        OdkManifest manifest = OdkManifest.read(dir.resolve(OdkManifest.FILE_NAME));
+        if (manifest == null) {
+            LOG.debug("skipping unencrypted submission {}", dir);
+            return false;
+        }
+
+        OdkCrypto.Decryptor decryptor;
+        unwraps.acquireUninterruptibly();
+        try {
+            decryptor = CompletableFuture.supplyAsync(
+                    () -> OdkCrypto.Decryptor.forManifest(privateKey, manifest, keyCache), CryptoExecutors.cpu()).join();
+        }
+        catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException re ? re : e;
+        }
+        finally {
+            unwraps.release();
+        }
+
+        decryptor.decryptSubmission(manifest, dir, target);
+        for (String part : manifest.parts()) {
+            files.increment();
+            bytes.add(Files.size(dir.resolve(part)));
+        }
+        return true;
+    }
+}
@@ -1,16 +1,32 @@
 package it.zwets.sms.client;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import it.zwets.sms.crock.PhoneNumberEncoder;
+import it.zwets.sms.crypto.KeyCache;
+import it.zwets.sms.crypto.MessageArchive;
 import it.zwets.sms.crypto.OdkCrypto;
 import it.zwets.sms.crypto.PkiCrypto;
 import it.zwets.sms.crypto.PkiUtils;
@@ -20,18 +36,47 @@ import it.zwets.sms.message.SmsMessage;
 public class Main {
 
     public static final String DEFAULT_KEYPASS = "123456";
+
+    // Time after which an unused unwrapped ODK key is dropped and wiped
+    private static final Duration ODK_KEY_IDLE = Duration.ofMinutes(10);
     
-    private static byte[] encryptWithPubkey(Path pubFile, byte[] plaintext) throws IOException {
-        byte[] keyBytes = Files.readAllBytes(pubFile);
-        keyBytes = Base64.getDecoder().decode(keyBytes);
-        PublicKey key = PkiUtils.readPublicKey(keyBytes);
-        byte[] ciphertext = PkiCrypto.encrypt(key, plaintext);
+    private static byte[] encryptWithPubkey(Path pubFile, byte[] plaintext) {
+        byte[] ciphertext = PkiCrypto.encrypt(PkiUtils.readPublicKey(pubFile), plaintext);
         return Base64.getEncoder().encode(ciphertext);
     }
 
     public static void main(String[] args) {
 
         try {
+            // The --in FILE and --out FILE options switch encrypt and decrypt
+            // to binary file-to-file mode, and --out sets the output file for
+            // kobo-dec, --part N decrypts the kobo-dec input as part N of its
+            // submission, and --key-cache N caches N unwrapped ODK keys in
+            // serve-vault and kobo-bulk-dec.  They are only taken from the
+            // arguments of those commands, so that they cannot eat message text,
+            // and elsewhere fail the argument count
+            Map<String,String> options = new HashMap<>();
+            String command = args.length == 0 ? "" : args[0];
+            args = takeOptions(args, options, switch (command) {
+                case "encrypt", "decrypt" -> List.of("--in", "--out");
+                case "kobo-dec", "kobo-vault-dec" -> List.of("--out", "--part");
+                case "kobo-bulk-dec" -> List.of("--key-cache");
+                case "serve-vault" -> List.of("--key-cache");
+                default -> List.of();
+            });
+
+            KeyCache<String,byte[]> odkKeys = options.containsKey("--key-cache")
+                    ? OdkCrypto.newKeyCache(parseIntOption("--key-cache", options.get("--key-cache"), 1), ODK_KEY_IDLE) : null;
+
+            int part = options.containsKey("--part") ? parseIntOption("--part", options.get("--part"), 0) : 0;
+
+            Path inFile = options.containsKey("--in") ? Path.of(options.get("--in")) : null;
+            Path outFile = options.containsKey("--out") ? Path.of(options.get("--out")) : null;
+            boolean fileMode = inFile != null && outFile != null;
+            if (("encrypt".equals(command) || "decrypt".equals(command)) && (inFile != null) != (outFile != null)) {
+                throw new RuntimeException("Options --in and --out must be given together");
+            }
+
             if ((args.length == 3 || args.length == 4) && "pubkey".equals(args[0]))
             {
                 String keyStore = args[1];
@@ -57,14 +102,30 @@ public class Main {
                 String keyPass = args.length == 4 ? args[2] : DEFAULT_KEYPASS;
                 String alias = args[args.length - 1]; 
                 
+                // Alias "-" means pick the alias by the key id in the ciphertext
                 Vault vault = new Vault(keyStore, keyPass);
-                byte[] bytes = Base64.getDecoder().decode(Files.readAllBytes(Path.of("/dev/stdin")));
-                Files.write(Path.of("/dev/stdout"), vault.decrypt(alias, bytes));
+                if (fileMode) {
+                    if ("-".equals(alias)) {
+                        vault.decrypt(inFile, outFile);
+                    }
+                    else {
+                        vault.decrypt(alias, inFile, outFile);
+                    }
+                }
+                else {
+                    byte[] bytes = Base64.getDecoder().decode(Files.readAllBytes(Path.of("/dev/stdin")));
+                    Files.write(Path.of("/dev/stdout"), "-".equals(alias) ? vault.decrypt(bytes) : vault.decrypt(alias, bytes));
+                }
             }
             else if (args.length == 2 && "encrypt".equals(args[0]))
             {
-                Files.write(Path.of("/dev/stdout"), 
-                        encryptWithPubkey(Path.of(args[1]), Files.readAllBytes(Path.of("/dev/stdin"))));
+                if (fileMode) {
+                    new PkiCrypto.Encryptor(PkiUtils.readPublicKey(Path.of(args[1]))).encrypt(inFile, outFile);
+                }
+                else {
+                    Files.write(Path.of("/dev/stdout"), 
+                            encryptWithPubkey(Path.of(args[1]), Files.readAllBytes(Path.of("/dev/stdin"))));
+                }
             }
             else if ((args.length == 2 || args.length == 3) && "encrock".equals(args[0]))
             {
@@ -102,11 +163,10 @@ public class Main {
                 PrivateKey privKey = PkiUtils.readPrivateKey(args[1]);
                 String base64EncKey = args[2];
                 String instanceId = args[3];
-                String inFile = args[4];
+                String encFile = args[4];
 
-                FileInputStream is = new FileInputStream(new File(inFile.equals("-") ? "/dev/stdin" : inFile));
                 OdkCrypto.Decryptor decryptor = new OdkCrypto.Decryptor(privKey, base64EncKey, instanceId);
-                decryptor.decrypt(is, System.out);
+                koboDecrypt(decryptor, part, encFile, outFile);
             }
             else if ((args.length == 5 || args.length == 7) && "kobo-vault-dec".equals(args[0]))
             {
@@ -116,23 +176,96 @@ public class Main {
                 String alias = args.length == 5 ? "kobo" : args[argc++];
                 String base64EncKey = args[argc++];
                 String instanceId = args[argc++];
-                String inFile = args[argc++];
+                String encFile = args[argc++];
 
                 Vault vault = new Vault(keyStore, keyPass);
                 PrivateKey privKey = vault.getPrivateKey(alias);
-                FileInputStream is = new FileInputStream(new File(inFile.equals("-") ? "/dev/stdin" : inFile));
                 OdkCrypto.Decryptor decryptor = new OdkCrypto.Decryptor(privKey, base64EncKey, instanceId);
-                decryptor.decrypt(is, System.out);
+                koboDecrypt(decryptor, part, encFile, outFile);
+            }
+            else if (args.length == 4 && "kobo-bulk-dec".equals(args[0]))
+            {
+                PrivateKey privKey = PkiUtils.readPrivateKey(args[1]);
+                KoboBulkDecrypter.Summary summary = new KoboBulkDecrypter(privKey, KoboBulkDecrypter.DEFAULT_MAX_IN_FLIGHT, odkKeys)
+                        .decryptAll(Path.of(args[2]), Path.of(args[3]));
+                System.err.println(summary);
+                if (odkKeys != null) {
+                    System.err.println(cacheReport(odkKeys));
+                }
+                if (summary.failed() > 0) {
+                    System.exit(1);
+                }
+            }
+            else if (args.length == 2 && "pack".equals(args[0]))
+            {
+                // Reads one base64 ciphertext per line from stdin, into a temporary
+                // file that becomes the archive only if all lines were valid
+                Path archive = Path.of(args[1]);
+                Path temp = Files.createTempFile(archive.toAbsolutePath().getParent(), "." + archive.getFileName(), ".tmp");
+                try {
+                    try (BufferedReader reader = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.US_ASCII));
+                         MessageArchive.Writer writer = MessageArchive.create(temp)) {
+                        String line;
+                        while ((line = reader.readLine()) != null) {
+                            if (!line.isBlank()) {
+                                writer.add(Base64.getDecoder().decode(line.strip()));
+                            }
+                        }
+                    }
+                    Files.move(temp, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                }
+                finally {
+                    Files.deleteIfExists(temp);
+                }
+            }
+            else if ((args.length == 2 || args.length == 3) && "unpack".equals(args[0]))
+            {
+                // Writes one base64 ciphertext per line to stdout, or only record N
+                try (MessageArchive archive = MessageArchive.open(Path.of(args[1]));
+                     PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)), false, StandardCharsets.US_ASCII)) {
+                    Base64.Encoder encoder = Base64.getEncoder();
+                    if (args.length == 3) {
+                        out.println(encoder.encodeToString(archive.get(Integer.parseInt(args[2]))));
+                    }
+                    else {
+                        archive.forEach(record -> out.println(encoder.encodeToString(record)));
+                    }
+                }
+            }
+            else if ((args.length == 2 || args.length == 3) && "serve-vault".equals(args[0]))
+            {
+                String keyStore = args[1];
+                String keyPass = args.length == 3 ? args[2] : DEFAULT_KEYPASS;
+
+                Vault vault = new Vault(keyStore, keyPass);
+                vault.preload();
+
+                VaultServer server = new VaultServer(vault, VaultServer.defaultSocketPath(), odkKeys);
+                server.bind();
+
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                    try { server.close(); } catch (IOException e) { /* exiting anyway */ }
+                    if (odkKeys != null) {
+                        System.err.println(cacheReport(odkKeys));
+                        odkKeys.clear();
+                    }
+                }));
+                server.serve();
             }
             else {
                 System.err.println("Usage: sms-client aliases KEYSTORE [KEYPASS]");
                 System.err.println("       sms-client pubkey KEYSTORE [KEYPASS] ALIAS");
-                System.err.println("       sms-client encrypt PUBKEY");
+                System.err.println("       sms-client encrypt PUBKEY [--in FILE --out FILE]");
+                System.err.println("       sms-client decrypt KEYSTORE KEYPASS ALIAS|- [--in FILE --out FILE]");
                 System.err.println("       sms-client encrock [SHUFFLEKEY] PHONENUMBER");
                 System.err.println("       sms-client alphabet SHUFFLEKEY");
-                System.err.println("       sms-client kobo-dec PKFILE B64SYMKEY INSTANCE INFILE");
-                System.err.println("       sms-client kobo-vault-dec KEYSTORE [KEYPASS ALIAS] B64SYMKEY INSTANCE INFILE");
+                System.err.println("       sms-client kobo-dec PKFILE B64SYMKEY INSTANCE INFILE [--part N] [--out FILE]");
+                System.err.println("       sms-client kobo-vault-dec KEYSTORE [KEYPASS ALIAS] B64SYMKEY INSTANCE INFILE [--part N] [--out FILE]");
+                System.err.println("       sms-client kobo-bulk-dec PKFILE INDIR OUTDIR [--key-cache N]");
                 System.err.println("       sms-client enc-sms PUBKEY RECIPIENT SENDER MESSAGE");
+                System.err.println("       sms-client serve-vault KEYSTORE [KEYPASS] [--key-cache N]");
+                System.err.println("       sms-client pack ARCHIVE");
+                System.err.println("       sms-client unpack ARCHIVE [N]");
                 
                 System.exit(1);
             }
@@ -143,4 +276,66 @@ public class Main {
             System.exit(1);
         }
     }
+
+    // Removes each option in names with its value from args and puts it in
+    // options; a name that is the last argument is left as a plain argument
+    private static String[] takeOptions(String[] args, Map<String,String> options, List<String> names) {
+        List<String> rest = new ArrayList<>();
+        for (int i = 0; i < args.length; ++i) {
+            if (names.contains(args[i]) && i + 1 < args.length) {
+                options.put(args[i], args[++i]);
+            }
+            else {
+                rest.add(args[i]);
+            }
+        }
+        return rest.toArray(String[]::new);
+    }
+
+    // Formats the statistics of the ODK key cache
+    private static String cacheReport(KeyCache<String,byte[]> cache) {
+        KeyCache.Stats stats = cache.getStats();
+        return "ODK key cache: %d hits, %d misses (%.1f%% hit rate), %d evictions, %d of %d entries".formatted(
+                stats.hits(), stats.misses(), 100 * stats.hitRate(), stats.evictions(), stats.size(), cache.getMaxSize());
+    }
+
+    // Parses the value of option as an integer of at least min
+    private static int parseIntOption(String option, String value, int min) {
+        try {
+            int n = Integer.parseInt(value);
+            if (n >= min) {
+                return n;
+            }
+        }
+        catch (NumberFormatException e) {
+            // fall through to the error below
+        }
+        throw new RuntimeException("Option %s must be an integer from %d: %s".formatted(option, min, value));
+    }
+
+    // Decrypts encFile (or stdin if "-") as the given part to outFile, or stdout
+    // if outFile is null; outFile is only replaced when decryption succeeds
+    private static void koboDecrypt(OdkCrypto.Decryptor decryptor, int part, String encFile, Path outFile) throws IOException {
+        if (outFile != null && !encFile.equals("-")) {
+            decryptor.decrypt(part, Path.of(encFile), outFile);
+        }
+        else if (outFile == null) {
+            try (FileInputStream is = new FileInputStream(new File(encFile.equals("-") ? "/dev/stdin" : encFile))) {
+                decryptor.decrypt(part, is, System.out);
+            }
+        }
+        else {
+            Path temp = Files.createTempFile(outFile.toAbsolutePath().getParent(), "." + outFile.getFileName(), ".tmp");
+            try {
+                try (FileInputStream is = new FileInputStream(new File("/dev/stdin"));
+                     OutputStream os = Files.newOutputStream(temp)) {
+                    decryptor.decrypt(part, is, os);
+                }
+                Files.move(temp, outFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            finally {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
 }
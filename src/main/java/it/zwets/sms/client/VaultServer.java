@@ -0,0 +1,327 @@
+package it.zwets.sms.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import it.zwets.sms.crypto.KeyCache;
+import it.zwets.sms.crypto.OdkCrypto;
+import it.zwets.sms.crypto.Vault;
+
+/**
+ * Serves decryption requests for a {@link Vault} over a Unix domain socket.
+ *
+ * This keeps the vault open in a long-running process, so that the per-message
+ * cost of decryption excludes JVM startup and keystore loading.  Every
+ * connection is handled on its own virtual thread, and can carry any number
+ * of requests in sequence.  At most {@value #MAX_CONNECTIONS} connections
+ * are served at a time, so that the requests held in memory are bounded;
+ * further clients wait in the listen backlog.
+ *
+ * A request is a one-byte opcode followed by a fixed number of fields, each
+ * of which is a 4-byte big-endian length followed by that many bytes:
+ * <ul>
+ * <li><code>D</code> KEYSTORE KEYPASS ALIAS CIPHERTEXT: decrypt PkiCrypto
+ *     ciphertext; an empty ALIAS picks the key by the key id in the ciphertext</li>
+ * <li><code>K</code> KEYSTORE KEYPASS ALIAS B64KEY INSTANCE PART CIPHERTEXT:
+ *     decrypt ODK ciphertext as part number PART (in decimal) of the submission</li>
+ * </ul>
+ * A request names the keystore and password that the client would open, so
+ * that it is only served if the vault was opened on the same keystore with
+ * the same password.  An empty KEYSTORE is served by the vault as it is.
+ * 
+ * The response is a one-byte status and one length-prefixed field with the
+ * plaintext or the UTF-8 error message.  The status is 0 for success, 1 for
+ * failure, and 2 if the request names a keystore or password other than the
+ * vault's, in which case the client should decrypt on its own.
+ *
+ * There is no authentication: the socket file is created with owner-only
+ * permissions, and anyone who can connect to it can decrypt.  By default it
+ * lives in the user's XDG_RUNTIME_DIR, or else in a per-user directory in
+ * /tmp that is made owner-only, so that no other user can take its place.
+ */
+public class VaultServer implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VaultServer.class);
+
+    /** Environment variable that overrides the default socket path */
+    public static final String SOCKET_ENV = "SMS_VAULT_SOCKET";
+    /** File name of the socket in the default directory */
+    public static final String DEFAULT_SOCKET_NAME = "sms-vault.sock";
+    /** Prefix of the per-user socket directory used when XDG_RUNTIME_DIR is not set */
+    public static final String FALLBACK_DIR_PREFIX = "/tmp/sms-vault-";
+
+    public static final int OP_DECRYPT = 'D';
+    public static final int OP_KOBO_DECRYPT = 'K';
+    public static final int STATUS_OK = 0;
+    public static final int STATUS_ERROR = 1;
+    public static final int STATUS_OTHER_VAULT = 2;
+
+    /** Maximum number of connections served at a time */
+    public static final int MAX_CONNECTIONS = 16;
+
+    // Guards against garbage length prefixes
+    private static final int MAX_FIELD_SIZE = 64 * 1024 * 1024;
+
+    private final Semaphore connections = new Semaphore(MAX_CONNECTIONS);
+
+    private final Vault vault;
+    private final Path socketPath;
+    private final KeyCache<String,byte[]> odkKeys;
+    private ServerSocketChannel server;
+
+    /**
+     * Create a server for vault on socketPath.
+     * @param vault the vault to decrypt with
+     * @param socketPath the path of the socket file to create
+     */
+    public VaultServer(Vault vault, Path socketPath) {
+        this(vault, socketPath, null);
+    }
+
+    /**
+     * Create a server for vault on socketPath that caches unwrapped ODK keys.
+     * @param vault the vault to decrypt with
+     * @param socketPath the path of the socket file to create
+     * @param odkKeys the cache from {@link OdkCrypto#newKeyCache(int, java.time.Duration)}, or null
+     */
+    public VaultServer(Vault vault, Path socketPath, KeyCache<String,byte[]> odkKeys) {
+        this.vault = vault;
+        this.socketPath = socketPath;
+        this.odkKeys = odkKeys;
+    }
+
+    /**
+     * Return the socket path from the environment, or the default.
+     *
+     * This is SMS_VAULT_SOCKET if set, else sms-vault.sock in XDG_RUNTIME_DIR
+     * if set, else sms-vault.sock in the per-user directory /tmp/sms-vault-USER.
+     * The bin/sms-client script picks the socket in the same way.
+     *
+     * @return the socket path to use
+     */
+    public static Path defaultSocketPath() {
+        String env = System.getenv(SOCKET_ENV);
+        if (env != null && !env.isBlank()) {
+            return Path.of(env);
+        }
+        String runtimeDir = System.getenv("XDG_RUNTIME_DIR");
+        if (runtimeDir != null && !runtimeDir.isBlank()) {
+            return Path.of(runtimeDir, DEFAULT_SOCKET_NAME);
+        }
+        return fallbackDir().resolve(DEFAULT_SOCKET_NAME);
+    }
+
+    /**
+     * Create and bind the socket.
+     *
+     * The socket is bound in a private temporary directory, made owner-only,
+     * and then moved into place, so that no other user can connect to it in
+     * the window before its permissions are set.  A stale socket file left
+     * by an earlier server is replaced.  The per-user directory in /tmp is
+     * created if needed, and must be a directory that only the user can
+     * access.
+     *
+     * @throws IOException if the socket cannot be created
+     */
+    public void bind() throws IOException {
+        Path parent = socketPath.toAbsolutePath().getParent();
+        if (parent.equals(fallbackDir())) {
+            checkPrivateDirectory(parent);
+        }
+
+        if (Files.exists(socketPath, LinkOption.NOFOLLOW_LINKS) && 
+                !Files.readAttributes(socketPath, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther()) {
+            throw new IOException("Not a socket, refusing to replace: %s".formatted(socketPath));
+        }
+
+        Path tempDir = Files.createTempDirectory(parent, ".sms-vault",
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        Path tempSocket = tempDir.resolve("socket");
+
+        ServerSocketChannel channel = null;
+        try {
+            channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            channel.bind(UnixDomainSocketAddress.of(tempSocket));
+            Files.setPosixFilePermissions(tempSocket, PosixFilePermissions.fromString("rw-------"));
+            Files.move(tempSocket, socketPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            server = channel;
+        }
+        catch (IOException | UnsupportedOperationException e) {
+            if (channel != null) {
+                channel.close();
+            }
+            throw new IOException("Failed to bind vault socket %s: %s".formatted(socketPath, e.getMessage()), e);
+        }
+        finally {
+            Files.deleteIfExists(tempSocket);
+            Files.delete(tempDir);
+        }
+
+        LOG.info("Vault server listening on {}", socketPath);
+    }
+
+    /**
+     * Accept connections until the server is closed.
+     * @throws IOException if accepting fails other than by closing
+     * @throws IllegalStateException if {@link #bind()} was not called
+     */
+    public void serve() throws IOException {
+        if (server == null) {
+            throw new IllegalStateException("Vault server is not bound: %s".formatted(socketPath));
+        }
+        try {
+            while (true) {
+                connections.acquireUninterruptibly();
+                SocketChannel channel;
+                try {
+                    channel = server.accept();
+                }
+                catch (IOException e) {
+                    connections.release();
+                    throw e;
+                }
+                Thread.ofVirtual().name("vault-conn").start(() -> {
+                    try {
+                        handle(channel);
+                    }
+                    finally {
+                        connections.release();
+                    }
+                });
+            }
+        }
+        catch (ClosedChannelException e) {
+            LOG.info("Vault server on {} closed", socketPath);
+        }
+    }
+
+    /**
+     * Close the server socket and remove the socket file.
+     */
+    @Override
+    public void close() throws IOException {
+        if (server != null) {
+            server.close();
+            Files.deleteIfExists(socketPath);
+        }
+    }
+
+    // The per-user socket directory for when XDG_RUNTIME_DIR is not set
+    private static Path fallbackDir() {
+        return Path.of(FALLBACK_DIR_PREFIX + System.getProperty("user.name"));
+    }
+
+    // Creates dir as owner-only, or checks that it is a directory that only we can access
+    private static void checkPrivateDirectory(Path dir) throws IOException {
+        try {
+            Files.createDirectory(dir, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            return;
+        }
+        catch (FileAlreadyExistsException e) {
+            // Check the existing one below
+        }
+        PosixFileAttributes attrs = Files.readAttributes(dir, PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        UserPrincipal self = dir.getFileSystem().getUserPrincipalLookupService().lookupPrincipalByName(System.getProperty("user.name"));
+        if (!attrs.isDirectory() || !attrs.owner().equals(self) || !"rwx------".equals(PosixFilePermissions.toString(attrs.permissions()))) {
+            throw new IOException("Refusing to use %s: not a directory that only %s can access".formatted(dir, self.getName()));
+        }
+    }
+
+    // Serves requests on channel until the client closes it
+    private void handle(SocketChannel channel) {
+        try (channel) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+
+            int op;
+            while ((op = in.read()) != -1) {
+                // Read all fields before acting, to stay in sync on failure
+                byte[][] fields = switch (op) {
+                    case OP_DECRYPT -> readFields(in, 4);
+                    case OP_KOBO_DECRYPT -> readFields(in, 7);
+                    default -> throw new IOException("Invalid opcode: %d".formatted(op));
+                };
+
+                // Never serve a client that named another keystore or password
+                if (fields[0].length != 0 && !vault.isKeyStore(string(fields[0]), string(fields[1]))) {
+                    writeResponse(out, STATUS_OTHER_VAULT, "Vault server has another keystore or password".getBytes(StandardCharsets.UTF_8));
+                    continue;
+                }
+
+                try {
+                    byte[] plaintext = switch (op) {
+                        case OP_DECRYPT -> fields[2].length == 0
+                                ? vault.decrypt(fields[3])
+                                : vault.decrypt(string(fields[2]), fields[3]);
+                        default -> new OdkCrypto.Decryptor(vault.getPrivateKey(string(fields[2])),
+                                string(fields[3]), string(fields[4]), false, odkKeys).decrypt(Integer.parseInt(string(fields[5])), fields[6]);
+                    };
+                    writeResponse(out, STATUS_OK, plaintext);
+                }
+                catch (RuntimeException e) {
+                    LOG.warn("Request failed: {}", e.getMessage());
+                    writeResponse(out, STATUS_ERROR, String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+        catch (IOException e) {
+            LOG.warn("Dropping connection: {}", e.getMessage());
+        }
+    }
+
+    private static byte[] readField(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_FIELD_SIZE) {
+            throw new IOException("Invalid field length: %d".formatted(length));
+        }
+        byte[] field = in.readNBytes(length);
+        if (field.length != length) {
+            throw new EOFException("Truncated field: expected %d bytes".formatted(length));
+        }
+        return field;
+    }
+
+    private static byte[][] readFields(DataInputStream in, int count) throws IOException {
+        byte[][] fields = new byte[count][];
+        for (int i = 0; i < count; ++i) {
+            fields[i] = readField(in);
+        }
+        return fields;
+    }
+
+    private static String string(byte[] field) {
+        return new String(field, StandardCharsets.UTF_8);
+    }
+
+    private static void writeResponse(DataOutputStream out, int status, byte[] body) throws IOException {
+        out.write(status);
+        out.writeInt(body.length);
+        out.write(body);
+        out.flush();
+    }
+}
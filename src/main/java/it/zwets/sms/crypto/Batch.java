@@ -0,0 +1,139 @@
+package it.zwets.sms.crypto;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Applies a crypto operation to many payloads in parallel.
+ *
+ * Every payload is processed as a separate task on the given executor, and
+ * results are returned in input order.  A failure on one payload is captured
+ * in its {@link Result} and does not affect the other payloads.
+ *
+ * A bounded window of tasks is kept in flight, so that arbitrarily long
+ * inputs can be processed in constant memory, and without overflowing the
+ * queue of the {@link CryptoExecutors#cpu() CPU pool}.  Called from a CPU
+ * pool thread with that pool, the tasks run on the calling thread.
+ */
+public final class Batch {
+
+    /**
+     * The outcome of the operation on one payload.
+     *
+     * @param value the output bytes, or null if the operation failed
+     * @param error the failure, or null if the operation succeeded
+     */
+    public record Result(byte[] value, RuntimeException error) {
+
+        /**
+         * Return true if the operation on the payload succeeded.
+         * @return true if value is set
+         */
+        public boolean isOk() {
+            return error == null;
+        }
+
+        /**
+         * Return the value, or throw the error if there is one.
+         * @return the output bytes
+         * @throws RuntimeException the error if the operation failed
+         */
+        public byte[] get() {
+            if (error != null) {
+                throw error;
+            }
+            return value;
+        }
+    }
+
+    /** Number of tasks in flight per available processor in the streaming variants */
+    private static final int WINDOW_PER_CPU = 2;
+
+    private Batch() {
+    }
+
+    /**
+     * Apply op to all inputs in parallel on executor.
+     * @param inputs the payloads
+     * @param op the operation to apply to each payload
+     * @param executor the executor to run the tasks on
+     * @return the results in input order
+     */
+    static List<Result> apply(List<byte[]> inputs, UnaryOperator<byte[]> op, Executor executor) {
+        List<Result> results = new ArrayList<>(inputs.size());
+        apply(inputs.iterator(), op, executor).forEachRemaining(results::add);
+        return results;
+    }
+
+    /**
+     * Apply op to the inputs in parallel on executor, as they are consumed.
+     * @param inputs the payloads
+     * @param op the operation to apply to each payload
+     * @param executor the executor to run the tasks on
+     * @return iterator over the results in input order
+     */
+    static Iterator<Result> apply(Iterator<byte[]> inputs, UnaryOperator<byte[]> op, Executor executor) {
+        int window = WINDOW_PER_CPU * Runtime.getRuntime().availableProcessors();
+        Executor target = CryptoExecutors.forCaller(executor);
+        Queue<CompletableFuture<Result>> inFlight = new ArrayDeque<>(window);
+
+        return new Iterator<Result>() {
+
+            @Override
+            public boolean hasNext() {
+                fill();
+                return !inFlight.isEmpty();
+            }
+
+            @Override
+            public Result next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return inFlight.remove().join();
+            }
+
+            private void fill() {
+                while (inFlight.size() < window && inputs.hasNext()) {
+                    inFlight.add(submit(inputs.next(), op, target));
+                }
+            }
+        };
+    }
+
+    /**
+     * Apply op to the inputs in parallel on executor, as they are consumed.
+     * @param inputs the payloads
+     * @param op the operation to apply to each payload
+     * @param executor the executor to run the tasks on
+     * @return sequential stream of the results in input order
+     */
+    static Stream<Result> apply(Stream<byte[]> inputs, UnaryOperator<byte[]> op, Executor executor) {
+        Iterator<Result> results = apply(inputs.iterator(), op, executor);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(results, Spliterator.ORDERED), false)
+                .onClose(inputs::close);
+    }
+
+    // A rejected submission fails its result, as does a failed operation
+    private static CompletableFuture<Result> submit(byte[] input, UnaryOperator<byte[]> op, Executor executor) {
+        return CryptoExecutors.supply(() -> op.apply(input), executor)
+                .handle((value, error) -> new Result(value, error == null ? null : unwrap(error)));
+    }
+
+    private static RuntimeException unwrap(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return cause instanceof RuntimeException e ? e : new RuntimeException(cause.getMessage(), cause);
+    }
+}
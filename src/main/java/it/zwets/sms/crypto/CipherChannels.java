@@ -0,0 +1,186 @@
+package it.zwets.sms.crypto;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
+
+/**
+ * Channels that run a cipher over the bytes that pass through them.
+ *
+ * The writing channel feeds every buffer written to it through the cipher
+ * and writes the output to the underlying channel; closing it writes the
+ * final block and closes the underlying channel.  The reading channel reads
+ * from the underlying channel and returns the cipher output.  Each keeps its
+ * buffers for its lifetime.  These are direct, so that a file channel at the
+ * other end reads or writes them without a copy of its own; the JDK ciphers
+ * still copy direct buffers through a temporary array (see {@link Segments}).
+ *
+ * The cipher is owned by the channel, and must therefore come from
+ * {@link CipherPool#newCipher(String)}, not from the per-thread pool.
+ *
+ * A cipher that authenticates its input, such as GCM, may not release its
+ * plaintext to a reader before it has seen all of the ciphertext, so these
+ * channels are not for GCM: the segmented format authenticates each segment
+ * before it is read (see {@link Segments#channel(ReadableByteChannel)}).
+ */
+final class CipherChannels {
+
+    /** Size of the input chunks passed to each Cipher.update */
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    // Slack for the blocks that a cipher may hold back between updates
+    private static final int BLOCK_SLACK = 64;
+
+    private CipherChannels() {
+    }
+
+    /**
+     * Return a channel that writes the output of cipher to out.
+     * @param cipher the initialised cipher, owned by the channel
+     * @param out the channel to write the output to, closed with the channel
+     * @return the writable channel
+     */
+    static WritableByteChannel writing(Cipher cipher, WritableByteChannel out) {
+        return new WritingChannel(cipher, out);
+    }
+
+    /**
+     * Return a channel that reads the output of cipher over in.
+     * @param cipher the initialised cipher, owned by the channel
+     * @param in the channel to read the input from, closed with the channel
+     * @return the readable channel
+     */
+    static ReadableByteChannel reading(Cipher cipher, ReadableByteChannel in) {
+        return new ReadingChannel(cipher, in);
+    }
+
+    // Runs the final cipher step into output, growing it if needed
+    private static ByteBuffer doFinal(Cipher cipher, ByteBuffer output) {
+        int size = cipher.getOutputSize(0);
+        if (size > output.capacity()) {
+            output = ByteBuffer.allocateDirect(size);
+        }
+        try {
+            cipher.doFinal(ByteBuffer.allocate(0), output.clear());
+            return output.flip();
+        } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+            throw new RuntimeException("Cipher failed on channel: %s".formatted(e.getMessage()), e);
+        }
+    }
+
+    // Runs the cipher over input into the cleared output
+    private static void update(Cipher cipher, ByteBuffer input, ByteBuffer output) {
+        try {
+            cipher.update(input, output.clear());
+            output.flip();
+        } catch (ShortBufferException e) {
+            throw new RuntimeException("Cipher failed on channel: %s".formatted(e.getMessage()), e);
+        }
+    }
+
+    private static final class WritingChannel implements WritableByteChannel {
+
+        private final Cipher cipher;
+        private final WritableByteChannel out;
+        private ByteBuffer output = ByteBuffer.allocateDirect(BUFFER_SIZE + BLOCK_SLACK);
+        private boolean open = true;
+
+        WritingChannel(Cipher cipher, WritableByteChannel out) {
+            this.cipher = cipher;
+            this.out = out;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            int n = src.remaining();
+            while (src.hasRemaining()) {
+                int chunk = Math.min(BUFFER_SIZE, src.remaining());
+                ByteBuffer slice = src.slice(src.position(), chunk);
+                src.position(src.position() + chunk);
+                update(cipher, slice, output);
+                FileCipher.writeFully(out, output);
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!open) {
+                return;
+            }
+            open = false;
+            try (out) {
+                output = doFinal(cipher, output);
+                FileCipher.writeFully(out, output);
+            }
+        }
+    }
+
+    private static final class ReadingChannel implements ReadableByteChannel {
+
+        private final Cipher cipher;
+        private final ReadableByteChannel in;
+        private final ByteBuffer input = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        private ByteBuffer output = ByteBuffer.allocateDirect(BUFFER_SIZE + BLOCK_SLACK).limit(0);
+        private boolean finished = false;
+        private boolean open = true;
+
+        ReadingChannel(Cipher cipher, ReadableByteChannel in) {
+            this.cipher = cipher;
+            this.in = in;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            while (!output.hasRemaining()) {
+                if (finished) {
+                    return -1;
+                }
+                int n = in.read(input.clear());
+                if (n == 0) {
+                    return 0;
+                }
+                else if (n < 0) {
+                    finished = true;
+                    output = doFinal(cipher, output);
+                }
+                else {
+                    update(cipher, input.flip(), output);
+                }
+            }
+            int n = Math.min(dst.remaining(), output.remaining());
+            dst.put(output.slice(output.position(), n));
+            output.position(output.position() + n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            open = false;
+            in.close();
+        }
+    }
+}
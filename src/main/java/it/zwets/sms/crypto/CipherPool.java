@@ -0,0 +1,182 @@
+package it.zwets.sms.crypto;
+
+import java.security.DrbgParameters;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+
+/**
+ * Per-thread cipher, digest, MAC, key agreement and key factory instances,
+ * and striped random generators.
+ *
+ * <code>Cipher.getInstance</code> and <code>MessageDigest.getInstance</code>
+ * do a provider lookup and allocate fresh state on every call.  This class
+ * keeps one instance per transformation per thread, which is reinitialised
+ * by the caller for every operation.
+ *
+ * An instance obtained from here must only be used within a single one-shot
+ * operation (<code>init</code> through <code>doFinal</code>) that does not
+ * call out to other code, because the next call on the same thread gets and
+ * reinitialises the same instance.  Ciphers that are held by a stream or
+ * channel for longer must be created with {@link #newCipher(String)}, and
+ * digests that are updated across a stream with {@link #newDigest(String)}.
+ *
+ * Random numbers come from a fixed set of DRBG instances, picked by thread,
+ * so that concurrent encryptors do not all contend on one generator.
+ */
+final class CipherPool {
+
+    private static final ThreadLocal<Map<String,Cipher>> CIPHERS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String,MessageDigest>> DIGESTS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String,Mac>> MACS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String,KeyAgreement>> AGREEMENTS = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Map<String,KeyFactory>> FACTORIES = ThreadLocal.withInitial(HashMap::new);
+
+    private static final SecureRandom[] RANDOMS = newRandoms(Runtime.getRuntime().availableProcessors());
+    private static final int RANDOMS_MASK = RANDOMS.length - 1;
+
+    private CipherPool() {
+    }
+
+    /**
+     * Return this thread's uninitialised instance of the cipher.
+     * @param transformation the cipher transformation
+     * @return the cipher instance, to be initialised before use
+     * @throws RuntimeException if the transformation is not available
+     */
+    static Cipher cipher(String transformation) {
+        return pooled(CIPHERS, transformation, CipherPool::newCipher);
+    }
+
+    /**
+     * Return this thread's (reset) instance of the digest.
+     * @param algorithm the digest algorithm
+     * @return the digest instance
+     * @throws RuntimeException if the algorithm is not available
+     */
+    static MessageDigest digest(String algorithm) {
+        MessageDigest md = pooled(DIGESTS, algorithm, CipherPool::newDigest);
+        md.reset();
+        return md;
+    }
+
+    /**
+     * Return this thread's uninitialised instance of the MAC.
+     * @param algorithm the MAC algorithm
+     * @return the MAC instance, to be initialised before use
+     * @throws RuntimeException if the algorithm is not available
+     */
+    static Mac mac(String algorithm) {
+        return pooled(MACS, algorithm, CipherPool::newMac);
+    }
+
+    /**
+     * Return this thread's uninitialised instance of the key agreement.
+     * @param algorithm the key agreement algorithm
+     * @return the key agreement instance, to be initialised before use
+     * @throws RuntimeException if the algorithm is not available
+     */
+    static KeyAgreement keyAgreement(String algorithm) {
+        return pooled(AGREEMENTS, algorithm, CipherPool::newKeyAgreement);
+    }
+
+    /**
+     * Return this thread's instance of the key factory.
+     * @param algorithm the key algorithm
+     * @return the key factory instance
+     * @throws RuntimeException if the algorithm is not available
+     */
+    static KeyFactory keyFactory(String algorithm) {
+        return pooled(FACTORIES, algorithm, CipherPool::newKeyFactory);
+    }
+
+    /**
+     * Return the random generator for the current thread's stripe.
+     * @return a thread-safe DRBG instance
+     */
+    static SecureRandom random() {
+        long id = Thread.currentThread().threadId() * 0x9E3779B97F4A7C15L;
+        return RANDOMS[(int) (id >>> 32) & RANDOMS_MASK];
+    }
+
+    /**
+     * Return a new cipher instance, for use beyond a single operation.
+     * @param transformation the cipher transformation
+     * @return a new uninitialised cipher
+     * @throws RuntimeException if the transformation is not available
+     */
+    static Cipher newCipher(String transformation) {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new RuntimeException("Failed to create cipher %s: %s".formatted(transformation, e.getMessage()), e);
+        }
+    }
+
+    // Returns this platform thread's instance of name from pool, or a new
+    // instance on a virtual thread
+    private static <T> T pooled(ThreadLocal<Map<String,T>> pool, String name, Function<String,T> factory) {
+        return Thread.currentThread().isVirtual() ? factory.apply(name) : pool.get().computeIfAbsent(name, factory);
+    }
+
+    /**
+     * Return a new digest instance, for use beyond a single operation.
+     * @param algorithm the digest algorithm
+     * @return a new digest
+     * @throws RuntimeException if the algorithm is not available
+     */
+    static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Failed to create digest %s: %s".formatted(algorithm, e.getMessage()), e);
+        }
+    }
+
+    private static Mac newMac(String algorithm) {
+        try {
+            return Mac.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Failed to create MAC %s: %s".formatted(algorithm, e.getMessage()), e);
+        }
+    }
+
+    private static KeyAgreement newKeyAgreement(String algorithm) {
+        try {
+            return KeyAgreement.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Failed to create key agreement %s: %s".formatted(algorithm, e.getMessage()), e);
+        }
+    }
+
+    private static KeyFactory newKeyFactory(String algorithm) {
+        try {
+            return KeyFactory.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Failed to create key factory %s: %s".formatted(algorithm, e.getMessage()), e);
+        }
+    }
+
+    // Creates a power of two number of DRBGs, at least count
+    private static SecureRandom[] newRandoms(int count) {
+        SecureRandom[] randoms = new SecureRandom[Integer.highestOneBit(Math.max(1, count - 1)) << 1];
+        try {
+            for (int i = 0; i < randoms.length; ++i) {
+                randoms[i] = SecureRandom.getInstance("DRBG", DrbgParameters.instantiation(
+                        256, DrbgParameters.Capability.RESEED_ONLY, null));
+            }
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Failed to create DRBG: %s".formatted(e.getMessage()), e);
+        }
+        return randoms;
+    }
+}
@@ -0,0 +1,272 @@
+package it.zwets.sms.crypto;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Deflate compression of plaintext before encryption.
+ *
+ * Compression uses raw deflate (no zlib header or checksum), as the cipher
+ * already frames and, in the AEAD formats, authenticates the data.  The
+ * one-shot methods reuse a per-thread {@link Deflater} and {@link Inflater};
+ * the streams have their own, which they release when closed.
+ *
+ * Inflation always takes a maximum output size, as a few kilobytes of
+ * deflated data can expand to gigabytes.  It fails as soon as the output
+ * would exceed it.
+ */
+final class Compression {
+
+    /** Deflate compression level */
+    static final int LEVEL = Deflater.DEFAULT_COMPRESSION;
+
+    // Size of the buffers of the streams and of the one-shot methods
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater(LEVEL, true));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private Compression() {
+    }
+
+    /**
+     * Return the maximum deflated size of the given number of bytes.
+     * This is the bound that zlib guarantees for incompressible input.
+     * @param length the number of bytes to deflate
+     * @return the upper bound on the deflated size
+     */
+    static int maxDeflatedSize(int length) {
+        return length + (length >>> 12) + (length >>> 14) + (length >>> 25) + 13;
+    }
+
+    /**
+     * Deflate the remaining bytes of src.
+     * @param src the bytes to compress, which are consumed
+     * @return the deflated bytes
+     */
+    static byte[] deflate(ByteBuffer src) {
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(src);
+        deflater.finish();
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(Math.min(BUFFER_SIZE, maxDeflatedSize(src.remaining())));
+        byte[] buffer = new byte[BUFFER_SIZE];
+        while (!deflater.finished()) {
+            bos.write(buffer, 0, deflater.deflate(buffer));
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Inflate length bytes of src from offset.
+     * @param src the deflated bytes
+     * @param offset the offset in src
+     * @param length the number of deflated bytes
+     * @param maxSize the maximum number of inflated bytes
+     * @return the inflated bytes
+     * @throws RuntimeException if the data is invalid or truncated, or inflates to more than maxSize
+     */
+    static byte[] inflate(byte[] src, int offset, int length, long maxSize) {
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(src, offset, length);
+
+        long limit = Math.min(maxSize, Integer.MAX_VALUE - 8);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream((int) Math.min(limit, Math.max(BUFFER_SIZE, 2L * length)));
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new RuntimeException("Truncated compressed plaintext");
+                }
+                if (bos.size() + n > limit) {
+                    throw new RuntimeException("Compressed plaintext inflates to more than %d bytes".formatted(limit));
+                }
+                bos.write(buffer, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new RuntimeException("Invalid compressed plaintext: %s".formatted(e.getMessage()), e);
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Inflate length bytes of src from offset into dst.
+     * @param src the deflated bytes
+     * @param offset the offset in src
+     * @param length the number of deflated bytes
+     * @param dst the buffer to inflate into, whose remaining bytes are the maximum size
+     * @return the number of inflated bytes, by which the position of dst has advanced
+     * @throws RuntimeException if the data is invalid or truncated, or does not fit in dst
+     */
+    static int inflate(byte[] src, int offset, int length, ByteBuffer dst) {
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(src, offset, length);
+
+        int start = dst.position();
+        try {
+            while (!inflater.finished()) {
+                if (inflater.inflate(dst) == 0 && !inflater.finished()) {
+                    if (inflater.needsInput() || inflater.needsDictionary()) {
+                        throw new RuntimeException("Truncated compressed plaintext");
+                    }
+                    if (!dst.hasRemaining()) {
+                        throw new RuntimeException("Output buffer too small: compressed plaintext inflates to more than %d bytes".formatted(dst.position() - start));
+                    }
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new RuntimeException("Invalid compressed plaintext: %s".formatted(e.getMessage()), e);
+        }
+        return dst.position() - start;
+    }
+
+    /**
+     * Return a stream that deflates onto os.
+     * Closing the stream finishes the compressed data and closes os.
+     * @param os the stream to write the deflated data to
+     * @return the compressing stream
+     */
+    static OutputStream deflating(OutputStream os) {
+        return new DeflatingStream(os);
+    }
+
+    /**
+     * Return a stream that inflates onto os.
+     * Closing the stream checks that the compressed data was complete, but
+     * leaves os open.
+     * @param os the stream to write the inflated data to
+     * @param maxSize the maximum number of bytes to write to os, beyond which writes fail
+     * @return the decompressing stream
+     */
+    static OutputStream inflating(OutputStream os, long maxSize) {
+        return new InflatingStream(os, maxSize);
+    }
+
+    /**
+     * Return a stream that inflates the data read from is.
+     * Closing the stream closes is.
+     * @param is the stream to read the deflated data from
+     * @param maxSize the maximum number of bytes to return, beyond which reads fail
+     * @return the decompressing stream
+     */
+    static InputStream inflating(InputStream is, long maxSize) {
+        return new InflatingInputStream(is, maxSize);
+    }
+
+    // Fails once more than maxSize inflated bytes have passed
+    private static long count(long total, int n, long maxSize) throws IOException {
+        if (n > 0 && (total += n) > maxSize) {
+            throw new IOException("Compressed plaintext inflates to more than %d bytes".formatted(maxSize));
+        }
+        return total;
+    }
+
+    private static final class DeflatingStream extends DeflaterOutputStream {
+
+        DeflatingStream(OutputStream os) {
+            super(os, new Deflater(LEVEL, true), BUFFER_SIZE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            }
+            finally {
+                def.end();
+            }
+        }
+    }
+
+    private static final class InflatingStream extends InflaterOutputStream {
+
+        private boolean closed;
+
+        InflatingStream(OutputStream os, long maxSize) {
+            super(new LimitedStream(os, maxSize), new Inflater(true), BUFFER_SIZE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                finish();
+                if (!inf.finished()) {
+                    throw new IOException("Truncated compressed plaintext");
+                }
+            }
+            finally {
+                inf.end();
+            }
+        }
+    }
+
+    // Passes the inflated output on to os, counting it against the limit
+    private static final class LimitedStream extends FilterOutputStream {
+
+        private final long maxSize;
+        private long total;
+
+        LimitedStream(OutputStream os, long maxSize) {
+            super(os);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            total = count(total, 1, maxSize);
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            total = count(total, len, maxSize);
+            out.write(b, off, len);
+        }
+    }
+
+    private static final class InflatingInputStream extends InflaterInputStream {
+
+        private final long maxSize;
+        private long total;
+
+        InflatingInputStream(InputStream is, long maxSize) {
+            super(is, new Inflater(true), BUFFER_SIZE);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            total = count(total, n, maxSize);
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            }
+            finally {
+                inf.end();
+            }
+        }
+    }
+}
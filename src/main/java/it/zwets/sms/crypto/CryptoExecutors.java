@@ -0,0 +1,320 @@
+package it.zwets.sms.crypto;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Default executors for the asynchronous and batch crypto operations.
+ *
+ * Private key operations and symmetric encryption of in-memory payloads are
+ * CPU bound, and run best on a pool with one thread per processor: more
+ * threads only add contention.  File and stream operations mostly wait for
+ * I/O, and run best on virtual threads, which cost next to nothing while
+ * blocked.  This class has a shared executor for each, and a wrapper that
+ * bounds the number of tasks in flight on any executor.
+ *
+ * The shared pools are used instead of the common fork-join pool, which is
+ * sized one below the processor count and shared with parallel streams.
+ *
+ * Neither the CPU pool nor the bounded wrapper blocks or queues without
+ * limit when it is full: it rejects the task, which the asynchronous
+ * methods of this package report through the future they return.  The
+ * methods that wait for many tasks keep a window of them in flight, and
+ * run them on the calling thread if that is itself a CPU pool thread.
+ */
+public final class CryptoExecutors {
+
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+
+    /** Number of tasks that may wait in the CPU pool's queue per processor */
+    static final int QUEUE_PER_CORE = 64;
+
+    /** Number of tasks kept in flight by {@link #all(List, Executor)} */
+    static final int WINDOW = 2 * CORES;
+
+    private static final ExecutorService CPU = new ThreadPoolExecutor(CORES, CORES, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(QUEUE_PER_CORE * CORES), poolThreads("crypto-cpu-"));
+    private static final ExecutorService IO = Executors.newVirtualThreadPerTaskExecutor();
+
+    private CryptoExecutors() {
+    }
+
+    /**
+     * Return the shared pool for CPU-bound operations.
+     * It has one daemon thread per available processor, and a queue of
+     * {@value #QUEUE_PER_CORE} tasks per processor, beyond which it
+     * rejects tasks with a {@link RejectedExecutionException}.
+     * @return the CPU pool
+     */
+    public static Executor cpu() {
+        return CPU;
+    }
+
+    /**
+     * Return the shared executor for I/O-bound operations.
+     * It runs every task on a new virtual thread.
+     * @return the I/O executor
+     */
+    public static Executor io() {
+        return IO;
+    }
+
+    /**
+     * Return an executor that runs at most maxInFlight tasks of this wrapper
+     * on executor at a time, queued or running.
+     *
+     * Submitting a task when the limit is reached throws a
+     * {@link RejectedExecutionException}, without blocking the submitter,
+     * so that a burst of requests is turned away at the source instead of
+     * piling up in the executor's queue.  The asynchronous methods of this
+     * package return a future that has failed with it.
+     *
+     * @param executor the executor to run the tasks on
+     * @param maxInFlight the maximum number of tasks queued or running
+     * @return the bounded executor
+     */
+    public static Executor bounded(Executor executor, int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("In-flight limit must be positive: %d".formatted(maxInFlight));
+        }
+        Semaphore permits = new Semaphore(maxInFlight);
+        return task -> {
+            if (!permits.tryAcquire()) {
+                throw new RejectedExecutionException("All %d task slots are in use".formatted(maxInFlight));
+            }
+            try {
+                executor.execute(() -> {
+                    try {
+                        task.run();
+                    }
+                    finally {
+                        permits.release();
+                    }
+                });
+            }
+            catch (RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * Run task on executor and return a future for its result.
+     *
+     * Unlike <code>CompletableFuture.supplyAsync</code>, cancelling the
+     * future has an effect on the task: if it has not started, it is skipped;
+     * if it is running, its thread is interrupted, which aborts file channel
+     * I/O.  A rejected submission fails the future rather than throwing.
+     *
+     * @param <T> the type of the result
+     * @param task the operation to run
+     * @param executor the executor to run it on
+     * @return the future result
+     */
+    static <T> TaskFuture<T> supply(Supplier<? extends T> task, Executor executor) {
+        Task<T> runner = new Task<>(task);
+        try {
+            executor.execute(runner);
+        } catch (RejectedExecutionException e) {
+            runner.future.completeExceptionally(e);
+            runner.future.settled.complete(null);
+        }
+        return runner.future;
+    }
+
+    /**
+     * Run the tasks on executor and return their results in order.
+     *
+     * At most {@link #WINDOW} tasks are in flight at a time, so that they
+     * fit in the queue of a bounded executor.  If the calling thread is a
+     * thread of the CPU pool and executor is that pool, the tasks run on
+     * the calling thread instead, as a pool thread that waits for tasks
+     * queued behind it can deadlock the pool.  After a task fails no more
+     * are started, and the failure is thrown once those in flight are done.
+     *
+     * @param <T> the type of the results
+     * @param tasks the operations to run
+     * @param executor the executor to run them on
+     * @return the results in the order of tasks
+     * @throws RuntimeException the failure of the first task that failed
+     */
+    static <T> List<T> all(List<? extends Supplier<? extends T>> tasks, Executor executor) {
+        Executor target = forCaller(executor);
+        Queue<TaskFuture<? extends T>> inFlight = new ArrayDeque<>(WINDOW);
+        List<T> results = new ArrayList<>(tasks.size());
+        RuntimeException failure = null;
+        int next = 0;
+
+        while (next < tasks.size() || !inFlight.isEmpty()) {
+            while (failure == null && next < tasks.size() && inFlight.size() < WINDOW) {
+                inFlight.add(supply(tasks.get(next++), target));
+            }
+            if (inFlight.isEmpty()) {
+                break;
+            }
+            try {
+                results.add(inFlight.remove().join());
+            } catch (CompletionException | CancellationException e) {
+                if (failure == null) {
+                    failure = unwrap(e);
+                }
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+
+    /**
+     * Return executor, or a direct executor if the calling thread is a
+     * thread of the CPU pool and executor is that pool.
+     *
+     * Code that waits for the tasks it submits uses this, as a pool thread
+     * that waits for tasks queued behind it can deadlock the pool.
+     *
+     * @param executor the executor to run tasks on
+     * @return an executor whose tasks the calling thread may wait for
+     */
+    static Executor forCaller(Executor executor) {
+        return executor == CPU && Thread.currentThread() instanceof PoolThread ? Runnable::run : executor;
+    }
+
+    /**
+     * Run task on executor and return a future for its completion.
+     * @param task the operation to run
+     * @param executor the executor to run it on
+     * @return the future that completes when task has run
+     * @see #supply(Supplier, Executor)
+     */
+    static TaskFuture<Void> run(Runnable task, Executor executor) {
+        return supply(() -> {
+            task.run();
+            return null;
+        }, executor);
+    }
+
+    // Returns the cause of a failed join as a RuntimeException
+    private static RuntimeException unwrap(RuntimeException e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        return cause instanceof RuntimeException re ? re : new RuntimeException(cause.getMessage(), cause);
+    }
+
+    /**
+     * The future of a task from {@link CryptoExecutors#supply(Supplier, Executor)}.
+     *
+     * A cancelled future is done at once, while its task may still be
+     * running until it notices the interrupt.  {@link #awaitSettled()} waits
+     * for that, for callers that must clean up after the task.
+     *
+     * @param <T> the type of the result
+     */
+    static final class TaskFuture<T> extends CompletableFuture<T> {
+
+        private final CompletableFuture<Void> settled = new CompletableFuture<>();
+
+        /**
+         * Wait until the task has run to its end, or will never run.
+         */
+        void awaitSettled() {
+            settled.join();
+        }
+    }
+
+    // Completes its future with the result of the supplier, unless the
+    // future was cancelled; interrupts the running thread on cancellation
+    private static final class Task<T> implements Runnable {
+
+        private final Supplier<? extends T> supplier;
+        private final TaskFuture<T> future = new TaskFuture<>();
+        private Thread thread;
+        private boolean wasInterrupted;
+        private boolean interrupted;
+
+        Task(Supplier<? extends T> supplier) {
+            this.supplier = supplier;
+            future.whenComplete((value, error) -> {
+                if (future.isCancelled()) {
+                    interrupt();
+                }
+            });
+        }
+
+        @Override
+        public void run() {
+            if (!start()) {
+                future.settled.complete(null);
+                return;
+            }
+            try {
+                future.complete(supplier.get());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            } finally {
+                finish();
+                future.settled.complete(null);
+            }
+        }
+
+        private synchronized boolean start() {
+            if (future.isDone()) {
+                return false;
+            }
+            thread = Thread.currentThread();
+            wasInterrupted = thread.isInterrupted();
+            return true;
+        }
+
+        // Clears the interrupt of a cancellation, so that it does not leak
+        // into the next task on a pool thread, and restores the interrupt
+        // status that the thread had before, as when run by the caller
+        private synchronized void finish() {
+            thread = null;
+            if (interrupted) {
+                Thread.interrupted();
+                if (wasInterrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private synchronized void interrupt() {
+            if (thread != null) {
+                interrupted = true;
+                thread.interrupt();
+            }
+        }
+    }
+
+    // Marks the threads of the CPU pool
+    private static final class PoolThread extends Thread {
+
+        PoolThread(Runnable runnable, String name) {
+            super(runnable, name);
+            setDaemon(true);
+        }
+    }
+
+    private static ThreadFactory poolThreads(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> new PoolThread(runnable, prefix + count.incrementAndGet());
+    }
+}
@@ -0,0 +1,226 @@
+package it.zwets.sms.crypto;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
+
+/**
+ * Runs a cipher over a file that is mapped into memory.
+ *
+ * The input file is mapped in large windows, and fed to the cipher in
+ * chunks of {@link #CHUNK_SIZE} bytes.  The cipher output goes through one
+ * direct buffer straight into the output channel, so the data is never
+ * copied onto the Java heap.
+ */
+final class FileCipher {
+
+    /** Size of the windows in which the input file is mapped */
+    static final int MAP_SIZE = 64 * 1024 * 1024;
+
+    /** Size of the chunks passed to each Cipher.update */
+    static final int CHUNK_SIZE = 1024 * 1024;
+
+    // Slack for the blocks that a cipher may hold back between updates
+    private static final int BLOCK_SLACK = 64;
+
+    private FileCipher() {
+    }
+
+    /**
+     * Open a file for reading.
+     * @param path the file to open
+     * @return the open channel
+     * @throws IOException if the file cannot be opened
+     */
+    static FileChannel openInput(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    /**
+     * Open a file for writing that replaces path only when it is committed.
+     *
+     * The output is written to an owner-only temporary file in the directory
+     * of path, which {@link Output#commit()} moves into place atomically, and
+     * closing without committing deletes.  So a failed operation leaves no
+     * partial output, and path may be the input file.
+     *
+     * @param path the file to create or replace
+     * @return the output, which must be closed
+     * @throws IOException if the temporary file cannot be created
+     */
+    static Output openOutput(Path path) throws IOException {
+        Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), "." + path.getFileName(), ".tmp");
+        try {
+            return new Output(path, temp, FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+        }
+        catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+    }
+
+    /**
+     * A temporary output file that is moved into place on commit.
+     */
+    static final class Output implements Closeable {
+
+        private final Path target;
+        private final Path temp;
+        private final FileChannel channel;
+        private boolean committed;
+
+        private Output(Path target, Path temp, FileChannel channel) {
+            this.target = target;
+            this.temp = temp;
+            this.channel = channel;
+        }
+
+        /**
+         * Return the channel to write the output to.
+         * @return the channel on the temporary file
+         */
+        FileChannel channel() {
+            return channel;
+        }
+
+        /**
+         * Return a stream that writes to the output.
+         * @return an output stream on the channel, which closes it
+         */
+        OutputStream stream() {
+            return Channels.newOutputStream(channel);
+        }
+
+        /**
+         * Close the channel and move the temporary file over the target.
+         * @throws IOException if the file cannot be moved
+         */
+        void commit() throws IOException {
+            channel.close();
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        /**
+         * Close the channel, and delete the temporary file if not committed.
+         */
+        @Override
+        public void close() throws IOException {
+            channel.close();
+            if (!committed) {
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    /**
+     * Run the initialised cipher over in from position to its end, and
+     * write its output, including the final block, to out.
+     *
+     * @param cipher the initialised cipher
+     * @param in the input file
+     * @param position the offset in the file to start at
+     * @param out the channel to write the output to
+     * @return the number of bytes written to out
+     * @throws IOException on any I/O error
+     * @throws RuntimeException if the cipher fails
+     */
+    static long transform(Cipher cipher, FileChannel in, long position, WritableByteChannel out) throws IOException {
+        long size = in.size();
+        long written = 0;
+        ByteBuffer output = ByteBuffer.allocateDirect(CHUNK_SIZE + BLOCK_SLACK);
+
+        try {
+            for (long offset = position; offset < size; offset += MAP_SIZE) {
+                MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(MAP_SIZE, size - offset));
+
+                while (window.hasRemaining()) {
+                    int chunk = Math.min(CHUNK_SIZE, window.remaining());
+                    ByteBuffer input = window.slice(window.position(), chunk);
+                    window.position(window.position() + chunk);
+
+                    output.clear();
+                    cipher.update(input, output);
+                    written += writeFully(out, output.flip());
+                }
+            }
+
+            // Ciphers that authenticate may hold back output until the end
+            int last = cipher.getOutputSize(0);
+            if (last > output.capacity()) {
+                output = ByteBuffer.allocateDirect(last);
+            }
+            output.clear();
+            cipher.doFinal(ByteBuffer.allocate(0), output);
+            written += writeFully(out, output.flip());
+
+            return written;
+        }
+        catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+            throw new RuntimeException("Cipher failed on file: %s".formatted(e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Write the remaining bytes of buffer to out.
+     * @param out the channel to write to
+     * @param buffer the bytes to write
+     * @return the number of bytes written
+     * @throws IOException on any I/O error
+     */
+    static int writeFully(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        int n = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        return n;
+    }
+
+    /**
+     * Return a channel that updates digest with every byte it writes to out.
+     *
+     * This lets a digest of the output be computed in the same pass as the
+     * cipher, without reading the output back.  Closing the channel closes out.
+     *
+     * @param out the channel to write to
+     * @param digest the digest to update
+     * @return the digesting channel
+     */
+    static WritableByteChannel digesting(WritableByteChannel out, MessageDigest digest) {
+        return new WritableByteChannel() {
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                ByteBuffer view = src.duplicate();
+                int n = out.write(src);
+                digest.update(view.limit(view.position() + n));
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return out.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                out.close();
+            }
+        };
+    }
+}
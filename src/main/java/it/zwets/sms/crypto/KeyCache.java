@@ -0,0 +1,270 @@
+package it.zwets.sms.crypto;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Bounded, thread-safe cache for keys that are expensive to obtain.
+ *
+ * Entries are evicted in least-recently-used order when the cache is full,
+ * and expire when they have not been accessed for longer than the idle time.
+ * An optional eviction callback is invoked (while the cache lock is held)
+ * for every value that leaves the cache, so that key material can be wiped.
+ *
+ * Values are loaded outside the lock, so concurrent misses on the same key
+ * may each invoke the loader.  The first value to arrive is kept and
+ * returned to all callers; later ones are passed to the eviction callback.
+ *
+ * @param <K> the type of the cache keys
+ * @param <V> the type of the cached values
+ */
+public final class KeyCache<K,V> {
+
+    /**
+     * Snapshot of the cache counters.
+     *
+     * @param hits number of lookups that found a live entry
+     * @param misses number of lookups that found no or an expired entry
+     * @param evictions number of entries removed for size or idle time
+     * @param size the current number of entries
+     */
+    public record Stats(long hits, long misses, long evictions, int size) {
+
+        /**
+         * Return the fraction of lookups that were hits.
+         * @return the hit rate between 0 and 1, or 0 if there were no lookups
+         */
+        public double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0.0 : (double) hits / lookups;
+        }
+    }
+
+    private record Entry<V>(V value, long lastAccess) { }
+
+    private final int maxSize;
+    private final long maxIdleNanos;
+    private final Consumer<? super V> onEvict;
+    private final LinkedHashMap<K,Entry<V>> map = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Create a cache holding at most maxSize entries for at most maxIdle.
+     * @param maxSize the maximum number of entries, 0 disables caching
+     * @param maxIdle the time after its last access that an entry expires
+     */
+    public KeyCache(int maxSize, Duration maxIdle) {
+        this(maxSize, maxIdle, null);
+    }
+
+    /**
+     * Create a cache that calls onEvict for every value that is dropped.
+     * @param maxSize the maximum number of entries, 0 disables caching
+     * @param maxIdle the time after its last access that an entry expires
+     * @param onEvict callback for dropped values, may be null
+     */
+    public KeyCache(int maxSize, Duration maxIdle, Consumer<? super V> onEvict) {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Cache size must not be negative: %d".formatted(maxSize));
+        }
+        this.maxSize = maxSize;
+        this.maxIdleNanos = maxIdle.toNanos();
+        this.onEvict = onEvict;
+    }
+
+    /**
+     * Return the value for key, loading and caching it if absent.
+     * @param key the key to look up
+     * @param loader computes the value on a miss, must not return null
+     * @return the cached or loaded value
+     */
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        V value = getIfPresent(key);
+        return value != null ? value : put(key, loader.apply(key));
+    }
+
+    /**
+     * Return reader applied to the value for key, loading and caching the
+     * value if absent.
+     *
+     * The reader runs while the cache lock is held, so the value cannot be
+     * evicted (and wiped by the eviction callback) while it is read.  Use
+     * this to copy out values that the callback destroys.  When caching is
+     * disabled, a loaded value is passed to the callback once it is read.
+     *
+     * @param <R> the type of the result
+     * @param key the key to look up
+     * @param loader computes the value on a miss, must not return null
+     * @param reader maps the cached or loaded value to the result, typically a copy
+     * @return the result of reader
+     */
+    public <R> R get(K key, Function<? super K, ? extends V> loader, Function<? super V, ? extends R> reader) {
+        synchronized (this) {
+            V value = getIfPresent(key);
+            if (value != null) {
+                return reader.apply(value);
+            }
+        }
+        V value = loader.apply(key);
+        synchronized (this) {
+            R result = reader.apply(put(key, value));
+            if (maxSize == 0) {
+                // Never cached, so nothing would ever pass it to the callback
+                discard(value);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Return the value for key if present and not expired.
+     * @param key the key to look up
+     * @return the value or null
+     */
+    public synchronized V getIfPresent(K key) {
+        long now = System.nanoTime();
+        Entry<V> entry = map.get(key);
+
+        if (entry != null && now - entry.lastAccess() > maxIdleNanos) {
+            map.remove(key);
+            evict(entry.value());
+            entry = null;
+        }
+
+        if (entry == null) {
+            ++misses;
+            return null;
+        }
+
+        ++hits;
+        map.put(key, new Entry<>(entry.value(), now));
+        return entry.value();
+    }
+
+    /**
+     * Return reader applied to the value for key if present and not expired.
+     *
+     * As with {@link #get(Object, Function, Function)}, the reader runs
+     * while the cache lock is held.
+     *
+     * @param <R> the type of the result
+     * @param key the key to look up
+     * @param reader maps the cached value to the result, typically a copy
+     * @return the result of reader, or null if there is no value
+     */
+    public synchronized <R> R getIfPresent(K key, Function<? super V, ? extends R> reader) {
+        V value = getIfPresent(key);
+        return value == null ? null : reader.apply(value);
+    }
+
+    /**
+     * Add value under key, unless a live value is already present.
+     * @param key the key to store the value under
+     * @param value the value to store
+     * @return the value now in the cache for key (which is value if caching is disabled)
+     */
+    public synchronized V put(K key, V value) {
+        long now = System.nanoTime();
+        Entry<V> existing = map.get(key);
+
+        if (existing != null && now - existing.lastAccess() <= maxIdleNanos) {
+            discard(value);
+            return existing.value();
+        }
+        else if (existing != null) {
+            map.remove(key);
+            evict(existing.value());
+        }
+
+        if (maxSize > 0) {
+            map.put(key, new Entry<>(value, now));
+            purge(now);
+        }
+
+        return value;
+    }
+
+    /**
+     * Add value under key, unless a live value is already present, and
+     * return reader applied to the value that is then in the cache.
+     *
+     * The reader runs while the cache lock is held, as for
+     * {@link #get(Object, Function, Function)}, so that it can compare
+     * the cached value with value before either is wiped.
+     *
+     * @param <R> the type of the result
+     * @param key the key to store the value under
+     * @param value the value to store
+     * @param reader maps the value now in the cache to the result
+     * @return the result of reader
+     */
+    public synchronized <R> R put(K key, V value, Function<? super V, ? extends R> reader) {
+        return reader.apply(put(key, value));
+    }
+
+    /**
+     * Remove the entry for key if present.
+     * @param key the key to remove
+     */
+    public synchronized void remove(K key) {
+        Entry<V> entry = map.remove(key);
+        if (entry != null) {
+            discard(entry.value());
+        }
+    }
+
+    /**
+     * Remove all entries, without counting them as evictions.
+     */
+    public synchronized void clear() {
+        map.values().forEach(e -> discard(e.value()));
+        map.clear();
+    }
+
+    /**
+     * Return the current counters.
+     * @return a consistent snapshot of the counters
+     */
+    public synchronized Stats getStats() {
+        return new Stats(hits, misses, evictions, map.size());
+    }
+
+    /**
+     * Return the maximum number of entries.
+     * @return the size bound given at construction
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    // Drops entries from the LRU end while over size or expired
+    private void purge(long now) {
+        Iterator<Map.Entry<K,Entry<V>>> it = map.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry<V> eldest = it.next().getValue();
+            if (map.size() <= maxSize && now - eldest.lastAccess() <= maxIdleNanos) {
+                break;
+            }
+            it.remove();
+            evict(eldest.value());
+        }
+    }
+
+    private void evict(V value) {
+        ++evictions;
+        discard(value);
+    }
+
+    private void discard(V value) {
+        if (onEvict != null) {
+            onEvict.accept(value);
+        }
+    }
+}
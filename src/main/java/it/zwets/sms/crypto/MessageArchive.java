@@ -0,0 +1,305 @@
+package it.zwets.sms.crypto;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+import java.util.function.UnaryOperator;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A file of many ciphertexts, with an index for random access.
+ *
+ * The file is a header, a sequence of records, an index and a trailer.
+ * The header is the 4-byte {@link #MAGIC} and a 4-byte version.  Each
+ * record is a 4-byte length followed by that many bytes, normally a
+ * {@link PkiCrypto} ciphertext.  The index has the 8-byte file offset of
+ * every record, and the trailer is the 8-byte offset of the index, the
+ * 4-byte record count and the MAGIC again.  All integers are big-endian.
+ *
+ * The trailing index lets a {@link Writer} append records without knowing
+ * their number in advance, and lets a reader find record N without scanning
+ * the records before it.  A reader memory-maps the file, so fetching a
+ * record copies only its own bytes, and concurrent reads need no locking.
+ *
+ * Archives are limited to 2 GiB, the size of a single mapping.
+ */
+public final class MessageArchive implements Closeable, Iterable<byte[]> {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MessageArchive.class);
+
+    /** The file magic, "SMSA" in ASCII */
+    public static final int MAGIC = 0x534D5341;
+
+    // The format version in the header
+    private static final int VERSION = 1;
+
+    // Sizes of the header, the record length prefix and the trailer
+    private static final int HEADER_SIZE = 8;
+    private static final int LENGTH_SIZE = 4;
+    private static final int TRAILER_SIZE = 8 + 4 + 4;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int indexOffset;
+    private final int count;
+
+    private MessageArchive(Path path, FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE + TRAILER_SIZE || size > Integer.MAX_VALUE) {
+            throw new RuntimeException("Invalid archive size: %d bytes".formatted(size));
+        }
+
+        this.path = path;
+        this.channel = channel;
+        this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+        int trailer = (int) size - TRAILER_SIZE;
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(trailer + 12) != MAGIC) {
+            throw new RuntimeException("Not a message archive, or incomplete: %s".formatted(path));
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new RuntimeException("Unsupported archive version: %d".formatted(buffer.getInt(4)));
+        }
+
+        long index = buffer.getLong(trailer);
+        this.count = buffer.getInt(trailer + 8);
+        if (count < 0 || index < HEADER_SIZE || index + 8L * count != trailer) {
+            throw new RuntimeException("Invalid archive index: %s".formatted(path));
+        }
+        this.indexOffset = (int) index;
+    }
+
+    /**
+     * Open an archive for reading.
+     * @param path the archive file
+     * @return the open archive, which must be closed
+     * @throws RuntimeException if the file is not a complete archive, or cannot be read
+     */
+    public static MessageArchive open(Path path) {
+        LOG.debug("opening message archive {}", path);
+        try {
+            FileChannel channel = FileCipher.openInput(path);
+            try {
+                return new MessageArchive(path, channel);
+            }
+            catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Failed to open archive %s: %s".formatted(path, e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Create an archive for writing.
+     * @param path the archive file, created or truncated
+     * @return the writer, which must be closed to complete the archive
+     * @throws RuntimeException if the file cannot be created
+     */
+    public static Writer create(Path path) {
+        LOG.debug("creating message archive {}", path);
+        try {
+            return new Writer(path);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Failed to create archive %s: %s".formatted(path, e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Return the number of records.
+     * @return the record count
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Return record n.
+     * @param n the index of the record, from 0
+     * @return a copy of the record bytes
+     * @throws IndexOutOfBoundsException if there is no record n
+     */
+    public byte[] get(int n) {
+        int offset = recordOffset(n);
+        byte[] record = new byte[buffer.getInt(offset)];
+        buffer.get(offset + LENGTH_SIZE, record);
+        return record;
+    }
+
+    /**
+     * Return a read-only view of record n, without copying it.
+     * @param n the index of the record, from 0
+     * @return a buffer positioned on the record bytes
+     * @throws IndexOutOfBoundsException if there is no record n
+     */
+    public ByteBuffer slice(int n) {
+        int offset = recordOffset(n);
+        return buffer.slice(offset + LENGTH_SIZE, buffer.getInt(offset)).asReadOnlyBuffer();
+    }
+
+    /**
+     * Iterate over the records in order.
+     * @return an iterator over copies of the records
+     */
+    @Override
+    public Iterator<byte[]> iterator() {
+        return new Iterator<byte[]>() {
+
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < count;
+            }
+
+            @Override
+            public byte[] next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return get(next++);
+            }
+        };
+    }
+
+    /**
+     * Return the records in order as a stream.
+     * @return sequential stream of copies of the records
+     */
+    public Stream<byte[]> stream() {
+        return IntStream.range(0, count).mapToObj(this::get);
+    }
+
+    /**
+     * Decrypt records from (inclusive) to to (exclusive) in parallel on executor.
+     *
+     * The decrypt operation is typically the decrypt method of a
+     * {@link PkiCrypto.Decryptor} or a {@link Vault}.  A failure on one
+     * record is reported in its result and does not abort the others.
+     * Records are copied from the archive only as the batch reaches them,
+     * so only the results are held in memory, not the ciphertexts.
+     *
+     * @param from the index of the first record
+     * @param to the index after the last record
+     * @param decrypt the operation to apply to each record
+     * @param executor runs the decryptions
+     * @return the plaintexts or failures, in record order
+     * @throws IndexOutOfBoundsException if the range is out of bounds
+     */
+    public List<Batch.Result> decryptAll(int from, int to, UnaryOperator<byte[]> decrypt, Executor executor) {
+        LOG.debug("decrypting records {} to {} of {}", from, to, path);
+        if (from < 0 || to > count || from > to) {
+            throw new IndexOutOfBoundsException("Invalid record range %d to %d of %d".formatted(from, to, count));
+        }
+        return Batch.apply(IntStream.range(from, to).mapToObj(this::get), decrypt, executor).toList();
+    }
+
+    /**
+     * Close the underlying file.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    // Returns the file offset of record n from the index, checking bounds
+    private int recordOffset(int n) {
+        if (n < 0 || n >= count) {
+            throw new IndexOutOfBoundsException("No record %d in archive of %d".formatted(n, count));
+        }
+        long offset = buffer.getLong(indexOffset + 8 * n);
+        if (offset < HEADER_SIZE || offset > indexOffset - LENGTH_SIZE
+                || offset + LENGTH_SIZE + (buffer.getInt((int) offset) & 0xFFFFFFFFL) > indexOffset) {
+            throw new RuntimeException("Invalid archive: record %d out of bounds".formatted(n));
+        }
+        return (int) offset;
+    }
+
+    /**
+     * Appends records to a new archive.
+     *
+     * The archive is only complete, and readable, once the writer has been
+     * closed.  This class is not thread-safe.
+     */
+    public static final class Writer implements Closeable {
+
+        private final DataOutputStream out;
+        private long[] offsets = new long[1024];
+        private int count = 0;
+        private long position;
+
+        private Writer(Path path) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path), FileCipher.CHUNK_SIZE));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            position = HEADER_SIZE;
+        }
+
+        /**
+         * Append a record.
+         * @param record the bytes of the record, normally a ciphertext
+         * @throws RuntimeException if the archive would exceed its maximum size,
+         *         or for any I/O error
+         */
+        public void add(byte[] record) {
+            long end = position + LENGTH_SIZE + record.length + 8L * (count + 1) + TRAILER_SIZE;
+            if (end > Integer.MAX_VALUE) {
+                throw new RuntimeException("Archive would exceed its maximum size");
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, 2 * count);
+            }
+            try {
+                out.writeInt(record.length);
+                out.write(record);
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Failed to write record %d: %s".formatted(count, e.getMessage()), e);
+            }
+            offsets[count++] = position;
+            position += LENGTH_SIZE + record.length;
+        }
+
+        /**
+         * Return the number of records added so far.
+         * @return the record count
+         */
+        public int size() {
+            return count;
+        }
+
+        /**
+         * Write the index and trailer, and close the file.
+         */
+        @Override
+        public void close() throws IOException {
+            try (out) {
+                for (int i = 0; i < count; ++i) {
+                    out.writeLong(offsets[i]);
+                }
+                out.writeLong(position);
+                out.writeInt(count);
+                out.writeInt(MAGIC);
+            }
+        }
+    }
+}
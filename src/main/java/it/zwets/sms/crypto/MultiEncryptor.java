@@ -0,0 +1,262 @@
+package it.zwets.sms.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.List;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Encryptor that encrypts a payload once for several recipients.
+ *
+ * A fresh symmetric key is wrapped for each recipient: with RSA for RSA
+ * keys, and for XDH keys with an ephemeral key agreement (the entry is
+ * the ephemeral public key followed by the AES/GCM-wrapped key).  The
+ * entries are indexed by the recipients' key ids in sorted order, so
+ * that each recipient finds its entry with a binary search.  The payload
+ * is encrypted with AES/GCM, authenticating the whole header.  This is
+ * format {@link PkiCrypto.Version#MULTI}, which any
+ * {@link PkiCrypto.Decryptor} of a recipient decrypts.
+ *
+ * The ciphertext size grows with the wrapped key size of each recipient
+ * plus {@value #RECIPIENT_ENTRY_SIZE} bytes, instead of with a copy of
+ * the payload per recipient.
+ *
+ * This class is thread-safe.
+ */
+public final class MultiEncryptor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MultiEncryptor.class);
+
+    // Size of a recipient table entry: key id, u32 offset, u16 length
+    private static final int RECIPIENT_ENTRY_SIZE = PkiCrypto.KEY_ID_SIZE + 4 + 2;
+
+    private final List<PublicKey> recipients;
+    private final List<byte[]> keyIds;
+    private final boolean compress;
+
+    /**
+     * Create an encryptor for the given recipients.
+     * @param recipients the RSA or XDH public keys of the recipients
+     * @throws RuntimeException if there are no recipients or too many,
+     *         if a key type is not supported, or a key occurs twice
+     */
+    public MultiEncryptor(Collection<PublicKey> recipients) {
+        this(recipients, false);
+    }
+
+    /**
+     * Create an encryptor for the given recipients, which optionally
+     * deflates the plaintext before encrypting it.
+     * @param recipients the RSA or XDH public keys of the recipients
+     * @param compress whether to deflate the plaintext
+     * @throws RuntimeException if there are no recipients or too many,
+     *         if a key type is not supported, or a key occurs twice
+     */
+    public MultiEncryptor(Collection<PublicKey> recipients, boolean compress) {
+        if (recipients.isEmpty() || recipients.size() > 0xFFFF) {
+            throw new RuntimeException("Invalid number of recipients: %d".formatted(recipients.size()));
+        }
+
+        List<PublicKey> sorted = new ArrayList<>(recipients);
+        sorted.forEach(PkiCrypto::pkiOutputSize); // fail early on unsupported keys
+        sorted.sort((a, b) -> Arrays.compareUnsigned(PkiCrypto.keyId(a), PkiCrypto.keyId(b)));
+
+        this.recipients = List.copyOf(sorted);
+        this.keyIds = sorted.stream().map(PkiCrypto::keyId).toList();
+        this.compress = compress;
+
+        for (int i = 1; i < keyIds.size(); ++i) {
+            if (Arrays.equals(keyIds.get(i - 1), keyIds.get(i))) {
+                throw new RuntimeException("Duplicate recipient key id: %s".formatted(HexFormat.of().formatHex(keyIds.get(i))));
+            }
+        }
+    }
+
+    /**
+     * Encrypt plaintext for all recipients.
+     *
+     * @param payload the payload to encode, of at most {@link PkiCrypto#MAX_SINGLE_SHOT_SIZE} bytes
+     * @return the header with the recipient table, followed by the ciphertext
+     * @throws RuntimeException for any underlying exception
+     */
+    public byte[] encrypt(final byte[] payload) {
+        LOG.debug("encrypting plaintext for {} recipients", recipients.size());
+        PkiCrypto.checkSingleShot(PkiCrypto.Version.MULTI, payload.length);
+
+        byte[] plaintext = compress ? Compression.deflate(ByteBuffer.wrap(payload)) : payload;
+        byte[] key = PkiCrypto.newSymmetricKey();
+        PkiCrypto.Header header = newHeader(key);
+        byte[] headerBytes = header.toBytes();
+
+        byte[] ciphertext = new byte[headerBytes.length + plaintext.length + PkiCrypto.TAG_LENGTH];
+        System.arraycopy(headerBytes, 0, ciphertext, 0, headerBytes.length);
+        try {
+            PkiCrypto.initSymmetricCipher(CipherPool.cipher(PkiCrypto.AEAD_ALGORITHM), Cipher.ENCRYPT_MODE, key, header)
+                .doFinal(plaintext, 0, plaintext.length, ciphertext, headerBytes.length);
+            return ciphertext;
+        } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+            throw new RuntimeException("Failed to encrypt plaintext: %s".formatted(e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Encrypt content from is to ciphertext on os for all recipients.
+     *
+     * The content is read into memory, up to
+     * {@link PkiCrypto#MAX_SINGLE_SHOT_SIZE} bytes, and encrypted in one pass.
+     *
+     * @param is an open {@link InputStream}
+     * @param os an open {@link OutputStream}
+     * @throws RuntimeException for any underlying exception, or if the input is too large
+     */
+    public void encrypt(InputStream is, OutputStream os) {
+        LOG.debug("encrypting input stream for {} recipients", recipients.size());
+
+        try (is; os) {
+            os.write(encrypt(is.readNBytes(PkiCrypto.MAX_SINGLE_SHOT_SIZE + 1)));
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Failed to encrypt stream: %s".formatted(e.getMessage()), e);
+        }
+    }
+
+    // Wraps key for every recipient into the recipient table of a new header
+    private PkiCrypto.Header newHeader(byte[] key) {
+        int count = recipients.size();
+        List<byte[]> wrapped = recipients.stream()
+                .map(pubkey -> XdhKem.isXdh(pubkey) ? XdhKem.wrap(pubkey, key) : PkiCrypto.pkiEncrypt(pubkey, key))
+                .toList();
+
+        int directorySize = 2 + count * RECIPIENT_ENTRY_SIZE;
+        ByteBuffer table = ByteBuffer.allocate(directorySize + wrapped.stream().mapToInt(w -> w.length).sum());
+        table.putShort((short) count);
+        int offset = 0;
+        for (int i = 0; i < count; ++i) {
+            table.put(keyIds.get(i)).putInt(offset).putShort((short) wrapped.get(i).length);
+            offset += wrapped.get(i).length;
+        }
+        wrapped.forEach(table::put);
+
+        byte[] nonce = new byte[PkiCrypto.NONCE_LENGTH];
+        CipherPool.random().nextBytes(nonce);
+        return new PkiCrypto.Header(PkiCrypto.Version.MULTI, compress ? PkiCrypto.FLAG_DEFLATE : 0, null, null, table.array(), nonce);
+    }
+
+    /**
+     * Returns the key ids in a recipient table, in table order.
+     * @param table the recipient table from the header
+     * @return the key ids of all recipients
+     */
+    static List<byte[]> recipientKeyIds(final byte[] table) {
+        int count = recipientCount(table);
+        List<byte[]> keyIds = new ArrayList<>(count);
+        for (int i = 0; i < count; ++i) {
+            int at = 2 + i * RECIPIENT_ENTRY_SIZE;
+            keyIds.add(Arrays.copyOfRange(table, at, at + PkiCrypto.KEY_ID_SIZE));
+        }
+        return keyIds;
+    }
+
+    /**
+     * Finds the entry for keyId in the recipient table, and unwraps it.
+     * @param privkey the private key of the recipient
+     * @param table the recipient table from the header
+     * @param keyId the key id of the recipient
+     * @return the symmetric key
+     * @throws RuntimeException if keyId is not in the table, or unwrapping fails
+     */
+    static byte[] unwrapRecipientKey(final PrivateKey privkey, final byte[] table, final byte[] keyId) {
+        int count = recipientCount(table);
+        int directorySize = 2 + count * RECIPIENT_ENTRY_SIZE;
+
+        int lo = 0, hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int at = 2 + mid * RECIPIENT_ENTRY_SIZE;
+            int cmp = Arrays.compareUnsigned(table, at, at + PkiCrypto.KEY_ID_SIZE, keyId, 0, PkiCrypto.KEY_ID_SIZE);
+            if (cmp < 0) {
+                lo = mid + 1;
+            }
+            else if (cmp > 0) {
+                hi = mid - 1;
+            }
+            else {
+                ByteBuffer entry = ByteBuffer.wrap(table, at + PkiCrypto.KEY_ID_SIZE, 6);
+                int offset = directorySize + entry.getInt();
+                byte[] wrapped = Arrays.copyOfRange(table, offset, offset + (entry.getShort() & 0xFFFF));
+                return XdhKem.isXdh(privkey) ? XdhKem.unwrap(privkey, wrapped) : PkiCrypto.pkiDecrypt(privkey, wrapped);
+            }
+        }
+        throw new RuntimeException("Not a recipient of this ciphertext: %s".formatted(HexFormat.of().formatHex(keyId)));
+    }
+
+    /**
+     * Parses the rest of the multi-recipient header after the header word.
+     *
+     * The header word is followed by a flags byte (no key id), the recipient
+     * table in place of the encrypted key, and the nonce.  The table is a
+     * u16 count, that many entries of key id, u32 offset and u16 length
+     * sorted by key id, and then the wrapped keys at those offsets.
+     *
+     * @param is the input stream positioned after the header word
+     * @return the parsed header, with the recipient table as its encKey
+     * @throws IOException if the header could not be read
+     * @throws RuntimeException if the flags or the recipient table are invalid
+     */
+    static PkiCrypto.Header parseHeader(InputStream is) throws IOException {
+        int flags = PkiCrypto.readBytes(is, 1, "flags")[0] & 0xFF;
+        if ((flags & ~PkiCrypto.FLAG_DEFLATE) != 0) {
+            throw new RuntimeException("Unsupported ciphertext flags in multi-recipient header: 0x%02x".formatted(flags));
+        }
+
+        byte[] countBytes = PkiCrypto.readBytes(is, 2, "recipient count");
+        int count = recipientCount(countBytes);
+        byte[] directory = PkiCrypto.readBytes(is, count * RECIPIENT_ENTRY_SIZE, "recipient table");
+
+        // The wrapped keys must be contiguous from offset 0; their sizes are
+        // summed in a long, as 65535 entries of up to 65535 bytes overflow an int
+        ByteBuffer entries = ByteBuffer.wrap(directory);
+        long size = 0;
+        for (int i = 0; i < count; ++i) {
+            entries.position(i * RECIPIENT_ENTRY_SIZE + PkiCrypto.KEY_ID_SIZE);
+            if (Integer.toUnsignedLong(entries.getInt()) != size) {
+                throw new RuntimeException("Invalid recipient table: bad offset in entry %d".formatted(i));
+            }
+            size += entries.getShort() & 0xFFFF;
+        }
+
+        // Where the size of the input is known, the keys must fit in what is left
+        long limit = is instanceof PkiCrypto.ByteBufferInputStream bis ? bis.available() : Integer.MAX_VALUE - 2 - directory.length;
+        if (size > limit) {
+            throw new RuntimeException("Invalid recipient table: %d bytes of wrapped keys exceed the input".formatted(size));
+        }
+        byte[] wrapped = PkiCrypto.readBytes(is, (int) size, "wrapped keys");
+
+        byte[] table = new byte[2 + directory.length + wrapped.length];
+        System.arraycopy(countBytes, 0, table, 0, 2);
+        System.arraycopy(directory, 0, table, 2, directory.length);
+        System.arraycopy(wrapped, 0, table, 2 + directory.length, wrapped.length);
+
+        return new PkiCrypto.Header(PkiCrypto.Version.MULTI, flags, null, null, table, PkiCrypto.readBytes(is, PkiCrypto.NONCE_LENGTH, "nonce"));
+    }
+
+    // Returns the number of entries in a recipient table
+    private static int recipientCount(byte[] table) {
+        return ((table[0] & 0xFF) << 8) | (table[1] & 0xFF);
+    }
+}
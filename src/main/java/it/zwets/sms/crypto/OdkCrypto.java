@@ -5,24 +5,42 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.DigestOutputStream;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.SecureRandom;
+import java.security.interfaces.RSAPrivateKey;
 import java.security.spec.AlgorithmParameterSpec;
 import java.security.spec.MGF1ParameterSpec;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.stream.IntStream;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 import javax.crypto.CipherOutputStream;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.OAEPParameterSpec;
 import javax.crypto.spec.PSource;
@@ -45,7 +63,14 @@ import org.slf4j.LoggerFactory;
  * For multi-part submissions, the instamce ID and secret key are the same
  * for all parts, but the IV of the AES algorithm is (predictably) changed
  * for each submission.  Use the Encryptor/Decryptor classes (rather than
- * the static encrypt/decrypt functions) for multi-part submissions.
+ * the static encrypt/decrypt functions) for multi-part submissions.  In an
+ * ODK submission the media files are the first parts, in the order of the
+ * manifest, and the encrypted submission.xml is the last.
+ *
+ * As an extension that ODK itself does not understand, the Encryptor can
+ * deflate each part before encrypting it.  The recipient must then create
+ * its Decryptor with the compressed option, as the ciphertext has no header
+ * to signal this.
  */
 public class OdkCrypto {
     
@@ -64,8 +89,9 @@ public class OdkCrypto {
     private static final String SYMMETRIC_ALGORITHM = "AES/CFB/PKCS5Padding";
     private static final String SYMMETRIC_KEYTYPE = "AES";
     private static final int IV_LENGTH = 16;
-    
-    private static SecureRandom SECURE_RANDOM = new SecureRandom();
+
+    // Extension of the encrypted files of a submission
+    private static final String ENC_SUFFIX = ".enc";
     
     /**
      * Result of the encryption.
@@ -147,7 +173,8 @@ public class OdkCrypto {
 
         private final String base64Key;
         private final byte[] key;
-        private final byte[] instance;
+        private final byte[] ivSeed;
+        private final boolean compress;
         private int counter;
 
         /**
@@ -157,10 +184,26 @@ public class OdkCrypto {
          * @param instance the instance ID of the submission
          */
         public Encryptor(PublicKey pubkey, String instance) {
+            this(pubkey, instance, false);
+        }
+
+        /**
+         * Creates an ODK encryptor for a (possibly multi-part) submission,
+         * which optionally deflates the parts before encrypting them.
+         * 
+         * Compressed output can only be decrypted by a {@link Decryptor}
+         * that is created with the compressed option, not by ODK tools.
+         * 
+         * @param pubkey the public key of the recipient
+         * @param instance the instance ID of the submission
+         * @param compress whether to deflate the parts
+         */
+        public Encryptor(PublicKey pubkey, String instance, boolean compress) {
             this.key = new byte[KEY_SIZE];
-            SECURE_RANDOM.nextBytes(this.key);
+            CipherPool.random().nextBytes(this.key);
             this.base64Key = Base64.getEncoder().encodeToString(pkiEncrypt(pubkey, key));
-            this.instance = instance.getBytes(StandardCharsets.UTF_8);
+            this.ivSeed = odkIVSeed(instance.getBytes(StandardCharsets.UTF_8), key);
+            this.compress = compress;
             this.counter = 0;
         }
 
@@ -183,10 +226,89 @@ public class OdkCrypto {
          * @param os an open {@link OutputStream}
          */
         public void encrypt(InputStream is, OutputStream os) {
-            ;
-            try (CipherOutputStream cos =  new CipherOutputStream(os,newCipher())) {
-                is.transferTo(cos);
-                cos.close();
+            encrypt(newCipher(), is, os);
+        }
+
+        /**
+         * Return a channel that encrypts the bytes written to it onto out
+         * using the ODK algorithm, as the next part of the submission.
+         * 
+         * The plaintext goes through the cipher as it is written, via
+         * reusable direct buffers.  Closing the channel writes the final
+         * block and closes out.
+         * 
+         * @param out the channel to write the ciphertext to
+         * @return the channel to write the plaintext to, which must be closed
+         */
+        public WritableByteChannel newChannel(WritableByteChannel out) {
+            WritableByteChannel channel = CipherChannels.writing(newCipher(), out);
+            return compress ? Channels.newChannel(Compression.deflating(Channels.newOutputStream(channel))) : channel;
+        }
+
+        /**
+         * Encrypt plaintext asynchronously on the {@link CryptoExecutors#cpu() CPU pool}.
+         * @param plaintext the payload to encrypt
+         * @return the future ciphertext
+         * @see #encryptAsync(byte[], Executor)
+         */
+        public CompletableFuture<byte[]> encryptAsync(byte[] plaintext) {
+            return encryptAsync(plaintext, CryptoExecutors.cpu());
+        }
+
+        /**
+         * Encrypt plaintext asynchronously on executor.
+         * 
+         * The IV of the part is fixed when this method is called, so the
+         * parts of a multi-part submission must be submitted in order, but
+         * may complete in any order.  Cancelling the future before the task
+         * starts skips the encryption.
+         * 
+         * @param plaintext the payload to encrypt
+         * @param executor runs the encryption
+         * @return the future ciphertext
+         */
+        public CompletableFuture<byte[]> encryptAsync(byte[] plaintext, Executor executor) {
+            Cipher cipher = newCipher();
+            return CryptoExecutors.supply(() -> {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                encrypt(cipher, new ByteArrayInputStream(plaintext), bos);
+                return bos.toByteArray();
+            }, executor);
+        }
+
+        /**
+         * Encrypt file in to file out asynchronously on a virtual thread.
+         * @param in the plaintext file
+         * @param out the ciphertext file, created or replaced
+         * @return the future that completes when out is written
+         * @see #encryptAsync(Path, Path, Executor)
+         */
+        public CompletableFuture<Void> encryptAsync(Path in, Path out) {
+            return encryptAsync(in, out, CryptoExecutors.io());
+        }
+
+        /**
+         * Encrypt file in to file out asynchronously on executor.
+         * 
+         * As with {@link #encryptAsync(byte[], Executor)}, the IV is fixed
+         * at the call.  Cancelling the future interrupts the encryption;
+         * as when it fails, out is then left untouched.
+         * 
+         * @param in the plaintext file
+         * @param out the ciphertext file, created or replaced
+         * @param executor runs the encryption
+         * @return the future that completes when out is written
+         */
+        public CompletableFuture<Void> encryptAsync(Path in, Path out, Executor executor) {
+            Cipher cipher = newCipher();
+            return CryptoExecutors.run(() -> encrypt(cipher, in, out), executor);
+        }
+
+        // Encrypts is to os with cipher
+        private void encrypt(Cipher cipher, InputStream is, OutputStream os) {
+            OutputStream cos = new CipherOutputStream(os, cipher);
+            try (OutputStream out = compress ? Compression.deflating(cos) : cos) {
+                is.transferTo(out);
             } catch (IOException e) {
                 throw new RuntimeException("Failed to encrypt the ciphertext: %s".formatted(e.getMessage()), e);
             }
@@ -209,16 +331,85 @@ public class OdkCrypto {
             return bos.toByteArray();
         }
 
+        /**
+         * Encrypt file in to file out using the ODK algorithm, memory-mapping
+         * the input.
+         * 
+         * Can be invoked multiple times, for the parts of a multi-part
+         * submission, as {@link #encrypt(InputStream, OutputStream)}.
+         * When compressing, the file is streamed through the deflater.
+         * 
+         * @param in the plaintext file
+         * @param out the ciphertext file, created or replaced
+         */
+        public void encrypt(Path in, Path out) {
+            encrypt(newCipher(), in, out);
+        }
+
+        /**
+         * Encrypt plaintext as part number part of the submission.
+         * 
+         * Unlike {@link #encrypt(byte[])}, this does not depend on the
+         * parts encrypted before, so the parts can be encrypted in any
+         * order, and concurrently from several threads.
+         * 
+         * @param part the index of the part, from 0
+         * @param plaintext the payload to encrypt
+         * @return the ciphertext
+         */
+        public byte[] encrypt(int part, byte[] plaintext) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            encrypt(newCipher(part), new ByteArrayInputStream(plaintext), bos);
+            return bos.toByteArray();
+        }
+
+        /**
+         * Encrypt file in to file out as part number part of the submission.
+         * @param part the index of the part, from 0
+         * @param in the plaintext file
+         * @param out the ciphertext file, created or replaced
+         * @see #encrypt(int, byte[])
+         */
+        public void encrypt(int part, Path in, Path out) {
+            encrypt(newCipher(part), in, out);
+        }
+
+        // Encrypts file in to file out with cipher
+        private void encrypt(Cipher cipher, Path in, Path out) {
+            if (compress) {
+                try (InputStream is = Files.newInputStream(in); FileCipher.Output output = FileCipher.openOutput(out)) {
+                    try (OutputStream os = output.stream()) {
+                        encrypt(cipher, is, os);
+                    }
+                    output.commit();
+                    return;
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to encrypt file %s: %s".formatted(in, e.getMessage()), e);
+                }
+            }
+            try (FileChannel is = FileCipher.openInput(in); FileCipher.Output output = FileCipher.openOutput(out)) {
+                FileCipher.transform(cipher, is, 0, output.channel());
+                output.commit();
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to encrypt file %s: %s".formatted(in, e.getMessage()), e);
+            }
+        }
+
         // Generates cipher with a different IV on every invocation
         private Cipher newCipher() {
-            LOG.debug("Creating new encryption cipher at counter: {}", this.counter);
+            return newCipher(this.counter++);
+        }
+
+        // Generates cipher with the IV of the given part
+        private Cipher newCipher(int part) {
+            LOG.debug("Creating new encryption cipher at counter: {}", part);
             try {
-                Cipher cipher = Cipher.getInstance(SYMMETRIC_ALGORITHM);
+                Cipher cipher = CipherPool.newCipher(SYMMETRIC_ALGORITHM);
                 cipher.init(Cipher.ENCRYPT_MODE, 
                         new SecretKeySpec(this.key, SYMMETRIC_KEYTYPE), 
-                        new IvParameterSpec(odkIV(this.instance, this.key, this.counter)));
+                        new IvParameterSpec(odkIV(this.ivSeed, part)));
                 return cipher;
-            } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException e) {
+            } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
                 throw new RuntimeException("Failed to create new encryption cipher: %s".formatted(e.getMessage()), e);
             }
         }
@@ -230,11 +421,17 @@ public class OdkCrypto {
      * Note that the ODK specification (predictably) changes the IV between
      * successive calls to this functions.  Do not reuse an instance of this
      * class to encrypt multiple <i>independent</i> submissions.
+     * 
+     * The methods that take a part index do not use or change this state,
+     * and can be called concurrently, in any order.  The others take the
+     * next part index in turn, and must be called in part order.
      */
     public static final class Decryptor {
 
         private final byte[] key;
-        private final byte[] instance;
+        private final byte[] ivSeed;
+        private final boolean compressed;
+        private final byte[] signature;
         private int counter;
 
         /**
@@ -244,7 +441,39 @@ public class OdkCrypto {
          * @param instance the submission instance ID or null
          */
         public Decryptor(final PrivateKey privkey, final String b64key, final String instance) {
-            this(pkiDecrypt(privkey, Base64.getDecoder().decode(b64key)), instance);
+            this(privkey, b64key, instance, false);
+        }
+
+        /**
+         * Create decryptor for a (possibly multi-part) submission, whose
+         * parts were optionally compressed by the {@link Encryptor}.
+         * @param privkey the private key of the reciptient
+         * @param b64key the key returned by the encryptor
+         * @param instance the submission instance ID or null
+         * @param compressed whether the parts were deflated before encryption
+         */
+        public Decryptor(final PrivateKey privkey, final String b64key, final String instance, final boolean compressed) {
+            this(privkey, b64key, instance, compressed, null);
+        }
+
+        /**
+         * Create decryptor for a (possibly multi-part) submission, which
+         * looks up the unwrapped key in keyCache before unwrapping it.
+         * 
+         * This avoids the private key operation when a submission is
+         * decrypted again, or when its parts arrive separately.  The cache
+         * must come from {@link OdkCrypto#newKeyCache(int, Duration)}, and
+         * can be shared by many decryptors (and private keys).
+         * 
+         * @param privkey the private key of the reciptient
+         * @param b64key the key returned by the encryptor
+         * @param instance the submission instance ID or null
+         * @param compressed whether the parts were deflated before encryption
+         * @param keyCache the cache of unwrapped keys, or null for none
+         */
+        public Decryptor(final PrivateKey privkey, final String b64key, final String instance, final boolean compressed,
+                final KeyCache<String,byte[]> keyCache) {
+            this(unwrapKey(privkey, b64key, keyCache), instance, compressed);
         }
 
         /**
@@ -253,8 +482,26 @@ public class OdkCrypto {
          * @param instance the submitssion instance ID
          */
         public Decryptor(final byte[] symkey, final String instance) {
+            this(symkey, instance, false);
+        }
+
+        /**
+         * Create decryptor for a (possibly multi-part) submission, whose
+         * parts were optionally compressed by the {@link Encryptor}.
+         * @param symkey the bytes of the symmetric key
+         * @param instance the submitssion instance ID
+         * @param compressed whether the parts were deflated before encryption
+         */
+        public Decryptor(final byte[] symkey, final String instance, final boolean compressed) {
+            this(symkey, instance, compressed, null);
+        }
+
+        // Creates a decryptor that verifies submissions against the MD5 in signature
+        private Decryptor(final byte[] symkey, final String instance, final boolean compressed, final byte[] signature) {
             this.key = symkey;
-            this.instance = instance == null ? new byte[] {} : instance.getBytes(StandardCharsets.UTF_8);
+            this.ivSeed = odkIVSeed(instance == null ? new byte[] {} : instance.getBytes(StandardCharsets.UTF_8), symkey);
+            this.compressed = compressed;
+            this.signature = signature;
             this.counter = 0;
         }
 
@@ -269,9 +516,111 @@ public class OdkCrypto {
          * @param os an open {@link OutputStream}
          */
         public void decrypt(InputStream is, OutputStream os) {
-            try (CipherInputStream cis = new CipherInputStream(is, newCipher())) {
-                cis.transferTo(os);
-                cis.close();
+            decrypt(newCipher(), is, os, null);
+        }
+
+        /**
+         * Decrypt the ciphertext read from is to plaintext on os, updating
+         * digest with the plaintext as it is written.
+         * 
+         * This computes the digest of the output in the same pass as the
+         * decryption, so that it need not be read back to be checked.
+         * 
+         * @param is an open {@link InputStream}
+         * @param os an open {@link OutputStream}
+         * @param digest the digest to update with the plaintext
+         */
+        public void decrypt(InputStream is, OutputStream os, MessageDigest digest) {
+            decrypt(newCipher(), is, os, digest);
+        }
+
+        /**
+         * Return a channel that reads the plaintext of the ODK ciphertext on
+         * in, as the next part of the submission.
+         * 
+         * The ciphertext goes through the cipher as it is read, via reusable
+         * direct buffers, so the channel can be the source of
+         * <code>FileChannel.transferFrom</code>.
+         * 
+         * @param in the channel to read the ciphertext from, closed with the channel
+         * @return the channel to read the plaintext from
+         */
+        public ReadableByteChannel newChannel(ReadableByteChannel in) {
+            ReadableByteChannel channel = CipherChannels.reading(newCipher(), in);
+            return compressed ? Channels.newChannel(Compression.inflating(Channels.newInputStream(channel), PkiCrypto.DEFAULT_MAX_INFLATED_SIZE)) : channel;
+        }
+
+        /**
+         * Decrypt ciphertext asynchronously on the {@link CryptoExecutors#cpu() CPU pool}.
+         * @param ciphertext the payload to decrypt
+         * @return the future plaintext
+         * @see #decryptAsync(byte[], Executor)
+         */
+        public CompletableFuture<byte[]> decryptAsync(byte[] ciphertext) {
+            return decryptAsync(ciphertext, CryptoExecutors.cpu());
+        }
+
+        /**
+         * Decrypt ciphertext asynchronously on executor.
+         * 
+         * The IV of the part is fixed when this method is called, so the
+         * parts of a multi-part submission must be submitted in the order
+         * they were encrypted, but may complete in any order.  Cancelling
+         * the future before the task starts skips the decryption.
+         * 
+         * @param ciphertext the payload to decrypt
+         * @param executor runs the decryption
+         * @return the future plaintext
+         */
+        public CompletableFuture<byte[]> decryptAsync(byte[] ciphertext, Executor executor) {
+            Cipher cipher = newCipher();
+            return CryptoExecutors.supply(() -> {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                decrypt(cipher, new ByteArrayInputStream(ciphertext), bos, null);
+                return bos.toByteArray();
+            }, executor);
+        }
+
+        /**
+         * Decrypt file in to file out asynchronously on a virtual thread.
+         * @param in the ciphertext file
+         * @param out the plaintext file, created or replaced
+         * @return the future that completes when out is written
+         * @see #decryptAsync(Path, Path, Executor)
+         */
+        public CompletableFuture<Void> decryptAsync(Path in, Path out) {
+            return decryptAsync(in, out, CryptoExecutors.io());
+        }
+
+        /**
+         * Decrypt file in to file out asynchronously on executor.
+         * 
+         * As with {@link #decryptAsync(byte[], Executor)}, the IV is fixed
+         * at the call.  Cancelling the future interrupts the decryption;
+         * as when it fails, out is then left untouched.
+         * 
+         * @param in the ciphertext file
+         * @param out the plaintext file, created or replaced
+         * @param executor runs the decryption
+         * @return the future that completes when out is written
+         */
+        public CompletableFuture<Void> decryptAsync(Path in, Path out, Executor executor) {
+            Cipher cipher = newCipher();
+            return CryptoExecutors.run(() -> decrypt(cipher, in, out, null), executor);
+        }
+
+        // Decrypts is to os with cipher, updating digest if it is not null
+        private void decrypt(Cipher cipher, InputStream is, OutputStream os, MessageDigest digest) {
+            OutputStream target = digest == null ? os : new DigestOutputStream(os, digest);
+            try (CipherInputStream cis = new CipherInputStream(is, cipher)) {
+                if (compressed) {
+                    try (OutputStream inflater = Compression.inflating(target, PkiCrypto.DEFAULT_MAX_INFLATED_SIZE)) {
+                        cis.transferTo(inflater);
+                    }
+                }
+                else {
+                    cis.transferTo(target);
+                }
             } catch (IOException e) {
                 throw new RuntimeException("Failed to decrypt the ciphertext: %s".formatted(e.getMessage()), e);
             }
@@ -294,28 +643,408 @@ public class OdkCrypto {
             return bos.toByteArray();
         }
 
+        /**
+         * Decrypt file in to file out using the ODK algorithm, memory-mapping
+         * the input.
+         * 
+         * Can be invoked multiple times, for the parts of a multi-part
+         * submission, as {@link #decrypt(InputStream, OutputStream)}.
+         * 
+         * @param in the ciphertext file
+         * @param out the plaintext file, created or replaced
+         */
+        public void decrypt(Path in, Path out) {
+            decrypt(newCipher(), in, out, null);
+        }
+
+        /**
+         * Decrypt ciphertext as part number part of the submission.
+         * 
+         * Unlike {@link #decrypt(byte[])}, this does not depend on the
+         * parts decrypted before, so the parts can be decrypted in any
+         * order, and concurrently from several threads.  In an ODK
+         * submission with n media files, these are parts 0 to n-1, and the
+         * submission XML is part n.
+         * 
+         * @param part the index of the part, from 0
+         * @param ciphertext the payload to decrypt
+         * @return the plaintext
+         */
+        public byte[] decrypt(int part, byte[] ciphertext) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            decrypt(newCipher(part), new ByteArrayInputStream(ciphertext), bos, null);
+            return bos.toByteArray();
+        }
+
+        /**
+         * Decrypt the ciphertext read from is to os as part number part.
+         * @param part the index of the part, from 0
+         * @param is an open {@link InputStream}
+         * @param os an open {@link OutputStream}
+         * @see #decrypt(int, byte[])
+         */
+        public void decrypt(int part, InputStream is, OutputStream os) {
+            decrypt(newCipher(part), is, os, null);
+        }
+
+        /**
+         * Decrypt the ciphertext read from is to os as part number part,
+         * updating digest with the plaintext.
+         * @param part the index of the part, from 0
+         * @param is an open {@link InputStream}
+         * @param os an open {@link OutputStream}
+         * @param digest the digest to update with the plaintext
+         * @see #decrypt(InputStream, OutputStream, MessageDigest)
+         */
+        public void decrypt(int part, InputStream is, OutputStream os, MessageDigest digest) {
+            decrypt(newCipher(part), is, os, digest);
+        }
+
+        /**
+         * Decrypt file in to file out as part number part.
+         * @param part the index of the part, from 0
+         * @param in the ciphertext file
+         * @param out the plaintext file, created or replaced
+         * @see #decrypt(int, byte[])
+         */
+        public void decrypt(int part, Path in, Path out) {
+            decrypt(newCipher(part), in, out, null);
+        }
+
+        /**
+         * Decrypt file in to file out as part number part, updating digest
+         * with the plaintext as it is written.
+         * @param part the index of the part, from 0
+         * @param in the ciphertext file
+         * @param out the plaintext file, created or replaced
+         * @param digest the digest to update with the plaintext
+         * @see #decrypt(InputStream, OutputStream, MessageDigest)
+         */
+        public void decrypt(int part, Path in, Path out, MessageDigest digest) {
+            decrypt(newCipher(part), in, out, digest);
+        }
+
+        // Decrypts file in to file out with cipher, updating digest if it is not null
+        private void decrypt(Cipher cipher, Path in, Path out, MessageDigest digest) {
+            try (FileCipher.Output output = FileCipher.openOutput(out)) {
+                decrypt(cipher, in, output, digest);
+                output.commit();
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to decrypt file %s: %s".formatted(in, e.getMessage()), e);
+            }
+        }
+
+        // Decrypts file in to output with cipher and closes its channel, leaving the commit to the caller
+        private void decrypt(Cipher cipher, Path in, FileCipher.Output output, MessageDigest digest) throws IOException {
+            try (FileChannel is = FileCipher.openInput(in); FileChannel os = output.channel()) {
+                WritableByteChannel target = digest == null ? os : FileCipher.digesting(os, digest);
+                if (compressed) {
+                    try (OutputStream inflater = Compression.inflating(Channels.newOutputStream(target), PkiCrypto.DEFAULT_MAX_INFLATED_SIZE)) {
+                        FileCipher.transform(cipher, is, 0, Channels.newChannel(inflater));
+                    }
+                }
+                else {
+                    FileCipher.transform(cipher, is, 0, target);
+                }
+            }
+        }
+
+        /**
+         * Create a decryptor for the submission that manifest describes.
+         * @param privkey the private key of the recipient
+         * @param manifest the manifest of the submission
+         * @return the decryptor, which has unwrapped the key
+         */
+        public static Decryptor forManifest(PrivateKey privkey, OdkManifest manifest) {
+            return forManifest(privkey, manifest, null);
+        }
+
+        /**
+         * Create a decryptor for the submission that manifest describes,
+         * using keyCache as in {@link #Decryptor(PrivateKey, String, String, boolean, KeyCache)}.
+         *
+         * If the manifest has an element signature, it is decrypted here
+         * too, through keyCache like the key, and the manifest is checked
+         * for the fields that it signs.  A signature that is not for
+         * privkey, or cannot be verified, thus fails before any data is
+         * decrypted, and decryptSubmission verifies it.
+         *
+         * @param privkey the private key of the recipient
+         * @param manifest the manifest of the submission
+         * @param keyCache the cache of unwrapped keys, or null for none
+         * @return the decryptor, which has the unwrapped key
+         * @throws RuntimeException if the key or signature cannot be
+         *         decrypted, or a signed manifest lacks its form or instance ID
+         */
+        public static Decryptor forManifest(PrivateKey privkey, OdkManifest manifest, KeyCache<String,byte[]> keyCache) {
+            String b64signature = manifest.base64EncryptedElementSignature();
+            if (b64signature != null && (manifest.formId() == null || manifest.instanceId() == null)) {
+                throw new RuntimeException("Manifest lacks the form or instance ID to verify the signature");
+            }
+            byte[] signature = b64signature == null ? null : unwrapKey(privkey, b64signature, keyCache);
+            return new Decryptor(unwrapKey(privkey, manifest.base64EncryptedKey(), keyCache), manifest.instanceId(), false, signature);
+        }
+
+        /**
+         * Decrypt the submission in directory dir to directory outDir.
+         *
+         * Reads the manifest in dir, unwraps the key, and decrypts the
+         * parts concurrently on virtual threads, each to a file in outDir
+         * with the name of the part minus its .enc extension, so that the
+         * decrypted submission.xml takes the place of the manifest.
+         *
+         * @param privkey the private key of the recipient
+         * @param dir the submission directory
+         * @param outDir the output directory, created if needed
+         * @return the manifest of the submission
+         * @throws RuntimeException if dir has no manifest of an encrypted submission,
+         *         or for any decryption or I/O error
+         */
+        public static OdkManifest decryptSubmission(PrivateKey privkey, Path dir, Path outDir) {
+            OdkManifest manifest = OdkManifest.read(dir.resolve(OdkManifest.FILE_NAME));
+            if (manifest == null) {
+                throw new RuntimeException("Not an encrypted submission: %s".formatted(dir));
+            }
+            forManifest(privkey, manifest).decryptSubmission(manifest, dir, outDir, CryptoExecutors.io());
+            return manifest;
+        }
+
+        /**
+         * Decrypt the parts that manifest lists in dir to outDir, one
+         * after the other on the calling thread.
+         *
+         * This decryptor must be created for the key and instance of
+         * manifest, see {@link #forManifest(PrivateKey, OdkManifest)}.
+         * If it has the element signature, the MD5 of each part is taken
+         * as it is decrypted, and the signature is checked at the end.
+         * The parts are decrypted to temporary files, which are moved into
+         * place only when all parts decrypted and the signature checked.
+         *
+         * @param manifest the manifest of the submission
+         * @param dir the submission directory
+         * @param outDir the output directory, created if needed
+         * @throws RuntimeException for any decryption or I/O error, or if
+         *         the signature does not match; in either case the files
+         *         already in outDir are left as they were
+         */
+        public void decryptSubmission(OdkManifest manifest, Path dir, Path outDir) {
+            LOG.debug("Decrypting submission {} in {}", manifest.instanceId(), dir);
+            List<String> parts = manifest.parts();
+            createDirectories(outDir);
+            List<FileCipher.Output> outputs = new ArrayList<>(parts.size());
+            try {
+                List<byte[]> md5s = new ArrayList<>(parts.size());
+                for (int i = 0; i < parts.size(); ++i) {
+                    md5s.add(decryptPart(i, dir.resolve(parts.get(i)), outDir.resolve(decryptedName(parts.get(i))), outputs));
+                }
+                verifySignature(manifest, md5s);
+                commit(outputs);
+            } finally {
+                discard(outputs);
+            }
+        }
+
+        /**
+         * Decrypt the parts that manifest lists in dir to outDir,
+         * concurrently on executor.
+         *
+         * Each part is decrypted by its index, so the parts are independent
+         * tasks.  If any part fails, the others are cancelled and the
+         * failure is thrown.  The signature is verified as in
+         * {@link #decryptSubmission(OdkManifest, Path, Path)}.
+         *
+         * @param manifest the manifest of the submission
+         * @param dir the submission directory
+         * @param outDir the output directory, created if needed
+         * @param executor runs the decryption of the parts
+         * @throws RuntimeException for any decryption or I/O error, or if
+         *         the signature does not match; in either case the files
+         *         already in outDir are left as they were
+         */
+        public void decryptSubmission(OdkManifest manifest, Path dir, Path outDir, Executor executor) {
+            LOG.debug("Decrypting submission {} in {} concurrently", manifest.instanceId(), dir);
+            List<String> parts = manifest.parts();
+            createDirectories(outDir);
+            Queue<FileCipher.Output> outputs = new ConcurrentLinkedQueue<>();
+            List<CryptoExecutors.TaskFuture<byte[]>> tasks = IntStream.range(0, parts.size())
+                    .mapToObj(i -> CryptoExecutors.supply(
+                            () -> decryptPart(i, dir.resolve(parts.get(i)), outDir.resolve(decryptedName(parts.get(i))), outputs), executor))
+                    .toList();
+            try {
+                List<byte[]> md5s = new ArrayList<>(parts.size());
+                try {
+                    for (CompletableFuture<byte[]> task : tasks) {
+                        md5s.add(task.join());
+                    }
+                } catch (CompletionException | CancellationException e) {
+                    // Let the cancelled parts finish with their temporary files before these are removed
+                    tasks.forEach(task -> task.cancel(true));
+                    tasks.forEach(CryptoExecutors.TaskFuture::awaitSettled);
+                    throw e.getCause() instanceof RuntimeException re ? re : e;
+                }
+                verifySignature(manifest, md5s);
+                commit(outputs);
+            } finally {
+                discard(outputs);
+            }
+        }
+
+        // Decrypts part in to a temporary file for out, which it adds to
+        // outputs uncommitted; returns its MD5 if there is a signature to check
+        private byte[] decryptPart(int part, Path in, Path out, Collection<FileCipher.Output> outputs) {
+            MessageDigest md = signature == null ? null : CipherPool.newDigest("MD5");
+            try {
+                FileCipher.Output output = FileCipher.openOutput(out);
+                outputs.add(output);
+                decrypt(newCipher(part), in, output, md);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to decrypt file %s: %s".formatted(in, e.getMessage()), e);
+            }
+            return md == null ? null : md.digest();
+        }
+
+        // Checks the MD5s of the parts against the signature
+        private void verifySignature(OdkManifest manifest, List<byte[]> md5s) {
+            if (signature == null) {
+                LOG.debug("Submission {} has no signature to verify", manifest.instanceId());
+                return;
+            }
+            byte[] actual = CipherPool.digest("MD5").digest(signatureSource(manifest, md5s).getBytes(StandardCharsets.UTF_8));
+            if (!MessageDigest.isEqual(actual, signature)) {
+                throw new RuntimeException("Signature verification failed for submission %s".formatted(manifest.instanceId()));
+            }
+        }
+
+        // Moves the decrypted parts of a submission into place
+        private static void commit(Collection<FileCipher.Output> outputs) {
+            for (FileCipher.Output output : outputs) {
+                try {
+                    output.commit();
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to move decrypted part into place: %s".formatted(e.getMessage()), e);
+                }
+            }
+        }
+
+        // Deletes the temporary files of the parts that were not moved into place
+        private static void discard(Collection<FileCipher.Output> outputs) {
+            for (FileCipher.Output output : outputs) {
+                try {
+                    output.close();
+                } catch (IOException e) {
+                    LOG.warn("Failed to remove a decrypted part: {}", e.getMessage());
+                }
+            }
+        }
+
+        private static void createDirectories(Path dir) {
+            try {
+                Files.createDirectories(dir);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to create directory %s: %s".formatted(dir, e.getMessage()), e);
+            }
+        }
+
+        private static String decryptedName(String part) {
+            return part.endsWith(ENC_SUFFIX) ? part.substring(0, part.length() - ENC_SUFFIX.length()) : part;
+        }
+
         // Generates a new cipher with a different IV on every call
         private Cipher newCipher() {
-            LOG.debug("Creating new decryption Cipher at counter: {}", this.counter);
+            return newCipher(this.counter++);
+        }
+
+        // Generates a new cipher with the IV of the given part
+        private Cipher newCipher(int part) {
+            LOG.debug("Creating new decryption Cipher at counter: {}", part);
             try {
-                Cipher cipher = Cipher.getInstance(SYMMETRIC_ALGORITHM);
+                Cipher cipher = CipherPool.newCipher(SYMMETRIC_ALGORITHM);
                 cipher.init(Cipher.DECRYPT_MODE, 
                         new SecretKeySpec(this.key, SYMMETRIC_KEYTYPE), 
-                        new IvParameterSpec(odkIV(this.instance, this.key, this.counter)));
+                        new IvParameterSpec(odkIV(this.ivSeed, part)));
                 return cipher;
-            } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException e) {
+            } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
                 throw new RuntimeException("Failed to create new decryption cipher: %s".formatted(e.getMessage()), e);
             }
         }
     };
 
+    // Returns the text whose MD5 the element signature holds, as ODK Collect
+    // composes it: the form ID, version, wrapped key, instance ID, and the
+    // name and MD5 of each decrypted part, one per line
+    static String signatureSource(OdkManifest manifest, List<byte[]> md5s) {
+        if (manifest.formId() == null) {
+            throw new RuntimeException("Manifest lacks the form ID to verify the signature");
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(manifest.formId()).append('\n');
+        if (manifest.version() != null) {
+            sb.append(manifest.version()).append('\n');
+        }
+        sb.append(manifest.base64EncryptedKey()).append('\n');
+        sb.append(manifest.instanceId()).append('\n');
+        List<String> parts = manifest.parts();
+        for (int i = 0; i < parts.size(); ++i) {
+            sb.append(Decryptor.decryptedName(parts.get(i))).append("::").append(HexFormat.of().formatHex(md5s.get(i))).append('\n');
+        }
+        return sb.toString();
+    }
+
+    // Returns the base64 element signature of source for pubkey, as ODK Collect makes it
+    static String elementSignature(PublicKey pubkey, String source) {
+        byte[] md5 = CipherPool.digest("MD5").digest(source.getBytes(StandardCharsets.UTF_8));
+        return Base64.getEncoder().encodeToString(pkiEncrypt(pubkey, md5));
+    }
+
+    /**
+     * Create a cache for {@link Decryptor#Decryptor(PrivateKey, String, String, boolean, KeyCache)}.
+     * 
+     * The cache maps a digest of the private key and the wrapped key to
+     * the unwrapped key, and likewise holds the decrypted element
+     * signatures of submissions.  Keys are wiped when they leave the cache,
+     * and decryptors copy them out under the cache lock.  Its
+     * {@link KeyCache#getStats() statistics} show whether it is sized well.
+     * 
+     * @param maxSize the maximum number of keys, 0 disables caching
+     * @param maxIdle the time after its last use that a key is dropped
+     * @return the new cache
+     */
+    public static KeyCache<String,byte[]> newKeyCache(int maxSize, Duration maxIdle) {
+        return new KeyCache<>(maxSize, maxIdle, key -> Arrays.fill(key, (byte) 0));
+    }
+
+    // Unwraps b64key (or an element signature) with privkey, or takes a copy of it from keyCache
+    private static byte[] unwrapKey(PrivateKey privkey, String b64key, KeyCache<String,byte[]> keyCache) {
+        String cacheKey = keyCache == null ? null : keyCacheKey(privkey, b64key);
+        if (cacheKey == null) {
+            return pkiDecrypt(privkey, Base64.getDecoder().decode(b64key));
+        }
+        return keyCache.get(cacheKey, k -> pkiDecrypt(privkey, Base64.getDecoder().decode(b64key)), byte[]::clone);
+    }
+
+    // Ties the cached key to the secret part of the private key, so that it
+    // is only served to requests that could unwrap it themselves; returns
+    // null for a key that does not reveal its secret, which is not cached
+    private static String keyCacheKey(PrivateKey privkey, String b64key) {
+        byte[] secret = privkey instanceof RSAPrivateKey rsa
+                ? rsa.getPrivateExponent().toByteArray() : privkey.getEncoded();
+        if (secret == null) {
+            return null;
+        }
+        MessageDigest md = CipherPool.digest("SHA-256");
+        md.update(secret);
+        Arrays.fill(secret, (byte) 0);
+        md.update(b64key.getBytes(StandardCharsets.US_ASCII));
+        return HexFormat.of().formatHex(md.digest());
+    }
+
     private static byte[] pkiEncrypt(PublicKey key, byte[] plaintext)
     {
         try {
-            Cipher cipher = Cipher.getInstance(ASYMMETRIC_ALGORITHM);
-            cipher.init(Cipher.ENCRYPT_MODE, key, ASYMMETRIC_PARAMETERS);  
+            Cipher cipher = CipherPool.cipher(ASYMMETRIC_ALGORITHM);
+            cipher.init(Cipher.ENCRYPT_MODE, key, ASYMMETRIC_PARAMETERS, CipherPool.random());
             return cipher.doFinal(plaintext);
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException | InvalidAlgorithmParameterException e) {
+        } catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException | InvalidAlgorithmParameterException e) {
             throw new RuntimeException("PKI error during encryption: %s".formatted(e.getMessage()), e);
         }
     }
@@ -323,39 +1052,35 @@ public class OdkCrypto {
     private static byte[] pkiDecrypt(PrivateKey key, byte[] ciphertext) 
     {
         try {
-            Cipher cipher = Cipher.getInstance(ASYMMETRIC_ALGORITHM);
+            Cipher cipher = CipherPool.cipher(ASYMMETRIC_ALGORITHM);
             cipher.init(Cipher.DECRYPT_MODE, key, ASYMMETRIC_PARAMETERS);
             return cipher.doFinal(ciphertext);
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException | InvalidAlgorithmParameterException e) {
+        } catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException | InvalidAlgorithmParameterException e) {
             throw new RuntimeException("PKI error during decryption: %s".formatted(e.getMessage()), e);
         }
     }
     
-    // returns IV initialised accprding to the ODK specification: MD5 of instance and symkey
-    private static final byte[] odkIV(final byte[] instance, final byte[] key, int counter) {
-        try {
-            byte[] iv = new byte[IV_LENGTH];
-            
-            // the seed IV is the MD5 of the instance and symkey
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            md.update(instance);
-            md.update(key);
-            byte[] md5 = md.digest();
-    
-            // fill the IV with the MD5
-            for (int i = 0; i < IV_LENGTH; ++i) {
-                iv[i] = md5[i % md5.length];
-            }
-            
-            // bump the array with the counter
-            for (int i = 0; i <= counter; ++i) {
-                ++iv[i % iv.length];
-            }
-            
-            return iv;
+    // returns the seed IV according to the ODK specification: MD5 of instance and symkey
+    private static final byte[] odkIVSeed(final byte[] instance, final byte[] key) {
+        MessageDigest md = CipherPool.digest("MD5");
+        md.update(instance);
+        md.update(key);
+        return md.digest();
+    }
+
+    // returns the IV of part counter: the ODK specification bumps byte
+    // i % 16 of the seed for every i from 0 to counter, which adds
+    // counter / 16 to every byte, plus one to bytes 0 to counter % 16
+    static final byte[] odkIV(final byte[] seed, int counter) {
+        if (counter < 0) {
+            throw new IllegalArgumentException("Invalid part index: %d".formatted(counter));
         }
-        catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("Failed to create IV: %s".formatted(e.getMessage()), e);
+        byte[] iv = new byte[IV_LENGTH];
+        int rounds = counter / IV_LENGTH;
+        int rest = counter % IV_LENGTH;
+        for (int j = 0; j < IV_LENGTH; ++j) {
+            iv[j] = (byte) (seed[j] + rounds + (j <= rest ? 1 : 0));
         }
+        return iv;
     }
 }
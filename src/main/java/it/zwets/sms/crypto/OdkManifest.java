@@ -0,0 +1,164 @@
+package it.zwets.sms.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * The cleartext manifest of an encrypted ODK/Kobo submission.
+ *
+ * When a form is encrypted, ODK sends the submission as a set of encrypted
+ * files plus a cleartext submission.xml that lists them, and holds what the
+ * recipient needs to decrypt them:
+ * <pre>
+ * &lt;data encrypted="yes" id="FORMID" version="VERSION"&gt;
+ *   &lt;base64EncryptedKey&gt;...&lt;/base64EncryptedKey&gt;
+ *   &lt;meta&gt;&lt;instanceID&gt;uuid:...&lt;/instanceID&gt;&lt;/meta&gt;
+ *   &lt;media&gt;&lt;file&gt;photo.jpg.enc&lt;/file&gt;&lt;/media&gt;
+ *   &lt;encryptedXmlFile&gt;submission.xml.enc&lt;/encryptedXmlFile&gt;
+ *   &lt;base64EncryptedElementSignature&gt;...&lt;/base64EncryptedElementSignature&gt;
+ * &lt;/data&gt;
+ * </pre>
+ *
+ * The manifest is read with a streaming (StAX) parser, matching elements by
+ * their local name, without building a document tree.  DTDs and external
+ * entities are not processed.  File names are checked to be plain names,
+ * so that they cannot point outside the submission directory.
+ *
+ * @param formId the form ID, or null if absent
+ * @param version the form version, or null if absent
+ * @param base64EncryptedKey the RSA-wrapped symmetric key
+ * @param instanceId the instance ID of the submission
+ * @param media the names of the encrypted media files, in part order
+ * @param encryptedXmlFile the name of the encrypted submission XML, the last part
+ * @param base64EncryptedElementSignature the encrypted signature, or null if absent
+ */
+public record OdkManifest(
+        String formId,
+        String version,
+        String base64EncryptedKey,
+        String instanceId,
+        List<String> media,
+        String encryptedXmlFile,
+        String base64EncryptedElementSignature) {
+
+    /** Name of the manifest file in a submission directory */
+    public static final String FILE_NAME = "submission.xml";
+
+    // The factory is configured once, and safe to create readers from concurrently
+    private static final XMLInputFactory XML_FACTORY = XMLInputFactory.newFactory();
+    static {
+        XML_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    public OdkManifest {
+        media = List.copyOf(media);
+    }
+
+    /**
+     * Return the names of the encrypted files in the order of encryption.
+     * @return the media files followed by the submission XML
+     */
+    public List<String> parts() {
+        List<String> parts = new ArrayList<>(media);
+        parts.add(encryptedXmlFile);
+        return parts;
+    }
+
+    /**
+     * Read the manifest from file.
+     * @param file the submission.xml file
+     * @return the manifest, or null if file is not the manifest of an encrypted submission
+     * @throws RuntimeException if file cannot be read, or is an invalid manifest
+     */
+    public static OdkManifest read(Path file) {
+        try (InputStream is = Files.newInputStream(file)) {
+            return read(is);
+        }
+        catch (IOException | RuntimeException e) {
+            throw new RuntimeException("Failed to read manifest %s: %s".formatted(file, e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Read the manifest from is.
+     * @param is the input stream to read, not closed
+     * @return the manifest, or null if is has no encrypted key
+     * @throws RuntimeException if is cannot be parsed, or is an invalid manifest
+     */
+    public static OdkManifest read(InputStream is) {
+        String formId = null;
+        String version = null;
+        String key = null;
+        String instanceId = null;
+        String xmlFile = null;
+        String signature = null;
+        List<String> media = new ArrayList<>();
+
+        try {
+            XMLStreamReader reader = XML_FACTORY.createXMLStreamReader(is);
+            try {
+                boolean root = true;
+                boolean inMedia = false;
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        if (root) {
+                            formId = reader.getAttributeValue(null, "id");
+                            version = reader.getAttributeValue(null, "version");
+                            root = false;
+                            continue;
+                        }
+                        switch (reader.getLocalName()) {
+                            case "base64EncryptedKey" -> key = reader.getElementText().strip();
+                            case "instanceID" -> instanceId = reader.getElementText().strip();
+                            case "encryptedXmlFile" -> xmlFile = checkFileName(reader.getElementText().strip());
+                            case "base64EncryptedElementSignature" -> signature = reader.getElementText().strip();
+                            case "media" -> inMedia = true;
+                            case "file" -> {
+                                if (inMedia) {
+                                    media.add(checkFileName(reader.getElementText().strip()));
+                                }
+                            }
+                            default -> { }
+                        }
+                    }
+                    else if (event == XMLStreamConstants.END_ELEMENT && "media".equals(reader.getLocalName())) {
+                        inMedia = false;
+                    }
+                }
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch (XMLStreamException e) {
+            throw new RuntimeException("Failed to parse manifest: %s".formatted(e.getMessage()), e);
+        }
+
+        if (key == null) {
+            return null;
+        }
+        if (instanceId == null || xmlFile == null) {
+            throw new RuntimeException("Manifest lacks instanceID or encryptedXmlFile");
+        }
+        return new OdkManifest(formId, version, key, instanceId, media, xmlFile, signature);
+    }
+
+    // Rejects file names that would resolve outside the submission directory
+    private static String checkFileName(String name) {
+        if (name.isEmpty() || name.contains("/") || name.contains("\\") || name.equals(".") || name.equals("..")) {
+            throw new RuntimeException("Invalid file name in manifest: %s".formatted(name));
+        }
+        return name;
+    }
+}
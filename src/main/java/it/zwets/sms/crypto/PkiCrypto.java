@@ -1,26 +1,47 @@
 package it.zwets.sms.crypto;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
-import java.security.MessageDigest;
+import java.security.Key;
+import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.PublicKey;
-import java.security.SecureRandom;
+import java.security.interfaces.RSAKey;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.XECKey;
 import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.InvalidKeySpecException;
 import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.stream.Stream;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 import javax.crypto.CipherOutputStream;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.OAEPParameterSpec;
 import javax.crypto.spec.PSource;
@@ -38,9 +59,59 @@ import org.slf4j.LoggerFactory;
  * Upon decryption, the prepended key is read and decrypted with the private
  * key, and then used to decrypt the actual ciphertext.
  *
- * The crypto algorithms and parameters are the same as used in OdkCrypto.
- * The difference is only that ODK uses an additional parameter (instance ID),
- * and transports the PKI encrypted key separately from the ciphertext.
+ * The crypto algorithms and parameters of format {@link Version#V1} are the
+ * same as used in OdkCrypto.  The difference is only that ODK uses an
+ * additional parameter (instance ID), and transports the PKI encrypted key
+ * separately from the ciphertext.
+ * 
+ * Format {@link Version#V2} uses AES/GCM with a random nonce instead, which
+ * authenticates the ciphertext and its header.  Decryption recognises both
+ * formats by their header, so V1 senders keep working.  As GCM releases no
+ * plaintext before it has checked the tag, V2 and the other single-message
+ * AES/GCM formats are encrypted and decrypted in one pass over the payload in
+ * memory, which is limited to {@link #MAX_SINGLE_SHOT_SIZE}.
+ * 
+ * A V2 header can optionally carry the {@link #keyId(PublicKey) key id} of
+ * the recipient's public key, so that a receiver holding many keys (such as
+ * the {@link Vault}) can pick the right one without trial decryption.
+ * 
+ * When the public key is an XDH (X25519 or X448) key, the format is
+ * {@link Version#XDH}: instead of an RSA-wrapped key, the header carries an
+ * ephemeral public key, and the AES/GCM key is derived with HKDF from the
+ * XDH shared secret.  This is much cheaper to decrypt than RSA, and adds far
+ * fewer bytes to every message.
+ * 
+ * A {@link SessionEncryptor} spreads the cost of one RSA wrap over many
+ * messages to the same recipient: the first message of a session carries the
+ * wrapped key and a session id ({@link Version#SESSION_KEY}), and later
+ * messages only the session id and a nonce ({@link Version#SESSION}).  A
+ * {@link Decryptor} with a session key cache remembers the unwrapped keys.
+ * 
+ * A {@link MultiEncryptor} encrypts a payload once for several recipients
+ * ({@link Version#MULTI}): the header has a table of the symmetric key
+ * wrapped for each recipient, sorted by key id, which every recipient
+ * searches for its own entry.
+ * 
+ * Format {@link Version#SEGMENTED} is V2 applied to fixed-size segments of
+ * the plaintext, each with its own nonce derived from its index.  Large
+ * files in this format can be decrypted in parallel (see
+ * {@link Decryptor#decrypt(Path, Path, Executor)}), read from any offset
+ * without decrypting what comes before (see {@link Decryptor#open(Path)}),
+ * and streamed in constant memory.  It is the format for large files and for
+ * encrypting channels.
+ * 
+ * The formats that have a flags byte can carry a compressed plaintext: when
+ * the encryptor is asked to compress, the plaintext passes through raw
+ * deflate before the cipher, and the decryptor inflates it when it sees the
+ * flag.  This pays off for repetitive payloads such as message batches and
+ * XML, which cannot be compressed once they are encrypted.  The decryptor
+ * bounds the inflated size (see {@link Decryptor#withMaxInflatedSize(long)}),
+ * so that a small ciphertext cannot expand without limit.
+ * 
+ * All methods are thread-safe.  The byte array methods reuse per-thread
+ * cipher instances (see {@link CipherPool}), so that throughput scales with
+ * the number of threads; the stream methods create a symmetric cipher for
+ * each stream.
  */
 public class PkiCrypto {
     
@@ -59,14 +130,104 @@ public class PkiCrypto {
     private static final String SYMMETRIC_KEYTYPE = "AES";
     private static final int IV_LENGTH = 16;
 
+    // Parameters for the authenticated symmetric encryption in V2
+    static final String AEAD_ALGORITHM = "AES/GCM/NoPadding";
+    static final int NONCE_LENGTH = 12;
+    static final int TAG_LENGTH = 16;
+
+    /**
+     * Maximum plaintext size of the formats other than {@link Version#V1} and
+     * {@link Version#SEGMENTED}, whose payload is a single AES/GCM message
+     * that is encrypted and decrypted in one doFinal; use SEGMENTED beyond it
+     */
+    public static final int MAX_SINGLE_SHOT_SIZE = 64 * 1024 * 1024;
+
     // Magic bits to check that it is ciphertext generated by us.  Could be any
     // value, but these 18 bits give 'ENC' in base64, for ease of recognition.
     private static final int MAGIC = 0b000100001101000010;
     private static final int MAGIC_BITS = 18; // count the MAGIC
 
-    // For generating a new symmetric key for every encryption
-    private static SecureRandom SECURE_RANDOM = new SecureRandom();
-    
+    // Magic bits of the versioned formats, 'ENV' in base64, which are
+    // followed by a version byte and a flags byte
+    private static final int MAGIC_VERSIONED = 0b000100001101010101;
+
+    /** Size of a key id in bytes: the SHA-256 of the public key truncated */
+    public static final int KEY_ID_SIZE = 8;
+
+    /** Default maximum size of an inflated plaintext, see {@link Decryptor#withMaxInflatedSize(long)} */
+    public static final long DEFAULT_MAX_INFLATED_SIZE = 1L << 30;
+
+    /** Size of a session id in bytes */
+    public static final int SESSION_ID_SIZE = 16;
+
+    // Rejects a session start that reuses the id of a live session
+    private static final String SESSION_TAKEN = "Session %s was already started with another key";
+
+    /** Number of leading ciphertext bytes that contain the key id, if any */
+    public static final int KEY_ID_PREFIX = 4 + 2 + KEY_ID_SIZE;
+
+    // Flag bit in the versioned header: a key id follows the flags byte
+    static final int FLAG_KEY_ID = 0x01;
+
+    // Flag bit in the versioned header: the plaintext is deflated
+    static final int FLAG_DEFLATE = 0x02;
+
+    // Magic bits of the XDH format, 'ENX' in base64, which are followed by
+    // a flags byte
+    private static final int MAGIC_XDH = 0b000100001101010111;
+
+    // Magic bits of the multi-recipient format, 'ENM' in base64, which are
+    // followed by a flags byte and the recipient table
+    private static final int MAGIC_MULTI = 0b000100001101001100;
+
+
+    /**
+     * The ciphertext formats.
+     */
+    public enum Version {
+        /** RSA-wrapped key, AES/CFB with an IV derived from the key, without integrity check */
+        V1(0),
+        /** RSA-wrapped key, AES/GCM with a random nonce, authenticating the header */
+        V2(2),
+        /** XDH ephemeral key, AES/GCM with a HKDF-derived key, authenticating the header */
+        XDH(0),
+        /** RSA-wrapped session key and session id, AES/GCM as in V2 */
+        SESSION_KEY(3),
+        /** Session id only, AES/GCM under the session key */
+        SESSION(4),
+        /** Key wrapped for each of several recipients, AES/GCM as in V2 */
+        MULTI(0),
+        /** RSA-wrapped key, AES/GCM over fixed-size segments with derived nonces */
+        SEGMENTED(5);
+
+        // The value of the version byte in the 'ENV' header, 0 if it has none
+        private final int code;
+
+        Version(int code) {
+            this.code = code;
+        }
+
+        // Whether the header has a session id
+        private boolean hasSessionId() {
+            return this == SESSION_KEY || this == SESSION;
+        }
+
+        // Whether the payload is one AES/GCM message, limited to MAX_SINGLE_SHOT_SIZE
+        boolean isSingleShot() {
+            return this != V1 && this != SEGMENTED;
+        }
+
+        // The versioned format for the version byte
+        private static Version ofCode(int code) {
+            for (Version v : values()) {
+                if (v.code != 0 && v.code == code) {
+                    return v;
+                }
+            }
+            throw new RuntimeException("Unsupported ciphertext version: %d".formatted(code));
+        }
+    }
+
     /**
      * Encrypt plaintext with a public key.
      * 
@@ -89,43 +250,258 @@ public class PkiCrypto {
         return new Decryptor(privkey).decrypt(ciphertext);
     }
 
+    /**
+     * Return the key id of a public key.
+     * 
+     * This is the first {@link #KEY_ID_SIZE} bytes of the SHA-256 digest of
+     * the key's encoded (X.509 DER) form.
+     * 
+     * @param pubkey the public key
+     * @return the key id
+     */
+    public static byte[] keyId(final PublicKey pubkey) {
+        return Arrays.copyOf(CipherPool.digest("SHA-256").digest(pubkey.getEncoded()), KEY_ID_SIZE);
+    }
+
+    /**
+     * Return the key id in the header of a ciphertext, if it has one.
+     * 
+     * This only reads the start of the header, and does no decryption.
+     * 
+     * @param ciphertext the ciphertext, or at least its first
+     *        {@link #KEY_ID_PREFIX} bytes
+     * @return the key id of the recipient, or null if the header has none
+     * @throws RuntimeException if the header is invalid
+     */
+    public static byte[] getKeyId(final byte[] ciphertext) {
+        InputStream is = new ByteBufferInputStream(ByteBuffer.wrap(ciphertext));
+        try {
+            int magic = readInt(is) >>> LOBITS;
+            if (magic == MAGIC || magic == MAGIC_MULTI) {
+                return null;
+            }
+            else if (magic != MAGIC_VERSIONED && magic != MAGIC_XDH) {
+                throw new RuntimeException("Invalid ciphertext: MAGIC not found");
+            }
+            byte[] b = readBytes(is, magic == MAGIC_XDH ? 1 : VERSION_SIZE, "version");
+            return (b[b.length - 1] & FLAG_KEY_ID) != 0 ? readBytes(is, KEY_ID_SIZE, "key id") : null;
+        }
+        catch (IOException e) { // cannot happen on a byte buffer
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    // Reads just the header of the ciphertext on is, however long its
+    // recipient table, and returns it in its serialised form
+    static byte[] readHeader(final InputStream is) {
+        return parseHeader(is).toBytes();
+    }
+
+    // Returns the format of a ciphertext, parsing only its header
+    static Version getVersion(final byte[] ciphertext) {
+        return parseHeader(new ByteBufferInputStream(ByteBuffer.wrap(ciphertext))).version();
+    }
+
+    /**
+     * Return the fingerprint of a ciphertext, for replay detection.
+     * 
+     * This is the SHA-256 digest of the header, which holds the freshly
+     * wrapped key (or, in a session, the per-message nonce), and thus
+     * identifies the ciphertext.  This only parses the header.
+     * 
+     * @param ciphertext the ciphertext, or at least its header
+     * @return the 32-byte fingerprint
+     * @throws RuntimeException if the header is invalid
+     * @see ReplayGuard
+     */
+    public static byte[] fingerprint(final byte[] ciphertext) {
+        return fingerprint(parseHeader(new ByteBufferInputStream(ByteBuffer.wrap(ciphertext))));
+    }
+
+    /**
+     * Return the key ids of all recipients of a ciphertext.
+     * 
+     * For the multi-recipient format these are the key ids in the recipient
+     * table, otherwise the key id from the header, if it has one.  This only
+     * parses the header, and does no decryption.
+     * 
+     * @param ciphertext the ciphertext, or at least its header
+     * @return the key ids, empty if the header has none
+     * @throws RuntimeException if the header is invalid
+     */
+    public static List<byte[]> getRecipientKeyIds(final byte[] ciphertext) {
+        byte[] keyId = getKeyId(ciphertext);
+        if (keyId != null) {
+            return List.of(keyId);
+        }
+
+        Header header = parseHeader(new ByteBufferInputStream(ByteBuffer.wrap(ciphertext)));
+        if (header.version() != Version.MULTI) {
+            return List.of();
+        }
+
+        return MultiEncryptor.recipientKeyIds(header.encKey());
+    }
+
+    /**
+     * Create a session key cache for {@link Decryptor#Decryptor(PrivateKey, KeyCache)}.
+     * 
+     * Keys are wiped when they leave the cache, and decryptors copy them
+     * out under the cache lock.
+     * 
+     * @param maxSize the maximum number of sessions, 0 disables caching
+     * @param maxIdle the time after its last use that a session key is dropped
+     * @return the new cache
+     */
+    public static KeyCache<String,byte[]> newSessionCache(int maxSize, Duration maxIdle) {
+        return new KeyCache<>(maxSize, maxIdle, key -> Arrays.fill(key, (byte) 0));
+    }
+
     /**
      * Encryptor for the holder of the private key paired with the given public key.
      */
     public static final class Encryptor {
 
         private final PublicKey pubkey;
+        private final Version version;
+        private final byte[] keyId;
+        private final int encKeySize;
+        private final boolean compress;
 
         /**
-         * Create an encryptor for the specified public key.
+         * Create an encryptor for the specified public key, producing the
+         * {@link Version#V1} format that all receivers understand, or the
+         * {@link Version#XDH} format for an XDH key.
          * @param pubkey
          */
         public Encryptor(PublicKey pubkey) {
+            this(pubkey, XdhKem.isXdh(pubkey) ? Version.XDH : Version.V1);
+        }
+
+        /**
+         * Create an encryptor for the specified public key and format.
+         * @param pubkey the public key of the recipient
+         * @param version the ciphertext format to produce
+         */
+        public Encryptor(PublicKey pubkey, Version version) {
+            this(pubkey, version, false);
+        }
+
+        /**
+         * Create an encryptor for the specified public key and format, which
+         * optionally puts the key id of pubkey in the header.
+         * @param pubkey the public key of the recipient
+         * @param version the ciphertext format to produce
+         * @param withKeyId whether to include the key id
+         * @throws RuntimeException if a key id is requested for V1, or the
+         *         format does not match the key type
+         */
+        public Encryptor(PublicKey pubkey, Version version, boolean withKeyId) {
+            this(pubkey, version, withKeyId, false);
+        }
+
+        /**
+         * Create an encryptor for the specified public key and format, which
+         * optionally puts the key id of pubkey in the header, and optionally
+         * deflates the plaintext before encrypting it.
+         * @param pubkey the public key of the recipient
+         * @param version the ciphertext format to produce
+         * @param withKeyId whether to include the key id
+         * @param compress whether to deflate the plaintext
+         * @throws RuntimeException if a key id or compression is requested
+         *         for V1, or the format does not match the key type
+         */
+        public Encryptor(PublicKey pubkey, Version version, boolean withKeyId, boolean compress) {
+            if (withKeyId && version == Version.V1) {
+                throw new RuntimeException("Key id is not supported in the V1 format");
+            }
+            if (compress && (version == Version.V1 || version == Version.SEGMENTED)) {
+                throw new RuntimeException("Compression is not supported in the %s format".formatted(version));
+            }
+            if (XdhKem.isXdh(pubkey) != (version == Version.XDH)) {
+                throw new RuntimeException("Format %s does not match key type %s".formatted(version, pubkey.getAlgorithm()));
+            }
+            if (version == Version.SESSION_KEY || version == Version.SESSION) {
+                throw new RuntimeException("Use a SessionEncryptor for the session formats");
+            }
+            if (version == Version.MULTI) {
+                throw new RuntimeException("Use a MultiEncryptor for the multi-recipient format");
+            }
             this.pubkey = pubkey;
+            this.version = version;
+            this.keyId = withKeyId ? keyId(pubkey) : null;
+            this.encKeySize = pkiOutputSize(pubkey);
+            this.compress = compress;
+        }
+
+        /**
+         * Return the exact size of the ciphertext for a plaintext of the given size.
+         * 
+         * When compressing, this is the size for incompressible plaintext,
+         * and the actual ciphertext is usually smaller.
+         * 
+         * @param plaintextLength the number of plaintext bytes
+         * @return the number of ciphertext bytes that encrypt will produce,
+         *         or the maximum when compressing
+         */
+        public int outputSize(int plaintextLength) {
+            return cipherSize(compress ? Compression.maxDeflatedSize(plaintextLength) : plaintextLength);
+        }
+
+        // Returns the size of the ciphertext for length bytes into the cipher
+        private int cipherSize(int length) {
+            return headerSize(version, keyId != null, encKeySize) + symmetricOutputSize(version, length);
         }
 
         /**
          * Encrypt content from is to ciphertext on os.
          * 
+         * The single-shot formats read all of is into memory, up to
+         * {@link #MAX_SINGLE_SHOT_SIZE} bytes, and encrypt it in one pass.
+         * 
          * @param is an open {@link OutputStream}
          * @param os an open {@link InputStream}
-         * @throws RuntimeException for any underlying exception
+         * @throws RuntimeException for any underlying exception, or if the
+         *         input is too large for the format
          */
         public void encrypt(InputStream is, OutputStream os) {
             LOG.debug("encrypting input stream");
 
-            // Generate a new random key of KEY_SIZE
-            byte[] key = new byte[KEY_SIZE];
-            SECURE_RANDOM.nextBytes(key);
+            if (version.isSingleShot()) {
+                try (is; os) {
+                    byte[] plaintext = is.readNBytes(MAX_SINGLE_SHOT_SIZE + 1);
+                    checkSingleShot(version, plaintext.length);
+                    os.write(encrypt(plaintext));
+                    return;
+                }
+                catch (IOException e) {
+                    throw new RuntimeException("Failed to encrypt stream: %s".formatted(e.getMessage()), e);
+                }
+            }
 
-            // Encrypt the random key with the public key
-            byte[] encKey = pkiEncrypt(pubkey, key);
+            // Generate a new key and encrypt it for the public key
+            Envelope envelope = newEnvelope();
+            Header header = envelope.header();
+            byte[] key = envelope.key();
 
             // Write the MAGIC and encrypted key
-            writeHeader(os, encKey);
+            writeHeader(os, header);
 
-            // Encrypt the payload onto the output stream
-            try (CipherOutputStream cos = new CipherOutputStream(os, getSymmetricCipher(Cipher.ENCRYPT_MODE, key))) {
+            if (version == Version.SEGMENTED) {
+                try {
+                    segments(Cipher.ENCRYPT_MODE, key, header).transform(is, os);
+                    is.close();
+                    os.close();
+                    return;
+                }
+                catch (IOException e) {
+                    throw new RuntimeException("Failed to encrypt stream: %s".formatted(e.getMessage()), e);
+                }
+            }
+
+            // Encrypt the V1 payload onto the output stream
+            Cipher cipher = initSymmetricCipher(CipherPool.newCipher(header.algorithm()), Cipher.ENCRYPT_MODE, key, header);
+            try (OutputStream cos = new CipherOutputStream(os, cipher)) {
                 LOG.debug("write the ciphertext to the output stream");
                 is.transferTo(cos);
                 is.close();
@@ -136,6 +512,44 @@ public class PkiCrypto {
             }
         }
         
+        /**
+         * Return a channel that encrypts the bytes written to it onto out.
+         * 
+         * The header is written to out before this returns.  The plaintext
+         * goes through the cipher as it is written, via reusable direct
+         * buffers, so the channel can be the target of
+         * <code>FileChannel.transferTo</code>.  Closing the channel writes
+         * the final block (or segment) and closes out; the ciphertext is
+         * incomplete until then.  Only the {@link Version#V1} and
+         * {@link Version#SEGMENTED} formats can be written as they go.
+         * 
+         * @param out the channel to write the ciphertext to
+         * @return the channel to write the plaintext to, which must be closed
+         * @throws RuntimeException if the header cannot be written, or the
+         *         format is single-shot
+         */
+        public WritableByteChannel newChannel(final WritableByteChannel out) {
+            LOG.debug("creating encrypting channel");
+            if (version.isSingleShot()) {
+                throw new RuntimeException("Channel encryption is not supported in the %s format, use SEGMENTED".formatted(version));
+            }
+
+            Envelope envelope = newEnvelope();
+            Header header = envelope.header();
+            byte[] key = envelope.key();
+
+            try {
+                FileCipher.writeFully(out, ByteBuffer.wrap(header.toBytes()));
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Failed to write header to channel: %s".formatted(e.getMessage()), e);
+            }
+
+            return version == Version.SEGMENTED
+                    ? segments(Cipher.ENCRYPT_MODE, key, header).channel(out)
+                    : CipherChannels.writing(initSymmetricCipher(CipherPool.newCipher(header.algorithm()), Cipher.ENCRYPT_MODE, key, header), out);
+        }
+
         /**]
          * Encrypt plaintext to ciphertext
          * 
@@ -144,10 +558,231 @@ public class PkiCrypto {
          */
         public byte[] encrypt(final byte[] plaintext) {
             LOG.debug("encrypting plaintext byte array");
-            ByteArrayInputStream bis = new ByteArrayInputStream(plaintext);
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            encrypt(bis, bos);
-            return bos.toByteArray();
+            byte[] ciphertext = new byte[outputSize(plaintext.length)];
+            int length = encrypt(ByteBuffer.wrap(plaintext), ByteBuffer.wrap(ciphertext));
+            return length == ciphertext.length ? ciphertext : Arrays.copyOf(ciphertext, length);
+        }
+
+        /**
+         * Encrypt the remaining bytes of src into dst in a single pass.
+         * 
+         * Both buffers may be direct.  On return src has been consumed, and
+         * the position of dst has advanced past the ciphertext.
+         * 
+         * @param src the plaintext
+         * @param dst the buffer to write the ciphertext to, which must have
+         *        at least {@link #outputSize(int)} bytes remaining
+         * @return the number of bytes written to dst
+         * @throws RuntimeException if dst is too small, src is too large for
+         *         the format, or for any underlying exception
+         */
+        public int encrypt(final ByteBuffer src, final ByteBuffer dst) {
+            LOG.debug("encrypting byte buffer");
+
+            if (version.isSingleShot()) {
+                checkSingleShot(version, src.remaining());
+            }
+
+            int size = outputSize(src.remaining());
+            if (dst.remaining() < size) {
+                throw new RuntimeException("Output buffer too small: %d bytes needed, %d remaining".formatted(size, dst.remaining()));
+            }
+
+            ByteBuffer input = src;
+            if (compress) {
+                input = ByteBuffer.wrap(Compression.deflate(src));
+                size = cipherSize(input.remaining());
+            }
+
+            Envelope envelope = newEnvelope();
+            Header header = envelope.header();
+            byte[] key = envelope.key();
+            dst.put(header.toBytes());
+
+            if (version == Version.SEGMENTED) {
+                segments(Cipher.ENCRYPT_MODE, key, header).transform(input, dst);
+                return size;
+            }
+
+            try {
+                initSymmetricCipher(CipherPool.cipher(header.algorithm()), Cipher.ENCRYPT_MODE, key, header).doFinal(input, dst);
+                return size;
+            } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+                throw new RuntimeException("Failed to encrypt plaintext: %s".formatted(e.getMessage()), e);
+            }
+        }
+
+        /**
+         * Encrypt file in to file out, memory-mapping the input.
+         * 
+         * This is the fast path for large payloads: the input is mapped in
+         * large windows and passed through the cipher in large chunks, and
+         * the output is written through a file channel.
+         * 
+         * The single-shot formats read the whole file into memory instead,
+         * and are limited to files of {@link #MAX_SINGLE_SHOT_SIZE} bytes;
+         * use {@link Version#SEGMENTED} for large files.
+         * 
+         * @param in the plaintext file
+         * @param out the ciphertext file, created or replaced
+         * @throws RuntimeException for any underlying exception, or if the
+         *         file is too large for the format
+         */
+        public void encrypt(final Path in, final Path out) {
+            LOG.debug("encrypting file {} to {}", in, out);
+
+            if (version.isSingleShot()) {
+                try {
+                    checkSingleShot(version, Files.size(in));
+                    byte[] ciphertext = encrypt(Files.readAllBytes(in));
+                    try (FileCipher.Output output = FileCipher.openOutput(out)) {
+                        FileCipher.writeFully(output.channel(), ByteBuffer.wrap(ciphertext));
+                        output.commit();
+                    }
+                    return;
+                }
+                catch (IOException e) {
+                    throw new RuntimeException("Failed to encrypt file %s: %s".formatted(in, e.getMessage()), e);
+                }
+            }
+
+            Envelope envelope = newEnvelope();
+            Header header = envelope.header();
+            byte[] key = envelope.key();
+
+            try (FileChannel is = FileCipher.openInput(in); FileCipher.Output output = FileCipher.openOutput(out)) {
+                FileChannel os = output.channel();
+                byte[] headerBytes = header.toBytes();
+                FileCipher.writeFully(os, ByteBuffer.wrap(headerBytes));
+                if (version == Version.SEGMENTED) {
+                    segments(Cipher.ENCRYPT_MODE, key, header).transform(is, 0, os, headerBytes.length, Runnable::run);
+                }
+                else {
+                    FileCipher.transform(initSymmetricCipher(CipherPool.cipher(header.algorithm()), Cipher.ENCRYPT_MODE, key, header), is, 0, os);
+                }
+                output.commit();
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Failed to encrypt file %s: %s".formatted(in, e.getMessage()), e);
+            }
+        }
+
+        /**
+         * Encrypt plaintext asynchronously on the {@link CryptoExecutors#cpu() CPU pool}.
+         * @param plaintext the payload to encrypt
+         * @return the future ciphertext
+         * @see #encryptAsync(byte[], Executor)
+         */
+        public CompletableFuture<byte[]> encryptAsync(final byte[] plaintext) {
+            return encryptAsync(plaintext, CryptoExecutors.cpu());
+        }
+
+        /**
+         * Encrypt plaintext asynchronously on executor.
+         * 
+         * Cancelling the future before the task starts skips the encryption.
+         * Wrap the executor with {@link CryptoExecutors#bounded(Executor, int)}
+         * to limit the number of payloads in flight; a task over the limit
+         * fails the future with a RejectedExecutionException.
+         * 
+         * @param plaintext the payload to encrypt
+         * @param executor runs the encryption
+         * @return the future ciphertext
+         */
+        public CompletableFuture<byte[]> encryptAsync(final byte[] plaintext, final Executor executor) {
+            return CryptoExecutors.supply(() -> encrypt(plaintext), executor);
+        }
+
+        /**
+         * Encrypt file in to file out asynchronously on a virtual thread.
+         * @param in the plaintext file
+         * @param out the ciphertext file, created or replaced
+         * @return the future that completes when out is written
+         * @see #encryptAsync(Path, Path, Executor)
+         */
+        public CompletableFuture<Void> encryptAsync(final Path in, final Path out) {
+            return encryptAsync(in, out, CryptoExecutors.io());
+        }
+
+        /**
+         * Encrypt file in to file out asynchronously on executor.
+         * 
+         * Cancelling the future interrupts the encryption; as when it fails,
+         * out is then left untouched.
+         * 
+         * @param in the plaintext file
+         * @param out the ciphertext file, created or replaced
+         * @param executor runs the encryption
+         * @return the future that completes when out is written
+         */
+        public CompletableFuture<Void> encryptAsync(final Path in, final Path out, final Executor executor) {
+            return CryptoExecutors.run(() -> encrypt(in, out), executor);
+        }
+
+        /**
+         * Encrypt a batch of plaintexts in parallel on the {@link CryptoExecutors#cpu() CPU pool}.
+         * 
+         * @param plaintexts the payloads to encrypt
+         * @return the ciphertexts or failures, in the order of plaintexts
+         */
+        public List<Batch.Result> encryptAll(final List<byte[]> plaintexts) {
+            return encryptAll(plaintexts, CryptoExecutors.cpu());
+        }
+
+        /**
+         * Encrypt a batch of plaintexts in parallel on executor.
+         * 
+         * Each plaintext gets its own symmetric key and RSA wrap, exactly as
+         * with {@link #encrypt(byte[])}.  The cipher instances are reused per
+         * worker thread.
+         * 
+         * @param plaintexts the payloads to encrypt
+         * @param executor runs the encryptions
+         * @return the ciphertexts or failures, in the order of plaintexts
+         */
+        public List<Batch.Result> encryptAll(final List<byte[]> plaintexts, final Executor executor) {
+            LOG.debug("encrypting batch of {} plaintexts", plaintexts.size());
+            return Batch.apply(plaintexts, this::encrypt, executor);
+        }
+
+        /**
+         * Encrypt plaintexts in parallel on executor as they are consumed.
+         * 
+         * @param plaintexts the payloads to encrypt
+         * @param executor runs the encryptions
+         * @return iterator over the ciphertexts or failures, in input order
+         */
+        public Iterator<Batch.Result> encryptAll(final Iterator<byte[]> plaintexts, final Executor executor) {
+            return Batch.apply(plaintexts, this::encrypt, executor);
+        }
+
+        /**
+         * Encrypt plaintexts in parallel on executor as they are consumed.
+         * 
+         * @param plaintexts the payloads to encrypt
+         * @param executor runs the encryptions
+         * @return sequential stream of the ciphertexts or failures, in input order
+         */
+        public Stream<Batch.Result> encryptAll(final Stream<byte[]> plaintexts, final Executor executor) {
+            return Batch.apply(plaintexts, this::encrypt, executor);
+        }
+
+        // Creates a new symmetric key and the header that conveys it to the recipient
+        private Envelope newEnvelope() {
+            int flags = (keyId != null ? FLAG_KEY_ID : 0) | (compress ? FLAG_DEFLATE : 0);
+
+            if (version == Version.XDH) {
+                XdhKem.Encapsulation kem = XdhKem.encapsulate(pubkey);
+                return new Envelope(new Header(version, flags, keyId, null, kem.ephemeralKey(), new byte[NONCE_LENGTH]), kem.key());
+            }
+
+            byte[] key = newSymmetricKey();
+            byte[] nonce = null;
+            if (version != Version.V1) {
+                nonce = new byte[NONCE_LENGTH];
+                CipherPool.random().nextBytes(nonce);
+            }
+            return new Envelope(new Header(version, flags, keyId, null, pkiEncrypt(pubkey, key), nonce), key);
         }
     };
 
@@ -157,17 +792,112 @@ public class PkiCrypto {
     public static final class Decryptor {
 
         private final PrivateKey privateKey;
+        private final KeyCache<String,byte[]> sessionKeys;
+        private final ReplayGuard replayGuard;
+        private final long maxInflatedSize;
+        private volatile byte[] keyId;
 
         /**
          * Create decryptor for the given privkey.
+         * 
+         * This decryptor can decrypt the first message of a session, but not
+         * the later ones, as it has no session key cache.
+         * 
          * @param privkey the private key of the reciptient
          */
         public Decryptor(final PrivateKey privkey) {
+            this(privkey, null);
+        }
+
+        /**
+         * Create decryptor for the given privkey, which keeps the keys of
+         * the sessions it sees in sessionKeys.
+         * 
+         * A session key is cached only once the first message of its
+         * session has authenticated, under the session id and the key id of
+         * privkey, so the cache can be shared by many decryptors (and keys).
+         * Its size and idle time bound the number of sessions that are
+         * remembered, and for how long.  It should come from
+         * {@link PkiCrypto#newSessionCache(int, Duration)}, which wipes the
+         * keys it drops.
+         * 
+         * @param privkey the private key of the reciptient
+         * @param sessionKeys the cache of session keys, or null
+         */
+        public Decryptor(final PrivateKey privkey, final KeyCache<String,byte[]> sessionKeys) {
+            this(privkey, sessionKeys, null);
+        }
+
+        /**
+         * Create decryptor for the given privkey, which rejects ciphertexts
+         * that replayGuard has seen.
+         * 
+         * The fingerprint of every ciphertext is claimed in the guard
+         * before the private key operation, so that a copy that is seen or
+         * being decrypted is rejected before any output is written.  It is
+         * added to the guard once the whole ciphertext has authenticated,
+         * which for the segmented channel is when it reaches the end, and
+         * the claim is dropped if decryption fails.  The guard can be
+         * shared by many decryptors.
+         * 
+         * As the body of a {@link Version#V1} ciphertext is not
+         * authenticated, a decryptor with a guard rejects that format, and
+         * it cannot {@link #open(Path) open} files for random access.
+         * 
+         * @param privkey the private key of the reciptient
+         * @param sessionKeys the cache of session keys, or null
+         * @param replayGuard the filter of seen ciphertexts, or null
+         */
+        public Decryptor(final PrivateKey privkey, final KeyCache<String,byte[]> sessionKeys, final ReplayGuard replayGuard) {
+            this(privkey, sessionKeys, replayGuard, DEFAULT_MAX_INFLATED_SIZE);
+            pkiOutputSize(privkey); // fail early on unsupported keys
+        }
+
+        private Decryptor(final PrivateKey privkey, final KeyCache<String,byte[]> sessionKeys, final ReplayGuard replayGuard, final long maxInflatedSize) {
             this.privateKey = privkey;
+            this.sessionKeys = sessionKeys;
+            this.replayGuard = replayGuard;
+            this.maxInflatedSize = maxInflatedSize;
+        }
+
+        /**
+         * Return a decryptor like this one, which fails on compressed
+         * plaintexts that inflate to more than maxInflatedSize bytes.
+         * 
+         * The default is {@value PkiCrypto#DEFAULT_MAX_INFLATED_SIZE}.  The
+         * limit applies to the stream, channel, file and byte array methods;
+         * the ByteBuffer method is limited by the room left in its output.
+         * 
+         * @param maxInflatedSize the maximum size of an inflated plaintext
+         * @return the new decryptor
+         */
+        public Decryptor withMaxInflatedSize(final long maxInflatedSize) {
+            if (maxInflatedSize < 0) {
+                throw new IllegalArgumentException("Maximum inflated size must not be negative: %d".formatted(maxInflatedSize));
+            }
+            return new Decryptor(privateKey, sessionKeys, replayGuard, maxInflatedSize);
+        }
+
+        /**
+         * Return the maximum size of the plaintext for a ciphertext of the given size.
+         * 
+         * The actual plaintext is shorter by the rest of the header, and by
+         * the padding or authentication tag.  This does not hold for a
+         * compressed plaintext, which can be much larger than its ciphertext.
+         * 
+         * @param ciphertextLength the number of ciphertext bytes
+         * @return the upper bound on the number of plaintext bytes
+         */
+        public int outputSize(int ciphertextLength) {
+            return Math.max(0, ciphertextLength - HEADER_SIZE);
         }
 
         /**
          * Decrypt ciphertext from is to plaintext on os.
+         * 
+         * Note that a single-shot ciphertext, such as {@link Version#V2}, is
+         * read into memory and its tag checked before any plaintext is
+         * written, and may hold at most {@link #MAX_SINGLE_SHOT_SIZE} bytes.
          *
          * @param is an open {@link InputStream}
          * @param os an open {@link OutputStream}
@@ -176,47 +906,564 @@ public class PkiCrypto {
             LOG.debug("decrypting input stream");
             
             // Read the MAGIC header and decrypt the symmetric key
-            byte[] encKey = parseHeader(is);
-            byte[] key = pkiDecrypt(privateKey, encKey);
+            Header header = parseHeader(is);
+            byte[] key = unwrapKey(header);
 
-            try (CipherInputStream cis = new CipherInputStream(is, getSymmetricCipher(Cipher.DECRYPT_MODE, key))) {
-                LOG.debug("decrypting the payload");
-                cis.transferTo(os);
-                cis.close();
+            if (header.version() == Version.SEGMENTED) {
+                try (is) {
+                    segments(Cipher.DECRYPT_MODE, key, header).transform(is, os);
+                    accept(header, key);
+                    return;
+                }
+                catch (IOException e) {
+                    throw new RuntimeException("Failed to decrypt the ciphertext: %s".formatted(e.getMessage()), e);
+                }
+                finally {
+                    release(header);
+                }
             }
-            catch (IOException e) {
-                throw new RuntimeException("Failed to decrypt the ciphertext: %s".formatted(e.getMessage()), e);
+
+            try {
+                if (header.version().isSingleShot()) {
+                    try (is) {
+                        byte[] plaintext = openSingleShot(header, key, is);
+                        if (header.compressed()) {
+                            try (OutputStream inflater = Compression.inflating(os, maxInflatedSize)) {
+                                inflater.write(plaintext);
+                            }
+                        }
+                        else {
+                            os.write(plaintext);
+                        }
+                    }
+                    catch (IOException e) {
+                        throw new RuntimeException("Failed to decrypt the ciphertext: %s".formatted(e.getMessage()), e);
+                    }
+                    accept(header, key);
+                    return;
+                }
+
+                Cipher cipher = initSymmetricCipher(CipherPool.newCipher(header.algorithm()), Cipher.DECRYPT_MODE, key, header);
+                try (CipherInputStream cis = new CipherInputStream(is, cipher)) {
+                    LOG.debug("decrypting the V1 payload");
+                    cis.transferTo(os);
+                }
+                catch (IOException e) {
+                    throw new RuntimeException("Failed to decrypt the ciphertext: %s".formatted(e.getMessage()), e);
+                }
+                accept(header, key);
+            }
+            finally {
+                release(header);
             }
         }
         
         /**
-         * Decrypt ciphertext to plaintext..
+         * Return a channel that reads the plaintext of the ciphertext on in.
          * 
-         * @param ciphertext the payload to decrypt
-         * @return plaintext
+         * The header is read (blocking) and the symmetric key unwrapped
+         * before this returns.  The ciphertext then goes through the cipher
+         * as it is read, via reusable direct buffers, so the channel can be
+         * the source of <code>FileChannel.transferFrom</code>.  Note that
+         * the single-shot formats are read and decrypted in memory before
+         * this returns, up to {@link #MAX_SINGLE_SHOT_SIZE} bytes, and the
+         * channel serves their plaintext once it has authenticated;
+         * {@link Version#SEGMENTED} ciphertexts are decrypted a segment at a
+         * time.  A compressed plaintext is inflated through a stream.
+         * 
+         * @param in the channel to read the ciphertext from, closed with the channel
+         * @return the channel to read the plaintext from
+         * @throws RuntimeException if the header is invalid, the key cannot be unwrapped,
+         *         or a single-shot ciphertext fails to decrypt
          */
-        public byte[] decrypt(final byte[] ciphertext) {
-            LOG.debug("decrypting ciphertext from byte array");
-            ByteArrayInputStream bis = new ByteArrayInputStream(ciphertext);
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            decrypt(bis, bos);
-            return bos.toByteArray();
-        }
-    };
+        public ReadableByteChannel newChannel(final ReadableByteChannel in) {
+            LOG.debug("creating decrypting channel");
+            Header header = parseHeader(Channels.newInputStream(in));
+            byte[] key = unwrapKey(header);
 
-    /**
-     * Helper to encrypt (a limited amount of) plaintext with a public key.
+            ReadableByteChannel channel;
+            try {
+                if (header.version() == Version.SEGMENTED) {
+                    channel = segments(Cipher.DECRYPT_MODE, key, header).channel(in);
+                    channel = replayGuard == null ? channel : new RecordingChannel(header, channel);
+                }
+                else {
+                    channel = header.version() == Version.V1
+                            ? CipherChannels.reading(initSymmetricCipher(CipherPool.newCipher(header.algorithm()), Cipher.DECRYPT_MODE, key, header), in)
+                            : singleShotChannel(header, key, in);
+                    accept(header, key);
+                    release(header);
+                }
+            }
+            catch (RuntimeException e) {
+                release(header);
+                throw e;
+            }
+            return header.compressed() ? Channels.newChannel(Compression.inflating(Channels.newInputStream(channel), maxInflatedSize)) : channel;
+        }
+
+        // A segmented plaintext channel that records its ciphertext in the
+        // replay guard once the final segment has authenticated, and drops
+        // the claim on close if it never got that far
+        private final class RecordingChannel implements ReadableByteChannel {
+
+            private final Header header;
+            private final ReadableByteChannel channel;
+
+            RecordingChannel(Header header, ReadableByteChannel channel) {
+                this.header = header;
+                this.channel = channel;
+            }
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                int n = channel.read(dst);
+                if (n < 0) {
+                    recordSeen(header);
+                }
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    channel.close();
+                }
+                finally {
+                    release(header);
+                }
+            }
+        }
+
+        // Decrypts the single-shot ciphertext on in and returns a channel on the plaintext
+        private static ReadableByteChannel singleShotChannel(Header header, byte[] key, ReadableByteChannel in) {
+            try (in) {
+                return Channels.newChannel(new ByteArrayInputStream(openSingleShot(header, key, Channels.newInputStream(in))));
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Failed to decrypt the ciphertext: %s".formatted(e.getMessage()), e);
+            }
+        }
+
+        /**
+         * Decrypt ciphertext to plaintext..
+         * 
+         * @param ciphertext the payload to decrypt
+         * @return plaintext
+         */
+        public byte[] decrypt(final byte[] ciphertext) {
+            LOG.debug("decrypting ciphertext from byte array");
+            ByteBuffer src = ByteBuffer.wrap(ciphertext);
+            Header header = parseHeader(new ByteBufferInputStream(src));
+            byte[] plaintext = new byte[src.remaining()];
+            int length = decipher(header, src, ByteBuffer.wrap(plaintext));
+            if (header.compressed()) {
+                return Compression.inflate(plaintext, 0, length, maxInflatedSize);
+            }
+            return length == plaintext.length ? plaintext : Arrays.copyOf(plaintext, length);
+        }
+
+        /**
+         * Decrypt the remaining bytes of src into dst in a single pass.
+         * 
+         * Both buffers may be direct.  On return src has been consumed, and
+         * the position of dst has advanced past the plaintext.
+         * 
+         * @param src the ciphertext
+         * @param dst the buffer to write the plaintext to, which must have
+         *        at least {@link #outputSize(int)} bytes remaining, or room
+         *        for the whole plaintext if it was compressed
+         * @return the number of bytes written to dst
+         * @throws RuntimeException if dst is too small or for any underlying exception
+         */
+        public int decrypt(final ByteBuffer src, final ByteBuffer dst) {
+            LOG.debug("decrypting byte buffer");
+            Header header = parseHeader(new ByteBufferInputStream(src));
+            if (!header.compressed()) {
+                return decipher(header, src, dst);
+            }
+
+            // Inflated straight into dst, so that its room bounds the work done
+            byte[] deflated = new byte[src.remaining()];
+            return Compression.inflate(deflated, 0, decipher(header, src, ByteBuffer.wrap(deflated)), dst);
+        }
+
+        // Decrypts the ciphertext after the parsed header from src into dst
+        private int decipher(final Header header, final ByteBuffer src, final ByteBuffer dst) {
+            byte[] key = unwrapKey(header);
+
+            try {
+                int length = header.version() == Version.SEGMENTED
+                        ? segments(Cipher.DECRYPT_MODE, key, header).transform(src, dst)
+                        : initSymmetricCipher(CipherPool.cipher(header.algorithm()), Cipher.DECRYPT_MODE, key, header).doFinal(src, dst);
+                accept(header, key);
+                return length;
+            } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+                throw new RuntimeException("Failed to decrypt the ciphertext: %s".formatted(e.getMessage()), e);
+            }
+            finally {
+                release(header);
+            }
+        }
+
+        /**
+         * Decrypt file in to file out, memory-mapping the input.
+         * 
+         * As with the stream method, a single-shot ciphertext such as
+         * {@link Version#V2} is read into memory and authenticated before
+         * its plaintext is written out.
+         * 
+         * @param in the ciphertext file
+         * @param out the plaintext file, created or replaced
+         * @throws RuntimeException for any underlying exception
+         * @see Encryptor#encrypt(Path, Path)
+         */
+        public void decrypt(final Path in, final Path out) {
+            decrypt(in, out, Runnable::run);
+        }
+
+        /**
+         * Decrypt file in to file out, decrypting the segments of a
+         * {@link Version#SEGMENTED} ciphertext in parallel on executor.
+         * 
+         * The segments are decrypted in tasks of about a megabyte each, which
+         * write straight to their place in the output file.  Ciphertext in
+         * the other formats is decrypted sequentially on the calling thread.
+         * The output goes to a temporary file that replaces out only when
+         * decryption succeeds, so out may be the same file as in.
+         * 
+         * @param in the ciphertext file
+         * @param out the plaintext file, created or replaced
+         * @param executor runs the segment tasks
+         * @throws RuntimeException for any underlying exception
+         */
+        public void decrypt(final Path in, final Path out, final Executor executor) {
+            LOG.debug("decrypting file {} to {}", in, out);
+
+            try (FileChannel is = FileCipher.openInput(in); FileCipher.Output output = FileCipher.openOutput(out)) {
+                FileChannel os = output.channel();
+                Header header = parseHeader(Channels.newInputStream(is));
+                byte[] key = unwrapKey(header);
+                try {
+                    if (header.version() == Version.SEGMENTED) {
+                        segments(Cipher.DECRYPT_MODE, key, header).transform(is, is.position(), os, 0, executor);
+                    }
+                    else if (header.version().isSingleShot()) {
+                        byte[] plaintext = openSingleShot(header, key, Channels.newInputStream(is));
+                        if (header.compressed()) {
+                            try (OutputStream inflater = Compression.inflating(output.stream(), maxInflatedSize)) {
+                                inflater.write(plaintext);
+                            }
+                        }
+                        else {
+                            FileCipher.writeFully(os, ByteBuffer.wrap(plaintext));
+                        }
+                    }
+                    else {
+                        FileCipher.transform(initSymmetricCipher(CipherPool.cipher(header.algorithm()), Cipher.DECRYPT_MODE, key, header), is, is.position(), os);
+                    }
+                    output.commit();
+                    accept(header, key);
+                }
+                finally {
+                    release(header);
+                }
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Failed to decrypt file %s: %s".formatted(in, e.getMessage()), e);
+            }
+        }
+
+        /**
+         * Open a {@link Version#SEGMENTED} ciphertext file for random access.
+         * 
+         * This unwraps the key once, after which any range of the plaintext
+         * can be read by decrypting only the segments that hold it.
+         * 
+         * @param in the ciphertext file
+         * @return the reader, which must be closed
+         * @throws RuntimeException if the file is not in the segmented format,
+         *         the decryptor has a replay guard, or for any underlying exception
+         */
+        public SegmentReader open(final Path in) {
+            LOG.debug("opening segmented file {}", in);
+
+            try {
+                FileChannel channel = FileCipher.openInput(in);
+                try {
+                    Header header = parseHeader(Channels.newInputStream(channel));
+                    if (header.version() != Version.SEGMENTED) {
+                        throw new RuntimeException("Not a segmented ciphertext: %s".formatted(in));
+                    }
+                    if (replayGuard != null) {
+                        throw new RuntimeException("Random access reader cannot be replay-guarded, as it never authenticates the whole ciphertext");
+                    }
+                    Segments segments = segments(Cipher.DECRYPT_MODE, unwrapKey(header), header);
+                    return new SegmentReader(channel, channel.position(), segments);
+                }
+                catch (IOException | RuntimeException e) {
+                    channel.close();
+                    throw e;
+                }
+            }
+            catch (IOException e) {
+                throw new RuntimeException("Failed to open file %s: %s".formatted(in, e.getMessage()), e);
+            }
+        }
+
+        /**
+         * Decrypt ciphertext asynchronously on the {@link CryptoExecutors#cpu() CPU pool}.
+         * @param ciphertext the payload to decrypt
+         * @return the future plaintext
+         * @see #decryptAsync(byte[], Executor)
+         */
+        public CompletableFuture<byte[]> decryptAsync(final byte[] ciphertext) {
+            return decryptAsync(ciphertext, CryptoExecutors.cpu());
+        }
+
+        /**
+         * Decrypt ciphertext asynchronously on executor.
+         * 
+         * Cancelling the future before the task starts skips the private key
+         * operation.  Wrap the executor with
+         * {@link CryptoExecutors#bounded(Executor, int)} to limit the number
+         * of payloads in flight; a task over the limit fails the future with
+         * a RejectedExecutionException.
+         * 
+         * @param ciphertext the payload to decrypt
+         * @param executor runs the decryption
+         * @return the future plaintext
+         */
+        public CompletableFuture<byte[]> decryptAsync(final byte[] ciphertext, final Executor executor) {
+            return CryptoExecutors.supply(() -> decrypt(ciphertext), executor);
+        }
+
+        /**
+         * Decrypt file in to file out asynchronously on a virtual thread.
+         * @param in the ciphertext file
+         * @param out the plaintext file, created or replaced
+         * @return the future that completes when out is written
+         * @see #decryptAsync(Path, Path, Executor)
+         */
+        public CompletableFuture<Void> decryptAsync(final Path in, final Path out) {
+            return decryptAsync(in, out, CryptoExecutors.io());
+        }
+
+        /**
+         * Decrypt file in to file out asynchronously on executor.
+         * 
+         * Cancelling the future interrupts the decryption; as when it fails,
+         * out is then left untouched.
+         * 
+         * @param in the ciphertext file
+         * @param out the plaintext file, created or replaced
+         * @param executor runs the decryption
+         * @return the future that completes when out is written
+         */
+        public CompletableFuture<Void> decryptAsync(final Path in, final Path out, final Executor executor) {
+            return CryptoExecutors.run(() -> decrypt(in, out), executor);
+        }
+
+        /**
+         * Decrypt a batch of ciphertexts in parallel on the {@link CryptoExecutors#cpu() CPU pool}.
+         * 
+         * @param ciphertexts the payloads to decrypt
+         * @return the plaintexts or failures, in the order of ciphertexts
+         */
+        public List<Batch.Result> decryptAll(final List<byte[]> ciphertexts) {
+            return decryptAll(ciphertexts, CryptoExecutors.cpu());
+        }
+
+        /**
+         * Decrypt a batch of ciphertexts in parallel on executor.
+         * 
+         * A failure to decrypt one ciphertext is reported in its result and
+         * does not abort the batch.
+         * 
+         * @param ciphertexts the payloads to decrypt
+         * @param executor runs the decryptions, e.g. a fork-join pool or virtual threads
+         * @return the plaintexts or failures, in the order of ciphertexts
+         */
+        public List<Batch.Result> decryptAll(final List<byte[]> ciphertexts, final Executor executor) {
+            LOG.debug("decrypting batch of {} ciphertexts", ciphertexts.size());
+            return Batch.apply(ciphertexts, this::decrypt, executor);
+        }
+
+        /**
+         * Decrypt ciphertexts in parallel on executor as they are consumed.
+         * 
+         * At most a small multiple of the number of processors are decrypted
+         * ahead of the consumer.
+         * 
+         * @param ciphertexts the payloads to decrypt
+         * @param executor runs the decryptions, e.g. a fork-join pool or virtual threads
+         * @return iterator over the plaintexts or failures, in input order
+         */
+        public Iterator<Batch.Result> decryptAll(final Iterator<byte[]> ciphertexts, final Executor executor) {
+            return Batch.apply(ciphertexts, this::decrypt, executor);
+        }
+
+        /**
+         * Decrypt ciphertexts in parallel on executor as they are consumed.
+         * 
+         * @param ciphertexts the payloads to decrypt
+         * @param executor runs the decryptions, e.g. a fork-join pool or virtual threads
+         * @return sequential stream of the plaintexts or failures, in input order
+         * @see #decryptAll(Iterator, Executor)
+         */
+        public Stream<Batch.Result> decryptAll(final Stream<byte[]> ciphertexts, final Executor executor) {
+            return Batch.apply(ciphertexts, this::decrypt, executor);
+        }
+
+        // Claims the ciphertext in the replay guard and recovers the
+        // symmetric key from the header with our private key, or from the
+        // session key cache; the caller must release the claim when done
+        private byte[] unwrapKey(Header header) {
+            claim(header);
+            try {
+                return recoverKey(header);
+            }
+            catch (RuntimeException e) {
+                release(header);
+                throw e;
+            }
+        }
+
+        // Recovers the symmetric key from the header
+        private byte[] recoverKey(Header header) {
+            if (header.version() == Version.MULTI) {
+                return MultiEncryptor.unwrapRecipientKey(privateKey, header.encKey(), getKeyId());
+            }
+            if (header.version() == Version.SESSION) {
+                byte[] key = sessionKeys == null ? null : sessionKeys.getIfPresent(sessionCacheKey(header), byte[]::clone);
+                if (key == null) {
+                    throw new RuntimeException("Unknown or expired session: %s".formatted(HexFormat.of().formatHex(header.sessionId())));
+                }
+                return key;
+            }
+            if (XdhKem.isXdh(privateKey) != (header.version() == Version.XDH)) {
+                throw new RuntimeException("Ciphertext format %s does not match key type %s".formatted(
+                        header.version(), privateKey.getAlgorithm()));
+            }
+            if (header.version() == Version.XDH) {
+                return XdhKem.decapsulate(privateKey, header.encKey());
+            }
+            byte[] key = pkiDecrypt(privateKey, header.encKey());
+            if (header.version() == Version.SESSION_KEY && sessionKeys != null
+                    && Boolean.FALSE.equals(sessionKeys.getIfPresent(sessionCacheKey(header), cached -> MessageDigest.isEqual(cached, key)))) {
+                throw new RuntimeException(SESSION_TAKEN.formatted(HexFormat.of().formatHex(header.sessionId())));
+            }
+            return key;
+        }
+
+        // Records a ciphertext that has decrypted and authenticated: adds it
+        // to the replay guard and, if it starts a session, caches a copy of
+        // its key, so that no unauthenticated message can plant a key.  As
+        // anyone can start a session under an id they have seen, a live
+        // session is never replaced by one with another key
+        private void accept(Header header, byte[] key) {
+            if (header.version() == Version.SESSION_KEY && sessionKeys != null && sessionKeys.getMaxSize() > 0
+                    && !sessionKeys.put(sessionCacheKey(header), key.clone(), cached -> MessageDigest.isEqual(cached, key))) {
+                throw new RuntimeException(SESSION_TAKEN.formatted(HexFormat.of().formatHex(header.sessionId())));
+            }
+            recordSeen(header);
+        }
+
+        // Session ids are chosen by the sender, so they are scoped to the
+        // recipient key: a session started for one key never serves another
+        private String sessionCacheKey(Header header) {
+            return HexFormat.of().formatHex(getKeyId()) + ":" + HexFormat.of().formatHex(header.sessionId());
+        }
+
+        // Claims the ciphertext in the replay guard, so that no copy of it
+        // is decrypted alongside or after it.  A V1 body is not authenticated,
+        // so a tampered copy would be recorded under the genuine header
+        private void claim(Header header) {
+            if (replayGuard == null) {
+                return;
+            }
+            if (header.version() == Version.V1) {
+                throw new RuntimeException("Unauthenticated V1 ciphertext rejected by replay guard");
+            }
+            if (!replayGuard.claim(fingerprint(header))) {
+                throw new RuntimeException("Replayed ciphertext rejected");
+            }
+        }
+
+        // Adds the claimed ciphertext to the replay guard
+        private void recordSeen(Header header) {
+            if (replayGuard != null) {
+                replayGuard.release(fingerprint(header), true);
+            }
+        }
+
+        // Drops the claim on a ciphertext that was not recorded as seen
+        private void release(Header header) {
+            if (replayGuard != null) {
+                replayGuard.release(fingerprint(header), false);
+            }
+        }
+
+        // Returns the key id of our public key, which is derived on first use
+        private byte[] getKeyId() {
+            byte[] id = keyId;
+            if (id == null) {
+                keyId = id = keyId(publicKeyOf(privateKey));
+            }
+            return id;
+        }
+    };
+
+    // Returns the SHA-256 digest of the header
+    private static byte[] fingerprint(Header header) {
+        return CipherPool.digest("SHA-256").digest(header.toBytes());
+    }
+
+    // Returns the segmented cipher for the key and the header
+    private static Segments segments(int mode, byte[] key, Header header) {
+        return new Segments(mode, new SecretKeySpec(key, SYMMETRIC_KEYTYPE), header.nonce(), header.toBytes());
+    }
+
+    // Rejects a plaintext of size bytes if it is too large for a single-shot format
+    static void checkSingleShot(Version version, long size) {
+        if (size > MAX_SINGLE_SHOT_SIZE) {
+            throw new RuntimeException("Plaintext exceeds the %d byte limit of the %s format, use SEGMENTED".formatted(MAX_SINGLE_SHOT_SIZE, version));
+        }
+    }
+
+    // Reads the rest of the single-shot ciphertext from is, and decrypts it
+    // in one doFinal; the bound allows for a deflated plaintext of the limit
+    private static byte[] openSingleShot(Header header, byte[] key, InputStream is) throws IOException {
+        int max = Compression.maxDeflatedSize(MAX_SINGLE_SHOT_SIZE) + TAG_LENGTH;
+        byte[] ciphertext = is.readNBytes(max + 1);
+        if (ciphertext.length > max) {
+            throw new IOException("Ciphertext exceeds the %d byte limit of the %s format".formatted(max, header.version()));
+        }
+        try {
+            return initSymmetricCipher(CipherPool.cipher(header.algorithm()), Cipher.DECRYPT_MODE, key, header).doFinal(ciphertext);
+        } catch (IllegalBlockSizeException | BadPaddingException e) {
+            throw new RuntimeException("Failed to decrypt the ciphertext: %s".formatted(e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Helper to encrypt (a limited amount of) plaintext with a public key.
      * @param key the public key
      * @param plaintext the input
      * @return the ciphertext
      */
-    private static byte[] pkiEncrypt(final PublicKey key, final byte[] plaintext)
+    static byte[] pkiEncrypt(final PublicKey key, final byte[] plaintext)
     {
         try {
-            Cipher cipher = Cipher.getInstance(ASYMMETRIC_ALGORITHM);
-            cipher.init(Cipher.ENCRYPT_MODE, key, ASYMMETRIC_PARAMETERS);
+            Cipher cipher = CipherPool.cipher(ASYMMETRIC_ALGORITHM);
+            cipher.init(Cipher.ENCRYPT_MODE, key, ASYMMETRIC_PARAMETERS, CipherPool.random());
             return cipher.doFinal(plaintext);
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException | InvalidAlgorithmParameterException e) {
+        } catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException | InvalidAlgorithmParameterException e) {
             throw new RuntimeException("PKI error during encryption: %s".formatted(e.getMessage()), e);
         }
     }
@@ -227,32 +1474,116 @@ public class PkiCrypto {
      * @param ciphertext the input
      * @return the plaintext
      */
-    private static byte[] pkiDecrypt(final PrivateKey key, final byte[] ciphertext) 
+    static byte[] pkiDecrypt(final PrivateKey key, final byte[] ciphertext) 
     {
         try {
-            Cipher cipher = Cipher.getInstance(ASYMMETRIC_ALGORITHM);
+            Cipher cipher = CipherPool.cipher(ASYMMETRIC_ALGORITHM);
             cipher.init(Cipher.DECRYPT_MODE, key, ASYMMETRIC_PARAMETERS);
             return cipher.doFinal(ciphertext);
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | IllegalBlockSizeException | BadPaddingException | InvalidAlgorithmParameterException e) {
+        } catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException | InvalidAlgorithmParameterException e) {
             throw new RuntimeException("PKI error during decryption: %s".formatted(e.getMessage()), e);
         }
     }
     
     /**
-     * Generates a new symmetric cipher based on key material.
+     * Returns the size of the PKI encrypted symmetric key for an RSA key,
+     * or of the ephemeral public key for an XDH key.
+     * @param key the public or private key
+     * @return the number of bytes of the RSA modulus or XDH public key
+     * @throws RuntimeException if key is not an RSA or XDH key
+     */
+    static int pkiOutputSize(final Key key) {
+        if (key instanceof RSAKey rsaKey) {
+            return (rsaKey.getModulus().bitLength() + 7) / 8;
+        }
+        else if (key instanceof XECKey xecKey) {
+            return XdhKem.keySize(xecKey.getParams());
+        }
+        throw new RuntimeException("Unsupported key type: %s".formatted(key.getAlgorithm()));
+    }
+
+    /**
+     * The symmetric key and the header that conveys it.
+     * @param header the header to write in front of the ciphertext
+     * @param key the symmetric key
+     */
+    private record Envelope(Header header, byte[] key) { }
+
+    /**
+     * Returns the public key that belongs to a private key.
+     * 
+     * For RSA this needs the CRT form of the key, which includes the public
+     * exponent.  For XDH it is the agreement of the key with the base point.
+     * 
+     * @param privkey the private key
+     * @return the public key
+     * @throws RuntimeException if the public key cannot be derived
+     */
+    private static PublicKey publicKeyOf(final PrivateKey privkey) {
+        try {
+            if (privkey instanceof RSAPrivateCrtKey crt) {
+                return KeyFactory.getInstance("RSA").generatePublic(new RSAPublicKeySpec(crt.getModulus(), crt.getPublicExponent()));
+            }
+            else if (privkey instanceof XECKey xec) {
+                return XdhKem.publicKeyOf(xec);
+            }
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new RuntimeException("Failed to derive public key: %s".formatted(e.getMessage()), e);
+        }
+        throw new RuntimeException("Cannot derive the public key of a %s key".formatted(privkey.getAlgorithm()));
+    }
+
+    /**
+     * Returns the symmetric ciphertext size for a plaintext size.
+     * @param version the ciphertext format
+     * @param plaintextLength the number of bytes to encrypt
+     * @return the size after padding to a whole number of blocks, or after
+     *         appending the authentication tag (to every segment)
+     */
+    private static int symmetricOutputSize(final Version version, final int plaintextLength) {
+        return switch (version) {
+            case V1 -> (plaintextLength / IV_LENGTH + 1) * IV_LENGTH;
+            case SEGMENTED -> Math.toIntExact(Segments.ciphertextSize(plaintextLength));
+            default -> plaintextLength + TAG_LENGTH;
+        };
+    }
+
+    /**
+     * Generates a new random symmetric key.
+     * @return KEY_SIZE bytes of key material
+     */
+    static byte[] newSymmetricKey() {
+        byte[] key = new byte[KEY_SIZE];
+        CipherPool.random().nextBytes(key);
+        return key;
+    }
+
+    /**
+     * Initialises a symmetric cipher based on key material and the header.
+     * 
+     * For V1 the IV is derived from the key.  For V2 the header supplies
+     * the nonce, and the whole header is authenticated along with the
+     * ciphertext.
+     * 
+     * @param cipher the cipher instance to initialise, for header.algorithm()
      * @param mode Cipher.ENCRYPT or Cipher.DECRIPT
      * @param key the key material
+     * @param header the header of the ciphertext
      * @return the initialised symmetic cipher
      */
-    private static Cipher getSymmetricCipher(int mode, final byte[] key) {
-        LOG.debug("producing new symmetric encryption cipher");
+    static Cipher initSymmetricCipher(Cipher cipher, int mode, final byte[] key, final Header header) {
+        LOG.debug("initialising symmetric encryption cipher");
         try {
-            Cipher cipher = Cipher.getInstance(SYMMETRIC_ALGORITHM);
-            cipher.init(mode,
-                    new SecretKeySpec(key, SYMMETRIC_KEYTYPE), 
-                    new IvParameterSpec(makeIV(key)));
+            SecretKeySpec keySpec = new SecretKeySpec(key, SYMMETRIC_KEYTYPE);
+            if (header.version() == Version.V1) {
+                cipher.init(mode, keySpec, new IvParameterSpec(makeIV(key)));
+            }
+            else {
+                cipher.init(mode, keySpec, new GCMParameterSpec(TAG_LENGTH * 8, header.nonce()));
+                cipher.updateAAD(header.toBytes());
+            }
             return cipher;
-        } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException e) {
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
             throw new RuntimeException("Failed to create symmetric cipher: %s".formatted(e.getMessage()), e);
         }
     }
@@ -263,96 +1594,260 @@ public class PkiCrypto {
      * @return the IV_LENGTH sized IV
      */
     private static final byte[] makeIV(final byte[] key) {
-        try {
-            byte[] iv = new byte[IV_LENGTH];
-            
-            // Compute the MD5 of the key
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            md.update(key);
-            byte[] md5 = md.digest();
-    
-            // Fill the IV with the MD5
-            for (int i = 0; i < IV_LENGTH; ++i) {
-                iv[i] = md5[i % md5.length];
-            }
-            
-            return iv;
-        }
-        catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException("Failed to create IV: %s".formatted(e.getMessage()), e);
+        byte[] iv = new byte[IV_LENGTH];
+        
+        // Compute the MD5 of the key
+        MessageDigest md = CipherPool.digest("MD5");
+        md.update(key);
+        byte[] md5 = md.digest();
+
+        // Fill the IV with the MD5
+        for (int i = 0; i < IV_LENGTH; ++i) {
+            iv[i] = md5[i % md5.length];
         }
+        
+        return iv;
     }
     
     // Number of bits in the 4-bytes header after the MAGIC
+    private static final int HEADER_SIZE = 4;
     private static final int LOBITS = 32 - MAGIC_BITS;
     private static final int LOMASK = (1<<LOBITS) - 1;
-    
+
+    // Size of the version and flags bytes that follow the versioned MAGIC
+    private static final int VERSION_SIZE = 2;
+
+    // The flags that this implementation understands
+    private static final int KNOWN_FLAGS = FLAG_KEY_ID | FLAG_DEFLATE;
+
     /**
-     * Writes the MAGIC number and the enckey to os 
-     * @param os the output stream to write to
-     * @param enckey the encrypted symmetric key to write
-     * @throws RuntimeException for any underlying exception
+     * The parsed header of a ciphertext.
+     * 
+     * In V1 the header is the 4-byte MAGIC and key length word followed by
+     * the encrypted key.  In the versioned formats the word has a different
+     * MAGIC and is followed by a version byte and a flags byte, then by the
+     * key id if flagged, the encrypted key and the nonce.
+     * 
+     * In the XDH format the word has its own MAGIC, the length is that of
+     * the ephemeral public key, and it is followed only by a flags byte, the
+     * key id if flagged, and the ephemeral key.  As every message has its own
+     * derived key, the GCM nonce is all zeros and is not transmitted.
+     * 
+     * The session formats are versioned formats that have the session id
+     * after the key id.  The encrypted key is empty in {@link Version#SESSION}.
+     * 
+     * In the multi-recipient format the word has its own MAGIC and no length,
+     * and is followed by a flags byte (no key id), the recipient table in place
+     * of the encrypted key, and the nonce; see {@link MultiEncryptor}.
+     * 
+     * @param version the ciphertext format
+     * @param flags the flag bits, always 0 for V1
+     * @param keyId the recipient key id, null if not present
+     * @param sessionId the session id of the session formats, else null
+     * @param encKey the PK encrypted symmetric key, the ephemeral public key
+     *        for XDH, or the recipient table for MULTI
+     * @param nonce the nonce for the symmetric cipher, null for V1
      */
-    private static void writeHeader(OutputStream os, byte[] enckey) {
-        LOG.debug("writing ciphertext header");
-        
-        if (enckey.length <= LOMASK) { // can encode up to 16 bits
-            LOG.debug("write the 4-byte header");
+    record Header(Version version, int flags, byte[] keyId, byte[] sessionId, byte[] encKey, byte[] nonce) {
 
-            try {
-                int header = (MAGIC << LOBITS) | (enckey.length & LOMASK);
-                os.write(header >> 24);
-                os.write(header >> 16);
-                os.write(header >> 8);
-                os.write(header);
-                
-                LOG.debug("write the {}-byte encrypted symmetric key", enckey.length);
-                os.write(enckey);
+        /**
+         * Returns the symmetric cipher transformation for the version.
+         * @return the transformation name
+         */
+        String algorithm() {
+            return version == Version.V1 ? SYMMETRIC_ALGORITHM : AEAD_ALGORITHM;
+        }
+
+        /**
+         * Returns whether the plaintext was deflated before encryption.
+         * @return true if the deflate flag is set
+         */
+        boolean compressed() {
+            return (flags & FLAG_DEFLATE) != 0;
+        }
+
+        /**
+         * Returns the header as it is written in front of the ciphertext.
+         * @return the header bytes
+         * @throws RuntimeException if encKey is too large for the format
+         */
+        byte[] toBytes() {
+            if (encKey.length > LOMASK && version != Version.MULTI) {
+                LOG.error("Encrypted key too large: {} bytes (max is {})", encKey.length, LOMASK);
+                throw new RuntimeException("Encrypted key too large for format: %d bytes".formatted(encKey.length));
             }
-            catch (IOException e) {
-                LOG.error("Failed to write header to output stream: {}", e);
-                throw new RuntimeException("Failed to write header to output stream: %s".formatted(e.getMessage()), e);
+
+            ByteBuffer bytes = ByteBuffer.allocate(headerSize(version, keyId != null, encKey.length));
+            if (version == Version.V1) {
+                bytes.putInt((MAGIC << LOBITS) | encKey.length);
+                bytes.put(encKey);
+            }
+            else if (version == Version.MULTI) {
+                bytes.putInt(MAGIC_MULTI << LOBITS);
+                bytes.put((byte) flags);
+                bytes.put(encKey);
+                bytes.put(nonce);
             }
+            else if (version == Version.XDH) {
+                bytes.putInt((MAGIC_XDH << LOBITS) | encKey.length);
+                bytes.put((byte) flags);
+                if (keyId != null) {
+                    bytes.put(keyId);
+                }
+                bytes.put(encKey);
+            }
+            else {
+                bytes.putInt((MAGIC_VERSIONED << LOBITS) | encKey.length);
+                bytes.put((byte) version.code);
+                bytes.put((byte) flags);
+                if (keyId != null) {
+                    bytes.put(keyId);
+                }
+                if (sessionId != null) {
+                    bytes.put(sessionId);
+                }
+                bytes.put(encKey);
+                bytes.put(nonce);
+            }
+            return bytes.array();
         }
-        else {
-            LOG.error("Encrypted key too large: {} bytes (max is {})", enckey.length, LOMASK);
-            throw new RuntimeException("Encrypted key too large for format: %d bytes".formatted(enckey.length));
+    }
+
+    /**
+     * Returns the size of the header for a version and encrypted key size.
+     * @param version the ciphertext format
+     * @param withKeyId whether the header has a key id
+     * @param encKeySize the size of the encrypted key
+     * @return the number of bytes before the symmetric ciphertext
+     */
+    private static int headerSize(Version version, boolean withKeyId, int encKeySize) {
+        return switch (version) {
+            case V1 -> HEADER_SIZE + encKeySize;
+            case XDH -> HEADER_SIZE + 1 + (withKeyId ? KEY_ID_SIZE : 0) + encKeySize;
+            case MULTI -> HEADER_SIZE + 1 + encKeySize + NONCE_LENGTH;
+            default -> HEADER_SIZE + VERSION_SIZE + (withKeyId ? KEY_ID_SIZE : 0)
+                    + (version.hasSessionId() ? SESSION_ID_SIZE : 0) + encKeySize + NONCE_LENGTH;
+        };
+    }
+
+    /**
+     * Writes the header to os 
+     * @param os the output stream to write to
+     * @param header the header to write
+     * @throws RuntimeException for any underlying exception
+     */
+    static void writeHeader(OutputStream os, Header header) {
+        LOG.debug("writing {} ciphertext header", header.version());
+        try {
+            os.write(header.toBytes());
+        }
+        catch (IOException e) {
+            LOG.error("Failed to write header to output stream: {}", e);
+            throw new RuntimeException("Failed to write header to output stream: %s".formatted(e.getMessage()), e);
         }
     }
     
     /**
-     * Parses the 4-byte header and variable length encrypted key off the stream.
+     * Parses the header of any version off the stream.
      * 
      * @param is the input stream to read off
-     * @return the PK encrypted symmetric key
-     * @throws IOException from underlying operation
-     * @throws RuntimeException if MAGIC not found or the encrypted key could not be read
+     * @return the parsed header
+     * @throws RuntimeException if no MAGIC is found, the version or flags are
+     *         not supported, or the header could not be read
      */
-    private static byte[] parseHeader(InputStream is) {
+    private static Header parseHeader(InputStream is) {
         LOG.debug("parsing ciphertext header");
         
         try {
-            byte[] b = is.readNBytes(4);                // 32 bit header
-            int header = ((b[0]&0xFF) << 24) | ((b[1]&0xFF) << 16) | ((b[2]&0xFF) << 8) | (b[3]&0xFF);
+            int header = readInt(is);
             
             int magic = header >>> LOBITS;
             int encsz = header & LOMASK;
             
-            if (magic != MAGIC) {
-                throw new RuntimeException("Invalid ciphertext: MAGIC not found");
-            }
-            
-            LOG.debug("reading the {}-byte encrypted symmetric key", encsz);
-            byte[] enckey = is.readNBytes(encsz);
-            if (enckey.length != encsz) {
-                throw new RuntimeException("Failed to read the %d-byte encrypted symmetric key".formatted(encsz));
-            }
-            
-            return enckey;
+            return switch (magic) {
+                case MAGIC -> new Header(Version.V1, 0, null, null, readBytes(is, encsz, "encrypted symmetric key"), null);
+                case MAGIC_MULTI -> MultiEncryptor.parseHeader(is);
+                case MAGIC_XDH -> parseVersionedHeader(is, Version.XDH, readBytes(is, 1, "flags")[0] & 0xFF, encsz);
+                case MAGIC_VERSIONED -> {
+                    byte[] b = readBytes(is, VERSION_SIZE, "version");
+                    yield parseVersionedHeader(is, Version.ofCode(b[0] & 0xFF), b[1] & 0xFF, encsz);
+                }
+                default -> throw new RuntimeException("Invalid ciphertext: MAGIC not found");
+            };
         }
         catch (IOException e) {
             LOG.error("Failed to read header from input stream: {}", e);
             throw new RuntimeException("Failed to read header from input stream: %s".formatted(e.getMessage()), e);
         }
     }
+
+    // Parses the rest of a versioned or XDH header after its version and flags
+    private static Header parseVersionedHeader(InputStream is, Version version, int flags, int encsz) throws IOException {
+        if ((flags & ~KNOWN_FLAGS) != 0) {
+            throw new RuntimeException("Unsupported ciphertext flags: 0x%02x".formatted(flags));
+        }
+        if ((flags & FLAG_DEFLATE) != 0 && version == Version.SEGMENTED) {
+            throw new RuntimeException("Compression is not supported in the %s format".formatted(version));
+        }
+
+        byte[] keyId = (flags & FLAG_KEY_ID) != 0 ? readBytes(is, KEY_ID_SIZE, "key id") : null;
+        byte[] sessionId = version.hasSessionId() ? readBytes(is, SESSION_ID_SIZE, "session id") : null;
+        byte[] enckey = readBytes(is, encsz, version == Version.XDH ? "ephemeral key" : "encrypted symmetric key");
+        byte[] nonce = version == Version.XDH ? new byte[NONCE_LENGTH] : readBytes(is, NONCE_LENGTH, "nonce");
+        return new Header(version, flags, keyId, sessionId, enckey, nonce);
+    }
+
+    // Reads the 32-bit header word
+    private static int readInt(InputStream is) throws IOException {
+        byte[] b = is.readNBytes(HEADER_SIZE);
+        if (b.length != HEADER_SIZE) {
+            throw new RuntimeException("Invalid ciphertext: too short for header");
+        }
+        return ((b[0]&0xFF) << 24) | ((b[1]&0xFF) << 16) | ((b[2]&0xFF) << 8) | (b[3]&0xFF);
+    }
+
+    // Reads exactly size bytes of the named header field
+    static byte[] readBytes(InputStream is, int size, String what) throws IOException {
+        LOG.debug("reading the {}-byte {}", size, what);
+        byte[] bytes = is.readNBytes(size);
+        if (bytes.length != size) {
+            throw new RuntimeException("Failed to read the %d-byte %s".formatted(size, what));
+        }
+        return bytes;
+    }
+
+    /**
+     * Minimal InputStream view of a ByteBuffer, which consumes the buffer.
+     */
+    static final class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
 }
@@ -3,35 +3,55 @@ package it.zwets.sms.crypto;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.KeyFactory;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
 
 /**
  * General helpers for PKI.
+ *
+ * Parsed keys are cached by the SHA-256 digest of their encoding, so that
+ * reading the same key bytes again returns the same key object without
+ * re-parsing the DER.  Key objects are immutable and safe to share.
+ *
  * @author io@zwets.it
  */
 public class PkiUtils {
 
+    /** File name extension of the public key files read by {@link #readPublicKeys(Path)} */
+    public static final String PUBKEY_EXTENSION = ".pub";
+
+    // Bounds on the parsed key caches
+    private static final int PUBLIC_CACHE_SIZE = 4096;
+    private static final int PRIVATE_CACHE_SIZE = 64;
+    private static final Duration CACHE_IDLE = Duration.ofHours(1);
+
+    private static final KeyCache<String,PublicKey> PUBLIC_KEYS = new KeyCache<>(PUBLIC_CACHE_SIZE, CACHE_IDLE);
+    private static final KeyCache<String,PrivateKey> PRIVATE_KEYS = new KeyCache<>(PRIVATE_CACHE_SIZE, CACHE_IDLE);
+
 	/**
 	 * Read public key from bytes.
 	 * 
-	 * @param bytes byte array with the DER format key
+	 * @param bytes byte array with the DER format RSA or XDH key
      * @return the {@link PublicKey}
 	 * @throws RuntimeException for any of the underlying exceptions
 	 */
     public static PublicKey readPublicKey(byte[] bytes) {
-        try {
-            X509EncodedKeySpec publicSpec = new X509EncodedKeySpec(bytes, "RSA");
-            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-            return keyFactory.generatePublic(publicSpec);       
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
-            throw new RuntimeException("PKI error reading public key: %s".formatted(e.getMessage()), e);
-        }
+        return PUBLIC_KEYS.get(fingerprint(bytes), k -> parsePublicKey(bytes));
     }
 
     /**
@@ -63,21 +83,74 @@ public class PkiUtils {
 		}
 	}
 
+    /**
+     * Read public key from a file in DER or base64 encoded DER format.
+     * The base64 form is what the <code>pubkey</code> command writes.
+     * @param file the public key file
+     * @return the public key
+     * @throws RuntimeException for any of the underlying exceptions
+     */
+    public static PublicKey readPublicKey(Path file) {
+        try {
+            byte[] bytes = Files.readAllBytes(file);
+            return PUBLIC_KEYS.get(fingerprint(bytes), k -> parsePublicKey(decodeKeyFile(bytes)));
+        } catch (IOException | RuntimeException e) {
+            throw new RuntimeException("Failed to read public key from %s: %s".formatted(file, e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Read all public key files in a directory on virtual threads.
+     * @param dir the directory holding the key files
+     * @return immutable map from file name without extension to public key
+     * @throws RuntimeException if the directory or any key file cannot be read
+     * @see #readPublicKeys(Path, Executor)
+     */
+    public static Map<String,PublicKey> readPublicKeys(Path dir) {
+        return readPublicKeys(dir, CryptoExecutors.io());
+    }
+
+    /**
+     * Read all public key files in a directory in parallel on executor.
+     *
+     * Every file ending in {@link #PUBKEY_EXTENSION} is read with
+     * {@link #readPublicKey(Path)}, so the keys also land in the cache.
+     * The map is keyed by file name without the extension, typically the
+     * client or alias that the key belongs to.
+     *
+     * @param dir the directory holding the key files
+     * @param executor the executor to read and parse the files on
+     * @return immutable map from file name without extension to public key
+     * @throws RuntimeException if the directory or any key file cannot be read
+     */
+    public static Map<String,PublicKey> readPublicKeys(Path dir, Executor executor) {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir, "*" + PUBKEY_EXTENSION)) {
+            entries.forEach(files::add);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to list public keys in %s: %s".formatted(dir, e.getMessage()), e);
+        }
+
+        List<PublicKey> keys = CryptoExecutors.all(files.stream()
+                .map(file -> (Supplier<PublicKey>) () -> readPublicKey(file))
+                .toList(), executor);
+
+        Map<String,PublicKey> map = new HashMap<>();
+        for (int i = 0; i < files.size(); ++i) {
+            map.put(keyName(files.get(i)), keys.get(i));
+        }
+        return Map.copyOf(map);
+    }
+
 	/**
 	 * Read private key from bytes.
 	 * 
-	 * @param bytes byte arry with the DER format key
+	 * @param bytes byte arry with the DER format RSA or XDH key
 	 * @return the {@link PrivateKey}
      * @throws RuntimeException for any of the underlying exceptions
 	 */
     public static PrivateKey readPrivateKey(byte[] bytes) {
-        try {
-            PKCS8EncodedKeySpec keySpec = new PKCS8EncodedKeySpec(bytes, "RSA");
-            KeyFactory keyFactory = KeyFactory.getInstance("RSA");
-            return keyFactory.generatePrivate(keySpec);     
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
-            throw new RuntimeException("PKI error reading private key: %s".formatted(e.getMessage()), e);
-        }
+        return PRIVATE_KEYS.get(fingerprint(bytes), k -> parsePrivateKey(bytes));
     }
 
     /**
@@ -108,4 +181,50 @@ public class PkiUtils {
 			throw new RuntimeException("Failed to read private key from %s: %s".formatted(fileName, e.getMessage()), e);
 		}
 	}
+
+    // Parses an X.509 encoded RSA key, falling back to XDH
+    private static PublicKey parsePublicKey(byte[] bytes) {
+        X509EncodedKeySpec publicSpec = new X509EncodedKeySpec(bytes);
+        try {
+            try {
+                return CipherPool.keyFactory("RSA").generatePublic(publicSpec);
+            } catch (InvalidKeySpecException e) {
+                return CipherPool.keyFactory("XDH").generatePublic(publicSpec);
+            }
+        } catch (InvalidKeySpecException e) {
+            throw new RuntimeException("PKI error reading public key: %s".formatted(e.getMessage()), e);
+        }
+    }
+
+    // Parses a PKCS#8 encoded RSA key, falling back to XDH
+    private static PrivateKey parsePrivateKey(byte[] bytes) {
+        PKCS8EncodedKeySpec keySpec = new PKCS8EncodedKeySpec(bytes);
+        try {
+            try {
+                return CipherPool.keyFactory("RSA").generatePrivate(keySpec);
+            } catch (InvalidKeySpecException e) {
+                return CipherPool.keyFactory("XDH").generatePrivate(keySpec);
+            }
+        } catch (InvalidKeySpecException e) {
+            throw new RuntimeException("PKI error reading private key: %s".formatted(e.getMessage()), e);
+        }
+    }
+
+    // Returns the DER bytes of a key file, decoding base64 if needed; DER
+    // starts with the SEQUENCE tag 0x30, which is '0' in ASCII, but the
+    // base64 of DER always starts with 'M', the top six bits of that tag
+    private static byte[] decodeKeyFile(byte[] bytes) {
+        return bytes.length > 0 && bytes[0] == 0x30 ? bytes : Base64.getMimeDecoder().decode(bytes);
+    }
+
+    // Returns the cache key for the encoded key bytes
+    private static String fingerprint(byte[] bytes) {
+        return HexFormat.of().formatHex(CipherPool.digest("SHA-256").digest(bytes));
+    }
+
+    // Returns the file name of a key file without its extension
+    private static String keyName(Path file) {
+        String name = file.getFileName().toString();
+        return name.substring(0, name.length() - PUBKEY_EXTENSION.length());
+    }
 }
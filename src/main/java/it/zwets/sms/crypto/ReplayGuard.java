@@ -0,0 +1,320 @@
+package it.zwets.sms.crypto;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fixed-memory, time-windowed filter of the ciphertexts that were seen.
+ *
+ * Every ciphertext header holds a freshly wrapped key (or, in a session, a
+ * fresh nonce), so a digest of the header identifies the ciphertext.  A
+ * {@link PkiCrypto.Decryptor} or {@link Vault} that has a guard claims
+ * this {@link PkiCrypto#fingerprint(byte[]) fingerprint} before the private
+ * key operation, rejecting a replayed ciphertext in a microsecond rather
+ * than a millisecond, and adds it once the ciphertext has authenticated.
+ * A copy that arrives while the first is still being decrypted finds the
+ * fingerprint claimed, and is rejected before it writes any output.
+ *
+ * The header only identifies a ciphertext whose body is authenticated
+ * with it.  The body of a {@link PkiCrypto.Version#V1} ciphertext is not,
+ * so a tampered copy would decrypt to garbage under the genuine header and
+ * have its fingerprint added, after which the genuine ciphertext would be
+ * rejected.  Decryptors with a guard therefore reject V1 ciphertexts.
+ *
+ * The filter is a pair of Bloom filters, the current and the previous
+ * generation.  Fingerprints are added to the current one, and looked up in
+ * both.  When the current generation is older than the window, it becomes
+ * the previous one, and the old previous one is cleared to become the new
+ * current.  A fingerprint is thus remembered for at least the window and
+ * at most twice the window, in memory that does not grow.
+ *
+ * A Bloom filter has no false negatives, but has false positives: with at
+ * most the expected number of fingerprints per window, a fresh ciphertext
+ * is wrongly rejected with about the given probability.  Choose it small.
+ *
+ * The filter can be saved to and loaded from a file, so that it survives
+ * restarts.  Its generations are timed by the wall clock for that reason.
+ * This class is thread-safe.
+ */
+public final class ReplayGuard {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ReplayGuard.class);
+
+    /** The file magic, "SMSR" in ASCII */
+    public static final int MAGIC = 0x534D5352;
+
+    // The format version of the saved file
+    private static final int VERSION = 1;
+
+    // Number of fingerprint bytes that the bit indexes are derived from
+    private static final int FINGERPRINT_SIZE = 16;
+
+    private final int hashes;
+    private final long windowMillis;
+    private final Clock clock;
+    private long[] current;
+    private long[] previous;
+    private long currentStart;
+
+    // Fingerprints of the ciphertexts that are being decrypted
+    private final Set<ByteBuffer> pending = new HashSet<>();
+
+    /**
+     * Create a guard that remembers fingerprints for at least window.
+     * @param expected the number of fingerprints expected per window
+     * @param falsePositiveRate the wanted probability of rejecting a fresh ciphertext
+     * @param window the minimum time a fingerprint is remembered
+     */
+    public ReplayGuard(int expected, double falsePositiveRate, Duration window) {
+        this(expected, falsePositiveRate, window, Clock.systemUTC());
+    }
+
+    /**
+     * Create a guard that uses the given clock.
+     * @param expected the number of fingerprints expected per window
+     * @param falsePositiveRate the wanted probability of rejecting a fresh ciphertext
+     * @param window the minimum time a fingerprint is remembered
+     * @param clock the clock that times the generations
+     */
+    ReplayGuard(int expected, double falsePositiveRate, Duration window, Clock clock) {
+        if (expected < 1 || !(falsePositiveRate > 0 && falsePositiveRate < 1) || window.isNegative() || window.isZero()) {
+            throw new IllegalArgumentException("Invalid replay guard parameters: %d, %f, %s".formatted(expected, falsePositiveRate, window));
+        }
+        double bits = -expected * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        if (bits > (double) Integer.MAX_VALUE * Long.SIZE) {
+            throw new IllegalArgumentException("Replay guard too large: %.0f bits".formatted(bits));
+        }
+        this.hashes = Math.max(1, (int) Math.round(bits / expected * Math.log(2)));
+        this.windowMillis = window.toMillis();
+        this.clock = clock;
+        this.current = new long[(int) Math.ceil(bits / Long.SIZE)];
+        this.previous = new long[current.length];
+        this.currentStart = clock.millis();
+    }
+
+    // Creates a guard from saved state
+    private ReplayGuard(int hashes, long windowMillis, long currentStart, long[] current, long[] previous, Clock clock) {
+        this.hashes = hashes;
+        this.windowMillis = windowMillis;
+        this.clock = clock;
+        this.current = current;
+        this.previous = previous;
+        this.currentStart = currentStart;
+    }
+
+    /**
+     * Return true if fingerprint was probably added within the window.
+     * @param fingerprint the fingerprint of a ciphertext
+     * @return false if it was certainly not added within the window
+     */
+    public synchronized boolean mightContain(byte[] fingerprint) {
+        rotate();
+        long h1 = hash1(fingerprint);
+        long h2 = hash2(fingerprint);
+        return contains(current, h1, h2) || contains(previous, h1, h2);
+    }
+
+    /**
+     * Add fingerprint, unless it is probably present already.
+     * @param fingerprint the fingerprint of a ciphertext
+     * @return true if it was added, false if it was probably present
+     */
+    public synchronized boolean add(byte[] fingerprint) {
+        rotate();
+        long h1 = hash1(fingerprint);
+        long h2 = hash2(fingerprint);
+        if (contains(current, h1, h2) || contains(previous, h1, h2)) {
+            return false;
+        }
+        for (int i = 0; i < hashes; ++i) {
+            long bit = index(h1, h2, i, current.length);
+            current[(int) (bit >>> 6)] |= 1L << bit;
+        }
+        return true;
+    }
+
+    /**
+     * Claim fingerprint for a decryption that is about to start.
+     *
+     * A claimed fingerprint fails further claims until it is released, so
+     * that of two copies of a ciphertext that arrive together only one is
+     * decrypted.
+     *
+     * @param fingerprint the fingerprint of a ciphertext
+     * @return true if it was claimed, false if it is probably present or claimed already
+     */
+    public synchronized boolean claim(byte[] fingerprint) {
+        return !mightContain(fingerprint) && pending.add(ByteBuffer.wrap(fingerprint.clone()));
+    }
+
+    /**
+     * Release a claimed fingerprint, adding it if its ciphertext decrypted.
+     *
+     * Releasing a fingerprint that is not claimed does nothing.
+     *
+     * @param fingerprint the fingerprint passed to {@link #claim(byte[])}
+     * @param seen true to add the fingerprint, false to forget the claim
+     */
+    public synchronized void release(byte[] fingerprint, boolean seen) {
+        if (pending.remove(ByteBuffer.wrap(fingerprint)) && seen) {
+            add(fingerprint);
+        }
+    }
+
+    /**
+     * Return the memory that the two generations take.
+     * @return the size of the filter in bytes
+     */
+    public long getSizeBytes() {
+        return 2L * current.length * Long.BYTES;
+    }
+
+    /**
+     * Save the filter to file, atomically replacing it.
+     * @param file the file to write
+     * @throws RuntimeException if the file cannot be written
+     */
+    public void save(Path file) {
+        Path temp = null;
+        try {
+            temp = Files.createTempFile(file.toAbsolutePath().getParent(), "." + file.getFileName(), ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                synchronized (this) {
+                    out.writeInt(MAGIC);
+                    out.writeInt(VERSION);
+                    out.writeInt(hashes);
+                    out.writeInt(current.length);
+                    out.writeLong(windowMillis);
+                    out.writeLong(currentStart);
+                    for (long word : current) {
+                        out.writeLong(word);
+                    }
+                    for (long word : previous) {
+                        out.writeLong(word);
+                    }
+                }
+            }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            LOG.debug("saved replay guard to {}", file);
+        }
+        catch (IOException e) {
+            if (temp != null) {
+                try { Files.deleteIfExists(temp); } catch (IOException x) { e.addSuppressed(x); }
+            }
+            throw new RuntimeException("Failed to save replay guard to %s: %s".formatted(file, e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Load a filter saved by {@link #save(Path)}.
+     *
+     * The loaded filter keeps its saved size and window.  Generations that
+     * expired while it was saved are dropped on first use.
+     *
+     * @param file the file to read
+     * @return the loaded filter
+     * @throws RuntimeException if the file cannot be read or is invalid
+     */
+    public static ReplayGuard load(Path file) {
+        return load(file, Clock.systemUTC());
+    }
+
+    // Loads the filter, timing it with clock
+    static ReplayGuard load(Path file, Clock clock) {
+        LOG.debug("loading replay guard from {}", file);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new RuntimeException("Not a replay guard file: %s".formatted(file));
+            }
+            int hashes = in.readInt();
+            int words = in.readInt();
+            long windowMillis = in.readLong();
+            long currentStart = in.readLong();
+            if (hashes < 1 || words < 1 || windowMillis < 1 || Files.size(file) != 32 + 16L * words) {
+                throw new RuntimeException("Invalid replay guard file: %s".formatted(file));
+            }
+            long[] current = new long[words];
+            long[] previous = new long[words];
+            for (int i = 0; i < words; ++i) {
+                current[i] = in.readLong();
+            }
+            for (int i = 0; i < words; ++i) {
+                previous[i] = in.readLong();
+            }
+            return new ReplayGuard(hashes, windowMillis, currentStart, current, previous, clock);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Failed to load replay guard from %s: %s".formatted(file, e.getMessage()), e);
+        }
+    }
+
+    // Moves to the next generation(s) if the current one is older than the window
+    private void rotate() {
+        long now = clock.millis();
+        long age = now - currentStart;
+        if (age < windowMillis) {
+            return;
+        }
+        long[] swap = previous;
+        previous = current;
+        current = swap;
+        Arrays.fill(current, 0L);
+        if (age >= 2 * windowMillis) {
+            Arrays.fill(previous, 0L);
+        }
+        currentStart = now;
+    }
+
+    private boolean contains(long[] bits, long h1, long h2) {
+        for (int i = 0; i < hashes; ++i) {
+            long bit = index(h1, h2, i, bits.length);
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Returns the i-th bit index by double hashing (Kirsch and Mitzenmacher)
+    private static long index(long h1, long h2, int i, int words) {
+        return Long.remainderUnsigned(h1 + i * h2, (long) words * Long.SIZE);
+    }
+
+    private static long hash1(byte[] fingerprint) {
+        checkFingerprint(fingerprint);
+        return toLong(fingerprint, 0);
+    }
+
+    private static long hash2(byte[] fingerprint) {
+        return toLong(fingerprint, 8) | 1;
+    }
+
+    private static void checkFingerprint(byte[] fingerprint) {
+        if (fingerprint.length < FINGERPRINT_SIZE) {
+            throw new IllegalArgumentException("Fingerprint too short: %d bytes".formatted(fingerprint.length));
+        }
+    }
+
+    private static long toLong(byte[] b, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; ++i) {
+            value = (value << 8) | (b[offset + i] & 0xFF);
+        }
+        return value;
+    }
+}
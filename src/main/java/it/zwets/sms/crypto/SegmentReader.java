@@ -0,0 +1,67 @@
+package it.zwets.sms.crypto;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random access to the plaintext of a {@link PkiCrypto.Version#SEGMENTED} file.
+ * 
+ * A read decrypts and authenticates only the segments that overlap the
+ * requested range, so the cost of reading at any offset does not depend
+ * on the offset.  Obtain an instance with {@link PkiCrypto.Decryptor#open(java.nio.file.Path)}.
+ * 
+ * This class is thread-safe.
+ */
+public final class SegmentReader implements Closeable {
+
+    private final FileChannel channel;
+    private final long offset;
+    private final Segments segments;
+    private final long size;
+
+    SegmentReader(FileChannel channel, long offset, Segments segments) throws IOException {
+        this.channel = channel;
+        this.offset = offset;
+        this.segments = segments;
+        this.size = Segments.plaintextSize(channel.size() - offset);
+    }
+
+    /**
+     * Return the size of the plaintext.
+     * @return the number of plaintext bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Read plaintext from position into dst, until dst is full or the
+     * end of the plaintext is reached.
+     * 
+     * @param position the plaintext offset to read from
+     * @param dst the buffer to read into
+     * @return the number of bytes read, or -1 if position is at or past the end
+     * @throws RuntimeException if a segment fails to decrypt, or for any I/O error
+     */
+    public int read(long position, ByteBuffer dst) {
+        if (position < 0) {
+            throw new IllegalArgumentException("Negative position: %d".formatted(position));
+        }
+        try {
+            return segments.read(channel, offset, position, dst);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Failed to read segment: %s".formatted(e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Close the underlying file.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
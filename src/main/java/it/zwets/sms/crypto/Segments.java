@@ -0,0 +1,449 @@
+package it.zwets.sms.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Runs AES/GCM over a payload in fixed-size segments.
+ *
+ * The plaintext is split into segments of {@link #SEGMENT_SIZE} bytes, the
+ * last of which may be shorter (but is only empty for an empty payload).
+ * Every segment is encrypted separately, with a nonce derived from the base
+ * nonce, the segment index and a flag for the last segment, and with the
+ * same associated data.  Reordering, dropping or truncating segments thus
+ * fails authentication.
+ *
+ * As every ciphertext segment but the last is exactly
+ * {@link #CIPHER_SEGMENT_SIZE} bytes, the segment that holds any plaintext
+ * offset is found by division, and segments can be decrypted in any order
+ * and in parallel.
+ *
+ * An instance is immutable, and its methods can be called concurrently.
+ */
+final class Segments {
+
+    /** Number of plaintext bytes in every segment but the last */
+    static final int SEGMENT_SIZE = 64 * 1024;
+
+    /** Number of bytes that the authentication tag adds to a segment */
+    static final int TAG_SIZE = 16;
+
+    /** Number of ciphertext bytes in every segment but the last */
+    static final int CIPHER_SEGMENT_SIZE = SEGMENT_SIZE + TAG_SIZE;
+
+    // Cipher transformation and the size of the nonce
+    private static final String ALGORITHM = "AES/GCM/NoPadding";
+    private static final int NONCE_LENGTH = 12;
+
+    // Number of segments that each task of a file transform processes
+    private static final int SEGMENTS_PER_TASK = FileCipher.CHUNK_SIZE / SEGMENT_SIZE;
+
+    private final int mode;
+    private final SecretKeySpec key;
+    private final byte[] baseNonce;
+    private final byte[] aad;
+
+    /**
+     * Create a segmented cipher.
+     * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+     * @param key the AES key
+     * @param baseNonce the nonce that the segment nonces are derived from
+     * @param aad the associated data that every segment authenticates
+     */
+    Segments(int mode, SecretKeySpec key, byte[] baseNonce, byte[] aad) {
+        if (baseNonce.length != NONCE_LENGTH) {
+            throw new RuntimeException("Invalid nonce length: %d".formatted(baseNonce.length));
+        }
+        this.mode = mode;
+        this.key = key;
+        this.baseNonce = baseNonce.clone();
+        this.aad = aad.clone();
+    }
+
+    /**
+     * Return the number of segments for a plaintext of the given size.
+     * @param plaintextLength the number of plaintext bytes
+     * @return the number of segments, at least 1
+     */
+    static long count(long plaintextLength) {
+        return Math.max(1, (plaintextLength + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+    }
+
+    /**
+     * Return the ciphertext size for a plaintext of the given size.
+     * @param plaintextLength the number of plaintext bytes
+     * @return the number of ciphertext bytes
+     */
+    static long ciphertextSize(long plaintextLength) {
+        return plaintextLength + count(plaintextLength) * TAG_SIZE;
+    }
+
+    /**
+     * Return the plaintext size for a ciphertext of the given size.
+     * @param ciphertextLength the number of ciphertext bytes
+     * @return the number of plaintext bytes
+     * @throws RuntimeException if no plaintext has this ciphertext size
+     */
+    static long plaintextSize(long ciphertextLength) {
+        long count = Math.max(1, (ciphertextLength + CIPHER_SEGMENT_SIZE - 1) / CIPHER_SEGMENT_SIZE);
+        long last = ciphertextLength - (count - 1) * CIPHER_SEGMENT_SIZE;
+        if (last < TAG_SIZE || (last == TAG_SIZE && count > 1)) {
+            throw new RuntimeException("Invalid segmented ciphertext: truncated segment");
+        }
+        return ciphertextLength - count * TAG_SIZE;
+    }
+
+    /**
+     * Run the cipher over the remaining bytes of src into dst.
+     * @param src the input, which is consumed
+     * @param dst the output buffer, which must have room for all output
+     * @return the number of bytes written to dst
+     * @throws RuntimeException if a segment fails, or dst is too small
+     */
+    int transform(ByteBuffer src, ByteBuffer dst) {
+        int inSize = inputSegmentSize();
+        int written = 0;
+        long index = 0;
+        do {
+            int n = Math.min(inSize, src.remaining());
+            boolean last = n == src.remaining();
+            ByteBuffer segment = src.slice(src.position(), n);
+            src.position(src.position() + n);
+            written += process(index++, last, segment, dst);
+        } while (src.hasRemaining());
+        return written;
+    }
+
+    /**
+     * Run the cipher over the content of is onto os, one segment at a time.
+     * @param is the input stream, read to its end
+     * @param os the output stream
+     * @throws IOException on any I/O error
+     * @throws RuntimeException if a segment fails
+     */
+    void transform(InputStream is, OutputStream os) throws IOException {
+        int inSize = inputSegmentSize();
+        byte[] current = new byte[inSize];
+        byte[] next = new byte[inSize];
+        byte[] output = new byte[CIPHER_SEGMENT_SIZE];
+
+        // Read one segment ahead, to know which segment is the last
+        int length = is.readNBytes(current, 0, inSize);
+        for (long index = 0; ; ++index) {
+            int nextLength = length == inSize ? is.readNBytes(next, 0, inSize) : 0;
+            boolean last = nextLength == 0;
+            int n = process(index, last, ByteBuffer.wrap(current, 0, length), ByteBuffer.wrap(output));
+            os.write(output, 0, n);
+            if (last) {
+                return;
+            }
+            byte[] swap = current;
+            current = next;
+            next = swap;
+            length = nextLength;
+        }
+    }
+
+    /**
+     * Run the cipher over file in from inOffset to its end, writing the
+     * output to file out from outOffset.
+     *
+     * The segments are processed in tasks of a fixed number of segments,
+     * which run on executor.  This returns when all tasks have completed.
+     *
+     * @param in the input file
+     * @param inOffset the offset of the first segment in in
+     * @param out the output file
+     * @param outOffset the offset in out to write the first segment at
+     * @param executor runs the tasks, e.g. Runnable::run to run them in turn
+     * @throws IOException on any I/O error
+     * @throws RuntimeException if a segment fails
+     */
+    void transform(FileChannel in, long inOffset, FileChannel out, long outOffset, Executor executor) throws IOException {
+        long inLength = in.size() - inOffset;
+        long count = mode == Cipher.ENCRYPT_MODE ? count(inLength) : count(plaintextSize(inLength));
+
+        List<Supplier<Void>> tasks = new ArrayList<>();
+        for (long first = 0; first < count; first += SEGMENTS_PER_TASK) {
+            long from = first;
+            long to = Math.min(count, first + SEGMENTS_PER_TASK);
+            tasks.add(() -> {
+                transformRange(in, inOffset, inLength, out, outOffset, from, to, count);
+                return null;
+            });
+        }
+        CryptoExecutors.all(tasks, executor);
+    }
+
+    /**
+     * Decrypt plaintext from position into dst, reading only the segments
+     * that hold it from file in.
+     *
+     * @param in the ciphertext file
+     * @param inOffset the offset of the first segment in in
+     * @param position the plaintext offset to start at
+     * @param dst the buffer to fill
+     * @return the number of bytes read, or -1 if position is at or past the end
+     * @throws IOException on any I/O error
+     * @throws RuntimeException if a segment fails
+     */
+    int read(FileChannel in, long inOffset, long position, ByteBuffer dst) throws IOException {
+        long size = plaintextSize(in.size() - inOffset);
+        if (position >= size) {
+            return -1;
+        }
+
+        long count = count(size);
+        ByteBuffer segment = ByteBuffer.allocate(CIPHER_SEGMENT_SIZE);
+        ByteBuffer plaintext = ByteBuffer.allocate(SEGMENT_SIZE);
+        int read = 0;
+
+        while (dst.hasRemaining() && position < size) {
+            long index = position / SEGMENT_SIZE;
+            readFully(in, inOffset + index * CIPHER_SEGMENT_SIZE, segment.clear()
+                    .limit((int) Math.min(CIPHER_SEGMENT_SIZE, in.size() - inOffset - index * CIPHER_SEGMENT_SIZE)));
+            process(index, index == count - 1, segment.flip(), plaintext.clear());
+
+            int skip = (int) (position - index * SEGMENT_SIZE);
+            int n = Math.min(dst.remaining(), plaintext.position() - skip);
+            dst.put(plaintext.flip().position(skip).limit(skip + n));
+            position += n;
+            read += n;
+        }
+        return read;
+    }
+
+    /**
+     * Return a channel that runs the cipher over the bytes written to it,
+     * writing the output to out one segment at a time.
+     *
+     * The channel reuses one pair of segment buffers, and holds back one
+     * full segment, as it only knows which segment is the last when it is
+     * closed.  Closing the channel processes the last segment and closes out.
+     *
+     * @param out the channel to write the output to
+     * @return the writable channel
+     */
+    WritableByteChannel channel(WritableByteChannel out) {
+        return new WritingChannel(out);
+    }
+
+    /**
+     * Return a channel that reads the output of the cipher over the bytes
+     * read from in, one segment at a time.
+     * @param in the channel to read the input from, closed with the channel
+     * @return the readable channel
+     */
+    ReadableByteChannel channel(ReadableByteChannel in) {
+        return new ReadingChannel(in);
+    }
+
+    // Runs the cipher over segments [first,end) of count in file in to file out
+    private void transformRange(FileChannel in, long inOffset, long inLength, FileChannel out, long outOffset, long first, long end, long count) {
+        int inSize = inputSegmentSize();
+        int outSize = mode == Cipher.ENCRYPT_MODE ? CIPHER_SEGMENT_SIZE : SEGMENT_SIZE;
+
+        try {
+            long start = first * inSize;
+            MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, inOffset + start, Math.min(inLength - start, (end - first) * inSize));
+            ByteBuffer output = ByteBuffer.allocateDirect(CIPHER_SEGMENT_SIZE);
+            long position = outOffset + first * outSize;
+
+            for (long index = first; index < end; ++index) {
+                int n = Math.min(inSize, window.remaining());
+                ByteBuffer segment = window.slice(window.position(), n);
+                window.position(window.position() + n);
+
+                process(index, index == count - 1, segment, output.clear());
+                output.flip();
+                while (output.hasRemaining()) {
+                    position += out.write(output, position);
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Failed to process segments %d to %d: %s".formatted(first, end - 1, e.getMessage()), e);
+        }
+    }
+
+    // Runs the cipher over one segment from src into dst
+    private int process(long index, boolean last, ByteBuffer src, ByteBuffer dst) {
+        try {
+            Cipher cipher = CipherPool.cipher(ALGORITHM);
+            cipher.init(mode, key, new GCMParameterSpec(TAG_SIZE * 8, nonce(index, last)));
+            cipher.updateAAD(aad);
+            return cipher.doFinal(src, dst);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+            throw new RuntimeException("Failed to %s segment %d: %s".formatted(
+                    mode == Cipher.ENCRYPT_MODE ? "encrypt" : "decrypt", index, e.getMessage()), e);
+        }
+    }
+
+    // Returns the nonce of segment index: the base nonce with the index
+    // XORed into bytes 7 to 10, and the last flag into byte 11
+    private byte[] nonce(long index, boolean last) {
+        if (index >>> 32 != 0) {
+            throw new RuntimeException("Too many segments: %d".formatted(index));
+        }
+        byte[] nonce = baseNonce.clone();
+        for (int i = 0; i < 4; ++i) {
+            nonce[10 - i] ^= (byte) (index >>> (8 * i));
+        }
+        nonce[11] ^= (byte) (last ? 1 : 0);
+        return nonce;
+    }
+
+    // Returns the size of a full input segment for the mode
+    private int inputSegmentSize() {
+        return mode == Cipher.ENCRYPT_MODE ? SEGMENT_SIZE : CIPHER_SEGMENT_SIZE;
+    }
+
+    // Holds input until it has one byte more than a full segment, which
+    // proves that the segment is not the last, then processes the segment.
+    // The channels use heap buffers: the JDK's AES/GCM runs on arrays, and
+    // copies direct buffers through a temporary array on every segment.
+    private final class WritingChannel implements WritableByteChannel {
+
+        private final WritableByteChannel out;
+        private final ByteBuffer input = ByteBuffer.allocate(inputSegmentSize() + 1);
+        private final ByteBuffer output = ByteBuffer.allocate(CIPHER_SEGMENT_SIZE);
+        private long index = 0;
+        private boolean open = true;
+
+        WritingChannel(WritableByteChannel out) {
+            this.out = out;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            int n = src.remaining();
+            while (src.hasRemaining()) {
+                int chunk = Math.min(input.remaining(), src.remaining());
+                input.put(src.slice(src.position(), chunk));
+                src.position(src.position() + chunk);
+                if (!input.hasRemaining()) {
+                    flush(false);
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!open) {
+                return;
+            }
+            open = false;
+            try (out) {
+                flush(true);
+            }
+        }
+
+        // Processes the first segment in input, or all of it if last
+        private void flush(boolean last) throws IOException {
+            input.flip();
+            int n = last ? input.remaining() : inputSegmentSize();
+            process(index++, last, input.slice(0, n), output.clear());
+            FileCipher.writeFully(out, output.flip());
+            input.position(n).compact();
+        }
+    }
+
+    // Reads input until it has one byte more than a full segment, or the
+    // end of in, so that it knows whether the segment is the last
+    private final class ReadingChannel implements ReadableByteChannel {
+
+        private final ReadableByteChannel in;
+        private final ByteBuffer input = ByteBuffer.allocate(inputSegmentSize() + 1);
+        private final ByteBuffer output = ByteBuffer.allocate(CIPHER_SEGMENT_SIZE).limit(0);
+        private long index = 0;
+        private boolean eof = false;
+        private boolean finished = false;
+        private boolean open = true;
+
+        ReadingChannel(ReadableByteChannel in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+            while (!output.hasRemaining()) {
+                if (finished) {
+                    return -1;
+                }
+                while (!eof && input.hasRemaining()) {
+                    int n = in.read(input);
+                    if (n == 0) {
+                        return 0;
+                    }
+                    eof = n < 0;
+                }
+
+                input.flip();
+                boolean last = input.remaining() <= inputSegmentSize();
+                int n = Math.min(inputSegmentSize(), input.remaining());
+                process(index++, last, input.slice(0, n), output.clear());
+                output.flip();
+                input.position(n).compact();
+                finished = last;
+            }
+            int n = Math.min(dst.remaining(), output.remaining());
+            dst.put(output.slice(output.position(), n));
+            output.position(output.position() + n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            open = false;
+            in.close();
+        }
+    }
+
+    // Reads from in at position until buffer is full
+    private static void readFully(FileChannel in, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = in.read(buffer, position);
+            if (n < 0) {
+                throw new RuntimeException("Invalid segmented ciphertext: unexpected end of file");
+            }
+            position += n;
+        }
+    }
+}
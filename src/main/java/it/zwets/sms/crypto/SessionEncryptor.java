@@ -0,0 +1,155 @@
+package it.zwets.sms.crypto;
+
+import java.security.PublicKey;
+import java.security.interfaces.RSAKey;
+import java.time.Duration;
+import java.util.HexFormat;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Encryptor that uses one symmetric key for many messages to one recipient.
+ * 
+ * The first message of a session carries the RSA-wrapped session key
+ * and a random session id; all later messages carry only the session id
+ * and a random nonce, and save the RSA operation and the wrapped key.  A
+ * new session is started when the current one reaches its message limit
+ * or its maximum age.
+ * 
+ * The recipient can only decrypt the later messages of a session after
+ * it has decrypted the first one, with a {@link PkiCrypto.Decryptor} that has a
+ * session key cache.  Its cache must keep keys for at least the maximum
+ * age of a session, and the sender must start a new session (see
+ * {@link #newSession()}) if it learns that the recipient lost it.
+ * 
+ * Session mode is for RSA keys only; XDH keys are cheap to use per message.
+ * 
+ * This class is thread-safe.
+ */
+public final class SessionEncryptor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SessionEncryptor.class);
+
+    /** Default maximum number of messages in a session */
+    public static final long DEFAULT_MAX_MESSAGES = 1L << 20;
+    /** Default maximum age of a session */
+    public static final Duration DEFAULT_MAX_AGE = Duration.ofMinutes(30);
+
+    private final PublicKey pubkey;
+    private final byte[] keyId;
+    private final long maxMessages;
+    private final long maxAgeNanos;
+
+    // The current session, guarded by this
+    private byte[] sessionId;
+    private byte[] sessionKey;
+    private byte[] sessionEncKey;
+    private long sessionStart;
+    private long sessionCount;
+
+    /**
+     * Create a session encryptor for pubkey with the default limits.
+     * @param pubkey the RSA public key of the recipient
+     * @throws RuntimeException if pubkey is not an RSA key
+     */
+    public SessionEncryptor(PublicKey pubkey) {
+        this(pubkey, false, DEFAULT_MAX_MESSAGES, DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * Create a session encryptor for pubkey.
+     * @param pubkey the RSA public key of the recipient
+     * @param withKeyId whether to include the key id in every message
+     * @param maxMessages the number of messages after which to start a new session
+     * @param maxAge the age after which to start a new session
+     * @throws RuntimeException if pubkey is not an RSA key
+     */
+    public SessionEncryptor(PublicKey pubkey, boolean withKeyId, long maxMessages, Duration maxAge) {
+        if (!(pubkey instanceof RSAKey)) {
+            throw new RuntimeException("Session mode requires an RSA key, not %s".formatted(pubkey.getAlgorithm()));
+        }
+        this.pubkey = pubkey;
+        this.keyId = withKeyId ? PkiCrypto.keyId(pubkey) : null;
+        this.maxMessages = maxMessages;
+        this.maxAgeNanos = maxAge.toNanos();
+    }
+
+    /**
+     * Encrypt plaintext in the current session, starting one if needed.
+     * 
+     * @param plaintext the payload to encode, of at most {@link PkiCrypto#MAX_SINGLE_SHOT_SIZE} bytes
+     * @return the session message
+     * @throws RuntimeException for any underlying exception
+     */
+    public byte[] encrypt(final byte[] plaintext) {
+        LOG.debug("encrypting plaintext in session");
+        PkiCrypto.checkSingleShot(PkiCrypto.Version.SESSION, plaintext.length);
+
+        byte[] id, key, encKey;
+        synchronized (this) {
+            if (sessionId == null || sessionCount >= maxMessages || System.nanoTime() - sessionStart > maxAgeNanos) {
+                startSession();
+            }
+            id = sessionId;
+            key = sessionKey;
+            encKey = sessionCount++ == 0 ? sessionEncKey : null;
+        }
+
+        byte[] nonce = new byte[PkiCrypto.NONCE_LENGTH];
+        CipherPool.random().nextBytes(nonce);
+        PkiCrypto.Header header = new PkiCrypto.Header(encKey != null ? PkiCrypto.Version.SESSION_KEY : PkiCrypto.Version.SESSION,
+                keyId != null ? PkiCrypto.FLAG_KEY_ID : 0, keyId, id, encKey != null ? encKey : new byte[0], nonce);
+        byte[] headerBytes = header.toBytes();
+
+        byte[] ciphertext = new byte[headerBytes.length + plaintext.length + PkiCrypto.TAG_LENGTH];
+        System.arraycopy(headerBytes, 0, ciphertext, 0, headerBytes.length);
+        try {
+            PkiCrypto.initSymmetricCipher(CipherPool.cipher(PkiCrypto.AEAD_ALGORITHM), Cipher.ENCRYPT_MODE, key, header)
+                .doFinal(plaintext, 0, plaintext.length, ciphertext, headerBytes.length);
+            return ciphertext;
+        } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+            throw new RuntimeException("Failed to encrypt plaintext: %s".formatted(e.getMessage()), e);
+        }
+    }
+
+    /**
+     * End the current session, so that the next message starts a new one.
+     */
+    public synchronized void newSession() {
+        sessionId = null;
+    }
+
+    /**
+     * Return the id of the current session.
+     * @return the session id, or null if there is no current session
+     */
+    public synchronized byte[] getSessionId() {
+        return sessionId == null ? null : sessionId.clone();
+    }
+
+    // Starts a new session under the given id, to play a sender that
+    // reuses the id of another session
+    synchronized void newSession(byte[] id) {
+        startSession();
+        sessionId = id.clone();
+    }
+
+    // Generates and wraps a new session key, called with the lock held
+    private void startSession() {
+        byte[] id = new byte[PkiCrypto.SESSION_ID_SIZE];
+        CipherPool.random().nextBytes(id);
+        byte[] key = PkiCrypto.newSymmetricKey();
+        sessionEncKey = PkiCrypto.pkiEncrypt(pubkey, key);
+        sessionKey = key;
+        sessionId = id;
+        sessionStart = System.nanoTime();
+        sessionCount = 0;
+        LOG.debug("started session {}", HexFormat.of().formatHex(id));
+    }
+}
@@ -1,18 +1,39 @@
 package it.zwets.sms.crypto;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.security.KeyStore;
 import java.security.KeyStore.PasswordProtection;
 import java.security.KeyStore.PrivateKeyEntry;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.UnrecoverableEntryException;
+import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HexFormat;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -46,14 +67,89 @@ import org.slf4j.LoggerFactory;
  * The resulting public key can be used by {@link PkiUtils#encrypt()} to
  * encrypt messages that can only be decrypted by the Vault.
  * 
+ * The keystore is parsed once and kept in memory as an immutable snapshot.
+ * On every access a cheap stat of the keystore file (modification time,
+ * size and file key) is compared against the snapshot, and when it differs
+ * the file is reloaded and the snapshot swapped atomically.  Only one thread
+ * performs the reload; concurrent readers keep using the previous snapshot
+ * in the meantime.  Keystores read from the classpath are loaded only once.
+ * 
+ * Unwrapping a private key from the keystore is costly too, so the keys for
+ * each alias are held in a bounded {@link KeyCache} that evicts the least
+ * recently used aliases and those that have been idle for too long.  Use
+ * {@link #preload()} to unwrap the keys for all aliases up front.
+ * 
+ * Ciphertext whose header carries a {@link PkiCrypto#keyId(PublicKey) key id}
+ * can be decrypted without naming the alias, through an index from key id
+ * to alias that is built from the certificates of the snapshot.
+ * 
+ * The keys of the PkiCrypto sessions that the vault has seen are kept in a
+ * bounded, expiring cache, so that later messages in a session can be
+ * decrypted without a private key operation.
+ * 
+ * An optional {@link ReplayGuard} makes the vault reject ciphertexts that it
+ * has decrypted before, without a private key operation.
+ * 
  * @author zwets
  */
 public class Vault {
 	
 	private static Logger LOG = LoggerFactory.getLogger(Vault.class);
 
-	private String keyStoreFileName;
-	private char[] keyStorePassword;
+	/** Default maximum number of aliases whose keys are cached */
+	public static final int DEFAULT_CACHE_SIZE = 1024;
+	/** Default time after which an unused cached key is dropped */
+	public static final Duration DEFAULT_CACHE_IDLE = Duration.ofHours(1);
+
+	/** Default maximum number of session keys that are cached */
+	public static final int DEFAULT_SESSION_CACHE_SIZE = 10_000;
+
+	private final String keyStoreFileName;
+	private final char[] keyStorePassword;
+
+	private volatile Snapshot snapshot;
+	private final AtomicBoolean reloading = new AtomicBoolean();
+	private final AtomicLong reloadCount = new AtomicLong();
+	private final AtomicLong reloadFailureCount = new AtomicLong();
+	private volatile Stamp failedStamp;
+	private volatile Duration lastLoadDuration = Duration.ZERO;
+
+	/**
+	 * The keystore as parsed from the file whose attributes were stamp.
+	 * @param keyStore the loaded keystore, which we never modify
+	 * @param stamp the file attributes before loading, or null if not a file
+	 */
+	private record Snapshot(KeyStore keyStore, Stamp stamp) { }
+
+	/**
+	 * The file attributes that we check to detect a changed keystore file.
+	 * The file key (inode) catches files that are atomically replaced.
+	 */
+	private record Stamp(FileTime modified, long size, Object fileKey) { }
+
+	/**
+	 * Cache key that ties cached keys to the snapshot they came from, so
+	 * that a reload never serves keys from the previous keystore file.
+	 */
+	private record CacheKey(Snapshot snapshot, String alias) { }
+
+	/**
+	 * The unwrapped keys for an alias.
+	 */
+	private record Keys(PrivateKey privateKey, PublicKey publicKey) { }
+
+	private final KeyCache<CacheKey,Keys> keyCache;
+
+	/**
+	 * The aliases of the key entries in snapshot by hex key id.
+	 */
+	private record KeyIndex(Snapshot snapshot, Map<String,String> aliases) { }
+
+	private volatile KeyIndex keyIndex;
+
+	private final KeyCache<String,byte[]> sessionKeys;
+
+	private final ReplayGuard replayGuard;
 
 	/**
 	 * Create or open the given keystore with the given password
@@ -62,8 +158,41 @@ public class Vault {
 	 * @param password the password to use for the keystore
 	 */
 	public Vault(String fileName, String password) {
+		this(fileName, password, DEFAULT_CACHE_SIZE, DEFAULT_CACHE_IDLE);
+	}
+
+	/**
+	 * Create or open the given keystore, caching the keys of at most
+	 * cacheSize aliases for at most cacheIdle since their last use.
+	 * 
+	 * @param fileName the path of the keystore to open
+	 * @param password the password to use for the keystore
+	 * @param cacheSize maximum number of aliases to cache keys for, 0 for none
+	 * @param cacheIdle time after which an unused alias or session key is dropped from the cache
+	 */
+	public Vault(String fileName, String password, int cacheSize, Duration cacheIdle) {
+		this(fileName, password, cacheSize, cacheIdle, DEFAULT_SESSION_CACHE_SIZE, null);
+	}
+
+	/**
+	 * Create or open the given keystore, with key caching as above and
+	 * the keys of at most sessionCacheSize sessions cached, and reject
+	 * ciphertexts that replayGuard has seen before.
+	 * 
+	 * @param fileName the path of the keystore to open
+	 * @param password the password to use for the keystore
+	 * @param cacheSize maximum number of aliases to cache keys for, 0 for none
+	 * @param cacheIdle time after which an unused alias or session key is dropped from the cache
+	 * @param sessionCacheSize maximum number of session keys to cache, 0 for none
+	 * @param replayGuard the filter of seen ciphertexts, or null for none
+	 * @see PkiCrypto.Decryptor#Decryptor(PrivateKey, KeyCache, ReplayGuard)
+	 */
+	public Vault(String fileName, String password, int cacheSize, Duration cacheIdle, int sessionCacheSize, ReplayGuard replayGuard) {
 		this.keyStoreFileName = fileName;
 		this.keyStorePassword = password == null ? null : password.toCharArray();
+		this.keyCache = new KeyCache<>(cacheSize, cacheIdle);
+		this.sessionKeys = PkiCrypto.newSessionCache(sessionCacheSize, cacheIdle);
+		this.replayGuard = replayGuard;
 	}
 
     /**
@@ -74,13 +203,42 @@ public class Vault {
      */
     public Iterator<String> getAliases() {
         try {
-            return getKeyStore().aliases().asIterator();
+            return getSnapshot().keyStore().aliases().asIterator();
         } catch (KeyStoreException e) {
             LOG.error("Exception getting aliases from {}: {}", keyStoreFileName, e.getMessage());
             throw new RuntimeException(e.getMessage(), e.getCause());
         }
     }
     
+    /**
+     * Return whether this vault was opened on the keystore fileName with
+     * password.
+     * 
+     * File names match if they are paths to the same file; keystores read
+     * from the classpath match only by the same name.
+     * 
+     * @param fileName the keystore file name, or classpath: and the resource name
+     * @param password the keystore password
+     * @return true if both the keystore and the password are those of the vault
+     */
+    public boolean isKeyStore(String fileName, String password) {
+        boolean sameFile;
+        if (keyStoreFileName.startsWith("classpath:") || fileName.startsWith("classpath:")) {
+            sameFile = keyStoreFileName.equals(fileName);
+        }
+        else {
+            try {
+                sameFile = Files.isSameFile(Path.of(keyStoreFileName), Path.of(fileName));
+            } catch (IOException e) {
+                LOG.debug("Cannot compare keystore file {} with {}: {}", keyStoreFileName, fileName, e.getMessage());
+                sameFile = false;
+            }
+        }
+        byte[] expected = new String(keyStorePassword == null ? new char[0] : keyStorePassword).getBytes(StandardCharsets.UTF_8);
+        byte[] given = (password == null ? "" : password).getBytes(StandardCharsets.UTF_8);
+        return MessageDigest.isEqual(expected, given) && sameFile;
+    }
+
 	/**
 	 * Return the public key stored for the alias
 	 * 
@@ -89,7 +247,7 @@ public class Vault {
 	 * @throws RuntimeException for any underlying checked exception
 	 */
 	public PublicKey getPublicKey(String alias) {
-	    return getEntry(alias).getCertificate().getPublicKey();
+	    return getKeys(alias).publicKey();
 	}
 	
 	/**
@@ -99,7 +257,7 @@ public class Vault {
      * @throws RuntimeException for any underlying checked exception
 	 */
 	public PrivateKey getPrivateKey(String alias) {
-	    return getEntry(alias).getPrivateKey();
+	    return getKeys(alias).privateKey();
     }
 
 	/**
@@ -111,10 +269,446 @@ public class Vault {
 	 * @throws RuntimeException for any underlying checked exception
 	 */
 	public byte[] decrypt(String alias, byte[] ciphertext) {
-		return PkiCrypto.decrypt(getPrivateKey(alias), ciphertext);
+		return getDecryptor(alias).decrypt(ciphertext);
 	}
 
-	private KeyStore getKeyStore() {
+    /**
+     * Decrypt the ciphertext with the private key of its recipient.
+     * 
+     * If the ciphertext header has a key id, the alias is looked up in the
+     * key id index, and for a multi-recipient ciphertext the first of its
+     * recipients that is in the index is used.  Otherwise the keys of all
+     * aliases are tried in turn,
+     * which costs one private key operation per alias.
+     * 
+     * With a {@link ReplayGuard}, a ciphertext that was seen before, or
+     * is in the unauthenticated {@link PkiCrypto.Version#V1} format, is
+     * rejected before any of this.
+     * 
+     * @param ciphertext the text to decode
+     * @return the plaintext
+     * @throws RuntimeException if no key in the vault decrypts the ciphertext
+     */
+    public byte[] decrypt(byte[] ciphertext) {
+        checkReplay(ciphertext);
+        return decryptForRecipient(ciphertext, alias -> decrypt(alias, ciphertext));
+    }
+
+    /**
+     * Decrypt file in to file out with the private key for alias.
+     * 
+     * @param alias the ID the key was stored under
+     * @param in the ciphertext file
+     * @param out the plaintext file, replaced only if decryption succeeds
+     * @throws RuntimeException for any underlying exception
+     * @see PkiCrypto.Decryptor#decrypt(Path, Path)
+     */
+    public void decrypt(String alias, Path in, Path out) {
+        getDecryptor(alias).decrypt(in, out);
+    }
+
+    /**
+     * Decrypt file in to file out with the private key of its recipient,
+     * picked from the ciphertext header as {@link #decrypt(byte[])} does.
+     * 
+     * @param in the ciphertext file
+     * @param out the plaintext file, replaced only if decryption succeeds
+     * @throws RuntimeException if no key in the vault decrypts the file,
+     *         or for any underlying exception
+     */
+    public void decrypt(Path in, Path out) {
+        byte[] head;
+        try (InputStream is = new BufferedInputStream(Files.newInputStream(in))) {
+            head = PkiCrypto.readHeader(is);
+        }
+        catch (IOException e) {
+            throw new RuntimeException("Failed to read file %s: %s".formatted(in, e.getMessage()), e);
+        }
+        checkReplay(head);
+        decryptForRecipient(head, alias -> {
+            decrypt(alias, in, out);
+            return null;
+        });
+    }
+
+    // Rejects up front what the decryptor of every alias would reject,
+    // rather than trying them all
+    private void checkReplay(byte[] ciphertext) {
+        if (replayGuard == null) {
+            return;
+        }
+        if (PkiCrypto.getVersion(ciphertext) == PkiCrypto.Version.V1) {
+            throw new RuntimeException("Unauthenticated V1 ciphertext rejected by replay guard");
+        }
+        if (replayGuard.mightContain(PkiCrypto.fingerprint(ciphertext))) {
+            throw new RuntimeException("Replayed ciphertext rejected");
+        }
+    }
+
+    // Applies decryption with the alias for the key id (or the first known
+    // recipient) in the header at the start of ciphertext, or else with
+    // every alias in turn until one succeeds
+    private <T> T decryptForRecipient(byte[] ciphertext, Function<String,T> decryption) {
+        byte[] keyId = PkiCrypto.getKeyId(ciphertext);
+
+        if (keyId != null) {
+            String alias = getKeyIndex().aliases().get(HexFormat.of().formatHex(keyId));
+            if (alias == null) {
+                throw new RuntimeException("No key in keystore for key id: %s".formatted(HexFormat.of().formatHex(keyId)));
+            }
+            return decryption.apply(alias);
+        }
+
+        for (byte[] recipient : PkiCrypto.getRecipientKeyIds(ciphertext)) {
+            String alias = getKeyIndex().aliases().get(HexFormat.of().formatHex(recipient));
+            if (alias != null) {
+                return decryption.apply(alias);
+            }
+        }
+
+        LOG.debug("Ciphertext has no known key id, trying all aliases");
+        for (String alias : getKeyIndex().aliases().values()) {
+            try {
+                return decryption.apply(alias);
+            }
+            catch (RuntimeException e) {
+                LOG.trace("Alias {} does not decrypt: {}", alias, e.getMessage());
+            }
+        }
+        throw new RuntimeException("No key in keystore decrypts the ciphertext");
+    }
+
+    /**
+     * Decrypt the ciphertext asynchronously on the {@link CryptoExecutors#cpu() CPU pool}.
+     * 
+     * @param ciphertext the text to decode
+     * @return the future plaintext
+     * @see #decryptAsync(byte[], Executor)
+     */
+    public CompletableFuture<byte[]> decryptAsync(byte[] ciphertext) {
+        return decryptAsync(ciphertext, CryptoExecutors.cpu());
+    }
+
+    /**
+     * Decrypt the ciphertext asynchronously on executor, with the private
+     * key of its recipient as {@link #decrypt(byte[])} does.
+     * 
+     * Cancelling the future before the task starts skips the decryption.
+     * 
+     * @param ciphertext the text to decode
+     * @param executor runs the decryption
+     * @return the future plaintext
+     */
+    public CompletableFuture<byte[]> decryptAsync(byte[] ciphertext, Executor executor) {
+        return CryptoExecutors.supply(() -> decrypt(ciphertext), executor);
+    }
+
+    /**
+     * Decrypt the ciphertext asynchronously on executor with the private
+     * key for alias.
+     * 
+     * @param alias the ID the key was stored under
+     * @param ciphertext the text to decode
+     * @param executor runs the decryption
+     * @return the future plaintext
+     */
+    public CompletableFuture<byte[]> decryptAsync(String alias, byte[] ciphertext, Executor executor) {
+        return CryptoExecutors.supply(() -> decrypt(alias, ciphertext), executor);
+    }
+
+    /**
+     * Return the alias whose public key has the key id in the ciphertext header.
+     * 
+     * @param ciphertext the ciphertext, or at least its header
+     * @return the alias, or null if the header has no key id or it is unknown
+     * @throws RuntimeException if the header is invalid
+     */
+    public String findAlias(byte[] ciphertext) {
+        byte[] keyId = PkiCrypto.getKeyId(ciphertext);
+        return keyId == null ? null : getKeyIndex().aliases().get(HexFormat.of().formatHex(keyId));
+    }
+
+    /**
+     * Decrypt a batch of ciphertexts for alias in parallel on the CPU pool.
+     * 
+     * @param alias the ID the key was stored under
+     * @param ciphertexts the payloads to decrypt
+     * @return the plaintexts or failures, in the order of ciphertexts
+     * @throws RuntimeException if the key for alias cannot be obtained
+     * @see PkiCrypto.Decryptor#decryptAll(List, Executor)
+     */
+    public List<Batch.Result> decryptAll(String alias, List<byte[]> ciphertexts) {
+        return getDecryptor(alias).decryptAll(ciphertexts);
+    }
+
+    /**
+     * Decrypt a batch of ciphertexts for alias in parallel on executor.
+     * 
+     * @param alias the ID the key was stored under
+     * @param ciphertexts the payloads to decrypt
+     * @param executor runs the decryptions
+     * @return the plaintexts or failures, in the order of ciphertexts
+     * @throws RuntimeException if the key for alias cannot be obtained
+     * @see PkiCrypto.Decryptor#decryptAll(List, Executor)
+     */
+    public List<Batch.Result> decryptAll(String alias, List<byte[]> ciphertexts, Executor executor) {
+        return getDecryptor(alias).decryptAll(ciphertexts, executor);
+    }
+
+    /**
+     * Decrypt ciphertexts for alias in parallel on executor as they are consumed.
+     * 
+     * @param alias the ID the key was stored under
+     * @param ciphertexts the payloads to decrypt
+     * @param executor runs the decryptions
+     * @return sequential stream of the plaintexts or failures, in input order
+     * @throws RuntimeException if the key for alias cannot be obtained
+     * @see PkiCrypto.Decryptor#decryptAll(Stream, Executor)
+     */
+    public Stream<Batch.Result> decryptAll(String alias, Stream<byte[]> ciphertexts, Executor executor) {
+        return getDecryptor(alias).decryptAll(ciphertexts, executor);
+    }
+
+    /**
+     * Unwrap and cache the keys of all key entries in the keystore.
+     * 
+     * The key entries are unwrapped in parallel on the
+     * {@link CryptoExecutors#cpu() CPU pool}.  If there are more aliases than the cache can hold, only the
+     * last ones to be loaded remain cached.
+     * 
+     * @return the number of aliases whose keys were loaded
+     * @throws RuntimeException for any underlying checked exception
+     */
+    public int preload() {
+        Snapshot current = getSnapshot();
+        try {
+            KeyStore keyStore = current.keyStore();
+            long start = System.nanoTime();
+            
+            List<String> aliases = Collections.list(keyStore.aliases()).stream()
+                    .filter(alias -> isKeyEntry(keyStore, alias))
+                    .toList();
+
+            CryptoExecutors.all(aliases.stream()
+                    .map(alias -> (Supplier<Keys>) () -> getKeys(current, alias))
+                    .toList(), CryptoExecutors.cpu());
+
+            int count = aliases.size();
+
+            if (count > keyCache.getMaxSize()) {
+                LOG.warn("Preloaded {} aliases but cache holds only {}", count, keyCache.getMaxSize());
+            }
+            LOG.info("Preloaded keys for {} aliases in {}", count, Duration.ofNanos(System.nanoTime() - start));
+            return count;
+        } catch (KeyStoreException e) {
+            LOG.error("Exception preloading aliases from {}: {}", keyStoreFileName, e.getMessage());
+            throw new RuntimeException(e.getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Return the hit, miss and eviction counts of the key cache.
+     * 
+     * @return the current key cache statistics
+     */
+    public KeyCache.Stats getKeyCacheStats() {
+        return keyCache.getStats();
+    }
+
+    /**
+     * Return the hit, miss and eviction counts of the session key cache.
+     * 
+     * @return the current session key cache statistics
+     */
+    public KeyCache.Stats getSessionCacheStats() {
+        return sessionKeys.getStats();
+    }
+
+    /**
+     * Return a decryptor for alias that shares the vault's session key cache.
+     * 
+     * @param alias the ID the key was stored under
+     * @return the decryptor
+     * @throws RuntimeException if the key for alias cannot be obtained
+     */
+    public PkiCrypto.Decryptor getDecryptor(String alias) {
+        return new PkiCrypto.Decryptor(getPrivateKey(alias), sessionKeys, replayGuard);
+    }
+
+    /**
+     * Return the number of times the keystore was reloaded because its file
+     * changed, not counting the initial load.
+     * 
+     * @return the number of reloads
+     */
+    public long getReloadCount() {
+        return reloadCount.get();
+    }
+
+    /**
+     * Return the number of times a reload of the changed keystore file
+     * failed.  A failed file is not retried until it changes again.
+     * 
+     * @return the number of failed reloads
+     */
+    public long getReloadFailureCount() {
+        return reloadFailureCount.get();
+    }
+
+    /**
+     * Return the time taken by the most recent (re)load of the keystore.
+     * 
+     * @return the duration of the last load, zero if not loaded yet
+     */
+    public Duration getLastLoadDuration() {
+        return lastLoadDuration;
+    }
+
+    // Returns the key id index for the current snapshot, building it if needed
+    private KeyIndex getKeyIndex() {
+        Snapshot current = getSnapshot();
+        KeyIndex index = keyIndex;
+        if (index == null || index.snapshot() != current) {
+            keyIndex = index = buildKeyIndex(current);
+        }
+        return index;
+    }
+
+    // Indexes the key entries by the key id of their certificate's public key
+    private KeyIndex buildKeyIndex(Snapshot snapshot) {
+        KeyStore keyStore = snapshot.keyStore();
+        Map<String,String> aliases = new LinkedHashMap<>();
+        try {
+            for (String alias : Collections.list(keyStore.aliases())) {
+                Certificate cert = keyStore.isKeyEntry(alias) ? keyStore.getCertificate(alias) : null;
+                if (cert != null) {
+                    String keyId = HexFormat.of().formatHex(PkiCrypto.keyId(cert.getPublicKey()));
+                    String other = aliases.putIfAbsent(keyId, alias);
+                    if (other != null) {
+                        LOG.warn("Aliases {} and {} have the same key id, using {}", other, alias, other);
+                    }
+                }
+            }
+        } catch (KeyStoreException e) {
+            LOG.error("Exception indexing aliases from {}: {}", keyStoreFileName, e.getMessage());
+            throw new RuntimeException(e.getMessage(), e.getCause());
+        }
+        LOG.debug("Indexed {} key ids in keystore {}", aliases.size(), keyStoreFileName);
+        return new KeyIndex(snapshot, Collections.unmodifiableMap(aliases));
+    }
+
+    // Returns the cached keys for alias, loading them on a miss
+    private Keys getKeys(String alias) {
+        return getKeys(getSnapshot(), alias);
+    }
+
+    // Returns the cached keys for alias in snapshot, loading them on a miss.
+    // A load that straddles a reload must not leave its entry behind after
+    // the reload cleared the cache, as that would pin the old keystore, so
+    // the entry is dropped again if the snapshot was replaced meanwhile.
+    private Keys getKeys(Snapshot current, String alias) {
+        CacheKey key = new CacheKey(current, alias);
+        Keys keys = keyCache.get(key, k -> loadKeys(current, alias));
+        if (snapshot != current) {
+            keyCache.remove(key);
+        }
+        return keys;
+    }
+
+    // Unwraps the keys for alias from the snapshot
+    private Keys loadKeys(Snapshot snapshot, String alias) {
+        PrivateKeyEntry pke = getEntry(snapshot.keyStore(), alias);
+        return new Keys(pke.getPrivateKey(), pke.getCertificate().getPublicKey());
+    }
+
+    // Avoids the checked exception in the preload stream
+    private static boolean isKeyEntry(KeyStore keyStore, String alias) {
+        try {
+            return keyStore.isKeyEntry(alias);
+        } catch (KeyStoreException e) {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Return the current keystore snapshot, reloading it if the file changed.
+     * 
+     * The initial load blocks all callers.  After that, exactly one caller
+     * does a reload when the file changes, while other callers continue to
+     * use the current snapshot.  If the reload fails, the current snapshot
+     * stays in place, and the reload is retried only when the file changes
+     * again, so that a broken file is not parsed on every access.
+     * 
+     * @return the current snapshot, never null
+     * @throws RuntimeException if the initial load fails
+     */
+    private Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+
+        if (current == null) {
+            synchronized (this) {
+                current = snapshot;
+                if (current == null) {
+                    current = snapshot = loadSnapshot();
+                }
+            }
+        }
+        else if (current.stamp() != null) {
+            Stamp changed = getChangedStamp(current.stamp());
+            if (changed != null && reloading.compareAndSet(false, true)) {
+                try {
+                    LOG.info("Keystore file changed, reloading: {}", keyStoreFileName);
+                    current = snapshot = loadSnapshot();
+                    failedStamp = null;
+                    reloadCount.incrementAndGet();
+                    keyCache.clear();
+                }
+                catch (RuntimeException e) {
+                    failedStamp = changed;
+                    reloadFailureCount.incrementAndGet();
+                    LOG.warn("Failed to reload keystore {}, keeping previous: {}", keyStoreFileName, e.getMessage());
+                }
+                finally {
+                    reloading.set(false);
+                }
+            }
+        }
+
+        return current;
+    }
+
+    // Returns the file stamp if it can be read and differs from stamp and
+    // from the stamp of the last failed reload, else null
+    private Stamp getChangedStamp(Stamp stamp) {
+        Stamp now = readStamp();
+        return now != null && !now.equals(stamp) && !now.equals(failedStamp) ? now : null;
+    }
+
+    // Returns the current stamp of the keystore file, or null if it has none
+    private Stamp readStamp() {
+        if (keyStoreFileName.startsWith("classpath:")) {
+            return null;
+        }
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(Path.of(keyStoreFileName), BasicFileAttributes.class);
+            return new Stamp(attrs.lastModifiedTime(), attrs.size(), attrs.fileKey());
+        } catch (IOException e) {
+            LOG.debug("Cannot stat keystore file {}: {}", keyStoreFileName, e.getMessage());
+            return null;
+        }
+    }
+
+    // Stamps and loads the keystore, recording the time it took
+    private Snapshot loadSnapshot() {
+        long start = System.nanoTime();
+        Stamp stamp = readStamp();
+        KeyStore keyStore = loadKeyStore();
+        lastLoadDuration = Duration.ofNanos(System.nanoTime() - start);
+        LOG.debug("Loaded keystore {} in {}", keyStoreFileName, lastLoadDuration);
+        return new Snapshot(keyStore, stamp);
+    }
+
+	private KeyStore loadKeyStore() {
 		LOG.debug("Loading keystore: {}", keyStoreFileName);
 		try {
 			KeyStore keyStore;
@@ -141,9 +735,9 @@ public class Vault {
 		}
 	}
 
-	private PrivateKeyEntry getEntry(String alias) {
+	private PrivateKeyEntry getEntry(KeyStore keyStore, String alias) {
 		try {
-		    PrivateKeyEntry pke = (PrivateKeyEntry) getKeyStore().getEntry(alias, new PasswordProtection(keyStorePassword));
+		    PrivateKeyEntry pke = (PrivateKeyEntry) keyStore.getEntry(alias, new PasswordProtection(keyStorePassword));
 		    if (pke == null) {
 	            LOG.error("No key in keystore for alias: {}", alias);
 		        throw new RuntimeException("No key in keystore for alias: %s".formatted(alias));
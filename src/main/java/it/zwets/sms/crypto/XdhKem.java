@@ -0,0 +1,241 @@
+package it.zwets.sms.crypto;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.interfaces.XECKey;
+import java.security.interfaces.XECPublicKey;
+import java.security.spec.AlgorithmParameterSpec;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.NamedParameterSpec;
+import java.security.spec.XECPublicKeySpec;
+import java.util.Arrays;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Key encapsulation with XDH (X25519 or X448) keys, for {@link PkiCrypto}.
+ *
+ * The sender generates an ephemeral key pair, and both sides derive the
+ * symmetric key with HKDF-SHA256 from the XDH shared secret of the ephemeral
+ * key and the recipient's key, salted with the ephemeral public key.  That
+ * public key is transmitted as its little-endian u-coordinate, as in RFC 7748.
+ *
+ * For the recipient table of a {@link MultiEncryptor}, a key can be wrapped
+ * for an XDH recipient: the entry is the ephemeral public key followed by the
+ * key encrypted with AES/GCM under the derived key.
+ */
+final class XdhKem {
+
+    // Size of the derived symmetric key in bytes
+    private static final int KEY_SIZE = 256 / 8; // for AES
+
+    // Parameters for the XDH key agreement and the key derivation
+    private static final String AGREEMENT_ALGORITHM = "XDH";
+    private static final String KDF_ALGORITHM = "HmacSHA256";
+    private static final byte[] KDF_INFO = "sms-client XDH AES-256-GCM".getBytes(StandardCharsets.US_ASCII);
+
+    // Parameters for the wrapping of a key; every wrap has its own derived
+    // key, so the GCM nonce is all zeros
+    private static final String WRAP_ALGORITHM = "AES/GCM/NoPadding";
+    private static final String WRAP_KEYTYPE = "AES";
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_LENGTH = 16;
+
+    /**
+     * The result of an encapsulation.
+     * @param ephemeralKey the encoded ephemeral public key, for the recipient
+     * @param key the derived symmetric key
+     */
+    record Encapsulation(byte[] ephemeralKey, byte[] key) { }
+
+    private XdhKem() {
+    }
+
+    /**
+     * Returns true if key is an XDH key.
+     * @param key the public or private key
+     * @return whether key is an XDH key
+     */
+    static boolean isXdh(final Key key) {
+        return key instanceof XECKey;
+    }
+
+    /**
+     * Generates an ephemeral XDH key pair and derives the symmetric key from
+     * its agreement with the recipient's public key.
+     * @param pubkey the XDH public key of the recipient
+     * @return the derived key and the encoded ephemeral public key
+     * @throws RuntimeException for any underlying exception
+     */
+    static Encapsulation encapsulate(final PublicKey pubkey) {
+        try {
+            AlgorithmParameterSpec params = ((XECKey) pubkey).getParams();
+            KeyPairGenerator generator = KeyPairGenerator.getInstance(AGREEMENT_ALGORITHM);
+            generator.initialize(params, CipherPool.random());
+            KeyPair ephemeral = generator.generateKeyPair();
+
+            byte[] epk = encode((XECPublicKey) ephemeral.getPublic(), keySize(params));
+            return new Encapsulation(epk, deriveKey(agree(ephemeral.getPrivate(), pubkey), epk));
+        } catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException e) {
+            throw new RuntimeException("PKI error during XDH encapsulation: %s".formatted(e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Derives the symmetric key from the agreement of our private key with
+     * the ephemeral public key.
+     * @param privkey the XDH private key of the recipient
+     * @param epk the encoded ephemeral public key
+     * @return the symmetric key
+     * @throws RuntimeException for any underlying exception
+     */
+    static byte[] decapsulate(final PrivateKey privkey, final byte[] epk) {
+        AlgorithmParameterSpec params = ((XECKey) privkey).getParams();
+        if (epk.length != keySize(params)) {
+            throw new RuntimeException("Invalid ephemeral key size: %d bytes".formatted(epk.length));
+        }
+        return deriveKey(agree(privkey, decode(epk, params)), epk);
+    }
+
+    /**
+     * Wraps key for an XDH recipient of a multi-recipient ciphertext.
+     * @param pubkey the XDH public key of the recipient
+     * @param key the symmetric key to wrap
+     * @return the ephemeral public key followed by the AES/GCM-wrapped key
+     */
+    static byte[] wrap(final PublicKey pubkey, final byte[] key) {
+        Encapsulation kem = encapsulate(pubkey);
+        byte[] epk = kem.ephemeralKey();
+        try {
+            Cipher cipher = CipherPool.cipher(WRAP_ALGORITHM);
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(kem.key(), WRAP_KEYTYPE),
+                    new GCMParameterSpec(TAG_LENGTH * 8, new byte[NONCE_LENGTH]));
+            byte[] wrapped = Arrays.copyOf(epk, epk.length + key.length + TAG_LENGTH);
+            cipher.doFinal(key, 0, key.length, wrapped, epk.length);
+            return wrapped;
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+            throw new RuntimeException("Failed to wrap key: %s".formatted(e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Unwraps the key from the entry made by {@link #wrap(PublicKey, byte[])}.
+     * @param privkey the XDH private key of the recipient
+     * @param wrapped the ephemeral public key followed by the wrapped key
+     * @return the symmetric key
+     */
+    static byte[] unwrap(final PrivateKey privkey, final byte[] wrapped) {
+        int size = keySize(((XECKey) privkey).getParams());
+        if (wrapped.length <= size) {
+            throw new RuntimeException("Invalid wrapped key size: %d bytes".formatted(wrapped.length));
+        }
+        byte[] kek = decapsulate(privkey, Arrays.copyOf(wrapped, size));
+        try {
+            Cipher cipher = CipherPool.cipher(WRAP_ALGORITHM);
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(kek, WRAP_KEYTYPE),
+                    new GCMParameterSpec(TAG_LENGTH * 8, new byte[NONCE_LENGTH]));
+            return cipher.doFinal(wrapped, size, wrapped.length - size);
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
+            throw new RuntimeException("Failed to unwrap key: %s".formatted(e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Returns the public key that belongs to an XDH private key, which is
+     * its agreement with the base point.
+     * @param privkey the private key
+     * @return the public key
+     */
+    static PublicKey publicKeyOf(final XECKey privkey) {
+        int size = keySize(privkey.getParams());
+        byte[] base = new byte[size];
+        base[0] = (byte) (size == 32 ? 9 : 5); // the base point u-coordinate
+        return decode(agree((PrivateKey) privkey, decode(base, privkey.getParams())), privkey.getParams());
+    }
+
+    /**
+     * Returns the size of the encoded public key for the XDH curve.
+     * @param params the curve of the key
+     * @return 56 for X448, else 32
+     */
+    static int keySize(AlgorithmParameterSpec params) {
+        return params instanceof NamedParameterSpec named && NamedParameterSpec.X448.getName().equalsIgnoreCase(named.getName()) ? 56 : 32;
+    }
+
+    // Returns the XDH shared secret of privkey and pubkey
+    private static byte[] agree(final PrivateKey privkey, final PublicKey pubkey) {
+        try {
+            KeyAgreement agreement = CipherPool.keyAgreement(AGREEMENT_ALGORITHM);
+            agreement.init(privkey);
+            agreement.doPhase(pubkey, true);
+            return agreement.generateSecret();
+        } catch (InvalidKeyException e) {
+            throw new RuntimeException("PKI error during XDH agreement: %s".formatted(e.getMessage()), e);
+        }
+    }
+
+    /**
+     * Derives the symmetric key with HKDF-SHA256 (RFC 5869) from the shared
+     * secret, salted with the ephemeral public key.
+     * @param secret the XDH shared secret
+     * @param epk the encoded ephemeral public key
+     * @return KEY_SIZE bytes of key material
+     */
+    private static byte[] deriveKey(final byte[] secret, final byte[] epk) {
+        try {
+            Mac mac = CipherPool.mac(KDF_ALGORITHM);
+            mac.init(new SecretKeySpec(epk, KDF_ALGORITHM));
+            byte[] prk = mac.doFinal(secret);
+
+            // KEY_SIZE fits in one block of the expand step
+            mac.init(new SecretKeySpec(prk, KDF_ALGORITHM));
+            mac.update(KDF_INFO);
+            mac.update((byte) 1);
+            return Arrays.copyOf(mac.doFinal(), KEY_SIZE);
+        } catch (InvalidKeyException e) {
+            throw new RuntimeException("Failed to derive key: %s".formatted(e.getMessage()), e);
+        }
+    }
+
+    // Encodes the u-coordinate little-endian, as in RFC 7748
+    private static byte[] encode(final XECPublicKey pubkey, int size) {
+        byte[] be = pubkey.getU().toByteArray();
+        byte[] le = new byte[size];
+        for (int i = 0; i < size && i < be.length; ++i) {
+            le[i] = be[be.length - 1 - i];
+        }
+        return le;
+    }
+
+    // Decodes a little-endian u-coordinate, as in RFC 7748
+    private static PublicKey decode(final byte[] le, AlgorithmParameterSpec params) {
+        byte[] be = new byte[le.length];
+        for (int i = 0; i < le.length; ++i) {
+            be[i] = le[le.length - 1 - i];
+        }
+        if (le.length == 32) { // X25519 ignores the top bit
+            be[0] &= 0x7F;
+        }
+        try {
+            return KeyFactory.getInstance(AGREEMENT_ALGORITHM).generatePublic(new XECPublicKeySpec(params, new BigInteger(1, be)));
+        } catch (NoSuchAlgorithmException | InvalidKeySpecException e) {
+            throw new RuntimeException("Invalid ephemeral key: %s".formatted(e.getMessage()), e);
+        }
+    }
+}
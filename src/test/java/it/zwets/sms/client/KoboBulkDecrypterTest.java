@@ -0,0 +1,78 @@
+package it.zwets.sms.client;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import it.zwets.sms.crypto.OdkCrypto;
+import it.zwets.sms.crypto.TestingKeys;
+
+public class KoboBulkDecrypterTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testDecryptTree() throws Exception {
+        Path in = tempDir.resolve("in");
+        Path out = tempDir.resolve("out");
+        for (int i = 0; i < 20; ++i) {
+            writeSubmission(in.resolve("form/uuid-" + i), "uuid:" + i, i % 3);
+        }
+        Files.createDirectories(in.resolve("plain"));
+        Files.writeString(in.resolve("plain/submission.xml"), "<data id=\"form\"><name>clear</name></data>");
+
+        KoboBulkDecrypter.Summary summary = new KoboBulkDecrypter(TestingKeys.PRIVKEY, 4).decryptAll(in, out);
+        assertEquals(20, summary.submissions());
+        assertEquals(0, summary.failed());
+        assertEquals(20 + 19, summary.files());
+
+        assertEquals("<data><id>uuid:8</id></data>", Files.readString(out.resolve("form/uuid-8/submission.xml")));
+        assertArrayEquals(media("uuid:8".hashCode(), 1), Files.readAllBytes(out.resolve("form/uuid-8/photo-1.jpg")));
+        assertFalse(Files.exists(out.resolve("plain")));
+    }
+
+    @Test
+    public void testFailureDoesNotStopOthers() throws Exception {
+        Path in = tempDir.resolve("in");
+        writeSubmission(in.resolve("good"), "uuid:good", 1);
+        writeSubmission(in.resolve("bad"), "uuid:bad", 1);
+        Files.delete(in.resolve("bad/photo-0.jpg.enc"));
+
+        KoboBulkDecrypter.Summary summary = new KoboBulkDecrypter(TestingKeys.PRIVKEY).decryptAll(in, tempDir.resolve("out"));
+        assertEquals(1, summary.submissions());
+        assertEquals(1, summary.failed());
+    }
+
+    // Writes an encrypted submission with its manifest, as ODK Collect does
+    private static void writeSubmission(Path dir, String instanceId, int mediaCount) throws Exception {
+        Files.createDirectories(dir);
+        OdkCrypto.Encryptor encryptor = new OdkCrypto.Encryptor(TestingKeys.PUBKEY, instanceId);
+        StringBuilder media = new StringBuilder();
+        for (int j = 0; j < mediaCount; ++j) {
+            Files.write(dir.resolve("photo-%d.jpg.enc".formatted(j)), encryptor.encrypt(media(instanceId.hashCode(), j)));
+            media.append("<media><file>photo-%d.jpg.enc</file></media>".formatted(j));
+        }
+        Files.write(dir.resolve("submission.xml.enc"), encryptor.encrypt("<data><id>%s</id></data>".formatted(instanceId).getBytes()));
+        Files.writeString(dir.resolve("submission.xml"), """
+                <data xmlns="http://opendatakit.org/submissions" encrypted="yes" id="form">
+                <base64EncryptedKey>%s</base64EncryptedKey>
+                <meta xmlns="http://openrosa.org/xforms"><instanceID>%s</instanceID></meta>
+                %s
+                <encryptedXmlFile>submission.xml.enc</encryptedXmlFile>
+                </data>""".formatted(encryptor.getBase64Key(), instanceId, media));
+    }
+
+    private static byte[] media(int seed, int j) {
+        byte[] bytes = new byte[1000 + 100 * j];
+        new Random(seed * 31 + j).nextBytes(bytes);
+        return bytes;
+    }
+}
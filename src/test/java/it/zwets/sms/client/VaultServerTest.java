@@ -0,0 +1,198 @@
+package it.zwets.sms.client;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.time.Duration;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import it.zwets.sms.crypto.OdkCrypto;
+import it.zwets.sms.crypto.PkiCrypto;
+import it.zwets.sms.crypto.ReplayGuard;
+import it.zwets.sms.crypto.Vault;
+
+public class VaultServerTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Vault vault;
+    private Path socket;
+    private VaultServer server;
+
+    @BeforeEach
+    public void startServer() throws IOException {
+        vault = new Vault("classpath:test.vault", "123456");
+        socket = tempDir.resolve("vault.sock");
+        server = new VaultServer(vault, socket);
+        server.bind();
+        Thread.ofVirtual().start(() -> {
+            try { server.serve(); } catch (IOException e) { throw new RuntimeException(e); }
+        });
+    }
+
+    @AfterEach
+    public void stopServer() throws IOException {
+        server.close();
+    }
+
+    @Test
+    public void testSocketIsOwnerOnly() throws IOException {
+        assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(socket)));
+    }
+
+    @Test
+    public void testServeRequiresBind() {
+        VaultServer unbound = new VaultServer(vault, tempDir.resolve("unbound.sock"));
+        assertThrows(IllegalStateException.class, unbound::serve);
+    }
+
+    @Test
+    public void testRequestsOnOneConnection() throws IOException {
+        byte[] ciphertext = PkiCrypto.encrypt(vault.getPublicKey("test"), "Hello World".getBytes());
+        OdkCrypto.OdkResult odk = OdkCrypto.encrypt(vault.getPublicKey("test"), "Hello Kobo".getBytes(), "INST_1");
+        OdkCrypto.Encryptor odkEncryptor = new OdkCrypto.Encryptor(vault.getPublicKey("test"), "INST_2");
+        byte[] odkPart2 = odkEncryptor.encrypt(2, "Hello Part".getBytes());
+
+        try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            channel.connect(UnixDomainSocketAddress.of(socket));
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+
+            out.write(VaultServer.OP_DECRYPT);
+            writeField(out, "classpath:test.vault".getBytes());
+            writeField(out, "123456".getBytes());
+            writeField(out, "test".getBytes());
+            writeField(out, ciphertext);
+            assertEquals(VaultServer.STATUS_OK, in.read());
+            assertEquals("Hello World", readField(in));
+
+            out.write(VaultServer.OP_DECRYPT);
+            writeField(out, new byte[0]);
+            writeField(out, new byte[0]);
+            writeField(out, "nosuchalias".getBytes());
+            writeField(out, ciphertext);
+            assertEquals(VaultServer.STATUS_ERROR, in.read());
+            readField(in);
+
+            out.write(VaultServer.OP_KOBO_DECRYPT);
+            writeField(out, new byte[0]);
+            writeField(out, new byte[0]);
+            writeField(out, "test".getBytes());
+            writeField(out, odk.b64key().getBytes());
+            writeField(out, "INST_1".getBytes());
+            writeField(out, "0".getBytes());
+            writeField(out, odk.ciphertext());
+            assertEquals(VaultServer.STATUS_OK, in.read());
+            assertEquals("Hello Kobo", readField(in));
+
+            out.write(VaultServer.OP_KOBO_DECRYPT);
+            writeField(out, new byte[0]);
+            writeField(out, new byte[0]);
+            writeField(out, "test".getBytes());
+            writeField(out, odkEncryptor.getBase64Key().getBytes());
+            writeField(out, "INST_2".getBytes());
+            writeField(out, "2".getBytes());
+            writeField(out, odkPart2);
+            assertEquals(VaultServer.STATUS_OK, in.read());
+            assertEquals("Hello Part", readField(in));
+
+            out.write(VaultServer.OP_KOBO_DECRYPT);
+            writeField(out, new byte[0]);
+            writeField(out, new byte[0]);
+            writeField(out, "test".getBytes());
+            writeField(out, odkEncryptor.getBase64Key().getBytes());
+            writeField(out, "INST_2".getBytes());
+            writeField(out, "-1".getBytes());
+            writeField(out, odkPart2);
+            assertEquals(VaultServer.STATUS_ERROR, in.read());
+            readField(in);
+        }
+    }
+
+    @Test
+    public void testOtherKeyStoreIsRefused() throws IOException {
+        byte[] ciphertext = PkiCrypto.encrypt(vault.getPublicKey("test"), "Hello World".getBytes());
+
+        try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+            channel.connect(UnixDomainSocketAddress.of(socket));
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+
+            for (String[] store : new String[][] { { "classpath:test-xdh.vault", "123456" }, { "classpath:test.vault", "654321" } }) {
+                out.write(VaultServer.OP_DECRYPT);
+                writeField(out, store[0].getBytes());
+                writeField(out, store[1].getBytes());
+                writeField(out, "test".getBytes());
+                writeField(out, ciphertext);
+                assertEquals(VaultServer.STATUS_OTHER_VAULT, in.read());
+                readField(in);
+            }
+        }
+    }
+
+    @Test
+    public void testReplayGuardRejectsDefaultFormat() throws IOException {
+        Vault guarded = new Vault("classpath:test.vault", "123456", Vault.DEFAULT_CACHE_SIZE, Vault.DEFAULT_CACHE_IDLE,
+                Vault.DEFAULT_SESSION_CACHE_SIZE, new ReplayGuard(1000, 1e-6, Duration.ofMinutes(10)));
+        Path guardedSocket = tempDir.resolve("guarded.sock");
+        byte[] v1 = PkiCrypto.encrypt(guarded.getPublicKey("test"), "Hello V1".getBytes());
+        byte[] v2 = new PkiCrypto.Encryptor(guarded.getPublicKey("test"), PkiCrypto.Version.V2, true).encrypt("Hello V2".getBytes());
+
+        try (VaultServer guardedServer = new VaultServer(guarded, guardedSocket)) {
+            guardedServer.bind();
+            Thread.ofVirtual().start(() -> {
+                try { guardedServer.serve(); } catch (IOException e) { throw new RuntimeException(e); }
+            });
+
+            try (SocketChannel channel = SocketChannel.open(StandardProtocolFamily.UNIX)) {
+                channel.connect(UnixDomainSocketAddress.of(guardedSocket));
+                DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+                DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+
+                out.write(VaultServer.OP_DECRYPT);
+                writeField(out, new byte[0]);
+                writeField(out, new byte[0]);
+                writeField(out, "test".getBytes());
+                writeField(out, v1);
+                assertEquals(VaultServer.STATUS_ERROR, in.read());
+                assertTrue(readField(in).contains("V1"));
+
+                for (int status : new int[] { VaultServer.STATUS_OK, VaultServer.STATUS_ERROR }) {
+                    out.write(VaultServer.OP_DECRYPT);
+                    writeField(out, new byte[0]);
+                    writeField(out, new byte[0]);
+                    writeField(out, new byte[0]);
+                    writeField(out, v2);
+                    assertEquals(status, in.read());
+                    readField(in);
+                }
+            }
+        }
+    }
+
+    private static void writeField(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readField(DataInputStream in) throws IOException {
+        return new String(in.readNBytes(in.readInt()), StandardCharsets.UTF_8);
+    }
+}
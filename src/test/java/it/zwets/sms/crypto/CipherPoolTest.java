@@ -0,0 +1,39 @@
+package it.zwets.sms.crypto;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+public class CipherPoolTest {
+
+    @Test
+    public void testReusesInstanceOnPlatformThread() {
+        assertSame(CipherPool.cipher("AES/GCM/NoPadding"), CipherPool.cipher("AES/GCM/NoPadding"));
+        assertSame(CipherPool.digest("SHA-256"), CipherPool.digest("SHA-256"));
+    }
+
+    @Test
+    public void testNewInstanceOnVirtualThread() throws InterruptedException {
+        AtomicReference<Object[]> seen = new AtomicReference<>();
+        Thread.ofVirtual().start(() -> seen.set(new Object[] {
+                CipherPool.cipher("AES/GCM/NoPadding"), CipherPool.cipher("AES/GCM/NoPadding"),
+                CipherPool.digest("SHA-256"), CipherPool.digest("SHA-256") })).join();
+        assertNotSame(seen.get()[0], seen.get()[1]);
+        assertNotSame(seen.get()[2], seen.get()[3]);
+    }
+
+    @Test
+    public void testNewDigestSurvivesPooledUse() {
+        MessageDigest md = CipherPool.newDigest("MD5");
+        md.update("part one".getBytes());
+        assertNotSame(md, CipherPool.digest("MD5"));
+        CipherPool.digest("MD5").digest("in between".getBytes());
+        md.update("part two".getBytes());
+        assertArrayEquals(CipherPool.digest("MD5").digest("part onepart two".getBytes()), md.digest());
+    }
+}
@@ -0,0 +1,459 @@
+package it.zwets.sms.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Throughput benchmarks for the crypto classes.
+ * 
+ * These are not run as part of the build (the class name does not match the
+ * surefire includes).  Run them explicitly with:
+ * <pre>
+ * mvn test -Dtest=CryptoBenchmark
+ * </pre>
+ * The numbers are wall-clock measurements after a warm-up round, which is
+ * adequate for comparing approaches on one machine, not for absolute claims.
+ */
+public class CryptoBenchmark {
+
+    private static final PrivateKey PRIVKEY = TestingKeys.PRIVKEY;
+    private static final PublicKey PUBKEY = TestingKeys.PUBKEY;
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+    private static final int SMS_SIZE = 160;
+    private static final int FILE_SIZE = 128 * 1024 * 1024;
+
+    @Test
+    public void benchEncrypt() {
+        List<byte[]> plaintexts = payloads(20_000, SMS_SIZE);
+        PkiCrypto.Encryptor encryptor = new PkiCrypto.Encryptor(PUBKEY);
+        
+        for (int round = 0; round < 2; ++round) {
+            long start = System.nanoTime();
+            plaintexts.forEach(encryptor::encrypt);
+            report(round, "encrypt sequential", plaintexts.size(), System.nanoTime() - start, 1);
+            
+            start = System.nanoTime();
+            encryptor.encryptAll(plaintexts);
+            report(round, "encryptAll", plaintexts.size(), System.nanoTime() - start, CORES);
+        }
+    }
+
+    @Test
+    public void benchDecrypt() {
+        PkiCrypto.Encryptor encryptor = new PkiCrypto.Encryptor(PUBKEY);
+        List<byte[]> ciphertexts = payloads(4_000, SMS_SIZE).stream().map(encryptor::encrypt).toList();
+        PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(PRIVKEY);
+        
+        for (int round = 0; round < 2; ++round) {
+            long start = System.nanoTime();
+            ciphertexts.forEach(decryptor::decrypt);
+            report(round, "decrypt sequential", ciphertexts.size(), System.nanoTime() - start, 1);
+            
+            start = System.nanoTime();
+            decryptor.decryptAll(ciphertexts);
+            report(round, "decryptAll", ciphertexts.size(), System.nanoTime() - start, CORES);
+        }
+    }
+
+    @Test
+    public void benchAsync() {
+        PkiCrypto.Encryptor encryptor = new PkiCrypto.Encryptor(PUBKEY);
+        List<byte[]> ciphertexts = payloads(4_000, SMS_SIZE).stream().map(encryptor::encrypt).toList();
+        PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(PRIVKEY);
+
+        for (int round = 0; round < 2; ++round) {
+            long start = System.nanoTime();
+            decryptor.decryptAll(ciphertexts, ForkJoinPool.commonPool());
+            report(round, "decryptAll common pool", ciphertexts.size(), System.nanoTime() - start, CORES);
+
+            start = System.nanoTime();
+            decryptor.decryptAll(ciphertexts);
+            report(round, "decryptAll cpu pool", ciphertexts.size(), System.nanoTime() - start, CORES);
+
+            start = System.nanoTime();
+            CryptoExecutors.all(ciphertexts.stream().map(c -> (Supplier<byte[]>) () -> decryptor.decrypt(c)).toList(), CryptoExecutors.cpu());
+            report(round, "all cpu pool", ciphertexts.size(), System.nanoTime() - start, CORES);
+        }
+    }
+
+    @Test
+    public void benchFiles(@TempDir Path dir) throws IOException {
+        byte[] data = new byte[FILE_SIZE];
+        new Random(42).nextBytes(data);
+        Path plain = Files.write(dir.resolve("plain"), data);
+        Path enc = dir.resolve("enc");
+        Path dec = dir.resolve("dec");
+        PkiCrypto.Encryptor encryptor = new PkiCrypto.Encryptor(PUBKEY);
+        PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(PRIVKEY);
+        
+        for (int round = 0; round < 2; ++round) {
+            long start = System.nanoTime();
+            try (InputStream is = Files.newInputStream(plain); OutputStream os = Files.newOutputStream(enc)) {
+                encryptor.encrypt(is, os);
+            }
+            reportBytes(round, "encrypt file stream", FILE_SIZE, System.nanoTime() - start);
+            
+            start = System.nanoTime();
+            try (InputStream is = Files.newInputStream(enc); OutputStream os = Files.newOutputStream(dec)) {
+                decryptor.decrypt(is, os);
+            }
+            reportBytes(round, "decrypt file stream", FILE_SIZE, System.nanoTime() - start);
+            
+            start = System.nanoTime();
+            encryptor.encrypt(plain, enc);
+            reportBytes(round, "encrypt file mapped", FILE_SIZE, System.nanoTime() - start);
+            
+            start = System.nanoTime();
+            decryptor.decrypt(enc, dec);
+            reportBytes(round, "decrypt file mapped", FILE_SIZE, System.nanoTime() - start);
+        }
+    }
+
+    @Test
+    public void benchChannels(@TempDir Path dir) throws IOException {
+        byte[] data = new byte[FILE_SIZE];
+        new Random(42).nextBytes(data);
+        Path plain = Files.write(dir.resolve("plain"), data);
+        Path enc = dir.resolve("enc");
+        Path dec = dir.resolve("dec");
+        PkiCrypto.Encryptor encryptor = new PkiCrypto.Encryptor(PUBKEY, PkiCrypto.Version.SEGMENTED);
+        PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(PRIVKEY);
+        
+        for (int round = 0; round < 2; ++round) {
+            long start = System.nanoTime();
+            try (InputStream is = Files.newInputStream(plain); OutputStream os = Files.newOutputStream(enc)) {
+                encryptor.encrypt(is, os);
+            }
+            reportBytes(round, "encrypt segmented stream", FILE_SIZE, System.nanoTime() - start);
+            
+            start = System.nanoTime();
+            try (InputStream is = Files.newInputStream(enc); OutputStream os = Files.newOutputStream(dec)) {
+                decryptor.decrypt(is, os);
+            }
+            reportBytes(round, "decrypt segmented stream", FILE_SIZE, System.nanoTime() - start);
+            
+            start = System.nanoTime();
+            try (FileChannel in = FileChannel.open(plain); WritableByteChannel out = encryptor.newChannel(FileChannel.open(enc, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))) {
+                in.transferTo(0, in.size(), out);
+            }
+            reportBytes(round, "encrypt segmented channel", FILE_SIZE, System.nanoTime() - start);
+            
+            start = System.nanoTime();
+            try (ReadableByteChannel in = decryptor.newChannel(FileChannel.open(enc)); FileChannel out = FileChannel.open(dec, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                out.transferFrom(in, 0, Long.MAX_VALUE);
+            }
+            reportBytes(round, "decrypt segmented channel", FILE_SIZE, System.nanoTime() - start);
+        }
+    }
+
+    @Test
+    public void benchSegmented(@TempDir Path dir) throws IOException {
+        byte[] data = new byte[FILE_SIZE];
+        new Random(42).nextBytes(data);
+        Path plain = Files.write(dir.resolve("plain"), data);
+        Path enc = dir.resolve("enc");
+        Path dec = dir.resolve("dec");
+        PkiCrypto.Encryptor v1 = new PkiCrypto.Encryptor(PUBKEY);
+        PkiCrypto.Encryptor segmented = new PkiCrypto.Encryptor(PUBKEY, PkiCrypto.Version.SEGMENTED);
+        PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(PRIVKEY);
+        ExecutorService pool = Executors.newFixedThreadPool(CORES);
+        Random random = new Random(7);
+        
+        try {
+            for (int round = 0; round < 2; ++round) {
+                v1.encrypt(plain, enc);
+                long start = System.nanoTime();
+                decryptor.decrypt(enc, dec);
+                reportBytes(round, "decrypt file V1", FILE_SIZE, System.nanoTime() - start);
+                
+                start = System.nanoTime();
+                segmented.encrypt(plain, enc);
+                reportBytes(round, "encrypt file segmented", FILE_SIZE, System.nanoTime() - start);
+                
+                start = System.nanoTime();
+                decryptor.decrypt(enc, dec);
+                reportBytes(round, "decrypt file segmented", FILE_SIZE, System.nanoTime() - start);
+                
+                start = System.nanoTime();
+                decryptor.decrypt(enc, dec, pool);
+                reportBytes(round, "decrypt file segmented x" + CORES, FILE_SIZE, System.nanoTime() - start);
+                
+                try (SegmentReader reader = decryptor.open(enc)) {
+                    ByteBuffer buffer = ByteBuffer.allocate(4096);
+                    start = System.nanoTime();
+                    for (int i = 0; i < 10_000; ++i) {
+                        reader.read(random.nextLong(FILE_SIZE - buffer.capacity()), buffer.clear());
+                    }
+                    report(round, "random 4KB read segmented", 10_000, System.nanoTime() - start, 1);
+                }
+            }
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void benchCfbVsGcm() {
+        PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(PRIVKEY);
+        
+        for (PkiCrypto.Version version : List.of(PkiCrypto.Version.V1, PkiCrypto.Version.V2)) {
+            PkiCrypto.Encryptor encryptor = new PkiCrypto.Encryptor(PUBKEY, version);
+            List<byte[]> sms = payloads(4_000, SMS_SIZE);
+            List<byte[]> large = payloads(64, 1024 * 1024);
+            
+            for (int round = 0; round < 2; ++round) {
+                long start = System.nanoTime();
+                List<byte[]> smsCiphertexts = sms.stream().map(encryptor::encrypt).toList();
+                report(round, "encrypt SMS " + version, sms.size(), System.nanoTime() - start, 1);
+                
+                start = System.nanoTime();
+                smsCiphertexts.forEach(decryptor::decrypt);
+                report(round, "decrypt SMS " + version, sms.size(), System.nanoTime() - start, 1);
+                
+                start = System.nanoTime();
+                List<byte[]> largeCiphertexts = large.stream().map(encryptor::encrypt).toList();
+                reportBytes(round, "encrypt 1MB " + version, large.size() * 1024L * 1024, System.nanoTime() - start);
+                
+                start = System.nanoTime();
+                largeCiphertexts.forEach(decryptor::decrypt);
+                reportBytes(round, "decrypt 1MB " + version, large.size() * 1024L * 1024, System.nanoTime() - start);
+            }
+        }
+    }
+
+    @Test
+    public void benchSchemes() throws NoSuchAlgorithmException {
+        KeyPairGenerator rsa = KeyPairGenerator.getInstance("RSA");
+        rsa.initialize(4096);
+        Map<String,KeyPair> schemes = new LinkedHashMap<>();
+        schemes.put("RSA-2048", new KeyPair(PUBKEY, PRIVKEY));
+        schemes.put("RSA-4096", rsa.generateKeyPair());
+        schemes.put("X25519", KeyPairGenerator.getInstance("X25519").generateKeyPair());
+        List<byte[]> plaintexts = payloads(1_000, SMS_SIZE);
+        
+        for (Map.Entry<String,KeyPair> scheme : schemes.entrySet()) {
+            KeyPair pair = scheme.getValue();
+            PkiCrypto.Version version = pair.getPublic().getAlgorithm().equals("XDH") ? PkiCrypto.Version.XDH : PkiCrypto.Version.V2;
+            PkiCrypto.Encryptor encryptor = new PkiCrypto.Encryptor(pair.getPublic(), version);
+            PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(pair.getPrivate());
+            List<byte[]> ciphertexts = plaintexts.stream().map(encryptor::encrypt).toList();
+            
+            for (int round = 0; round < 2; ++round) {
+                long start = System.nanoTime();
+                ciphertexts.forEach(decryptor::decrypt);
+                report(round, "decrypt SMS " + scheme.getKey(), ciphertexts.size(), System.nanoTime() - start, 1);
+            }
+            System.out.printf("%-32s %10d bytes overhead%n", "  " + scheme.getKey() + " " + version,
+                    encryptor.outputSize(SMS_SIZE) - SMS_SIZE);
+        }
+    }
+
+    @Test
+    public void benchSessions() {
+        List<byte[]> plaintexts = payloads(4_000, SMS_SIZE);
+        PkiCrypto.Encryptor encryptor = new PkiCrypto.Encryptor(PUBKEY, PkiCrypto.Version.V2);
+        SessionEncryptor sessionEncryptor = new SessionEncryptor(PUBKEY);
+        PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(PRIVKEY, PkiCrypto.newSessionCache(1000, Duration.ofHours(1)));
+        
+        for (int round = 0; round < 2; ++round) {
+            long start = System.nanoTime();
+            List<byte[]> ciphertexts = plaintexts.stream().map(encryptor::encrypt).toList();
+            report(round, "encrypt V2", plaintexts.size(), System.nanoTime() - start, 1);
+            
+            start = System.nanoTime();
+            ciphertexts.forEach(decryptor::decrypt);
+            report(round, "decrypt V2", ciphertexts.size(), System.nanoTime() - start, 1);
+            
+            sessionEncryptor.newSession();
+            start = System.nanoTime();
+            List<byte[]> sessionCiphertexts = plaintexts.stream().map(sessionEncryptor::encrypt).toList();
+            report(round, "encrypt session", plaintexts.size(), System.nanoTime() - start, 1);
+            
+            start = System.nanoTime();
+            sessionCiphertexts.forEach(decryptor::decrypt);
+            report(round, "decrypt session", sessionCiphertexts.size(), System.nanoTime() - start, 1);
+        }
+    }
+
+    @Test
+    public void benchKeyParsing(@TempDir Path dir) throws Exception {
+        byte[] encoded = PUBKEY.getEncoded();
+        KeyPairGenerator rsa = KeyPairGenerator.getInstance("RSA");
+        for (int i = 0; i < 64; ++i) {
+            Files.write(dir.resolve("client%02d.pub".formatted(i)),
+                    Base64.getEncoder().encode(rsa.generateKeyPair().getPublic().getEncoded()));
+        }
+
+        for (int round = 0; round < 2; ++round) {
+            long start = System.nanoTime();
+            for (int i = 0; i < 100_000; ++i) {
+                KeyFactory.getInstance("RSA").generatePublic(new X509EncodedKeySpec(encoded));
+            }
+            report(round, "parse key uncached", 100_000, System.nanoTime() - start, 1);
+
+            start = System.nanoTime();
+            for (int i = 0; i < 100_000; ++i) {
+                PkiUtils.readPublicKey(encoded);
+            }
+            report(round, "parse key cached", 100_000, System.nanoTime() - start, 1);
+
+            start = System.nanoTime();
+            PkiUtils.readPublicKeys(dir);
+            report(round, "readPublicKeys 64 files", 64, System.nanoTime() - start, CORES);
+        }
+    }
+
+    @Test
+    public void benchOdkKeyCache() {
+        List<String> keys = IntStream.range(0, 100)
+                .mapToObj(i -> new OdkCrypto.Encryptor(PUBKEY, "INST").getBase64Key())
+                .toList();
+        KeyCache<String,byte[]> cache = OdkCrypto.newKeyCache(keys.size(), Duration.ofMinutes(10));
+
+        for (int round = 0; round < 2; ++round) {
+            long start = System.nanoTime();
+            for (int i = 0; i < 1_000; ++i) {
+                new OdkCrypto.Decryptor(PRIVKEY, keys.get(i % keys.size()), "INST");
+            }
+            report(round, "odk unwrap uncached", 1_000, System.nanoTime() - start, 1);
+
+            start = System.nanoTime();
+            for (int i = 0; i < 1_000; ++i) {
+                new OdkCrypto.Decryptor(PRIVKEY, keys.get(i % keys.size()), "INST", false, cache);
+            }
+            report(round, "odk unwrap cached", 1_000, System.nanoTime() - start, 1);
+        }
+        System.out.printf("odk key cache hit rate %.1f%%%n", 100 * cache.getStats().hitRate());
+    }
+
+    @Test
+    public void benchMultiRecipient() throws NoSuchAlgorithmException {
+        KeyPairGenerator rsa = KeyPairGenerator.getInstance("RSA");
+        List<PublicKey> recipients = new ArrayList<>(List.of(PUBKEY));
+        IntStream.range(1, 8).forEach(i -> recipients.add(rsa.generateKeyPair().getPublic()));
+        byte[] plaintext = payloads(1, 1024 * 1024).get(0);
+        MultiEncryptor multiEncryptor = new MultiEncryptor(recipients);
+        List<PkiCrypto.Encryptor> encryptors = recipients.stream().map(k -> new PkiCrypto.Encryptor(k, PkiCrypto.Version.V2)).toList();
+        
+        for (int round = 0; round < 2; ++round) {
+            long start = System.nanoTime();
+            byte[] multi = null;
+            for (int i = 0; i < 20; ++i) {
+                multi = multiEncryptor.encrypt(plaintext);
+            }
+            report(round, "encrypt 1MB x8 multi", 20, System.nanoTime() - start, 1);
+            
+            start = System.nanoTime();
+            long separate = 0;
+            for (int i = 0; i < 20; ++i) {
+                separate = encryptors.stream().mapToLong(e -> e.encrypt(plaintext).length).sum();
+            }
+            report(round, "encrypt 1MB x8 separate", 20, System.nanoTime() - start, 1);
+            
+            start = System.nanoTime();
+            for (int i = 0; i < 20; ++i) {
+                PkiCrypto.decrypt(PRIVKEY, multi);
+            }
+            report(round, "decrypt 1MB x8 multi", 20, System.nanoTime() - start, 1);
+            
+            if (round > 0) {
+                System.out.printf("%-32s %10d bytes multi, %d bytes separate%n", "  size", multi.length, separate);
+            }
+        }
+    }
+
+    @Test
+    public void benchCompression() {
+        StringBuilder xml = new StringBuilder("<data id=\"survey\">\n");
+        Random random = new Random(42);
+        while (xml.length() < 1024 * 1024) {
+            xml.append("  <group><name>respondent-%d</name><age>%d</age><answer>%s</answer></group>\n"
+                    .formatted(random.nextInt(100_000), random.nextInt(100), random.nextBoolean() ? "yes" : "no"));
+        }
+        Map<String,byte[]> inputs = new LinkedHashMap<>();
+        inputs.put("XML", xml.toString().getBytes());
+        inputs.put("random", payloads(1, 1024 * 1024).get(0));
+        PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(PRIVKEY);
+        
+        // Two warm-up rounds, as the first plain pass is skewed by recompilation
+        for (int pass = 0; pass < 3; ++pass) {
+            int round = pass - 1;
+            for (Map.Entry<String,byte[]> input : inputs.entrySet()) {
+                byte[] plaintext = input.getValue();
+                for (boolean compress : List.of(false, true)) {
+                    PkiCrypto.Encryptor encryptor = new PkiCrypto.Encryptor(PUBKEY, PkiCrypto.Version.V2, false, compress);
+                    String name = "%s %s".formatted(input.getKey(), compress ? "deflate" : "plain");
+                    long start = System.nanoTime();
+                    byte[] ciphertext = null;
+                    for (int i = 0; i < 50; ++i) {
+                        ciphertext = encryptor.encrypt(plaintext);
+                    }
+                    reportBytes(round, "encrypt 1MB " + name, 50L * plaintext.length, System.nanoTime() - start);
+                    
+                    start = System.nanoTime();
+                    for (int i = 0; i < 50; ++i) {
+                        decryptor.decrypt(ciphertext);
+                    }
+                    reportBytes(round, "decrypt 1MB " + name, 50L * plaintext.length, System.nanoTime() - start);
+                    
+                    if (round > 0) {
+                        System.out.printf("%-32s %10.3f ratio%n", "  " + name, (double) ciphertext.length / plaintext.length);
+                    }
+                }
+            }
+        }
+    }
+
+    static List<byte[]> payloads(int count, int size) {
+        Random random = new Random(42);
+        return IntStream.range(0, count).mapToObj(i -> {
+            byte[] payload = new byte[size];
+            random.nextBytes(payload);
+            return payload;
+        }).toList();
+    }
+
+    static void report(int round, String name, int count, long nanos, int threads) {
+        if (round > 0) {
+            double perSec = count * 1e9 / nanos;
+            System.out.printf("%-32s %10.0f msg/s %10.0f msg/s/core (%d threads)%n", name, perSec, perSec / threads, threads);
+        }
+    }
+
+    static void reportBytes(int round, String name, long bytes, long nanos) {
+        if (round > 0) {
+            System.out.printf("%-32s %10.1f MB/s%n", name, bytes * 1e3 / nanos);
+        }
+    }
+}
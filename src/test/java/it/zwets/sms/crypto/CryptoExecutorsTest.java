@@ -0,0 +1,135 @@
+package it.zwets.sms.crypto;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+public class CryptoExecutorsTest {
+
+    @Test
+    public void testBoundedInFlight() {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            Executor bounded = CryptoExecutors.bounded(pool, 3);
+            CountDownLatch release = new CountDownLatch(1);
+
+            List<CompletableFuture<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < 3; ++i) {
+                futures.add(CryptoExecutors.run(() -> await(release), bounded));
+            }
+
+            // The fourth task is turned away through its future, without blocking
+            CompletableFuture<Void> rejected = CryptoExecutors.run(() -> { }, bounded);
+            CompletionException e = assertThrows(CompletionException.class, rejected::join);
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+
+            release.countDown();
+            futures.forEach(CompletableFuture::join);
+            CryptoExecutors.run(() -> { }, bounded).join();
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testCpuQueueIsBounded() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        CountDownLatch release = new CountDownLatch(1);
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        try {
+            for (int i = 0; i < threads * (1 + CryptoExecutors.QUEUE_PER_CORE); ++i) {
+                futures.add(CryptoExecutors.run(() -> await(release), CryptoExecutors.cpu()));
+            }
+            CompletableFuture<Void> rejected = CryptoExecutors.run(() -> { }, CryptoExecutors.cpu());
+            CompletionException e = assertThrows(CompletionException.class, rejected::join);
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+        finally {
+            release.countDown();
+        }
+        futures.forEach(CompletableFuture::join);
+    }
+
+    @Test
+    public void testAllFromPoolThread() throws Exception {
+        // Every pool thread waits for more tasks than there are threads
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<Supplier<Integer>> tasks = IntStream.range(0, 10 * threads).mapToObj(i -> (Supplier<Integer>) () -> i).toList();
+        List<CryptoExecutors.TaskFuture<List<Integer>>> outer = IntStream.range(0, threads)
+                .mapToObj(i -> CryptoExecutors.supply(() -> CryptoExecutors.all(tasks, CryptoExecutors.cpu()), CryptoExecutors.cpu()))
+                .toList();
+        for (CompletableFuture<List<Integer>> future : outer) {
+            assertEquals(10 * threads, future.get(10, TimeUnit.SECONDS).size());
+        }
+
+        List<Supplier<Integer>> failing = List.of(() -> 1, () -> { throw new IllegalStateException("boom"); }, () -> 3);
+        assertThrows(IllegalStateException.class, () -> CryptoExecutors.all(failing, CryptoExecutors.cpu()));
+    }
+
+    @Test
+    public void testCallerInterruptKept() {
+        Thread.currentThread().interrupt();
+        CryptoExecutors.run(() -> { }, Runnable::run).join();
+        assertTrue(Thread.interrupted());
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue(latch.await(10, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void testCancellation() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            CountDownLatch started = new CountDownLatch(1);
+            AtomicBoolean interrupted = new AtomicBoolean();
+            AtomicBoolean skippedRan = new AtomicBoolean();
+
+            CompletableFuture<Void> running = CryptoExecutors.run(() -> {
+                started.countDown();
+                try {
+                    Thread.sleep(10_000);
+                } catch (InterruptedException e) {
+                    interrupted.set(true);
+                }
+            }, pool);
+            CompletableFuture<Void> queued = CryptoExecutors.run(() -> skippedRan.set(true), pool);
+
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            queued.cancel(true);
+            running.cancel(true);
+            assertThrows(CancellationException.class, running::join);
+
+            // The pool thread is free again, and did not run the cancelled task
+            assertEquals("ok", CryptoExecutors.supply(() -> Thread.currentThread().isInterrupted() ? "interrupted" : "ok", pool).get(5, TimeUnit.SECONDS));
+            assertTrue(interrupted.get());
+            assertFalse(skippedRan.get());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package it.zwets.sms.crypto;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class KeyCacheTest {
+    
+    @Test
+    public void testHitsAndMisses() {
+        KeyCache<String,String> cache = new KeyCache<>(10, Duration.ofMinutes(1));
+        assertEquals("A", cache.get("a", String::toUpperCase));
+        assertEquals("A", cache.get("a", k -> "other"));
+        assertEquals(new KeyCache.Stats(1, 1, 0, 1), cache.getStats());
+        assertEquals(0.5, cache.getStats().hitRate());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        List<String> evicted = new ArrayList<>();
+        KeyCache<String,String> cache = new KeyCache<>(2, Duration.ofMinutes(1), evicted::add);
+        cache.put("a", "A");
+        cache.put("b", "B");
+        cache.getIfPresent("a");
+        cache.put("c", "C");
+        
+        assertNull(cache.getIfPresent("b"));
+        assertEquals("A", cache.getIfPresent("a"));
+        assertEquals("C", cache.getIfPresent("c"));
+        assertEquals(List.of("B"), evicted);
+        assertEquals(1, cache.getStats().evictions());
+    }
+
+    @Test
+    public void testExpiresIdleEntries() throws InterruptedException {
+        List<String> evicted = new ArrayList<>();
+        KeyCache<String,String> cache = new KeyCache<>(2, Duration.ofMillis(10), evicted::add);
+        cache.put("a", "A");
+        Thread.sleep(20);
+        
+        assertNull(cache.getIfPresent("a"));
+        assertEquals(List.of("A"), evicted);
+        assertEquals(0, cache.getStats().size());
+    }
+
+    @Test
+    public void testKeepsFirstOfConcurrentLoads() {
+        List<String> evicted = new ArrayList<>();
+        KeyCache<String,String> cache = new KeyCache<>(2, Duration.ofMinutes(1), evicted::add);
+        String first = new String("A");
+        assertEquals(first, cache.put("a", first));
+        assertEquals(first, cache.put("a", new String("A2")));
+        assertEquals(List.of("A2"), evicted);
+        assertEquals(0, cache.getStats().evictions());
+    }
+
+    @Test
+    public void testZeroSizeDisablesCaching() {
+        KeyCache<String,String> cache = new KeyCache<>(0, Duration.ofMinutes(1));
+        assertEquals("A", cache.get("a", String::toUpperCase));
+        assertNull(cache.getIfPresent("a"));
+        assertEquals(0, cache.getStats().size());
+    }
+
+    @Test
+    public void testReadsUnderLock() {
+        KeyCache<String,byte[]> cache = new KeyCache<>(1, Duration.ofMinutes(1), key -> Arrays.fill(key, (byte) 0));
+        byte[] copy = cache.get("a", k -> new byte[] { 1, 2, 3 }, byte[]::clone);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, cache.get("a", k -> new byte[] { 9 }, byte[]::clone));
+
+        byte[] cached = cache.getIfPresent("a");
+        cache.put("b", new byte[] { 4 });
+        assertArrayEquals(new byte[] { 0, 0, 0 }, cached);
+        assertArrayEquals(new byte[] { 1, 2, 3 }, copy);
+        assertEquals(new KeyCache.Stats(2, 1, 1, 1), cache.getStats());
+    }
+
+    @Test
+    public void testZeroSizeWipesAfterRead() {
+        byte[] loaded = { 1, 2, 3 };
+        KeyCache<String,byte[]> cache = new KeyCache<>(0, Duration.ofMinutes(1), key -> Arrays.fill(key, (byte) 0));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, cache.get("a", k -> loaded, byte[]::clone));
+        assertArrayEquals(new byte[] { 0, 0, 0 }, loaded);
+    }
+}
@@ -0,0 +1,94 @@
+package it.zwets.sms.crypto;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class MessageArchiveTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        Path path = tempDir.resolve("archive");
+        List<byte[]> records = new ArrayList<>();
+        try (MessageArchive.Writer writer = MessageArchive.create(path)) {
+            for (int i = 0; i < 2000; ++i) {
+                byte[] record = ("record " + i).repeat(i % 7).getBytes();
+                records.add(record);
+                writer.add(record);
+            }
+            assertEquals(2000, writer.size());
+        }
+
+        try (MessageArchive archive = MessageArchive.open(path)) {
+            assertEquals(records.size(), archive.size());
+            assertArrayEquals(records.get(1234), archive.get(1234));
+            assertArrayEquals(records.get(0), archive.get(0));
+
+            ByteBuffer slice = archive.slice(1999);
+            byte[] bytes = new byte[slice.remaining()];
+            slice.get(bytes);
+            assertArrayEquals(records.get(1999), bytes);
+
+            int i = 0;
+            for (byte[] record : archive) {
+                assertArrayEquals(records.get(i++), record);
+            }
+            assertEquals(records.size(), archive.stream().count());
+            assertThrows(IndexOutOfBoundsException.class, () -> archive.get(2000));
+        }
+    }
+
+    @Test
+    public void testDecryptRange() throws Exception {
+        Path path = tempDir.resolve("archive");
+        PkiCrypto.Encryptor encryptor = new PkiCrypto.Encryptor(TestingKeys.PUBKEY);
+        try (MessageArchive.Writer writer = MessageArchive.create(path)) {
+            for (int i = 0; i < 50; ++i) {
+                writer.add(encryptor.encrypt(("message " + i).getBytes()));
+            }
+            writer.add("not a ciphertext".getBytes());
+        }
+
+        PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(TestingKeys.PRIVKEY);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (MessageArchive archive = MessageArchive.open(path)) {
+            List<Batch.Result> results = archive.decryptAll(40, 51, decryptor::decrypt, executor);
+            assertEquals(11, results.size());
+            assertEquals("message 40", new String(results.get(0).get()));
+            assertEquals("message 49", new String(results.get(9).get()));
+            assertThrows(RuntimeException.class, () -> results.get(10).get());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testRejectsIncompleteArchive() throws Exception {
+        Path path = tempDir.resolve("archive");
+        try (MessageArchive.Writer writer = MessageArchive.create(path)) {
+            writer.add("one".getBytes());
+            writer.add("two".getBytes());
+        }
+        byte[] bytes = Files.readAllBytes(path);
+        Path truncated = Files.write(tempDir.resolve("truncated"), Arrays.copyOf(bytes, bytes.length - 1));
+
+        assertThrows(RuntimeException.class, () -> MessageArchive.open(truncated));
+        assertThrows(RuntimeException.class, () -> MessageArchive.open(Files.write(tempDir.resolve("empty"), new byte[0])));
+    }
+}
@@ -1,13 +1,40 @@
 package it.zwets.sms.crypto;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 public class OdkCryptoTest {
     
@@ -27,4 +54,297 @@ public class OdkCryptoTest {
         
         assertEquals(output, input);
     }
+
+    @Test
+    public void testFileRoundTrip(@TempDir Path dir) throws Exception {
+        byte[] input = new byte[2 * FileCipher.CHUNK_SIZE + 5];
+        new Random(7).nextBytes(input);
+        Path plain = Files.write(dir.resolve("plain"), input);
+        Path enc = dir.resolve("enc");
+        Path dec = dir.resolve("dec");
+        
+        OdkCrypto.Encryptor encryptor = new OdkCrypto.Encryptor(PUB_KEY, "INST_2");
+        encryptor.encrypt(plain, enc);
+        assertArrayEquals(input, OdkCrypto.decrypt(PRIV_KEY, encryptor.getBase64Key(), Files.readAllBytes(enc), "INST_2"));
+        
+        new OdkCrypto.Decryptor(PRIV_KEY, encryptor.getBase64Key(), "INST_2").decrypt(enc, dec);
+        assertArrayEquals(input, Files.readAllBytes(dec));
+    }
+
+    @Test
+    public void testCompressedParts(@TempDir Path dir) throws Exception {
+        byte[] xml = "<data><name>Kobo</name></data>\n".repeat(5_000).getBytes();
+        OdkCrypto.Encryptor encryptor = new OdkCrypto.Encryptor(PUB_KEY, "INST_3", true);
+        byte[] part = encryptor.encrypt(xml);
+        Path plain = Files.write(dir.resolve("plain"), xml);
+        encryptor.encrypt(plain, dir.resolve("enc"));
+        
+        assertTrue(part.length < xml.length / 10);
+        OdkCrypto.Decryptor decryptor = new OdkCrypto.Decryptor(PRIV_KEY, encryptor.getBase64Key(), "INST_3", true);
+        assertArrayEquals(xml, decryptor.decrypt(part));
+        decryptor.decrypt(dir.resolve("enc"), dir.resolve("dec"));
+        assertArrayEquals(xml, Files.readAllBytes(dir.resolve("dec")));
+    }
+
+    @Test
+    public void testPartsHaveDistinctIVs() {
+        byte[] input = "Same plaintext".getBytes();
+        OdkCrypto.Encryptor encryptor = new OdkCrypto.Encryptor(PUB_KEY, "INST_6");
+        byte[] first = encryptor.encrypt(input);
+        byte[] second = encryptor.encrypt(input);
+        assertFalse(Arrays.equals(first, second));
+
+        OdkCrypto.Decryptor decryptor = new OdkCrypto.Decryptor(PRIV_KEY, encryptor.getBase64Key(), "INST_6");
+        assertArrayEquals(input, decryptor.decrypt(first));
+        assertArrayEquals(input, decryptor.decrypt(second));
+    }
+
+    @Test
+    public void testAsyncParts() {
+        OdkCrypto.Encryptor encryptor = new OdkCrypto.Encryptor(PUB_KEY, "INST_4");
+        List<CompletableFuture<byte[]>> parts = IntStream.range(0, 10)
+                .mapToObj(i -> encryptor.encryptAsync(("part " + i).getBytes()))
+                .toList();
+
+        OdkCrypto.Decryptor decryptor = new OdkCrypto.Decryptor(PRIV_KEY, encryptor.getBase64Key(), "INST_4");
+        List<CompletableFuture<byte[]>> plaintexts = parts.stream()
+                .map(part -> decryptor.decryptAsync(part.join()))
+                .toList();
+        for (int i = 0; i < plaintexts.size(); ++i) {
+            assertEquals("part " + i, new String(plaintexts.get(i).join()));
+        }
+    }
+
+    @Test
+    public void testChannels() throws Exception {
+        byte[] media = new byte[200_000];
+        new Random(19).nextBytes(media);
+        byte[] xml = "<data>channels</data>".getBytes();
+
+        OdkCrypto.Encryptor encryptor = new OdkCrypto.Encryptor(PUB_KEY, "INST_5");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (WritableByteChannel channel = encryptor.newChannel(Channels.newChannel(bos))) {
+            channel.write(ByteBuffer.wrap(media));
+        }
+        byte[] encXml = encryptor.encrypt(xml);
+
+        OdkCrypto.Decryptor decryptor = new OdkCrypto.Decryptor(PRIV_KEY, encryptor.getBase64Key(), "INST_5");
+        assertArrayEquals(media, decryptor.decrypt(bos.toByteArray()));
+        try (ReadableByteChannel channel = decryptor.newChannel(Channels.newChannel(new ByteArrayInputStream(encXml)))) {
+            assertArrayEquals(xml, Channels.newInputStream(channel).readAllBytes());
+        }
+    }
+
+    @Test
+    public void testDecryptSubmission(@TempDir Path dir) throws Exception {
+        byte[] photo = new byte[50_000];
+        new Random(23).nextBytes(photo);
+        byte[] xml = "<data><name>submission</name></data>".getBytes();
+
+        OdkCrypto.Encryptor encryptor = new OdkCrypto.Encryptor(PUB_KEY, "uuid:7");
+        Path in = Files.createDirectories(dir.resolve("in"));
+        Files.write(in.resolve("photo.jpg.enc"), encryptor.encrypt(photo));
+        Files.write(in.resolve("submission.xml.enc"), encryptor.encrypt(xml));
+        Files.writeString(in.resolve(OdkManifest.FILE_NAME), """
+                <data encrypted="yes" id="form"><base64EncryptedKey>%s</base64EncryptedKey>
+                <meta><instanceID>uuid:7</instanceID></meta><media><file>photo.jpg.enc</file></media>
+                <encryptedXmlFile>submission.xml.enc</encryptedXmlFile></data>""".formatted(encryptor.getBase64Key()));
+
+        Path out = dir.resolve("out");
+        OdkManifest manifest = OdkCrypto.Decryptor.decryptSubmission(PRIV_KEY, in, out);
+        assertEquals("uuid:7", manifest.instanceId());
+        assertArrayEquals(photo, Files.readAllBytes(out.resolve("photo.jpg")));
+        assertArrayEquals(xml, Files.readAllBytes(out.resolve("submission.xml")));
+    }
+
+    @Test
+    public void testIVMatchesSpecification() {
+        byte[] seed = new byte[16];
+        new Random(29).nextBytes(seed);
+        byte[] iv = seed.clone();
+        for (int counter = 0; counter < 1000; ++counter) {
+            ++iv[counter % iv.length];
+            assertArrayEquals(iv, OdkCrypto.odkIV(seed, counter));
+        }
+    }
+
+    @Test
+    public void testPartsOutOfOrder() throws Exception {
+        OdkCrypto.Encryptor encryptor = new OdkCrypto.Encryptor(PUB_KEY, "INST_8");
+        List<byte[]> parts = IntStream.range(0, 100)
+                .mapToObj(i -> encryptor.encrypt(("part " + i).repeat(i).getBytes()))
+                .toList();
+
+        OdkCrypto.Decryptor decryptor = new OdkCrypto.Decryptor(PRIV_KEY, encryptor.getBase64Key(), "INST_8");
+        List<Integer> order = new ArrayList<>(IntStream.range(0, 100).boxed().toList());
+        Collections.shuffle(order, new Random(31));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<byte[]>> plaintexts = order.stream()
+                    .map(i -> executor.submit(() -> decryptor.decrypt(i, parts.get(i))))
+                    .toList();
+            for (int j = 0; j < order.size(); ++j) {
+                int i = order.get(j);
+                assertEquals(("part " + i).repeat(i), new String(plaintexts.get(j).get()));
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+        assertArrayEquals(parts.get(99), encryptor.encrypt(99, ("part " + 99).repeat(99).getBytes()));
+    }
+
+    @Test
+    public void testDecryptManyParts(@TempDir Path dir) throws Exception {
+        OdkCrypto.Encryptor encryptor = new OdkCrypto.Encryptor(PUB_KEY, "uuid:9");
+        Path in = Files.createDirectories(dir.resolve("in"));
+        List<String> media = new ArrayList<>();
+        for (int i = 0; i < 40; ++i) {
+            byte[] photo = new byte[1000 * i];
+            new Random(i).nextBytes(photo);
+            Files.write(in.resolve("photo-%d.jpg.enc".formatted(i)), encryptor.encrypt(photo));
+            media.add("photo-%d.jpg.enc".formatted(i));
+        }
+        Files.write(in.resolve("submission.xml.enc"), encryptor.encrypt("<data>many</data>".getBytes()));
+        OdkManifest manifest = new OdkManifest("form", null, encryptor.getBase64Key(), "uuid:9", media, "submission.xml.enc", null);
+
+        Path out = dir.resolve("out");
+        OdkCrypto.Decryptor.forManifest(PRIV_KEY, manifest).decryptSubmission(manifest, in, out, CryptoExecutors.io());
+        assertEquals("<data>many</data>", Files.readString(out.resolve("submission.xml")));
+        for (int i = 0; i < 40; ++i) {
+            byte[] photo = new byte[1000 * i];
+            new Random(i).nextBytes(photo);
+            assertArrayEquals(photo, Files.readAllBytes(out.resolve("photo-%d.jpg".formatted(i))));
+        }
+
+        Files.delete(in.resolve("photo-7.jpg.enc"));
+        assertThrows(RuntimeException.class, () -> OdkCrypto.Decryptor.forManifest(PRIV_KEY, manifest)
+                .decryptSubmission(manifest, in, dir.resolve("out2"), CryptoExecutors.io()));
+    }
+
+    @Test
+    public void testVerifySignature(@TempDir Path dir) throws Exception {
+        OdkCrypto.Encryptor encryptor = new OdkCrypto.Encryptor(PUB_KEY, "uuid:12");
+        byte[] photo = new byte[100_000];
+        new Random(12).nextBytes(photo);
+        byte[] xml = "<data>signed</data>".getBytes();
+        Path in = Files.createDirectories(dir.resolve("in"));
+        Files.write(in.resolve("photo.jpg.enc"), encryptor.encrypt(photo));
+        Files.write(in.resolve("submission.xml.enc"), encryptor.encrypt(xml));
+
+        List<byte[]> md5s = List.of(MessageDigest.getInstance("MD5").digest(photo), MessageDigest.getInstance("MD5").digest(xml));
+        OdkManifest unsigned = new OdkManifest("form", "1", encryptor.getBase64Key(), "uuid:12", List.of("photo.jpg.enc"), "submission.xml.enc", null);
+        String signature = OdkCrypto.elementSignature(PUB_KEY, OdkCrypto.signatureSource(unsigned, md5s));
+        OdkManifest manifest = new OdkManifest("form", "1", encryptor.getBase64Key(), "uuid:12", List.of("photo.jpg.enc"), "submission.xml.enc", signature);
+
+        // The digest tee computes the same MD5 as the plaintext has
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        OdkCrypto.Decryptor.forManifest(PRIV_KEY, manifest).decrypt(Files.newInputStream(in.resolve("photo.jpg.enc")), bos, md);
+        assertArrayEquals(photo, bos.toByteArray());
+        assertArrayEquals(md5s.get(0), md.digest());
+
+        OdkCrypto.Decryptor.forManifest(PRIV_KEY, manifest).decryptSubmission(manifest, in, dir.resolve("out1"));
+        OdkCrypto.Decryptor.forManifest(PRIV_KEY, manifest).decryptSubmission(manifest, in, dir.resolve("out2"), CryptoExecutors.io());
+        assertArrayEquals(photo, Files.readAllBytes(dir.resolve("out2").resolve("photo.jpg")));
+
+        // The signature is cached along with the key
+        KeyCache<String,byte[]> cache = OdkCrypto.newKeyCache(4, Duration.ofMinutes(1));
+        OdkCrypto.Decryptor.forManifest(PRIV_KEY, manifest, cache);
+        OdkCrypto.Decryptor.forManifest(PRIV_KEY, manifest, cache).decryptSubmission(manifest, in, dir.resolve("out2"));
+        assertEquals(new KeyCache.Stats(2, 2, 0, 2), cache.getStats());
+
+        // A signature for another version, or over other content, is rejected and leaves no output
+        OdkManifest tampered = new OdkManifest("form", "2", encryptor.getBase64Key(), "uuid:12", List.of("photo.jpg.enc"), "submission.xml.enc", signature);
+        Path out = dir.resolve("out3");
+        assertThrows(RuntimeException.class, () -> OdkCrypto.Decryptor.forManifest(PRIV_KEY, tampered).decryptSubmission(tampered, in, out, CryptoExecutors.io()));
+        assertFalse(Files.exists(out.resolve("submission.xml")));
+        assertFalse(Files.exists(out.resolve("photo.jpg")));
+
+        photo[0] ^= 1;
+        Files.write(in.resolve("photo.jpg.enc"), encryptor.encrypt(0, photo));
+        assertThrows(RuntimeException.class, () -> OdkCrypto.Decryptor.forManifest(PRIV_KEY, manifest).decryptSubmission(manifest, in, dir.resolve("out4")));
+        assertFalse(Files.exists(dir.resolve("out4").resolve("photo.jpg")));
+
+        // A failed submission leaves the earlier output alone, and no temporary files
+        assertThrows(RuntimeException.class, () -> OdkCrypto.Decryptor.forManifest(PRIV_KEY, manifest).decryptSubmission(manifest, in, dir.resolve("out1"), CryptoExecutors.io()));
+        assertArrayEquals(xml, Files.readAllBytes(dir.resolve("out1").resolve("submission.xml")));
+        assertArrayEquals(md5s.get(0), MessageDigest.getInstance("MD5").digest(Files.readAllBytes(dir.resolve("out1").resolve("photo.jpg"))));
+        try (Stream<Path> files = Files.list(dir.resolve("out1"))) {
+            assertEquals(2, files.count());
+        }
+        try (Stream<Path> files = Files.list(dir.resolve("out4"))) {
+            assertEquals(0, files.count());
+        }
+
+        // A signed manifest without the form ID fails before anything is decrypted
+        OdkManifest formless = new OdkManifest(null, "1", encryptor.getBase64Key(), "uuid:12", List.of("photo.jpg.enc"), "submission.xml.enc", signature);
+        assertThrows(RuntimeException.class, () -> OdkCrypto.Decryptor.forManifest(PRIV_KEY, formless));
+
+        // A part that fails takes the parts that did decrypt with it
+        Files.delete(in.resolve("submission.xml.enc"));
+        Path out5 = dir.resolve("out5");
+        assertThrows(RuntimeException.class, () -> OdkCrypto.Decryptor.forManifest(PRIV_KEY, manifest).decryptSubmission(manifest, in, out5, CryptoExecutors.io()));
+        assertFalse(Files.exists(out5.resolve("photo.jpg")));
+    }
+
+    @Test
+    public void testSignatureSourceVector() throws Exception {
+        // Composed by hand from the element signature format of ODK Collect
+        // (EncryptionUtils) that Briefcase verifies, rather than captured from
+        // a device: one line each for form ID, version, wrapped key and
+        // instance ID, then name::md5 for the media in manifest order and
+        // submission.xml last, names without .enc, MD5s as zero-padded
+        // lower case hex.  The expected MD5 was computed independently.
+        OdkManifest manifest = OdkManifest.read(new ByteArrayInputStream("""
+                <?xml version="1.0" encoding="UTF-8"?>
+                <data xmlns="http://opendatakit.org/submissions" encrypted="yes" id="household" version="2024011501">
+                  <base64EncryptedKey>S0VZ</base64EncryptedKey>
+                  <orx:meta xmlns:orx="http://openrosa.org/xforms">
+                    <orx:instanceID>uuid:0d9f8c4e</orx:instanceID>
+                  </orx:meta>
+                  <media><file>1705312345.jpg.enc</file></media>
+                  <media><file>1705312399.m4a.enc</file></media>
+                  <encryptedXmlFile>submission.xml.enc</encryptedXmlFile>
+                  <base64EncryptedElementSignature>U0lH</base64EncryptedElementSignature>
+                </data>
+                """.getBytes(StandardCharsets.UTF_8)));
+        MessageDigest md = MessageDigest.getInstance("MD5");
+        List<byte[]> md5s = List.of(md.digest("jpeg 242".getBytes()), md.digest("m4a 2".getBytes()),
+                md.digest("<data id=\"household\"><name>signed</name></data>".getBytes()));
+
+        String source = OdkCrypto.signatureSource(manifest, md5s);
+        assertEquals("""
+                household
+                2024011501
+                S0VZ
+                uuid:0d9f8c4e
+                1705312345.jpg::0077931161d3179ed6898f967eb5cfe4
+                1705312399.m4a::a4fcf7176327664fa1064ca131e8d938
+                submission.xml::9a851762b82f8200b56d69d495e865ba
+                """, source);
+        assertEquals("8d679412511a6c2ad0c621aa01034eb3", HexFormat.of().formatHex(md.digest(source.getBytes(StandardCharsets.UTF_8))));
+
+        // Without a version its line is left out, not left empty
+        OdkManifest unversioned = new OdkManifest("household", null, "S0VZ", "uuid:0d9f8c4e", manifest.media(), "submission.xml.enc", null);
+        assertEquals("127fc338bf94bc517a9c45da686582c9", HexFormat.of().formatHex(md.digest(OdkCrypto.signatureSource(unversioned, md5s).getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void testKeyCache() {
+        KeyCache<String,byte[]> cache = OdkCrypto.newKeyCache(1, Duration.ofMinutes(1));
+        OdkCrypto.Encryptor first = new OdkCrypto.Encryptor(PUB_KEY, "INST_10");
+        byte[] part0 = first.encrypt("first".getBytes());
+        byte[] part1 = first.encrypt("again".getBytes());
+
+        OdkCrypto.Decryptor decryptor = new OdkCrypto.Decryptor(PRIV_KEY, first.getBase64Key(), "INST_10", false, cache);
+        assertEquals("again", new String(new OdkCrypto.Decryptor(PRIV_KEY, first.getBase64Key(), "INST_10", false, cache).decrypt(1, part1)));
+        assertEquals(new KeyCache.Stats(1, 1, 0, 1), cache.getStats());
+
+        // Evicting the key wipes the cached copy, but not the decryptor's
+        OdkCrypto.OdkResult second = OdkCrypto.encrypt(PUB_KEY, "second".getBytes(), "INST_11");
+        assertEquals("second", new String(new OdkCrypto.Decryptor(PRIV_KEY, second.b64key(), "INST_11", false, cache).decrypt(second.ciphertext())));
+        assertEquals(1, cache.getStats().evictions());
+        assertEquals("first", new String(decryptor.decrypt(part0)));
+    }
 }
@@ -0,0 +1,53 @@
+package it.zwets.sms.crypto;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+public class OdkManifestTest {
+
+    private static final String MANIFEST = """
+            <?xml version="1.0" encoding="UTF-8"?>
+            <data xmlns="http://opendatakit.org/submissions" encrypted="yes" id="household" version="2024011501">
+              <base64EncryptedKey>S0VZ</base64EncryptedKey>
+              <orx:meta xmlns:orx="http://openrosa.org/xforms">
+                <orx:instanceID>uuid:0d9f8c4e</orx:instanceID>
+              </orx:meta>
+              <media><file>1705312345.jpg.enc</file></media>
+              <media><file>1705312399.m4a.enc</file></media>
+              <encryptedXmlFile>submission.xml.enc</encryptedXmlFile>
+              <base64EncryptedElementSignature>U0lH</base64EncryptedElementSignature>
+            </data>
+            """;
+
+    @Test
+    public void testRead() {
+        OdkManifest manifest = read(MANIFEST);
+        assertEquals("household", manifest.formId());
+        assertEquals("2024011501", manifest.version());
+        assertEquals("S0VZ", manifest.base64EncryptedKey());
+        assertEquals("uuid:0d9f8c4e", manifest.instanceId());
+        assertEquals(List.of("1705312345.jpg.enc", "1705312399.m4a.enc"), manifest.media());
+        assertEquals("submission.xml.enc", manifest.encryptedXmlFile());
+        assertEquals("U0lH", manifest.base64EncryptedElementSignature());
+        assertEquals(List.of("1705312345.jpg.enc", "1705312399.m4a.enc", "submission.xml.enc"), manifest.parts());
+    }
+
+    @Test
+    public void testUnencryptedAndInvalid() {
+        assertNull(read("<data id=\"household\"><name>clear</name></data>"));
+        assertThrows(RuntimeException.class, () -> read(MANIFEST.replace("1705312345.jpg.enc", "../../etc/passwd")));
+        assertThrows(RuntimeException.class, () -> read(MANIFEST.replace("<encryptedXmlFile>submission.xml.enc</encryptedXmlFile>", "")));
+        assertThrows(RuntimeException.class, () -> read(MANIFEST.substring(0, 200)));
+    }
+
+    private static OdkManifest read(String xml) {
+        return OdkManifest.read(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -1,14 +1,45 @@
 package it.zwets.sms.crypto;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.IntStream;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 public class PkiCryptoTest {
     
@@ -41,4 +72,691 @@ public class PkiCryptoTest {
         
         assertEquals(output, input);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testStreamAndArrayFormatsMatch() {
+        byte[] input = "Hello World".getBytes();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        new PkiCrypto.Encryptor(PUBKEY).encrypt(new ByteArrayInputStream(input), bos);
+        
+        assertArrayEquals(input, PkiCrypto.decrypt(PRIVKEY, bos.toByteArray()));
+        
+        bos.reset();
+        new PkiCrypto.Decryptor(PRIVKEY).decrypt(new ByteArrayInputStream(PkiCrypto.encrypt(PUBKEY, input)), bos);
+        assertArrayEquals(input, bos.toByteArray());
+    }
+
+    @Test
+    public void testConcurrentEncryptAndDecrypt() throws Exception {
+        int threads = 2 * Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; ++t) {
+                final int seed = t;
+                futures.add(executor.submit(() -> {
+                    Random random = new Random(seed);
+                    PkiCrypto.Encryptor encryptor = new PkiCrypto.Encryptor(PUBKEY);
+                    PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(PRIVKEY);
+                    for (int i = 0; i < 50; ++i) {
+                        byte[] input = new byte[random.nextInt(2000)];
+                        random.nextBytes(input);
+                        assertArrayEquals(input, decryptor.decrypt(encryptor.encrypt(input)));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testDecryptAllKeepsOrderAndIsolatesFailures() {
+        List<byte[]> ciphertexts = new ArrayList<>();
+        for (int i = 0; i < 20; ++i) {
+            ciphertexts.add(PkiCrypto.encrypt(PUBKEY, ("Message " + i).getBytes()));
+        }
+        ciphertexts.set(7, "garbage".getBytes());
+        
+        List<Batch.Result> results = new PkiCrypto.Decryptor(PRIVKEY).decryptAll(ciphertexts);
+        
+        assertEquals(20, results.size());
+        for (int i = 0; i < 20; ++i) {
+            if (i == 7) {
+                assertFalse(results.get(i).isOk());
+                assertNull(results.get(i).value());
+            }
+            else {
+                assertEquals("Message " + i, new String(results.get(i).get()));
+            }
+        }
+    }
+
+    @Test
+    public void testDecryptAllStreamOnVirtualThreads() {
+        PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(PRIVKEY);
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<String> outputs = decryptor.decryptAll(
+                    IntStream.range(0, 100).mapToObj(i -> PkiCrypto.encrypt(PUBKEY, ("M" + i).getBytes())), executor)
+                .peek(r -> assertTrue(r.isOk()))
+                .map(r -> new String(r.value()))
+                .toList();
+            
+            assertEquals(IntStream.range(0, 100).mapToObj(i -> "M" + i).toList(), outputs);
+        }
+    }
+
+    @Test
+    public void testEncryptAll() {
+        List<byte[]> plaintexts = IntStream.range(0, 50).mapToObj(i -> ("M" + i).getBytes()).toList();
+        List<Batch.Result> results = new PkiCrypto.Encryptor(PUBKEY).encryptAll(plaintexts);
+        
+        PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(PRIVKEY);
+        for (int i = 0; i < 50; ++i) {
+            assertArrayEquals(plaintexts.get(i), decryptor.decrypt(results.get(i).get()));
+        }
+    }
+
+    @Test
+    public void testOutputSizeIsExact() {
+        PkiCrypto.Encryptor encryptor = new PkiCrypto.Encryptor(PUBKEY);
+        for (int n : new int[] { 0, 1, 15, 16, 17, 160, 1000 }) {
+            assertEquals(encryptor.outputSize(n), encryptor.encrypt(new byte[n]).length);
+        }
+    }
+
+    @Test
+    public void testDirectByteBuffers() {
+        byte[] input = "Hello ByteBuffer".getBytes();
+        PkiCrypto.Encryptor encryptor = new PkiCrypto.Encryptor(PUBKEY);
+        PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(PRIVKEY);
+        
+        ByteBuffer src = ByteBuffer.allocateDirect(input.length).put(input).flip();
+        ByteBuffer enc = ByteBuffer.allocateDirect(encryptor.outputSize(input.length));
+        assertEquals(enc.capacity(), encryptor.encrypt(src, enc));
+        assertFalse(src.hasRemaining());
+        
+        enc.flip();
+        ByteBuffer dec = ByteBuffer.allocateDirect(decryptor.outputSize(enc.remaining()));
+        int n = decryptor.decrypt(enc, dec);
+        
+        byte[] output = new byte[n];
+        dec.flip().get(output);
+        assertArrayEquals(input, output);
+    }
+
+    @Test
+    public void testByteBufferTooSmall() {
+        PkiCrypto.Encryptor encryptor = new PkiCrypto.Encryptor(PUBKEY);
+        ByteBuffer dst = ByteBuffer.allocate(encryptor.outputSize(10) - 1);
+        assertThrows(RuntimeException.class, () -> encryptor.encrypt(ByteBuffer.allocate(10), dst));
+    }
+
+    @Test
+    public void testFileRoundTrip(@TempDir Path dir) throws Exception {
+        byte[] input = new byte[3 * FileCipher.CHUNK_SIZE + 17];
+        new Random(7).nextBytes(input);
+        Path plain = Files.write(dir.resolve("plain"), input);
+        Path enc = dir.resolve("enc");
+        Path dec = dir.resolve("dec");
+        
+        new PkiCrypto.Encryptor(PUBKEY).encrypt(plain, enc);
+        assertArrayEquals(input, PkiCrypto.decrypt(PRIVKEY, Files.readAllBytes(enc)));
+        
+        new PkiCrypto.Decryptor(PRIVKEY).decrypt(enc, dec);
+        assertArrayEquals(input, Files.readAllBytes(dec));
+    }
+
+    @Test
+    public void testFileOutputOnlyOnSuccess(@TempDir Path dir) throws Exception {
+        byte[] input = new byte[FileCipher.CHUNK_SIZE + 99];
+        new Random(12).nextBytes(input);
+        Path file = Files.write(dir.resolve("file"), input);
+
+        // The output may be the input, as it is only moved into place at the end
+        new PkiCrypto.Encryptor(PUBKEY).encrypt(file, file);
+        byte[] ciphertext = Files.readAllBytes(file);
+        new PkiCrypto.Decryptor(PRIVKEY).decrypt(file, file);
+        assertArrayEquals(input, Files.readAllBytes(file));
+
+        // A failed decryption leaves the existing output, and no temporary file
+        Path truncated = Files.write(dir.resolve("truncated"), Arrays.copyOf(ciphertext, ciphertext.length - 1));
+        assertThrows(RuntimeException.class, () -> new PkiCrypto.Decryptor(PRIVKEY).decrypt(truncated, file));
+        assertArrayEquals(input, Files.readAllBytes(file));
+        try (var files = Files.list(dir)) {
+            assertEquals(2, files.count());
+        }
+    }
+
+    @Test
+    public void testSingleShotLimit(@TempDir Path dir) throws Exception {
+        PkiCrypto.Encryptor v2 = new PkiCrypto.Encryptor(PUBKEY, PkiCrypto.Version.V2);
+        PkiCrypto.Encryptor segmented = new PkiCrypto.Encryptor(PUBKEY, PkiCrypto.Version.SEGMENTED);
+
+        // A sparse file just over the limit takes no space
+        Path large = dir.resolve("large");
+        try (RandomAccessFile file = new RandomAccessFile(large.toFile(), "rw")) {
+            file.setLength(PkiCrypto.MAX_SINGLE_SHOT_SIZE + 1L);
+        }
+        assertThrows(RuntimeException.class, () -> v2.encrypt(large, dir.resolve("enc")));
+        assertFalse(Files.exists(dir.resolve("enc")));
+        assertThrows(RuntimeException.class, () -> new MultiEncryptor(List.of(PUBKEY)).encrypt(new byte[PkiCrypto.MAX_SINGLE_SHOT_SIZE + 1]));
+
+        // Channels encrypt only as they go, which the single-shot formats cannot
+        assertThrows(RuntimeException.class, () -> v2.newChannel(Channels.newChannel(new ByteArrayOutputStream())));
+        segmented.newChannel(Channels.newChannel(new ByteArrayOutputStream())).close();
+
+        // Within the limit, the stream and file methods work in one pass
+        byte[] input = new byte[3 * CipherChannels.BUFFER_SIZE + 5];
+        new Random(9).nextBytes(input);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        v2.encrypt(new ByteArrayInputStream(input), bos);
+        Path enc = Files.write(dir.resolve("enc"), bos.toByteArray());
+        new PkiCrypto.Decryptor(PRIVKEY).decrypt(enc, dir.resolve("dec"));
+        assertArrayEquals(input, Files.readAllBytes(dir.resolve("dec")));
+    }
+
+    @Test
+    public void testV2RoundTrip() {
+        byte[] input = "Hello GCM".getBytes();
+        PkiCrypto.Encryptor encryptor = new PkiCrypto.Encryptor(PUBKEY, PkiCrypto.Version.V2);
+        byte[] encrypted = encryptor.encrypt(input);
+        
+        assertTrue(Base64.getEncoder().encodeToString(encrypted).startsWith("ENV"));
+        assertEquals(encryptor.outputSize(input.length), encrypted.length);
+        assertArrayEquals(input, PkiCrypto.decrypt(PRIVKEY, encrypted));
+        
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new PkiCrypto.Decryptor(PRIVKEY).decrypt(new ByteArrayInputStream(encrypted), os);
+        assertArrayEquals(input, os.toByteArray());
+    }
+
+    @Test
+    public void testV2StreamEncrypt() {
+        byte[] input = new byte[100_000];
+        new Random(3).nextBytes(input);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new PkiCrypto.Encryptor(PUBKEY, PkiCrypto.Version.V2).encrypt(new ByteArrayInputStream(input), os);
+        
+        assertArrayEquals(input, PkiCrypto.decrypt(PRIVKEY, os.toByteArray()));
+    }
+
+    @Test
+    public void testDecryptsBothVersions() {
+        byte[] input = "Either way".getBytes();
+        PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(PRIVKEY);
+        
+        for (PkiCrypto.Version version : List.of(PkiCrypto.Version.V1, PkiCrypto.Version.V2)) {
+            assertArrayEquals(input, decryptor.decrypt(new PkiCrypto.Encryptor(PUBKEY, version).encrypt(input)));
+        }
+    }
+
+    @Test
+    public void testV2DetectsTampering() {
+        byte[] encrypted = new PkiCrypto.Encryptor(PUBKEY, PkiCrypto.Version.V2).encrypt("Do not touch".getBytes());
+        
+        byte[] body = encrypted.clone();
+        body[body.length - 20] ^= 1;
+        assertThrows(RuntimeException.class, () -> PkiCrypto.decrypt(PRIVKEY, body));
+        
+        byte[] flags = encrypted.clone();
+        flags[5] ^= 1;
+        assertThrows(RuntimeException.class, () -> PkiCrypto.decrypt(PRIVKEY, flags));
+    }
+
+    @Test
+    public void testV2FileRoundTrip(@TempDir Path dir) throws Exception {
+        byte[] input = new byte[FileCipher.CHUNK_SIZE + 99];
+        new Random(11).nextBytes(input);
+        Path plain = Files.write(dir.resolve("plain"), input);
+        Path enc = dir.resolve("enc");
+        Path dec = dir.resolve("dec");
+        
+        new PkiCrypto.Encryptor(PUBKEY, PkiCrypto.Version.V2).encrypt(plain, enc);
+        new PkiCrypto.Decryptor(PRIVKEY).decrypt(enc, dec);
+        assertArrayEquals(input, Files.readAllBytes(dec));
+    }
+
+    @Test
+    public void testV2FileOutputOnlyOnSuccess(@TempDir Path dir) throws Exception {
+        byte[] input = new byte[FileCipher.CHUNK_SIZE + 99];
+        new Random(14).nextBytes(input);
+        Path file = Files.write(dir.resolve("file"), input);
+        Path enc = dir.resolve("enc");
+        new PkiCrypto.Encryptor(PUBKEY, PkiCrypto.Version.V2).encrypt(file, enc);
+
+        // A tag mismatch is only found at the end, when output was already written
+        byte[] ciphertext = Files.readAllBytes(enc);
+        ciphertext[ciphertext.length - 1] ^= 1;
+        Path tampered = Files.write(dir.resolve("tampered"), ciphertext);
+        assertThrows(RuntimeException.class, () -> new PkiCrypto.Decryptor(PRIVKEY).decrypt(tampered, file));
+        assertArrayEquals(input, Files.readAllBytes(file));
+        try (var files = Files.list(dir)) {
+            assertEquals(3, files.count());
+        }
+    }
+
+    @Test
+    public void testKeyIdInHeader() {
+        byte[] withId = new PkiCrypto.Encryptor(PUBKEY, PkiCrypto.Version.V2, true).encrypt("Find me".getBytes());
+        byte[] withoutId = new PkiCrypto.Encryptor(PUBKEY, PkiCrypto.Version.V2).encrypt("Find me".getBytes());
+        
+        assertArrayEquals(PkiCrypto.keyId(PUBKEY), PkiCrypto.getKeyId(withId));
+        assertArrayEquals(PkiCrypto.keyId(PUBKEY), PkiCrypto.getKeyId(Arrays.copyOf(withId, PkiCrypto.KEY_ID_PREFIX)));
+        assertNull(PkiCrypto.getKeyId(withoutId));
+        assertNull(PkiCrypto.getKeyId(PkiCrypto.encrypt(PUBKEY, "V1".getBytes())));
+        assertEquals(withoutId.length + PkiCrypto.KEY_ID_SIZE, withId.length);
+        assertArrayEquals("Find me".getBytes(), PkiCrypto.decrypt(PRIVKEY, withId));
+    }
+
+    @Test
+    public void testNoKeyIdInV1() {
+        assertThrows(RuntimeException.class, () -> new PkiCrypto.Encryptor(PUBKEY, PkiCrypto.Version.V1, true));
+    }
+
+    @Test
+    public void testXdhRoundTrip() throws Exception {
+        KeyPair pair = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+        byte[] input = "Hello X25519".getBytes();
+        PkiCrypto.Encryptor encryptor = new PkiCrypto.Encryptor(pair.getPublic());
+        byte[] encrypted = encryptor.encrypt(input);
+        
+        assertTrue(Base64.getEncoder().encodeToString(encrypted).startsWith("ENX"));
+        assertEquals(input.length + 4 + 1 + 32 + 16, encrypted.length);
+        assertEquals(encryptor.outputSize(input.length), encrypted.length);
+        assertArrayEquals(input, PkiCrypto.decrypt(pair.getPrivate(), encrypted));
+        
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        new PkiCrypto.Decryptor(pair.getPrivate()).decrypt(new ByteArrayInputStream(encrypted), os);
+        assertArrayEquals(input, os.toByteArray());
+    }
+
+    @Test
+    public void testXdhKeyIdAndX448() throws Exception {
+        KeyPair pair = KeyPairGenerator.getInstance("X448").generateKeyPair();
+        byte[] input = "Hello X448".getBytes();
+        byte[] encrypted = new PkiCrypto.Encryptor(pair.getPublic(), PkiCrypto.Version.XDH, true).encrypt(input);
+        
+        assertArrayEquals(PkiCrypto.keyId(pair.getPublic()), PkiCrypto.getKeyId(encrypted));
+        assertArrayEquals(input, PkiCrypto.decrypt(pair.getPrivate(), encrypted));
+    }
+
+    @Test
+    public void testXdhRejectsWrongKeys() throws Exception {
+        KeyPair pair = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+        byte[] encrypted = PkiCrypto.encrypt(pair.getPublic(), "Not for you".getBytes());
+        
+        assertThrows(RuntimeException.class, () -> PkiCrypto.decrypt(PRIVKEY, encrypted));
+        assertThrows(RuntimeException.class, () -> PkiCrypto.decrypt(
+                KeyPairGenerator.getInstance("X25519").generateKeyPair().getPrivate(), encrypted));
+        assertThrows(RuntimeException.class, () -> new PkiCrypto.Encryptor(pair.getPublic(), PkiCrypto.Version.V2));
+        assertThrows(RuntimeException.class, () -> new PkiCrypto.Encryptor(PUBKEY, PkiCrypto.Version.XDH));
+    }
+
+    @Test
+    public void testSessionMessages() {
+        SessionEncryptor encryptor = new SessionEncryptor(PUBKEY);
+        KeyCache<String,byte[]> sessions = PkiCrypto.newSessionCache(10, Duration.ofMinutes(1));
+        PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(PRIVKEY, sessions);
+        
+        byte[] first = encryptor.encrypt("first".getBytes());
+        byte[] second = encryptor.encrypt("second".getBytes());
+        assertTrue(second.length < first.length - 200);
+        
+        assertArrayEquals("first".getBytes(), decryptor.decrypt(first));
+        assertArrayEquals("second".getBytes(), decryptor.decrypt(second));
+        assertArrayEquals("third".getBytes(), decryptor.decrypt(encryptor.encrypt("third".getBytes())));
+        assertEquals(1, sessions.getStats().size());
+        
+        // Without a cache only the first message of a session decrypts
+        assertArrayEquals("first".getBytes(), PkiCrypto.decrypt(PRIVKEY, first));
+        assertThrows(RuntimeException.class, () -> PkiCrypto.decrypt(PRIVKEY, second));
+    }
+
+    @Test
+    public void testSessionRotation() {
+        SessionEncryptor encryptor = new SessionEncryptor(PUBKEY, true, 2, Duration.ofMinutes(1));
+        PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(PRIVKEY, PkiCrypto.newSessionCache(10, Duration.ofMinutes(1)));
+        
+        byte[] m1 = encryptor.encrypt("1".getBytes());
+        byte[] session1 = encryptor.getSessionId();
+        byte[] m2 = encryptor.encrypt("2".getBytes());
+        byte[] m3 = encryptor.encrypt("3".getBytes());
+        assertFalse(Arrays.equals(session1, encryptor.getSessionId()));
+        assertEquals(m1.length, m3.length);
+        assertArrayEquals(PkiCrypto.keyId(PUBKEY), PkiCrypto.getKeyId(m2));
+        
+        encryptor.newSession();
+        byte[] m4 = encryptor.encrypt("4".getBytes());
+        assertEquals(m1.length, m4.length);
+        
+        for (byte[] m : List.of(m1, m2, m3, m4)) {
+            assertNotNull(decryptor.decrypt(m));
+        }
+    }
+
+    @Test
+    public void testSessionRejectsTampering() throws Exception {
+        SessionEncryptor encryptor = new SessionEncryptor(PUBKEY);
+        KeyCache<String,byte[]> sessions = PkiCrypto.newSessionCache(10, Duration.ofMinutes(1));
+        PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(PRIVKEY, sessions);
+
+        // A first message that fails to authenticate does not start its session
+        byte[] forged = encryptor.encrypt("forged".getBytes());
+        forged[forged.length - 1] ^= 1;
+        assertThrows(RuntimeException.class, () -> decryptor.decrypt(forged));
+        assertEquals(0, sessions.getStats().size());
+        byte[] orphan = encryptor.encrypt("orphan".getBytes());
+        assertThrows(RuntimeException.class, () -> decryptor.decrypt(orphan));
+
+        encryptor.newSession();
+        decryptor.decrypt(encryptor.encrypt("open".getBytes()));
+        byte[] message = encryptor.encrypt("tamper".getBytes());
+        message[message.length - 1] ^= 1;
+        assertThrows(RuntimeException.class, () -> decryptor.decrypt(message));
+
+        // The session is bound to the recipient key, also in a shared cache
+        PkiCrypto.Decryptor other = new PkiCrypto.Decryptor(KeyPairGenerator.getInstance("RSA").generateKeyPair().getPrivate(), sessions);
+        byte[] next = encryptor.encrypt("next".getBytes());
+        assertThrows(RuntimeException.class, () -> other.decrypt(next));
+        assertArrayEquals("next".getBytes(), decryptor.decrypt(next));
+    }
+
+    @Test
+    public void testSessionIdCannotBeTakenOver() {
+        SessionEncryptor encryptor = new SessionEncryptor(PUBKEY);
+        KeyCache<String,byte[]> sessions = PkiCrypto.newSessionCache(10, Duration.ofMinutes(1));
+        PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(PRIVKEY, sessions);
+        byte[] first = encryptor.encrypt("genuine".getBytes());
+        assertArrayEquals("genuine".getBytes(), decryptor.decrypt(first));
+
+        // Anyone with the public key can start a session under a seen id,
+        // but not while that session is live; the genuine start may repeat
+        SessionEncryptor intruder = new SessionEncryptor(PUBKEY);
+        intruder.newSession(encryptor.getSessionId());
+        byte[] hijack = intruder.encrypt("hijack".getBytes());
+        RuntimeException e = assertThrows(RuntimeException.class, () -> decryptor.decrypt(hijack));
+        assertTrue(e.getMessage().contains("already started"));
+        assertThrows(RuntimeException.class, () -> decryptor.decrypt(intruder.encrypt("more".getBytes())));
+
+        assertArrayEquals("genuine".getBytes(), decryptor.decrypt(first));
+        assertArrayEquals("still mine".getBytes(), decryptor.decrypt(encryptor.encrypt("still mine".getBytes())));
+    }
+
+    @Test
+    public void testMultiRecipient() throws Exception {
+        KeyPair rsa = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        KeyPair xdh = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+        MultiEncryptor encryptor = new MultiEncryptor(List.of(PUBKEY, rsa.getPublic(), xdh.getPublic()));
+        byte[] input = "For all of you".getBytes();
+        byte[] encrypted = encryptor.encrypt(input);
+        
+        assertTrue(Base64.getEncoder().encodeToString(encrypted).startsWith("ENM"));
+        assertNull(PkiCrypto.getKeyId(encrypted));
+        assertEquals(3, PkiCrypto.getRecipientKeyIds(encrypted).size());
+        
+        for (PrivateKey privkey : List.of(PRIVKEY, rsa.getPrivate(), xdh.getPrivate())) {
+            assertArrayEquals(input, PkiCrypto.decrypt(privkey, encrypted));
+        }
+        
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        encryptor.encrypt(new ByteArrayInputStream(input), os);
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        new PkiCrypto.Decryptor(xdh.getPrivate()).decrypt(new ByteArrayInputStream(os.toByteArray()), decrypted);
+        assertArrayEquals(input, decrypted.toByteArray());
+    }
+
+    @Test
+    public void testMultiRecipientRejects() throws Exception {
+        KeyPair other = KeyPairGenerator.getInstance("RSA").generateKeyPair();
+        byte[] encrypted = new MultiEncryptor(List.of(PUBKEY)).encrypt("Only me".getBytes());
+        
+        assertThrows(RuntimeException.class, () -> PkiCrypto.decrypt(other.getPrivate(), encrypted));
+        assertThrows(RuntimeException.class, () -> new MultiEncryptor(List.of(PUBKEY, PUBKEY)));
+        assertThrows(RuntimeException.class, () -> new MultiEncryptor(List.of()));
+        assertThrows(RuntimeException.class, () -> new PkiCrypto.Encryptor(PUBKEY, PkiCrypto.Version.MULTI));
+        
+        encrypted[encrypted.length - 1] ^= 1;
+        assertThrows(RuntimeException.class, () -> PkiCrypto.decrypt(PRIVKEY, encrypted));
+
+        // A full table of maximal entries, whose sizes sum past an int
+        ByteBuffer forged = ByteBuffer.allocate(4 + 1 + 2 + 0xFFFF * 14 + 100);
+        forged.put(encrypted, 0, 5).putShort((short) 0xFFFF);
+        for (int i = 0; i < 0xFFFF; ++i) {
+            forged.putLong(i).putInt(i * 0xFFFF).putShort((short) 0xFFFF);
+        }
+        RuntimeException e = assertThrows(RuntimeException.class, () -> PkiCrypto.decrypt(PRIVKEY, forged.array()));
+        assertTrue(e.getMessage().contains("exceed the input"), e.getMessage());
+    }
+
+    @Test
+    public void testCompressedRoundTrip(@TempDir Path dir) throws Exception {
+        byte[] input = "<data><field>repetitive</field></data>\n".repeat(10_000).getBytes();
+        PkiCrypto.Encryptor encryptor = new PkiCrypto.Encryptor(PUBKEY, PkiCrypto.Version.V2, true, true);
+        PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(PRIVKEY);
+        byte[] encrypted = encryptor.encrypt(input);
+        
+        assertTrue(encrypted.length < input.length / 10);
+        assertTrue(encrypted.length <= encryptor.outputSize(input.length));
+        assertArrayEquals(input, decryptor.decrypt(encrypted));
+        
+        ByteBuffer dst = ByteBuffer.allocateDirect(input.length);
+        byte[] output = new byte[decryptor.decrypt(ByteBuffer.wrap(encrypted), dst)];
+        dst.flip().get(output);
+        assertArrayEquals(input, output);
+        assertThrows(RuntimeException.class, () -> decryptor.decrypt(ByteBuffer.wrap(encrypted), ByteBuffer.allocate(100)));
+        
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        encryptor.encrypt(new ByteArrayInputStream(input), os);
+        ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        decryptor.decrypt(new ByteArrayInputStream(os.toByteArray()), decrypted);
+        assertArrayEquals(input, decrypted.toByteArray());
+        
+        Path plain = Files.write(dir.resolve("plain"), input);
+        encryptor.encrypt(plain, dir.resolve("enc"));
+        decryptor.decrypt(dir.resolve("enc"), dir.resolve("dec"));
+        assertArrayEquals(input, Files.readAllBytes(dir.resolve("dec")));
+    }
+
+    @Test
+    public void testInflatedSizeLimit(@TempDir Path dir) throws Exception {
+        byte[] input = new byte[4 * 1024 * 1024];
+        PkiCrypto.Encryptor encryptor = new PkiCrypto.Encryptor(PUBKEY, PkiCrypto.Version.V2, false, true);
+        PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(PRIVKEY).withMaxInflatedSize(input.length - 1);
+        byte[] encrypted = encryptor.encrypt(input);
+        assertTrue(encrypted.length < 10_000);
+
+        assertThrows(RuntimeException.class, () -> decryptor.decrypt(encrypted));
+        assertThrows(RuntimeException.class, () -> decryptor.decrypt(new ByteArrayInputStream(encrypted), new ByteArrayOutputStream()));
+        assertThrows(RuntimeException.class, () -> decryptor.decrypt(ByteBuffer.wrap(encrypted), ByteBuffer.allocate(input.length - 1)));
+        assertThrows(IOException.class, () -> decryptor.newChannel(Channels.newChannel(new ByteArrayInputStream(encrypted)))
+                .read(ByteBuffer.allocate(input.length)));
+
+        Path enc = Files.write(dir.resolve("enc"), encrypted);
+        assertThrows(RuntimeException.class, () -> decryptor.decrypt(enc, dir.resolve("dec")));
+        assertFalse(Files.exists(dir.resolve("dec")));
+
+        assertEquals(input.length, decryptor.withMaxInflatedSize(input.length).decrypt(encrypted).length);
+        assertEquals(0, decryptor.decrypt(ByteBuffer.wrap(encryptor.encrypt(new byte[0])), ByteBuffer.allocate(0)));
+    }
+
+    @Test
+    public void testCompressedFormats() throws Exception {
+        byte[] input = "abcabcabcabcabcabcabcabcabcabcabcabc".getBytes();
+        KeyPair xdh = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+        
+        assertArrayEquals(input, PkiCrypto.decrypt(xdh.getPrivate(),
+                new PkiCrypto.Encryptor(xdh.getPublic(), PkiCrypto.Version.XDH, false, true).encrypt(input)));
+        assertArrayEquals(input, PkiCrypto.decrypt(PRIVKEY,
+                new MultiEncryptor(List.of(PUBKEY, xdh.getPublic()), true).encrypt(input)));
+        assertArrayEquals(new byte[0], PkiCrypto.decrypt(PRIVKEY,
+                new PkiCrypto.Encryptor(PUBKEY, PkiCrypto.Version.V2, false, true).encrypt(new byte[0])));
+        assertThrows(RuntimeException.class, () -> new PkiCrypto.Encryptor(PUBKEY, PkiCrypto.Version.V1, false, true));
+    }
+
+    @Test
+    public void testSegmentedRoundTrip() {
+        PkiCrypto.Encryptor encryptor = new PkiCrypto.Encryptor(PUBKEY, PkiCrypto.Version.SEGMENTED, true);
+        PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(PRIVKEY);
+        Random random = new Random(11);
+        
+        for (int size : List.of(0, 1, Segments.SEGMENT_SIZE, Segments.SEGMENT_SIZE + 1, 3 * Segments.SEGMENT_SIZE - 5)) {
+            byte[] input = new byte[size];
+            random.nextBytes(input);
+            byte[] encrypted = encryptor.encrypt(input);
+            
+            assertEquals(encryptor.outputSize(size), encrypted.length);
+            assertArrayEquals(input, decryptor.decrypt(encrypted));
+            
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            encryptor.encrypt(new ByteArrayInputStream(input), os);
+            ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+            decryptor.decrypt(new ByteArrayInputStream(os.toByteArray()), decrypted);
+            assertArrayEquals(input, decrypted.toByteArray());
+        }
+    }
+
+    @Test
+    public void testSegmentedFileRandomAccess(@TempDir Path dir) throws Exception {
+        byte[] input = new byte[40 * Segments.SEGMENT_SIZE + 123];
+        new Random(13).nextBytes(input);
+        Path plain = Files.write(dir.resolve("plain"), input);
+        Path enc = dir.resolve("enc");
+        new PkiCrypto.Encryptor(PUBKEY, PkiCrypto.Version.SEGMENTED).encrypt(plain, enc);
+        PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(PRIVKEY);
+        
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            decryptor.decrypt(enc, dir.resolve("dec"), executor);
+        }
+        finally {
+            executor.shutdown();
+        }
+        assertArrayEquals(input, Files.readAllBytes(dir.resolve("dec")));
+        
+        try (SegmentReader reader = decryptor.open(enc)) {
+            assertEquals(input.length, reader.size());
+            for (long position : List.of(0L, 5L, Segments.SEGMENT_SIZE - 3L, input.length - 200L)) {
+                ByteBuffer dst = ByteBuffer.allocate(300);
+                int n = reader.read(position, dst);
+                assertEquals(Math.min(300, input.length - position), n);
+                assertArrayEquals(Arrays.copyOfRange(input, (int) position, (int) position + n), Arrays.copyOf(dst.array(), n));
+            }
+            assertEquals(-1, reader.read(input.length, ByteBuffer.allocate(1)));
+        }
+    }
+
+    @Test
+    public void testSegmentedRejectsTampering() {
+        byte[] input = new byte[3 * Segments.SEGMENT_SIZE];
+        byte[] encrypted = new PkiCrypto.Encryptor(PUBKEY, PkiCrypto.Version.SEGMENTED).encrypt(input);
+        int header = encrypted.length - Math.toIntExact(Segments.ciphertextSize(input.length));
+        
+        byte[] truncated = Arrays.copyOf(encrypted, header + 2 * Segments.CIPHER_SEGMENT_SIZE);
+        assertThrows(RuntimeException.class, () -> PkiCrypto.decrypt(PRIVKEY, truncated));
+        
+        byte[] swapped = encrypted.clone();
+        System.arraycopy(encrypted, header, swapped, header + Segments.CIPHER_SEGMENT_SIZE, Segments.CIPHER_SEGMENT_SIZE);
+        System.arraycopy(encrypted, header + Segments.CIPHER_SEGMENT_SIZE, swapped, header, Segments.CIPHER_SEGMENT_SIZE);
+        assertThrows(RuntimeException.class, () -> PkiCrypto.decrypt(PRIVKEY, swapped));
+        
+        byte[] deflated = encrypted.clone();
+        deflated[5] |= 0x02;
+        RuntimeException e = assertThrows(RuntimeException.class, () -> PkiCrypto.readHeader(new ByteArrayInputStream(deflated)));
+        assertTrue(e.getMessage().contains("Compression"));
+        
+        assertThrows(RuntimeException.class, () -> new PkiCrypto.Encryptor(PUBKEY, PkiCrypto.Version.SEGMENTED, false, true));
+    }
+
+    @Test
+    public void testAsync(@TempDir Path dir) throws Exception {
+        PkiCrypto.Encryptor encryptor = new PkiCrypto.Encryptor(TestingKeys.PUBKEY);
+        PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(TestingKeys.PRIVKEY);
+
+        List<CompletableFuture<byte[]>> futures = IntStream.range(0, 20)
+                .mapToObj(i -> encryptor.encryptAsync(("async " + i).getBytes())
+                        .thenCompose(decryptor::decryptAsync))
+                .toList();
+        for (int i = 0; i < futures.size(); ++i) {
+            assertEquals("async " + i, new String(futures.get(i).join()));
+        }
+
+        byte[] input = new byte[3 * FileCipher.CHUNK_SIZE / 2];
+        new Random(18).nextBytes(input);
+        Path plain = Files.write(dir.resolve("plain"), input);
+        encryptor.encryptAsync(plain, dir.resolve("enc"))
+                .thenCompose(v -> decryptor.decryptAsync(dir.resolve("enc"), dir.resolve("dec")))
+                .join();
+        assertArrayEquals(input, Files.readAllBytes(dir.resolve("dec")));
+
+        CompletionException e = assertThrows(CompletionException.class,
+                () -> decryptor.decryptAsync("garbage".getBytes()).join());
+        assertTrue(e.getCause() instanceof RuntimeException);
+    }
+
+    @Test
+    public void testChannels(@TempDir Path dir) throws Exception {
+        PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(TestingKeys.PRIVKEY);
+        PkiCrypto.Encryptor v1 = new PkiCrypto.Encryptor(TestingKeys.PUBKEY);
+        PkiCrypto.Encryptor segmented = new PkiCrypto.Encryptor(TestingKeys.PUBKEY, PkiCrypto.Version.SEGMENTED);
+        List<PkiCrypto.Encryptor> encryptors = List.of(v1,
+                new PkiCrypto.Encryptor(TestingKeys.PUBKEY, PkiCrypto.Version.V2),
+                new PkiCrypto.Encryptor(TestingKeys.PUBKEY, PkiCrypto.Version.V2, true, true),
+                segmented);
+
+        for (int size : new int[] { 0, 1000, 2 * Segments.SEGMENT_SIZE, 3 * CipherChannels.BUFFER_SIZE + 7 }) {
+            byte[] input = new byte[size];
+            new Random(size).nextBytes(input);
+            Path plain = Files.write(dir.resolve("plain"), input);
+
+            for (PkiCrypto.Encryptor encryptor : encryptors) {
+                Path enc = dir.resolve("enc");
+                Path dec = dir.resolve("dec");
+                // The single-shot formats are only read as a channel, not written
+                if (encryptor == v1 || encryptor == segmented) {
+                    try (FileChannel in = FileChannel.open(plain);
+                            WritableByteChannel out = encryptor.newChannel(FileChannel.open(enc, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))) {
+                        in.transferTo(0, in.size(), out);
+                    }
+                    assertArrayEquals(input, decryptor.decrypt(Files.readAllBytes(enc)));
+                }
+
+                Files.write(enc, encryptor.encrypt(input));
+                try (ReadableByteChannel in = decryptor.newChannel(FileChannel.open(enc));
+                        FileChannel out = FileChannel.open(dec, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                    long position = 0;
+                    long n;
+                    while ((n = out.transferFrom(in, position, 10_000)) > 0) {
+                        position += n;
+                    }
+                }
+                assertArrayEquals(input, Files.readAllBytes(dec));
+            }
+        }
+    }
+
+    @Test
+    public void testChannelRejectsTampering() throws Exception {
+        PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(TestingKeys.PRIVKEY);
+        byte[] input = new byte[3 * Segments.SEGMENT_SIZE];
+        byte[] ciphertext = new PkiCrypto.Encryptor(TestingKeys.PUBKEY, PkiCrypto.Version.SEGMENTED).encrypt(input);
+        ciphertext[ciphertext.length - 100] ^= 1;
+
+        ReadableByteChannel channel = decryptor.newChannel(Channels.newChannel(new ByteArrayInputStream(ciphertext)));
+        ByteBuffer buffer = ByteBuffer.allocate(Segments.SEGMENT_SIZE);
+        assertThrows(RuntimeException.class, () -> {
+            while (channel.read(buffer.clear()) >= 0) {
+                // read to the tampered segment
+            }
+        });
+
+        // Non-segmented ciphertext is authenticated in full before any is read
+        byte[] v2 = new PkiCrypto.Encryptor(TestingKeys.PUBKEY, PkiCrypto.Version.V2).encrypt(input);
+        v2[v2.length - 100] ^= 1;
+        assertThrows(RuntimeException.class, () -> decryptor.newChannel(Channels.newChannel(new ByteArrayInputStream(v2))));
+    }
+}
@@ -0,0 +1,51 @@
+package it.zwets.sms.crypto;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.util.Base64;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PkiUtilsTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testCachedKeys() {
+        byte[] encoded = Base64.getDecoder().decode(TestingKeys.B64_PUBKEY);
+        assertSame(PkiUtils.readPublicKey(encoded), PkiUtils.readPublicKey(encoded.clone()));
+        assertEquals(TestingKeys.PUBKEY, PkiUtils.readPublicKey(encoded));
+
+        byte[] privkey = Base64.getDecoder().decode(TestingKeys.B64_PRIVKEY);
+        assertSame(PkiUtils.readPrivateKey(privkey), PkiUtils.readPrivateKey(privkey));
+    }
+
+    @Test
+    public void testReadPublicKeys() throws Exception {
+        PublicKey xdh = KeyPairGenerator.getInstance("X25519").generateKeyPair().getPublic();
+        Files.writeString(tempDir.resolve("alice.pub"), TestingKeys.B64_PUBKEY + "\n");
+        Files.write(tempDir.resolve("bob.pub"), xdh.getEncoded());
+        Files.writeString(tempDir.resolve("notes.txt"), "not a key");
+
+        Map<String,PublicKey> keys = PkiUtils.readPublicKeys(tempDir);
+        assertEquals(2, keys.size());
+        assertEquals(TestingKeys.PUBKEY, keys.get("alice"));
+        assertEquals(xdh, keys.get("bob"));
+        assertSame(keys.get("alice"), PkiUtils.readPublicKey(tempDir.resolve("alice.pub")));
+        assertThrows(UnsupportedOperationException.class, () -> keys.put("carol", xdh));
+
+        Files.writeString(tempDir.resolve("carol.pub"), "bm90IGEga2V5");
+        RuntimeException e = assertThrows(RuntimeException.class, () -> PkiUtils.readPublicKeys(tempDir));
+        assertTrue(e.getMessage().contains("carol.pub"));
+    }
+}
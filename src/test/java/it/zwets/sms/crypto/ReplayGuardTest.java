@@ -0,0 +1,185 @@
+package it.zwets.sms.crypto;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class ReplayGuardTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testAddAndExpire() {
+        MutableClock clock = new MutableClock();
+        ReplayGuard guard = new ReplayGuard(1000, 1e-6, Duration.ofMinutes(10), clock);
+        byte[] one = fingerprint(1);
+        byte[] two = fingerprint(2);
+
+        assertFalse(guard.mightContain(one));
+        assertTrue(guard.add(one));
+        assertFalse(guard.add(one));
+        assertTrue(guard.mightContain(one));
+        assertFalse(guard.mightContain(two));
+
+        // Still remembered in the previous generation after one window
+        clock.advance(Duration.ofMinutes(11));
+        assertTrue(guard.mightContain(one));
+        assertTrue(guard.add(two));
+
+        // Gone after the next, while the later one is still remembered
+        clock.advance(Duration.ofMinutes(11));
+        assertFalse(guard.mightContain(one));
+        assertTrue(guard.mightContain(two));
+
+        clock.advance(Duration.ofMinutes(30));
+        assertFalse(guard.mightContain(two));
+        assertThrows(IllegalArgumentException.class, () -> guard.add(new byte[8]));
+    }
+
+    @Test
+    public void testClaimAndRelease() {
+        ReplayGuard guard = new ReplayGuard(1000, 1e-6, Duration.ofMinutes(10));
+        byte[] one = fingerprint(1);
+
+        // A claim blocks other claims until it is released, and a failed
+        // decryption releases without adding
+        assertTrue(guard.claim(one));
+        assertFalse(guard.claim(one));
+        guard.release(one, false);
+        assertFalse(guard.mightContain(one));
+
+        assertTrue(guard.claim(one));
+        guard.release(one, true);
+        assertTrue(guard.mightContain(one));
+        assertFalse(guard.claim(one));
+
+        // Releasing an unclaimed fingerprint does nothing
+        guard.release(fingerprint(2), true);
+        assertFalse(guard.mightContain(fingerprint(2)));
+    }
+
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        MutableClock clock = new MutableClock();
+        ReplayGuard guard = new ReplayGuard(1000, 1e-6, Duration.ofMinutes(10), clock);
+        for (int i = 0; i < 100; ++i) {
+            guard.add(fingerprint(i));
+        }
+        Path file = tempDir.resolve("replay");
+        guard.save(file);
+
+        ReplayGuard loaded = ReplayGuard.load(file, clock);
+        assertEquals(guard.getSizeBytes(), loaded.getSizeBytes());
+        assertTrue(loaded.mightContain(fingerprint(42)));
+        assertFalse(loaded.mightContain(fingerprint(100)));
+
+        clock.advance(Duration.ofMinutes(25));
+        assertFalse(ReplayGuard.load(file, clock).mightContain(fingerprint(42)));
+
+        Files.write(file, Arrays.copyOf(Files.readAllBytes(file), 40));
+        assertThrows(RuntimeException.class, () -> ReplayGuard.load(file));
+    }
+
+    @Test
+    public void testDecryptorRejectsReplay() throws Exception {
+        ReplayGuard guard = new ReplayGuard(1000, 1e-9, Duration.ofHours(1));
+        PkiCrypto.Decryptor decryptor = new PkiCrypto.Decryptor(TestingKeys.PRIVKEY, null, guard);
+        byte[] encrypted = new PkiCrypto.Encryptor(TestingKeys.PUBKEY, PkiCrypto.Version.V2).encrypt("Once only".getBytes());
+
+        // A tampered ciphertext fails on its tag and is not recorded
+        byte[] tampered = encrypted.clone();
+        tampered[tampered.length - 20] ^= 1;
+        assertThrows(RuntimeException.class, () -> decryptor.decrypt(tampered));
+
+        assertArrayEquals("Once only".getBytes(), decryptor.decrypt(encrypted));
+        RuntimeException e = assertThrows(RuntimeException.class, () -> decryptor.decrypt(encrypted));
+        assertTrue(e.getMessage().startsWith("Replayed"));
+
+        // The stream method rejects it before writing anything
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertThrows(RuntimeException.class, () -> decryptor.decrypt(new ByteArrayInputStream(encrypted), out));
+        assertEquals(0, out.size());
+
+        // A segmented channel records its ciphertext only once it has read to the end
+        byte[] segmented = new PkiCrypto.Encryptor(TestingKeys.PUBKEY, PkiCrypto.Version.SEGMENTED).encrypt("Once only".getBytes());
+        byte[] truncated = Arrays.copyOf(segmented, segmented.length - 1);
+        assertThrows(Exception.class, () -> readAll(decryptor.newChannel(Channels.newChannel(new ByteArrayInputStream(truncated)))));
+        assertArrayEquals("Once only".getBytes(), readAll(decryptor.newChannel(Channels.newChannel(new ByteArrayInputStream(segmented)))));
+        assertThrows(RuntimeException.class, () -> decryptor.newChannel(Channels.newChannel(new ByteArrayInputStream(segmented))));
+
+        // Unauthenticated V1 is rejected outright, as its body could be tampered with
+        byte[] v1 = new PkiCrypto.Encryptor(TestingKeys.PUBKEY, PkiCrypto.Version.V1).encrypt("Once only".getBytes());
+        e = assertThrows(RuntimeException.class, () -> decryptor.decrypt(v1));
+        assertTrue(e.getMessage().startsWith("Unauthenticated"));
+
+        // A decryptor without the guard still accepts it
+        assertArrayEquals("Once only".getBytes(), new PkiCrypto.Decryptor(TestingKeys.PRIVKEY).decrypt(encrypted));
+    }
+
+    @Test
+    public void testVaultRejectsReplay() {
+        ReplayGuard guard = new ReplayGuard(1000, 1e-9, Duration.ofHours(1));
+        Vault vault = new Vault(VaultTest.VAULT_FNAME, "123456", Vault.DEFAULT_CACHE_SIZE, Vault.DEFAULT_CACHE_IDLE, Vault.DEFAULT_SESSION_CACHE_SIZE, guard);
+        byte[] encrypted = new PkiCrypto.Encryptor(vault.getPublicKey("test"), PkiCrypto.Version.V2).encrypt("Vaulted".getBytes());
+
+        assertArrayEquals("Vaulted".getBytes(), vault.decrypt(encrypted));
+        assertThrows(RuntimeException.class, () -> vault.decrypt(encrypted));
+        assertThrows(RuntimeException.class, () -> vault.decrypt(PkiCrypto.encrypt(vault.getPublicKey("test"), "Vaulted".getBytes())));
+    }
+
+    private static byte[] readAll(ReadableByteChannel channel) throws IOException {
+        try (InputStream in = Channels.newInputStream(channel)) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] fingerprint(int i) {
+        return CipherPool.digest("SHA-256").digest(Integer.toString(i).getBytes());
+    }
+
+    // A clock that the tests move forward
+    private static final class MutableClock extends Clock {
+
+        private Instant now = Instant.parse("2024-01-01T00:00:00Z");
+
+        void advance(Duration duration) {
+            now = now.plus(duration);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
@@ -1,17 +1,35 @@
 package it.zwets.sms.crypto;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.KeyPairGenerator;
 import java.security.PublicKey;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 public class VaultTest {
     
     public static final String VAULT_FNAME = "classpath:test.vault";
     public static final String TEST_PUB_FNAME = "test.pub";
     
+    @TempDir
+    Path tempDir;
+    
     @Test
     public void testEncryptAndDecrypt() {
         String input = "Hello World";
@@ -23,4 +41,210 @@ public class VaultTest {
         
         assertEquals(output, input);
     }
+
+    @Test
+    public void testDecryptByKeyId() {
+        Vault vault = new Vault(VAULT_FNAME, "123456");
+        PublicKey pubkey = vault.getPublicKey("test");
+        byte[] encrypted = new PkiCrypto.Encryptor(pubkey, PkiCrypto.Version.V2, true).encrypt("By key id".getBytes());
+        
+        assertEquals("test", vault.findAlias(encrypted));
+        assertEquals("By key id", new String(vault.decrypt(encrypted), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testDecryptFile() throws IOException {
+        Vault vault = new Vault(VAULT_FNAME, "123456");
+        PublicKey pubkey = vault.getPublicKey("test");
+        Path plain = Files.writeString(tempDir.resolve("plain"), "File by key id");
+        Path enc = tempDir.resolve("enc");
+        Path dec = tempDir.resolve("dec");
+
+        new PkiCrypto.Encryptor(pubkey, PkiCrypto.Version.V2, true).encrypt(plain, enc);
+        vault.decrypt(enc, dec);
+        assertEquals("File by key id", Files.readString(dec));
+
+        new PkiCrypto.Encryptor(pubkey).encrypt(plain, enc);
+        Files.delete(dec);
+        vault.decrypt(enc, dec);
+        assertEquals("File by key id", Files.readString(dec));
+    }
+
+    @Test
+    public void testDecryptWithoutKeyId() {
+        Vault vault = new Vault(VAULT_FNAME, "123456");
+        byte[] encrypted = PkiCrypto.encrypt(vault.getPublicKey("test"), "No key id".getBytes());
+        
+        assertNull(vault.findAlias(encrypted));
+        assertEquals("No key id", new String(vault.decrypt(encrypted), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testUnknownKeyId() {
+        Vault vault = new Vault(VAULT_FNAME, "123456");
+        byte[] encrypted = new PkiCrypto.Encryptor(TestingKeys.PUBKEY, PkiCrypto.Version.V2, true).encrypt("Stranger".getBytes());
+        
+        assertNull(vault.findAlias(encrypted));
+        assertThrows(RuntimeException.class, () -> vault.decrypt(encrypted));
+    }
+
+    @Test
+    public void testDecryptMultiRecipient() {
+        Vault vault = new Vault("classpath:test-xdh.vault", "123456");
+        byte[] encrypted = new MultiEncryptor(List.of(TestingKeys.PUBKEY, vault.getPublicKey("xdh")))
+                .encrypt("Shared".getBytes());
+        
+        assertEquals("Shared", new String(vault.decrypt(encrypted), StandardCharsets.UTF_8));
+        assertEquals("Shared", new String(vault.decrypt("xdh", encrypted), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testDecryptFileWithLargeRecipientTable() throws Exception {
+        Vault vault = new Vault(VAULT_FNAME, "123456");
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("X25519");
+        List<PublicKey> recipients = new ArrayList<>();
+        for (int i = 0; i < 1500; ++i) {
+            recipients.add(generator.generateKeyPair().getPublic());
+        }
+        recipients.add(vault.getPublicKey("test"));
+        Path in = tempDir.resolve("many.enc");
+        Path out = tempDir.resolve("many.txt");
+        Files.write(in, new MultiEncryptor(recipients).encrypt("Crowded".getBytes()));
+
+        try (InputStream is = Files.newInputStream(in)) {
+            assertTrue(PkiCrypto.readHeader(is).length > 64 * 1024);
+        }
+        vault.decrypt(in, out);
+        assertEquals("Crowded", Files.readString(out));
+    }
+
+    @Test
+    public void testXdhEntry() {
+        Vault vault = new Vault("classpath:test-xdh.vault", "123456");
+        PublicKey pubkey = vault.getPublicKey("xdh");
+        byte[] encrypted = new PkiCrypto.Encryptor(pubkey, PkiCrypto.Version.XDH, true).encrypt("Curve".getBytes());
+        
+        assertEquals("XDH", pubkey.getAlgorithm());
+        assertEquals("Curve", new String(vault.decrypt("xdh", encrypted), StandardCharsets.UTF_8));
+        assertEquals("Curve", new String(vault.decrypt(encrypted), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testSessionMessages() {
+        Vault vault = new Vault(VAULT_FNAME, "123456");
+        SessionEncryptor encryptor = new SessionEncryptor(vault.getPublicKey("test"), true, 100, Duration.ofMinutes(1));
+        
+        assertEquals("one", new String(vault.decrypt("test", encryptor.encrypt("one".getBytes()))));
+        assertEquals("two", new String(vault.decrypt("test", encryptor.encrypt("two".getBytes()))));
+        assertEquals("three", new String(vault.decrypt(encryptor.encrypt("three".getBytes()))));
+        assertEquals(2, vault.getSessionCacheStats().hits());
+    }
+
+    @Test
+    public void testDecryptAll() {
+        Vault vault = new Vault(VAULT_FNAME, "123456");
+        PublicKey pubkey = vault.getPublicKey("test");
+        List<byte[]> ciphertexts = List.of(
+                PkiCrypto.encrypt(pubkey, "one".getBytes()), new byte[0], PkiCrypto.encrypt(pubkey, "three".getBytes()));
+        
+        List<Batch.Result> results = vault.decryptAll("test", ciphertexts);
+        assertEquals("one", new String(results.get(0).get()));
+        assertTrue(!results.get(1).isOk());
+        assertEquals("three", new String(results.get(2).get()));
+    }
+
+    @Test
+    public void testReloadOnlyWhenFileChanges() throws IOException {
+        Path file = copyTestVault();
+        Vault vault = new Vault(file.toString(), "123456");
+        
+        PublicKey pubkey = vault.getPublicKey("test");
+        vault.getPublicKey("test");
+        vault.getAliases();
+        assertEquals(0, vault.getReloadCount());
+        assertTrue(vault.getLastLoadDuration().toNanos() > 0);
+        
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 2000));
+        assertEquals(pubkey, vault.getPublicKey("test"));
+        assertEquals(1, vault.getReloadCount());
+
+        vault.getPublicKey("test");
+        assertEquals(1, vault.getReloadCount());
+    }
+
+    @Test
+    public void testKeepsSnapshotWhenFileBecomesInvalid() throws IOException {
+        Path file = copyTestVault();
+        Vault vault = new Vault(file.toString(), "123456");
+        PublicKey pubkey = vault.getPublicKey("test");
+        
+        Files.write(file, "garbage".getBytes());
+        assertEquals(pubkey, vault.getPublicKey("test"));
+        assertEquals(0, vault.getReloadCount());
+        
+        vault.getPublicKey("test");
+        vault.getAliases();
+        assertEquals(1, vault.getReloadFailureCount());
+        
+        copyTestVault();
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 2000));
+        assertEquals(pubkey, vault.getPublicKey("test"));
+        assertEquals(1, vault.getReloadCount());
+        assertEquals(1, vault.getReloadFailureCount());
+    }
+    
+    @Test
+    public void testKeyCacheAndPreload() {
+        Vault vault = new Vault(VAULT_FNAME, "123456");
+        assertEquals(1, vault.preload());
+        assertEquals(0, vault.getKeyCacheStats().hits());
+        assertEquals(1, vault.getKeyCacheStats().size());
+        
+        vault.getPublicKey("test");
+        vault.getPrivateKey("test");
+        assertEquals(2, vault.getKeyCacheStats().hits());
+        assertEquals(1, vault.getKeyCacheStats().misses());
+    }
+
+    @Test
+    public void testReloadInvalidatesKeyCache() throws IOException {
+        Path file = copyTestVault();
+        Vault vault = new Vault(file.toString(), "123456");
+        vault.getPublicKey("test");
+        
+        Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(file).toMillis() + 2000));
+        vault.getPublicKey("test");
+        assertEquals(0, vault.getKeyCacheStats().hits());
+        assertEquals(2, vault.getKeyCacheStats().misses());
+        assertEquals(1, vault.getKeyCacheStats().size());
+    }
+    
+    @Test
+    public void testIsKeyStore() throws IOException {
+        Path file = copyTestVault();
+        Vault vault = new Vault(file.toString(), "123456");
+
+        assertTrue(vault.isKeyStore(file.getParent().resolve(".").resolve(file.getFileName()).toString(), "123456"));
+        assertFalse(vault.isKeyStore(file.toString(), "654321"));
+        assertFalse(vault.isKeyStore(Files.copy(file, tempDir.resolve("other.vault")).toString(), "123456"));
+        assertFalse(vault.isKeyStore(VAULT_FNAME, "123456"));
+        assertTrue(new Vault(VAULT_FNAME, "123456").isKeyStore(VAULT_FNAME, "123456"));
+    }
+    
+    private Path copyTestVault() throws IOException {
+        Path file = tempDir.resolve("test.vault");
+        try (InputStream is = getClass().getClassLoader().getResourceAsStream("test.vault")) {
+            Files.copy(is, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return file;
+    }
+
+    @Test
+    public void testDecryptAsync() {
+        Vault vault = new Vault(VAULT_FNAME, "123456");
+        byte[] encrypted = new PkiCrypto.Encryptor(vault.getPublicKey("test"), PkiCrypto.Version.V2, true).encrypt("Later".getBytes());
+
+        assertEquals("Later", new String(vault.decryptAsync(encrypted).join()));
+        assertEquals("Later", new String(vault.decryptAsync("test", encrypted, CryptoExecutors.io()).join()));
+    }
 }